@@ -0,0 +1,101 @@
+package rs.mail.queue.benchmarks;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.cowwoc.tokenbucket.Bucket;
+
+import rs.mail.queue.MailQueue;
+
+/**
+ * Measures the time it takes to send a message when draining the queue with {@link MailQueue#run()}.
+ * <p>Each invocation drains {@value #MESSAGES} ready messages with a sender that returns immediately.
+ *    A share of the queue can be kept waiting for a retry, so picking the next message has to skip
+ *    these messages. Optionally, a token bucket that never runs out of tokens is checked for each message.</p>
+ *
+ * @author ralph
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class DrainBenchmark {
+
+	/** Number of ready messages drained per invocation */
+	private static final int MESSAGES = 10000;
+
+	/** Percentage of the queued messages that wait for a retry */
+	@Param({ "0", "50", "90" })
+	public int delayedPercent;
+
+	/** Whether the queue checks a token bucket for each message */
+	@Param({ "false", "true" })
+	public boolean tokenBucket;
+
+	private MailQueue<String> queue;
+	private NoopMailSender sender;
+	private long counter;
+
+	/**
+	 * Creates the queue and puts the messages waiting for a retry on hold.
+	 * @throws Exception when the messages cannot be queued
+	 */
+	@Setup(Level.Trial)
+	public void setUpTrial() throws Exception {
+		int delayed = MESSAGES * delayedPercent / (100 - delayedPercent);
+		sender = new NoopMailSender();
+		queue  = new MailQueue<>(sender, MESSAGES+delayed, 1);
+		queue.setRetryPeriod(TimeUnit.HOURS.toMillis(24));
+		queue.setMaxRetries(Integer.MAX_VALUE);
+		if (tokenBucket) {
+			queue.setTokenBucket(Bucket.builder().addLimit(
+					limit -> limit
+						.tokensPerPeriod(1000000000)
+						.period(Duration.ofSeconds(1))
+						.build()
+					)
+					.build());
+		}
+		sender.setFailing(true);
+		for (int i=0; i<delayed; i++) queue.queue("message", "delayed-"+i);
+		queue.run();
+		sender.setFailing(false);
+		counter = 0;
+	}
+
+	/**
+	 * Queues the ready messages for the next invocation.
+	 */
+	@Setup(Level.Invocation)
+	public void setUpInvocation() {
+		for (int i=0; i<MESSAGES; i++) queue.queue("message", "ready-"+(counter++));
+	}
+
+	/**
+	 * Drains the ready messages.
+	 * @return the next time the queue must be processed
+	 * @throws Exception when processing fails
+	 */
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public long drain() throws Exception {
+		return queue.run();
+	}
+}
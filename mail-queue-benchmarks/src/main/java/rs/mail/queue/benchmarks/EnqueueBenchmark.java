@@ -0,0 +1,124 @@
+package rs.mail.queue.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rs.mail.queue.MailQueue;
+import rs.mail.queue.QueueItem;
+
+/**
+ * Measures the throughput of queuing messages by one or several producers.
+ * <p>A single worker thread drains the queue with a sender that returns immediately. The capacity
+ *    is large enough that producers wait for space only when they outpace the worker considerably.</p>
+ *
+ * @author ralph
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnqueueBenchmark {
+
+	/** Capacity of the queue */
+	private static final int CAPACITY = 1000000;
+	/** Number of messages queued at once by bulk producers */
+	private static final int BULK_SIZE = 100;
+
+	/**
+	 * The queue shared by all producers.
+	 */
+	@State(Scope.Benchmark)
+	public static class QueueState {
+
+		MailQueue<String> queue;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			queue = new MailQueue<>(new NoopMailSender(), CAPACITY, CAPACITY);
+			queue.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws InterruptedException {
+			queue.stop();
+		}
+	}
+
+	/**
+	 * Creates unique reference IDs for a producer.
+	 */
+	@State(Scope.Thread)
+	public static class Producer {
+
+		String prefix;
+		long counter;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			prefix  = Thread.currentThread().getName()+"-";
+			counter = 0;
+		}
+
+		String nextReferenceId() {
+			return prefix + counter++;
+		}
+	}
+
+	/**
+	 * Queues messages from a single thread.
+	 * @param state the queue
+	 * @param producer the producer
+	 * @return whether the message was queued
+	 */
+	@Benchmark
+	@Threads(1)
+	public boolean singleProducer(QueueState state, Producer producer) {
+		return state.queue.queue("message", producer.nextReferenceId());
+	}
+
+	/**
+	 * Queues messages from four threads at the same time.
+	 * @param state the queue
+	 * @param producer the producer
+	 * @return whether the message was queued
+	 */
+	@Benchmark
+	@Threads(4)
+	public boolean multiProducer(QueueState state, Producer producer) {
+		return state.queue.queue("message", producer.nextReferenceId());
+	}
+
+	/**
+	 * Queues messages in bulks from four threads at the same time.
+	 * <p>The result is reported per message, so it compares to {@link #multiProducer(QueueState, Producer)}.</p>
+	 * @param state the queue
+	 * @param producer the producer
+	 * @return the number of messages queued
+	 */
+	@Benchmark
+	@Threads(4)
+	@OperationsPerInvocation(BULK_SIZE)
+	public int bulkProducer(QueueState state, Producer producer) {
+		List<QueueItem<String>> items = new ArrayList<>(BULK_SIZE);
+		for (int i=0; i<BULK_SIZE; i++) items.add(new QueueItem<>("message", producer.nextReferenceId()));
+		return state.queue.queueAll(items);
+	}
+}
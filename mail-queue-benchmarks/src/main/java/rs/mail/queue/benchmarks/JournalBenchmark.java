@@ -0,0 +1,147 @@
+package rs.mail.queue.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rs.mail.queue.MailQueue;
+import rs.mail.queue.MailQueueJournal;
+import rs.mail.queue.MailQueueJournal.SyncPolicy;
+import rs.mail.queue.MessageCodec;
+
+/**
+ * Measures the throughput of queuing messages by four producers with a journal.
+ * <p>A single worker thread drains the queue with a sender that returns immediately. Segments are
+ *    small and compacted frequently, so compactions run while the producers queue messages. The
+ *    parameter {@code NONE} runs without a journal as the baseline.</p>
+ *
+ * @author ralph
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalBenchmark {
+
+	/** Capacity of the queue */
+	private static final int CAPACITY = 1000000;
+	/** Maximum size of a journal segment */
+	private static final long SEGMENT_SIZE = 1024*1024;
+	/** Period in milliseconds between two compactions */
+	private static final long COMPACTION_INTERVAL = 100;
+
+	/**
+	 * The queue shared by all producers.
+	 */
+	@State(Scope.Benchmark)
+	public static class QueueState {
+
+		/** The sync policy of the journal or {@code NONE} for no journal */
+		@Param({ "NONE", "NEVER", "INTERVAL", "ALWAYS" })
+		public String syncPolicy;
+
+		MailQueue<String> queue;
+		MailQueueJournal<String> journal;
+		Path directory;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			queue = new MailQueue<>(new NoopMailSender(), CAPACITY, CAPACITY);
+			if (!"NONE".equals(syncPolicy)) {
+				directory = Files.createTempDirectory("mail-queue-journal");
+				journal   = new MailQueueJournal<>(directory, new StringCodec());
+				journal.setSyncPolicy(SyncPolicy.valueOf(syncPolicy));
+				journal.setMaxSegmentSize(SEGMENT_SIZE);
+				journal.setCompactionInterval(COMPACTION_INTERVAL);
+				queue.setJournal(journal);
+			}
+			queue.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			queue.stop();
+			if (journal != null) journal.close();
+			if (directory != null) {
+				try (Stream<Path> paths = Files.walk(directory)) {
+					for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates unique reference IDs for a producer.
+	 */
+	@State(Scope.Thread)
+	public static class Producer {
+
+		String prefix;
+		long counter;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			prefix  = Thread.currentThread().getName()+"-";
+			counter = 0;
+		}
+
+		String nextReferenceId() {
+			return prefix + counter++;
+		}
+	}
+
+	/**
+	 * Queues messages from four threads at the same time.
+	 * @param state the queue
+	 * @param producer the producer
+	 * @return whether the message was queued
+	 */
+	@Benchmark
+	@Threads(4)
+	public boolean multiProducer(QueueState state, Producer producer) {
+		return state.queue.queue("message", producer.nextReferenceId());
+	}
+
+	/**
+	 * Stores the messages as UTF-8.
+	 */
+	public static class StringCodec implements MessageCodec<String> {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public byte[] encode(String message) throws Exception {
+			return message.getBytes(StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String decode(byte[] data) throws Exception {
+			return new String(data, StandardCharsets.UTF_8);
+		}
+	}
+}
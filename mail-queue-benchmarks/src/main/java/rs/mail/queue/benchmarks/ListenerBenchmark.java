@@ -0,0 +1,113 @@
+package rs.mail.queue.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rs.mail.queue.MailQueue;
+import rs.mail.queue.MailQueueEventBus;
+import rs.mail.queue.MailQueueListener;
+
+/**
+ * Measures the cost of informing listeners.
+ * <p>Each operation queues and sends a message, which informs the listeners three times
+ *    (queued, sending, sent). With an event bus only the cost of publishing the events is
+ *    measured, the listeners are called on the thread of the event bus.</p>
+ *
+ * @author ralph
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListenerBenchmark {
+
+	/** Number of listeners */
+	@Param({ "0", "1", "4", "16" })
+	public int listeners;
+
+	/** Whether listeners are informed through an event bus */
+	@Param({ "false", "true" })
+	public boolean eventBus;
+
+	private MailQueue<String> queue;
+	private MailQueueEventBus bus;
+	private long counter;
+
+	/**
+	 * Creates the queue and registers the listeners.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() {
+		queue = new MailQueue<>(new NoopMailSender(), 10, 1);
+		for (int i=0; i<listeners; i++) queue.addListener(new CountingListener());
+		if (eventBus) {
+			bus = new MailQueueEventBus(65536, MailQueueEventBus.OverflowPolicy.BLOCK);
+			queue.setEventBus(bus);
+		}
+		counter = 0;
+	}
+
+	/**
+	 * Stops the event bus.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (bus != null) bus.close();
+	}
+
+	/**
+	 * Queues and sends a message.
+	 * @return the next time the queue must be processed
+	 * @throws Exception when processing fails
+	 */
+	@Benchmark
+	public long queueAndSend() throws Exception {
+		queue.queue("message", "message-"+(counter++));
+		return queue.run();
+	}
+
+	/**
+	 * A listener that only counts the events.
+	 * <p>The events may arrive on the thread of the event bus, so no blackhole is used.</p>
+	 */
+	private static class CountingListener implements MailQueueListener {
+
+		private long events;
+
+		@Override
+		public void onQueued(String referenceId) {
+			events++;
+		}
+
+		@Override
+		public void onSending(String referenceId) {
+			events++;
+		}
+
+		@Override
+		public void onSent(String referenceId) {
+			events++;
+		}
+
+		@Override
+		public void onFailed(String referenceId, int failedCount, String reason) {
+			events++;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package rs.mail.queue.benchmarks;
+
+import rs.mail.queue.MailSender;
+
+/**
+ * A mail sender that does not send anything and returns immediately.
+ * <p>The sender can be switched to fail every message in order to put messages on hold for a retry.</p>
+ *
+ * @author ralph
+ *
+ */
+public class NoopMailSender implements MailSender<String> {
+
+	private volatile boolean failing;
+
+	/**
+	 * Constructor.
+	 */
+	public NoopMailSender() {
+		this.failing = false;
+	}
+
+	/**
+	 * Sets whether sending shall fail.
+	 * @param failing {@code true} when all messages shall fail
+	 */
+	public void setFailing(boolean failing) {
+		this.failing = failing;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendMessage(String message, String referenceId) throws Exception {
+		if (failing) throw new IllegalStateException("Sending disabled");
+	}
+}
@@ -0,0 +1,170 @@
+package rs.mail.queue.micrometer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import rs.mail.queue.LongHistogram;
+import rs.mail.queue.MailQueue;
+import rs.mail.queue.MailQueueMetrics;
+import rs.mail.queue.PriorityClass;
+
+/**
+ * Publishes the metrics of a {@link MailQueue} to a Micrometer {@link MeterRegistry}.
+ * <p>The binder registers the following meters:</p>
+ * <ul>
+ * <li>{@code mail.queue.messages} - counters of queued, rejected, duplicate, sent, failed and given up messages (tag {@code result})</li>
+ * <li>{@code mail.queue.token.denials} - counter of denials by the token bucket of the queue</li>
+ * <li>{@code mail.queue.size} - number of messages in the normal and priority queue (tag {@code priority})</li>
+ * <li>{@code mail.queue.in.flight} - number of messages being sent</li>
+ * <li>{@code mail.queue.oldest.age} - age of the oldest waiting message (tag {@code priority})</li>
+ * <li>{@code mail.queue.class.size} - number of messages per priority class (tag {@code class})</li>
+ * <li>{@code mail.queue.class.oldest.age} - age of the oldest waiting message per priority class (tag {@code class})</li>
+ * <li>{@code mail.queue.latency} - time from queuing to sending a message, with percentiles in {@code mail.queue.latency.percentile}</li>
+ * <li>{@code mail.queue.send.duration} - duration of sending, with percentiles in {@code mail.queue.send.duration.percentile}</li>
+ * <li>{@code mail.queue.retries} - failed attempts per message (percentiles, tag {@code phi})</li>
+ * </ul>
+ * <p>The timers count all messages since the start. Their {@code .max} and {@code .percentile} gauges
+ *    as well as the retries cover the last one to two windows of the histograms only.</p>
+ *
+ * <pre>
+ * new MailQueueMetricsBinder(queue, Tags.of("queue", "newsletter")).bindTo(registry);
+ * </pre>
+ *
+ * @author ralph
+ *
+ */
+public class MailQueueMetricsBinder implements MeterBinder {
+
+	/** The percentiles published for the histograms */
+	private static final double[] PERCENTILES = { 0.5, 0.95, 0.99 };
+
+	private MailQueue<?> queue;
+	private MailQueueMetrics metrics;
+	private Iterable<Tag> tags;
+
+	/**
+	 * Constructor.
+	 * @param queue - the queue to be monitored
+	 */
+	public MailQueueMetricsBinder(MailQueue<?> queue) {
+		this(queue, Tags.empty());
+	}
+
+	/**
+	 * Constructor.
+	 * <p>The queue gets new metrics when it does not record any yet.</p>
+	 * @param queue - the queue to be monitored
+	 * @param tags - the tags to be added to all meters
+	 */
+	public MailQueueMetricsBinder(MailQueue<?> queue, Iterable<Tag> tags) {
+		if (queue.getMetrics() == null) queue.setMetrics(new MailQueueMetrics());
+		this.queue   = queue;
+		this.metrics = queue.getMetrics();
+		this.tags    = tags;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		bindCounter(registry, "queued",    MailQueueMetrics::getQueuedCount);
+		bindCounter(registry, "rejected",  MailQueueMetrics::getRejectedCount);
+		bindCounter(registry, "duplicate", MailQueueMetrics::getDuplicateCount);
+		bindCounter(registry, "sent",      MailQueueMetrics::getSentCount);
+		bindCounter(registry, "failed",    MailQueueMetrics::getFailedCount);
+		bindCounter(registry, "gave_up",   MailQueueMetrics::getGaveUpCount);
+		FunctionCounter.builder("mail.queue.token.denials", metrics, MailQueueMetrics::getTokenDenialCount)
+			.tags(tags)
+			.description("Number of times the token bucket denied sending a message")
+			.register(registry);
+
+		for (boolean isPriority : new boolean[] { false, true }) {
+			Gauge.builder("mail.queue.size", queue, q -> q.size(isPriority))
+				.tags(tags)
+				.tag("priority", Boolean.toString(isPriority))
+				.description("Number of messages in the queue")
+				.register(registry);
+			TimeGauge.builder("mail.queue.oldest.age", queue, TimeUnit.MILLISECONDS, q -> q.getOldestMessageAge(isPriority))
+				.tags(tags)
+				.tag("priority", Boolean.toString(isPriority))
+				.description("Age of the oldest message waiting in the queue")
+				.register(registry);
+		}
+		for (PriorityClass priorityClass : queue.getPriorityClasses()) {
+			String name = priorityClass.getName();
+			Gauge.builder("mail.queue.class.size", queue, q -> q.size(name))
+				.tags(tags)
+				.tag("class", name)
+				.description("Number of messages in the priority class")
+				.register(registry);
+			TimeGauge.builder("mail.queue.class.oldest.age", queue, TimeUnit.MILLISECONDS, q -> q.getOldestMessageAge(name))
+				.tags(tags)
+				.tag("class", name)
+				.description("Age of the oldest message waiting in the priority class")
+				.register(registry);
+		}
+		Gauge.builder("mail.queue.in.flight", queue, q -> q.getInFlightCount())
+			.tags(tags)
+			.description("Number of messages being sent")
+			.register(registry);
+
+		bindTimer(registry, "mail.queue.latency", "Time from queuing until a message was sent", metrics.getQueuedToSent(), TimeUnit.MILLISECONDS);
+		bindTimer(registry, "mail.queue.send.duration", "Duration of handing messages to the mail sender", metrics.getSendDuration(), TimeUnit.MICROSECONDS);
+		for (double percentile : PERCENTILES) {
+			Gauge.builder("mail.queue.retries", metrics.getRetries(), h -> h.getPercentile(percentile))
+				.tags(tags)
+				.tag("phi", Double.toString(percentile))
+				.description("Failed attempts per message that was sent or given up")
+				.register(registry);
+		}
+	}
+
+	/**
+	 * Registers a counter of messages.
+	 * @param registry the registry
+	 * @param result the value of the {@code result} tag
+	 * @param count the function returning the count
+	 */
+	private void bindCounter(MeterRegistry registry, String result, ToDoubleFunction<MailQueueMetrics> count) {
+		FunctionCounter.builder("mail.queue.messages", metrics, count)
+			.tags(tags)
+			.tag("result", result)
+			.description("Number of messages by result")
+			.register(registry);
+	}
+
+	/**
+	 * Registers a timer and its percentiles for a histogram.
+	 * @param registry the registry
+	 * @param name the name of the timer
+	 * @param description the description of the timer
+	 * @param histogram the histogram
+	 * @param unit the unit of the values in the histogram
+	 */
+	private void bindTimer(MeterRegistry registry, String name, String description, LongHistogram histogram, TimeUnit unit) {
+		FunctionTimer.builder(name, histogram, LongHistogram::getCount, LongHistogram::getTotal, unit)
+			.tags(tags)
+			.description(description)
+			.register(registry);
+		TimeGauge.builder(name+".max", histogram, unit, LongHistogram::getMax)
+			.tags(tags)
+			.description(description)
+			.register(registry);
+		for (double percentile : PERCENTILES) {
+			TimeGauge.builder(name+".percentile", histogram, unit, h -> h.getPercentile(percentile))
+				.tags(tags)
+				.tag("phi", Double.toString(percentile))
+				.description(description)
+				.register(registry);
+		}
+	}
+}
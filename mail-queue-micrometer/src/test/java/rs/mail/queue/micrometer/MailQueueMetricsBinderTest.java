@@ -0,0 +1,72 @@
+package rs.mail.queue.micrometer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import rs.mail.queue.MailQueue;
+import rs.mail.queue.MailSender;
+import rs.mail.queue.PriorityClass;
+
+/**
+ * Tests the {@link MailQueueMetricsBinder}.
+ *
+ * @author ralph
+ *
+ */
+public class MailQueueMetricsBinderTest {
+
+	// Test the meters reflect the queue
+	@Test
+	public void testBindTo_thenMetersPublished() throws Exception {
+		MailSender<String> sender = (message, referenceId) -> {};
+		MailQueue<String> queue = new MailQueue<>(sender);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		new MailQueueMetricsBinder(queue, Tags.of("queue", "test")).bindTo(registry);
+		assertNotNull(queue.getMetrics());
+
+		queue.queue("Message0", "Message0");
+		queue.queue("Message1", "Message1");
+		assertEquals(2.0, registry.get("mail.queue.messages").tag("result", "queued").functionCounter().count());
+		assertEquals(2.0, registry.get("mail.queue.size").tag("priority", "false").tag("queue", "test").gauge().value());
+
+		queue.run();
+		assertEquals(2.0, registry.get("mail.queue.messages").tag("result", "sent").functionCounter().count());
+		assertEquals(0.0, registry.get("mail.queue.size").tag("priority", "false").gauge().value());
+		assertEquals(0.0, registry.get("mail.queue.in.flight").gauge().value());
+		assertEquals(2.0, registry.get("mail.queue.latency").functionTimer().count());
+		assertEquals(2.0, registry.get("mail.queue.send.duration").functionTimer().count());
+		assertEquals(0.0, registry.get("mail.queue.oldest.age").tag("priority", "false").timeGauge().value(TimeUnit.MILLISECONDS));
+		assertEquals(0.0, registry.get("mail.queue.retries").tag("phi", "0.99").gauge().value());
+	}
+
+	// Test each priority class gets its own gauges
+	@Test
+	public void testBindTo_withPriorityClasses_thenGaugesPerClass() throws Exception {
+		MailSender<String> sender = (message, referenceId) -> {};
+		MailQueue<String> queue = new MailQueue<>(sender, List.of(
+			new PriorityClass("transactional", 10, 2),
+			new PriorityClass("marketing",     10, 1)
+		));
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		new MailQueueMetricsBinder(queue).bindTo(registry);
+
+		queue.queue("Message0", "Message0", "marketing");
+		queue.queue("Message1", "Message1", "marketing");
+		queue.queue("Message2", "Message2", "transactional");
+		assertEquals(2.0, registry.get("mail.queue.class.size").tag("class", "marketing").gauge().value());
+		assertEquals(1.0, registry.get("mail.queue.class.size").tag("class", "transactional").gauge().value());
+		assertTrue(registry.get("mail.queue.class.oldest.age").tag("class", "marketing").timeGauge().value(TimeUnit.MILLISECONDS) >= 0);
+
+		queue.run();
+		assertEquals(0.0, registry.get("mail.queue.class.size").tag("class", "marketing").gauge().value());
+		assertEquals(0.0, registry.get("mail.queue.class.oldest.age").tag("class", "transactional").timeGauge().value(TimeUnit.MILLISECONDS));
+	}
+}
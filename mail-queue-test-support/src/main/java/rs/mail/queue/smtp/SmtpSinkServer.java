@@ -0,0 +1,730 @@
+package rs.mail.queue.smtp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lightweight SMTP server that accepts messages on localhost and discards or keeps them.
+ * <p>The server is meant for tests and benchmarks of the full path from a mail queue through a
+ *    mail sender to an SMTP server without a live relay. It supports {@code EHLO}/{@code HELO},
+ *    {@code AUTH PLAIN} and {@code AUTH LOGIN} as well as {@code PIPELINING}. It does not support
+ *    {@code STARTTLS}. Each connection is served by a virtual thread.</p>
+ * <p>The server can simulate slow or failing relays:</p>
+ * <ul>
+ * <li>a latency before replying to each command or to specific commands,</li>
+ * <li>4xx or 5xx replies to a share of specific commands,</li>
+ * <li>a maximum number of connections at the same time.</li>
+ * </ul>
+ * <p>Faults are injected deterministically: a rate of 0.25 fails exactly every fourth command.</p>
+ *
+ * <pre>
+ * try (SmtpSinkServer server = new SmtpSinkServer()) {
+ * 	server.start();
+ * 	server.setFault(SmtpSinkServer.MESSAGE, 451, 0.1);
+ * 	properties.put("mail.smtp.host", "localhost");
+ * 	properties.put("mail.smtp.port", server.getPort());
+ * 	...
+ * }
+ * </pre>
+ *
+ * @author ralph
+ *
+ */
+public class SmtpSinkServer implements AutoCloseable {
+
+	/** The {@code EHLO} command */
+	public static final String EHLO = "EHLO";
+	/** The {@code HELO} command */
+	public static final String HELO = "HELO";
+	/** The {@code AUTH} command */
+	public static final String AUTH = "AUTH";
+	/** The {@code MAIL} command */
+	public static final String MAIL = "MAIL";
+	/** The {@code RCPT} command */
+	public static final String RCPT = "RCPT";
+	/** The {@code DATA} command */
+	public static final String DATA = "DATA";
+	/** The content of a message, i.e. the reply after the terminating dot */
+	public static final String MESSAGE = "MESSAGE";
+	/** Default maximum number of connections at the same time */
+	public static final int DEFAULT_MAX_CONNECTIONS = 100;
+
+	private int port;
+	private String hostName;
+	private ServerSocket serverSocket;
+	private Thread acceptor;
+	private ExecutorService connections;
+	private Set<Socket> sockets;
+	private volatile boolean running;
+	private volatile int maxConnections;
+	private volatile long latency;
+	private Map<String, Long> commandLatencies;
+	private Map<String, Fault> faults;
+	private volatile String username;
+	private volatile String password;
+	private volatile boolean keepMessages;
+	private ConcurrentLinkedQueue<ReceivedMessage> messages;
+	private AtomicInteger activeConnections;
+	private AtomicLong connectionCount;
+	private AtomicLong rejectedConnectionCount;
+	private AtomicLong messageCount;
+	private AtomicLong recipientCount;
+	private AtomicLong byteCount;
+	private AtomicLong faultCount;
+
+	/**
+	 * Constructor.
+	 * <p>The server will listen on a free port.</p>
+	 */
+	public SmtpSinkServer() {
+		this(0);
+	}
+
+	/**
+	 * Constructor.
+	 * @param port - the port to listen on, 0 for a free port
+	 */
+	public SmtpSinkServer(int port) {
+		this.port                    = port;
+		this.hostName                = "localhost";
+		this.sockets                 = ConcurrentHashMap.newKeySet();
+		this.running                 = false;
+		this.maxConnections          = DEFAULT_MAX_CONNECTIONS;
+		this.latency                 = 0;
+		this.commandLatencies        = new ConcurrentHashMap<>();
+		this.faults                  = new ConcurrentHashMap<>();
+		this.keepMessages            = false;
+		this.messages                = new ConcurrentLinkedQueue<>();
+		this.activeConnections       = new AtomicInteger(0);
+		this.connectionCount         = new AtomicLong(0);
+		this.rejectedConnectionCount = new AtomicLong(0);
+		this.messageCount            = new AtomicLong(0);
+		this.recipientCount          = new AtomicLong(0);
+		this.byteCount               = new AtomicLong(0);
+		this.faultCount              = new AtomicLong(0);
+	}
+
+	/**
+	 * Starts listening on localhost.
+	 * @throws IOException when the port cannot be bound
+	 * @throws IllegalStateException when the server is running already
+	 */
+	public synchronized void start() throws IOException {
+		if (running) throw new IllegalStateException("Server is running already");
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		port        = serverSocket.getLocalPort();
+		connections = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("SmtpSinkServer-", 1).factory());
+		running     = true;
+		acceptor    = new Thread(this::accept, "SmtpSinkServer-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Stops the server and closes all connections.
+	 */
+	@Override
+	public synchronized void close() {
+		if (!running) return;
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Ignored, the server is shutting down
+		}
+		for (Socket socket : sockets) closeQuietly(socket);
+		connections.shutdownNow();
+		try {
+			acceptor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns whether the server is running.
+	 * @return {@code true} when the server accepts connections
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 * @return the port, the actual port once the server was started
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns the maximum number of connections at the same time.
+	 * @return the maximum number of connections (Default: {@link #DEFAULT_MAX_CONNECTIONS})
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Sets the maximum number of connections at the same time.
+	 * <p>Further connections are answered with {@code 421} and closed.</p>
+	 * @param maxConnections the maximum number of connections
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Returns the time the server waits before replying to a command.
+	 * @return the latency in milliseconds (Default: 0)
+	 */
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Sets the time the server waits before replying to any command.
+	 * @param latency the latency in milliseconds
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets the time the server waits before replying to a specific command.
+	 * <p>The latency replaces the latency for all commands.</p>
+	 * @param command the command, e.g. {@link #MAIL} or {@link #MESSAGE}
+	 * @param latency the latency in milliseconds, negative to remove the latency of the command
+	 */
+	public void setLatency(String command, long latency) {
+		if (latency < 0) commandLatencies.remove(command.toUpperCase(Locale.ROOT));
+		else commandLatencies.put(command.toUpperCase(Locale.ROOT), latency);
+	}
+
+	/**
+	 * Makes a share of a command fail.
+	 * <p>A {@code 421} reply closes the connection afterwards.</p>
+	 * @param command the command, e.g. {@link #RCPT} or {@link #MESSAGE}
+	 * @param replyCode the reply code, e.g. 451 or 550
+	 * @param rate the share of commands that fail, between 0 and 1
+	 */
+	public void setFault(String command, int replyCode, double rate) {
+		if ((rate <= 0) || (replyCode < 400)) faults.remove(command.toUpperCase(Locale.ROOT));
+		else faults.put(command.toUpperCase(Locale.ROOT), new Fault(replyCode, Math.min(1, rate)));
+	}
+
+	/**
+	 * Removes all faults.
+	 */
+	public void clearFaults() {
+		faults.clear();
+	}
+
+	/**
+	 * Sets the credentials that clients must authenticate with.
+	 * <p>Without credentials, any authentication succeeds and is not required.</p>
+	 * @param username the user name or {@code null} when no authentication is required
+	 * @param password the password
+	 */
+	public void setCredentials(String username, String password) {
+		this.username = username;
+		this.password = password;
+	}
+
+	/**
+	 * Returns whether received messages are kept.
+	 * @return {@code true} when messages are kept, {@code false} when they are counted only (Default: {@code false})
+	 */
+	public boolean isKeepMessages() {
+		return keepMessages;
+	}
+
+	/**
+	 * Sets whether received messages are kept.
+	 * @param keepMessages {@code true} when messages shall be kept, {@code false} when they shall be counted only
+	 */
+	public void setKeepMessages(boolean keepMessages) {
+		this.keepMessages = keepMessages;
+	}
+
+	/**
+	 * Returns the messages received while keeping messages was enabled.
+	 * @return the messages in order of receipt
+	 */
+	public List<ReceivedMessage> getMessages() {
+		return new ArrayList<>(messages);
+	}
+
+	/**
+	 * Returns the number of messages accepted.
+	 * @return the number of messages
+	 */
+	public long getMessageCount() {
+		return messageCount.get();
+	}
+
+	/**
+	 * Returns the number of recipients of the messages accepted.
+	 * @return the number of recipients
+	 */
+	public long getRecipientCount() {
+		return recipientCount.get();
+	}
+
+	/**
+	 * Returns the number of bytes of the messages accepted.
+	 * @return the number of bytes
+	 */
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	/**
+	 * Returns the number of connections accepted.
+	 * @return the number of connections
+	 */
+	public long getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/**
+	 * Returns the number of connections rejected because of the connection limit.
+	 * @return the number of rejected connections
+	 */
+	public long getRejectedConnectionCount() {
+		return rejectedConnectionCount.get();
+	}
+
+	/**
+	 * Returns the number of connections currently open.
+	 * @return the number of open connections
+	 */
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/**
+	 * Returns the number of injected faults.
+	 * @return the number of faults
+	 */
+	public long getFaultCount() {
+		return faultCount.get();
+	}
+
+	/**
+	 * Resets all counters and forgets the messages kept.
+	 */
+	public void reset() {
+		messages.clear();
+		connectionCount.set(0);
+		rejectedConnectionCount.set(0);
+		messageCount.set(0);
+		recipientCount.set(0);
+		byteCount.set(0);
+		faultCount.set(0);
+	}
+
+	/**
+	 * Accepts connections until the server is closed.
+	 */
+	private void accept() {
+		while (running) {
+			try {
+				Socket socket = serverSocket.accept();
+				if (activeConnections.incrementAndGet() > maxConnections) {
+					activeConnections.decrementAndGet();
+					rejectedConnectionCount.incrementAndGet();
+					try (socket) {
+						Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1);
+						out.write("421 4.3.2 Too many connections\r\n");
+						out.flush();
+					} catch (IOException e) {
+						// Client is gone already
+					}
+					continue;
+				}
+				connectionCount.incrementAndGet();
+				sockets.add(socket);
+				connections.execute(() -> serve(socket));
+			} catch (IOException e) {
+				// Server socket was closed
+			}
+		}
+	}
+
+	/**
+	 * Serves a connection until the client quits.
+	 * @param socket the connection
+	 */
+	private void serve(Socket socket) {
+		try (socket) {
+			socket.setTcpNoDelay(true);
+			new Connection(socket).run();
+		} catch (IOException e) {
+			// Client is gone
+		} catch (InterruptedException e) {
+			// Server is shutting down
+		} finally {
+			sockets.remove(socket);
+			activeConnections.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Closes a socket and ignores any error.
+	 * @param socket the socket
+	 */
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Ignored
+		}
+	}
+
+	/**
+	 * The SMTP session of a single connection.
+	 */
+	private class Connection {
+
+		private BufferedReader in;
+		private Writer out;
+		private boolean authenticated;
+		private String from;
+		private List<String> recipients;
+		private boolean closed;
+
+		/**
+		 * Constructor.
+		 * @param socket - the connection
+		 * @throws IOException when the streams cannot be opened
+		 */
+		private Connection(Socket socket) throws IOException {
+			this.in            = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			this.out           = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1));
+			this.authenticated = false;
+			this.from          = null;
+			this.recipients    = new ArrayList<>();
+			this.closed        = false;
+		}
+
+		/**
+		 * Reads and answers commands until the client quits.
+		 * @throws IOException when the connection fails
+		 * @throws InterruptedException when the server is shutting down
+		 */
+		private void run() throws IOException, InterruptedException {
+			reply("220 "+hostName+" ESMTP SmtpSinkServer");
+			flush();
+			String line;
+			while (!closed && (line = in.readLine()) != null) {
+				int space    = line.indexOf(' ');
+				String verb  = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+				String param = space < 0 ? "" : line.substring(space+1).trim();
+				boolean quit = "QUIT".equals(verb);
+				if (!quit) delay(verb);
+				if (quit || !injectFault(verb)) handle(verb, param);
+				// Replies of pipelined commands are sent together
+				if (closed || !in.ready()) flush();
+			}
+		}
+
+		/**
+		 * Answers a command.
+		 * @param verb the command in upper case
+		 * @param param the parameters of the command
+		 * @throws IOException when the connection fails
+		 * @throws InterruptedException when the server is shutting down
+		 */
+		private void handle(String verb, String param) throws IOException, InterruptedException {
+			switch (verb) {
+			case EHLO:
+				reply("250-"+hostName+" Hello "+param);
+				reply("250-PIPELINING");
+				reply("250-8BITMIME");
+				reply("250-AUTH PLAIN LOGIN");
+				reply("250 HELP");
+				break;
+			case HELO:
+				reply("250 "+hostName+" Hello "+param);
+				break;
+			case AUTH:
+				authenticate(param);
+				break;
+			case MAIL:
+				if ((username != null) && !authenticated) {
+					reply("530 5.7.0 Authentication required");
+				} else {
+					from = param;
+					recipients.clear();
+					reply("250 2.1.0 OK");
+				}
+				break;
+			case RCPT:
+				if (from == null) {
+					reply("503 5.5.1 Bad sequence of commands");
+				} else {
+					recipients.add(param);
+					reply("250 2.1.5 OK");
+				}
+				break;
+			case DATA:
+				if (recipients.isEmpty()) reply("503 5.5.1 Bad sequence of commands");
+				else receive();
+				break;
+			case "RSET":
+				from = null;
+				recipients.clear();
+				reply("250 2.0.0 OK");
+				break;
+			case "NOOP":
+				reply("250 2.0.0 OK");
+				break;
+			case "VRFY":
+				reply("252 2.5.0 Cannot verify user");
+				break;
+			case "QUIT":
+				reply("221 2.0.0 Bye");
+				closed = true;
+				break;
+			case "STARTTLS":
+				reply("502 5.5.1 STARTTLS not supported");
+				break;
+			default:
+				reply("500 5.5.2 Command not recognized");
+			}
+		}
+
+		/**
+		 * Receives the content of a message.
+		 * @throws IOException when the connection fails
+		 * @throws InterruptedException when the server is shutting down
+		 */
+		private void receive() throws IOException, InterruptedException {
+			reply("354 End data with <CR><LF>.<CR><LF>");
+			flush();
+			StringBuilder content = keepMessages ? new StringBuilder() : null;
+			long bytes = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (".".equals(line)) break;
+				if (line.startsWith(".")) line = line.substring(1);
+				bytes += line.length()+2;
+				if (content != null) content.append(line).append("\r\n");
+			}
+			if (line == null) throw new IOException("Connection closed while receiving message");
+			delay(MESSAGE);
+			if (!injectFault(MESSAGE)) {
+				long id = messageCount.incrementAndGet();
+				recipientCount.addAndGet(recipients.size());
+				byteCount.addAndGet(bytes);
+				if (content != null) messages.add(new ReceivedMessage(from, recipients, content.toString()));
+				reply("250 2.0.0 OK queued as "+id);
+			}
+			from = null;
+			recipients.clear();
+		}
+
+		/**
+		 * Authenticates the client.
+		 * @param param the parameters of the {@code AUTH} command
+		 * @throws IOException when the connection fails
+		 */
+		private void authenticate(String param) throws IOException {
+			String[] parts     = param.split(" ", 2);
+			String mechanism   = parts[0].toUpperCase(Locale.ROOT);
+			String user        = null;
+			String secret      = null;
+			if ("PLAIN".equals(mechanism)) {
+				String response = parts.length > 1 ? parts[1] : challenge("");
+				String[] fields = decode(response).split("\0", -1);
+				if (fields.length == 3) {
+					user   = fields[1];
+					secret = fields[2];
+				}
+			} else if ("LOGIN".equals(mechanism)) {
+				user   = decode(parts.length > 1 ? parts[1] : challenge("VXNlcm5hbWU6"));
+				secret = decode(challenge("UGFzc3dvcmQ6"));
+			} else {
+				reply("504 5.5.4 Unrecognized authentication type");
+				return;
+			}
+			if ((user != null) && ((username == null) || (username.equals(user) && password.equals(secret)))) {
+				authenticated = true;
+				reply("235 2.7.0 Authentication successful");
+			} else {
+				reply("535 5.7.8 Authentication credentials invalid");
+			}
+		}
+
+		/**
+		 * Sends a challenge and reads the response.
+		 * @param challenge the challenge in Base64
+		 * @return the response in Base64
+		 * @throws IOException when the connection fails
+		 */
+		private String challenge(String challenge) throws IOException {
+			reply("334 "+challenge);
+			flush();
+			String rc = in.readLine();
+			if (rc == null) throw new IOException("Connection closed during authentication");
+			return rc.trim();
+		}
+
+		/**
+		 * Waits for the latency of a command.
+		 * @param command the command
+		 * @throws InterruptedException when the server is shutting down
+		 */
+		private void delay(String command) throws InterruptedException {
+			Long rc = commandLatencies.get(command);
+			long millis = rc != null ? rc : latency;
+			if (millis > 0) Thread.sleep(millis);
+		}
+
+		/**
+		 * Replies with a fault when the command shall fail.
+		 * @param command the command
+		 * @return {@code true} when a fault was injected
+		 * @throws IOException when the connection fails
+		 */
+		private boolean injectFault(String command) throws IOException {
+			Fault fault = faults.get(command);
+			if ((fault == null) || !fault.next()) return false;
+			faultCount.incrementAndGet();
+			if (fault.replyCode < 500) reply(fault.replyCode+" 4.3.0 Temporary failure injected");
+			else reply(fault.replyCode+" 5.7.1 Permanent failure injected");
+			if (fault.replyCode == 421) closed = true;
+			return true;
+		}
+
+		/**
+		 * Writes a reply line.
+		 * @param line the reply
+		 * @throws IOException when the connection fails
+		 */
+		private void reply(String line) throws IOException {
+			out.write(line);
+			out.write("\r\n");
+		}
+
+		/**
+		 * Sends the replies written so far.
+		 * @throws IOException when the connection fails
+		 */
+		private void flush() throws IOException {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Decodes a Base64 string.
+	 * @param value the value
+	 * @return the decoded value or an empty string when it is invalid
+	 */
+	private static String decode(String value) {
+		try {
+			return new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * A fault injected into a share of the commands.
+	 */
+	private static class Fault {
+		private int replyCode;
+		private double rate;
+		private AtomicLong count;
+
+		/**
+		 * Constructor.
+		 * @param replyCode - the reply code
+		 * @param rate - the share of commands that fail
+		 */
+		private Fault(int replyCode, double rate) {
+			this.replyCode = replyCode;
+			this.rate      = rate;
+			this.count     = new AtomicLong(0);
+		}
+
+		/**
+		 * Returns whether the next command shall fail.
+		 * @return {@code true} when the command shall fail
+		 */
+		private boolean next() {
+			long n = count.getAndIncrement();
+			return (long)((n+1)*rate) > (long)(n*rate);
+		}
+	}
+
+	/**
+	 * A message received by the server.
+	 */
+	public static class ReceivedMessage {
+		private String from;
+		private List<String> recipients;
+		private String content;
+
+		/**
+		 * Constructor.
+		 * @param from - the parameter of the {@code MAIL} command
+		 * @param recipients - the parameters of the {@code RCPT} commands
+		 * @param content - the content with dots unstuffed
+		 */
+		public ReceivedMessage(String from, List<String> recipients, String content) {
+			this.from       = from;
+			this.recipients = Collections.unmodifiableList(new ArrayList<>(recipients));
+			this.content    = content;
+		}
+
+		/**
+		 * Returns the sender as given in the {@code MAIL} command.
+		 * @return the sender, e.g. {@code FROM:<john@example.com>}
+		 */
+		public String getFrom() {
+			return from;
+		}
+
+		/**
+		 * Returns the recipients as given in the {@code RCPT} commands.
+		 * @return the recipients, e.g. {@code TO:<jane@example.com>}
+		 */
+		public List<String> getRecipients() {
+			return recipients;
+		}
+
+		/**
+		 * Returns the content of the message including its headers.
+		 * @return the content
+		 */
+		public String getContent() {
+			return content;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package rs.mail.queue.smtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import rs.mail.queue.BatchItem;
+import rs.mail.queue.MessageMailSender;
+import rs.mail.queue.RetryPolicy;
+
+/**
+ * Tests the {@link SmtpSinkServer}.
+ *
+ * @author ralph
+ *
+ */
+public class SmtpSinkServerTest {
+
+	// Test a pipelined conversation is answered in order
+	@Test
+	public void testConversation_withPipelining_thenMessageReceived() throws Exception {
+		try (SmtpSinkServer server = new SmtpSinkServer()) {
+			server.setKeepMessages(true);
+			server.start();
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1);
+				assertTrue(in.readLine().startsWith("220 "));
+				out.write("EHLO client\r\n");
+				out.flush();
+				List<String> extensions = new ArrayList<>();
+				String line;
+				while ((line = in.readLine()).startsWith("250-")) extensions.add(line.substring(4));
+				assertTrue(extensions.contains("PIPELINING"));
+				out.write("MAIL FROM:<sender@example.com>\r\nRCPT TO:<a@example.com>\r\nRCPT TO:<b@example.com>\r\nDATA\r\n");
+				out.flush();
+				assertTrue(in.readLine().startsWith("250 "));
+				assertTrue(in.readLine().startsWith("250 "));
+				assertTrue(in.readLine().startsWith("250 "));
+				assertTrue(in.readLine().startsWith("354 "));
+				out.write("Subject: Test\r\n\r\n..Dotted\r\n.\r\nQUIT\r\n");
+				out.flush();
+				assertTrue(in.readLine().startsWith("250 "));
+				assertTrue(in.readLine().startsWith("221 "));
+			}
+			assertEquals(1, server.getMessageCount());
+			assertEquals(2, server.getRecipientCount());
+			SmtpSinkServer.ReceivedMessage message = server.getMessages().get(0);
+			assertEquals("FROM:<sender@example.com>", message.getFrom());
+			assertEquals(2, message.getRecipients().size());
+			assertEquals("Subject: Test\r\n\r\n.Dotted\r\n", message.getContent());
+		}
+	}
+
+	// Test messages are sent by the MessageMailSender with authentication
+	@Test
+	public void testSendMessages_withAuthentication_thenAllReceived() throws Exception {
+		try (SmtpSinkServer server = new SmtpSinkServer()) {
+			server.setCredentials("john", "secret");
+			server.start();
+			Session session = createSession(server, "john", "secret");
+			MessageMailSender sender = new MessageMailSender(session);
+			List<BatchItem<Message>> batch = createBatch(session, 5);
+			sender.sendMessages(batch);
+			for (BatchItem<Message> item : batch) assertTrue(item.isSent());
+			assertEquals(5, server.getMessageCount());
+			assertEquals(1, server.getConnectionCount());
+		}
+	}
+
+	// Test an injected fault is reported as temporary failure
+	@Test
+	public void testSendMessage_withFault_thenTemporaryFailure() throws Exception {
+		try (SmtpSinkServer server = new SmtpSinkServer()) {
+			server.setFault(SmtpSinkServer.MESSAGE, 451, 0.5);
+			server.start();
+			Session session = createSession(server, null, null);
+			MessageMailSender sender = new MessageMailSender(session);
+			List<BatchItem<Message>> batch = createBatch(session, 4);
+			sender.sendMessages(batch);
+			int failures = 0;
+			for (BatchItem<Message> item : batch) {
+				if (item.isSent()) continue;
+				failures++;
+				assertEquals(451, RetryPolicy.getSmtpReturnCode(item.getFailure()));
+				assertTrue(RetryPolicy.isTemporaryFailure(item.getFailure()));
+			}
+			assertEquals(2, failures);
+			assertEquals(2, server.getFaultCount());
+			assertEquals(2, server.getMessageCount());
+		}
+	}
+
+	// Test a permanent failure of a recipient
+	@Test
+	public void testSendMessage_withRejectedRecipient_thenPermanentFailure() throws Exception {
+		try (SmtpSinkServer server = new SmtpSinkServer()) {
+			server.setFault(SmtpSinkServer.RCPT, 550, 1);
+			server.start();
+			Session session = createSession(server, null, null);
+			MessageMailSender sender = new MessageMailSender(session);
+			Message message = createBatch(session, 1).get(0).getMessage();
+			Exception e = assertThrows(Exception.class, () -> sender.sendMessage(message, "Message0"));
+			assertTrue(RetryPolicy.isPermanentFailure(e), e.toString());
+			assertEquals(0, server.getMessageCount());
+		}
+	}
+
+	// Test connections beyond the limit are rejected
+	@Test
+	public void testConnect_withLimit_thenRejected() throws Exception {
+		try (SmtpSinkServer server = new SmtpSinkServer()) {
+			server.setMaxConnections(1);
+			server.start();
+			try (Socket first = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+				BufferedReader in1 = new BufferedReader(new InputStreamReader(first.getInputStream(), StandardCharsets.ISO_8859_1));
+				assertTrue(in1.readLine().startsWith("220 "));
+				try (Socket second = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+					BufferedReader in2 = new BufferedReader(new InputStreamReader(second.getInputStream(), StandardCharsets.ISO_8859_1));
+					assertTrue(in2.readLine().startsWith("421 "));
+				}
+			}
+			assertEquals(1, server.getConnectionCount());
+			assertEquals(1, server.getRejectedConnectionCount());
+		}
+	}
+
+	// Test the latency of a command delays sending
+	@Test
+	public void testSendMessage_withLatency_thenDelayed() throws Exception {
+		try (SmtpSinkServer server = new SmtpSinkServer()) {
+			server.setLatency(SmtpSinkServer.MESSAGE, 100L);
+			server.start();
+			Session session = createSession(server, null, null);
+			MessageMailSender sender = new MessageMailSender(session);
+			Message message = createBatch(session, 1).get(0).getMessage();
+			long start = System.currentTimeMillis();
+			sender.sendMessage(message, "Message0");
+			assertTrue(System.currentTimeMillis() - start >= 100L);
+			assertEquals(1, server.getMessageCount());
+		}
+	}
+
+	/**
+	 * Creates a mail session for the server.
+	 * @param server - the server
+	 * @param username - the user name, {@code null} for no authentication
+	 * @param password - the password
+	 * @return the session
+	 */
+	protected Session createSession(SmtpSinkServer server, String username, String password) {
+		Properties props = new Properties();
+		props.put("mail.transport.protocol", "smtp");
+		props.put("mail.smtp.host", "localhost");
+		props.put("mail.smtp.port", Integer.toString(server.getPort()));
+		props.put("mail.smtp.timeout", "5000");
+		if (username != null) {
+			props.put("mail.smtp.auth", "true");
+			props.put("mail.smtp.user", username);
+			props.put("mail.smtp.password", password);
+			return Session.getInstance(props, new jakarta.mail.Authenticator() {
+				@Override
+				protected jakarta.mail.PasswordAuthentication getPasswordAuthentication() {
+					return new jakarta.mail.PasswordAuthentication(username, password);
+				}
+			});
+		}
+		return Session.getInstance(props);
+	}
+
+	/**
+	 * Creates a batch of messages.
+	 * @param session - the mail session
+	 * @param count - number of messages
+	 * @return the batch
+	 */
+	protected List<BatchItem<Message>> createBatch(Session session, int count) throws Exception {
+		List<BatchItem<Message>> rc = new ArrayList<>();
+		for (int i=0; i<count; i++) {
+			MimeMessage message = new MimeMessage(session);
+			message.setFrom(new InternetAddress("sender@example.com"));
+			message.setRecipient(Message.RecipientType.TO, new InternetAddress("recipient"+i+"@example.com"));
+			message.setSubject("Subject"+i);
+			message.setText("Body"+i);
+			rc.add(new BatchItem<>(message, "Message"+i));
+		}
+		return rc;
+	}
+}
@@ -0,0 +1,71 @@
+package rs.mail.queue;
+
+/**
+ * A message being sent as part of a batch.
+ * <p>The {@link MailSender} records the outcome of sending this message
+ *    in the item. An item without a failure is considered to be sent successfully.</p>
+ * 
+ * @param <T> the type of email object
+ * 
+ * @author ralph
+ *
+ * @see MailSender#sendMessages(java.util.List)
+ */
+public class BatchItem<T> {
+
+	private T message;
+	private String referenceId;
+	private Throwable failure;
+	
+	/**
+	 * Constructor.
+	 * @param message - the message object
+	 * @param referenceId - the reference ID of the message
+	 */
+	public BatchItem(T message, String referenceId) {
+		this.message     = message;
+		this.referenceId = referenceId;
+		this.failure     = null;
+	}
+
+	/**
+	 * Returns the message.
+	 * @return the message
+	 */
+	public T getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the reference ID.
+	 * @return the reference ID
+	 */
+	public String getReferenceId() {
+		return referenceId;
+	}
+
+	/**
+	 * Returns the reason why sending failed.
+	 * @return the failure or {@code null} when the message was sent successfully
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Records that sending this message failed.
+	 * @param failure the reason of the failure
+	 */
+	public void setFailure(Throwable failure) {
+		this.failure = failure;
+	}
+
+	/**
+	 * Returns whether the message was sent successfully.
+	 * @return {@code true} when no failure was recorded
+	 */
+	public boolean isSent() {
+		return failure == null;
+	}
+	
+}
@@ -0,0 +1,22 @@
+package rs.mail.queue;
+
+import java.util.List;
+
+/**
+ * A listener that gets informed about events in a mail queue in batches.
+ * <p>Listeners that persist each status change can write a whole batch with a single statement.
+ *    Register the listener with a {@link MailQueueEventBatcher}.</p>
+ * 
+ * @author ralph
+ *
+ */
+@FunctionalInterface
+public interface BatchMailQueueListener {
+
+	/**
+	 * Informs about status changes of messages.
+	 * @param events - the events in the order they occurred, never empty
+	 */
+	public void onEvents(List<MailQueueEvent> events);
+
+}
@@ -0,0 +1,348 @@
+package rs.mail.queue;
+
+/**
+ * Remembers the reference IDs of messages that were queued recently.
+ * <p>A {@link MailQueue} with a deduplication index does not queue a message again when
+ *    a message with the same reference ID is still queued, being sent or was sent within
+ *    the time-to-live (TTL) of the index. Upstream services that retry a call therefore
+ *    do not cause duplicate mails.</p>
+ * <p>The index does not keep the reference IDs themselves but a 64-bit hash of them
+ *    in primitive arrays with open addressing. Each reference ID takes about 21 bytes, so the
+ *    index can cover millions of IDs. Two different IDs with the same hash are considered
+ *    equal, which is extremely unlikely. Lookups take constant time. The index is split into
+ *    segments with their own locks, so concurrent producers rarely wait for each other.</p>
+ * <p>The capacity of the index is fixed. IDs of sent messages are purged after their TTL when
+ *    space is needed. When the index is full of IDs of queued messages or IDs within their TTL,
+ *    further IDs are not recorded and their messages are queued without deduplication
+ *    (see {@link #getOverflowCount()}). Size the index for the capacity of the queue plus the
+ *    number of messages sent within the TTL.</p>
+ *
+ * @author ralph
+ *
+ * @see MailQueue#setDeduplicationIndex(DeduplicationIndex)
+ */
+public class DeduplicationIndex {
+
+	/** Default time in milliseconds a sent message is remembered */
+	public static final long DEFAULT_TTL = 24*60*60*1000L;
+
+	/** Number of segments, must be a power of two */
+	private static final int SEGMENT_COUNT = 64;
+	/** Expiry of IDs whose messages are still queued */
+	private static final long PINNED = Long.MAX_VALUE;
+
+	private int capacity;
+	private long ttl;
+	private Segment[] segments;
+
+	/**
+	 * Constructor.
+	 * <p>Sent messages are remembered for the default TTL.</p>
+	 * @param capacity - the maximum number of reference IDs
+	 * @see #DEFAULT_TTL
+	 */
+	public DeduplicationIndex(int capacity) {
+		this(capacity, DEFAULT_TTL);
+	}
+
+	/**
+	 * Constructor.
+	 * @param capacity - the maximum number of reference IDs
+	 * @param ttlInMillis - the time in milliseconds a sent message is remembered
+	 * @throws IllegalArgumentException when the capacity is less than 1 or the TTL is negative
+	 */
+	public DeduplicationIndex(int capacity, long ttlInMillis) {
+		if (capacity < 1)    throw new IllegalArgumentException("Capacity must be at least 1");
+		if (ttlInMillis < 0) throw new IllegalArgumentException("TTL must not be negative");
+		this.capacity = capacity;
+		this.ttl      = ttlInMillis;
+		this.segments = new Segment[SEGMENT_COUNT];
+		// Hashes do not spread evenly, so segments get some headroom
+		int segmentCapacity = (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+		segmentCapacity += segmentCapacity/4 + 8;
+		for (int i=0; i<SEGMENT_COUNT; i++) segments[i] = new Segment(segmentCapacity);
+	}
+
+	/**
+	 * Returns the number of reference IDs the index was sized for.
+	 * <p>The index may hold some more IDs before it is full.</p>
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the time a sent message is remembered.
+	 * @return the TTL in milliseconds
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * Returns whether a message with the reference ID is queued or was sent within the TTL.
+	 * @param referenceId the reference ID
+	 * @return {@code true} when a message with this ID would be a duplicate
+	 */
+	public boolean contains(String referenceId) {
+		long hash = hash(referenceId);
+		return getSegment(hash).contains(hash, System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the number of reference IDs in the index.
+	 * <p>The number includes expired IDs that were not purged yet.</p>
+	 * @return the number of IDs
+	 */
+	public int size() {
+		int rc = 0;
+		for (Segment segment : segments) rc += segment.size();
+		return rc;
+	}
+
+	/**
+	 * Returns the number of reference IDs that were not recorded as the index was full.
+	 * @return the number of IDs not recorded
+	 */
+	public long getOverflowCount() {
+		long rc = 0;
+		for (Segment segment : segments) rc += segment.overflows();
+		return rc;
+	}
+
+	/**
+	 * Records the reference ID of a message being queued.
+	 * <p>The ID is remembered until the message was sent and its TTL expired or it was removed.</p>
+	 * @param referenceId the reference ID
+	 * @return {@code true} when the ID was recorded or the index is full, {@code false} when the message is a duplicate
+	 */
+	protected boolean add(String referenceId) {
+		long hash = hash(referenceId);
+		return getSegment(hash).add(hash, System.currentTimeMillis());
+	}
+
+	/**
+	 * Records that the message with the reference ID was sent.
+	 * <p>The ID will be remembered for the TTL.</p>
+	 * @param referenceId the reference ID
+	 */
+	protected void sent(String referenceId) {
+		long hash = hash(referenceId);
+		long now  = System.currentTimeMillis();
+		getSegment(hash).expire(hash, ttl < PINNED - now ? now + ttl : PINNED - 1);
+	}
+
+	/**
+	 * Forgets the reference ID, e.g. when its message was not queued or was given up.
+	 * @param referenceId the reference ID
+	 */
+	protected void remove(String referenceId) {
+		long hash = hash(referenceId);
+		getSegment(hash).remove(hash);
+	}
+
+	/**
+	 * Returns the segment of a hash.
+	 * @param hash the hash
+	 * @return the segment
+	 */
+	private Segment getSegment(long hash) {
+		// The lowest bits select the slot within the segment
+		return segments[(int)(hash >>> 58) & (SEGMENT_COUNT-1)];
+	}
+
+	/**
+	 * Computes the 64-bit hash of a reference ID (FNV-1a with a final mix).
+	 * @param referenceId the reference ID
+	 * @return the hash, never 0
+	 */
+	static long hash(String referenceId) {
+		long rc = 0xcbf29ce484222325L;
+		for (int i=0; i<referenceId.length(); i++) {
+			rc ^= referenceId.charAt(i);
+			rc *= 0x100000001b3L;
+		}
+		rc ^= rc >>> 33;
+		rc *= 0xff51afd7ed558ccdL;
+		rc ^= rc >>> 33;
+		rc *= 0xc4ceb9fe1a85ec53L;
+		rc ^= rc >>> 33;
+		// 0 marks an empty slot
+		return rc != 0 ? rc : 1;
+	}
+
+	/**
+	 * An open addressing hash table of a part of the reference IDs.
+	 * <p>Collisions are resolved by linear probing. Removed entries are closed up by moving
+	 *    the following entries back, so there are no tombstones.</p>
+	 */
+	private static class Segment {
+		/** The hashes, 0 for an empty slot */
+		private long[] keys;
+		/** The time when the entry expires, {@link DeduplicationIndex#PINNED} while the message is queued */
+		private long[] expiries;
+		/** The mask for the slot of a hash */
+		private int mask;
+		/** The maximum number of entries */
+		private int capacity;
+		/** The number of entries */
+		private int size;
+		/** The number of entries not recorded as the segment was full */
+		private long overflows;
+		/** The earliest time an entry may expire, {@link DeduplicationIndex#PINNED} when all entries are pinned */
+		private long nextPurge;
+
+		/**
+		 * Constructor.
+		 * @param capacity - the maximum number of entries
+		 */
+		private Segment(int capacity) {
+			// Keep the load factor at or below 75%
+			int length = Integer.highestOneBit(Math.max(2, capacity + capacity/3) - 1) << 1;
+			this.keys      = new long[length];
+			this.expiries  = new long[length];
+			this.mask      = length - 1;
+			this.capacity  = capacity;
+			this.size      = 0;
+			this.overflows = 0;
+			this.nextPurge = PINNED;
+		}
+
+		/**
+		 * Records a hash with an unlimited expiry.
+		 * @param hash the hash
+		 * @param now the current time
+		 * @return {@code false} when the hash was recorded and has not expired
+		 */
+		private synchronized boolean add(long hash, long now) {
+			int slot = find(hash);
+			if (slot >= 0) {
+				if (expiries[slot] > now) return false;
+				expiries[slot] = PINNED;
+				return true;
+			}
+			// Nothing can be purged before the earliest expiry, e.g. while all entries are pinned
+			if ((size >= capacity) && ((nextPurge > now) || (purge(now) == 0))) {
+				overflows++;
+				return true;
+			}
+			slot = (int)hash & mask;
+			while (keys[slot] != 0) slot = (slot+1) & mask;
+			keys[slot]     = hash;
+			expiries[slot] = PINNED;
+			size++;
+			return true;
+		}
+
+		/**
+		 * Sets the expiry of a hash.
+		 * @param hash the hash
+		 * @param expiry the time when the hash expires
+		 */
+		private synchronized void expire(long hash, long expiry) {
+			int slot = find(hash);
+			if (slot >= 0) {
+				expiries[slot] = expiry;
+				if (expiry < nextPurge) nextPurge = expiry;
+			}
+		}
+
+		/**
+		 * Returns whether the hash was recorded and has not expired.
+		 * @param hash the hash
+		 * @param now the current time
+		 * @return {@code true} when the hash is known
+		 */
+		private synchronized boolean contains(long hash, long now) {
+			int slot = find(hash);
+			return (slot >= 0) && (expiries[slot] > now);
+		}
+
+		/**
+		 * Removes a hash.
+		 * @param hash the hash
+		 */
+		private synchronized void remove(long hash) {
+			int slot = find(hash);
+			if (slot >= 0) delete(slot);
+		}
+
+		/**
+		 * Returns the number of entries.
+		 * @return the number of entries
+		 */
+		private synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the number of entries not recorded as the segment was full.
+		 * @return the number of entries
+		 */
+		private synchronized long overflows() {
+			return overflows;
+		}
+
+		/**
+		 * Finds the slot of a hash.
+		 * @param hash the hash
+		 * @return the slot or -1 when the hash is not recorded
+		 */
+		private int find(long hash) {
+			int slot = (int)hash & mask;
+			while (keys[slot] != 0) {
+				if (keys[slot] == hash) return slot;
+				slot = (slot+1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Removes all expired entries.
+		 * <p>The earliest expiry of the remaining entries is kept for the next purge.</p>
+		 * @param now the current time
+		 * @return the number of removed entries
+		 */
+		private int purge(long now) {
+			int rc = 0;
+			int slot = 0;
+			long next = PINNED;
+			while (slot < keys.length) {
+				// A deleted slot is filled by a following entry that must be checked as well
+				if ((keys[slot] != 0) && (expiries[slot] <= now)) {
+					delete(slot);
+					rc++;
+				} else {
+					if ((keys[slot] != 0) && (expiries[slot] < next)) next = expiries[slot];
+					slot++;
+				}
+			}
+			nextPurge = next;
+			return rc;
+		}
+
+		/**
+		 * Empties a slot and moves following entries back that would not be found anymore.
+		 * @param slot the slot
+		 */
+		private void delete(int slot) {
+			int next = slot;
+			while (true) {
+				next = (next+1) & mask;
+				if (keys[next] == 0) break;
+				int home = (int)keys[next] & mask;
+				// The entry stays when its home lies cyclically after the empty slot and at or before its position
+				boolean stays = slot <= next ? (slot < home) && (home <= next) : (slot < home) || (home <= next);
+				if (!stays) {
+					keys[slot]     = keys[next];
+					expiries[slot] = expiries[next];
+					slot           = next;
+				}
+			}
+			keys[slot]     = 0;
+			expiries[slot] = 0;
+			size--;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package rs.mail.queue;
+
+/**
+ * The final outcome of a message submitted to a {@link MailQueue}.
+ * <p>The result does not hold the message itself.</p>
+ *
+ * @author ralph
+ *
+ * @see MailQueue#submit(Object, String)
+ */
+public class DeliveryResult {
+
+	/**
+	 * The final outcome of a message.
+	 */
+	public static enum Outcome {
+		/** The message was sent successfully */
+		SENT,
+		/** Sending the message was given up after it failed */
+		GAVE_UP,
+		/** The message was cancelled before it was sent */
+		CANCELLED,
+		/** The message was not queued as the queue was full */
+		REJECTED,
+		/** The message was not queued as a message with the same reference ID left the queue recently */
+		DUPLICATE;
+	}
+
+	private String referenceId;
+	private Outcome outcome;
+	private int attempts;
+	private Throwable lastError;
+	private long queuedTimeInMillis;
+	private long completedTimeInMillis;
+
+	/**
+	 * Constructor.
+	 * @param referenceId - the reference ID of the message
+	 * @param outcome - the final outcome
+	 * @param attempts - the number of attempts to send the message
+	 * @param lastError - the reason of the last failed attempt, {@code null} when no attempt failed
+	 * @param queuedTimeInMillis - the time the message was queued
+	 * @param completedTimeInMillis - the time the outcome was decided
+	 */
+	public DeliveryResult(String referenceId, Outcome outcome, int attempts, Throwable lastError, long queuedTimeInMillis, long completedTimeInMillis) {
+		this.referenceId           = referenceId;
+		this.outcome               = outcome;
+		this.attempts              = attempts;
+		this.lastError             = lastError;
+		this.queuedTimeInMillis    = queuedTimeInMillis;
+		this.completedTimeInMillis = completedTimeInMillis;
+	}
+
+	/**
+	 * Returns the reference ID of the message.
+	 * @return the reference ID
+	 */
+	public String getReferenceId() {
+		return referenceId;
+	}
+
+	/**
+	 * Returns the final outcome.
+	 * @return the outcome
+	 */
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	/**
+	 * Returns whether the message was sent successfully.
+	 * @return {@code true} when the outcome is {@link Outcome#SENT}
+	 */
+	public boolean isSent() {
+		return outcome == Outcome.SENT;
+	}
+
+	/**
+	 * Returns the number of attempts to send the message.
+	 * <p>The number includes the successful attempt.</p>
+	 * @return the number of attempts
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Returns the reason of the last failed attempt.
+	 * @return the reason or {@code null} when no attempt failed
+	 */
+	public Throwable getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Returns the time the message was queued.
+	 * @return the time in milliseconds
+	 */
+	public long getQueuedTimeInMillis() {
+		return queuedTimeInMillis;
+	}
+
+	/**
+	 * Returns the time the outcome was decided.
+	 * @return the time in milliseconds
+	 */
+	public long getCompletedTimeInMillis() {
+		return completedTimeInMillis;
+	}
+
+	/**
+	 * Returns the time from queuing the message until its outcome was decided.
+	 * @return the duration in milliseconds
+	 */
+	public long getDuration() {
+		return completedTimeInMillis - queuedTimeInMillis;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return referenceId+"["+outcome+",attempts="+attempts+",duration="+getDuration()+"ms]";
+	}
+}
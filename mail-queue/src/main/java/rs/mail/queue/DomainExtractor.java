@@ -0,0 +1,38 @@
+package rs.mail.queue;
+
+/**
+ * Determines the recipient domain of a message.
+ * <p>A {@link MailQueue} uses the domain to keep messages to different domains
+ *    apart and to apply the {@link DomainPolicy} of a domain.</p>
+ * 
+ * @param <T> the type of email object
+ * 
+ * @author ralph
+ *
+ * @see MailQueue#setDomainExtractor(DomainExtractor)
+ */
+@FunctionalInterface
+public interface DomainExtractor<T> {
+
+	/**
+	 * Returns the recipient domain of the message.
+	 * <p>Messages with several recipients are assigned to a single domain only,
+	 *    usually the domain of the first recipient.</p>
+	 * @param message - the message object
+	 * @return the domain in lower case or {@code null} when it cannot be determined
+	 * @throws Exception - when the message cannot be inspected
+	 */
+	public String getDomain(T message) throws Exception;
+	
+	/**
+	 * Returns the domain part of an email address.
+	 * @param address - the email address
+	 * @return the domain in lower case or {@code null} when the address has no domain
+	 */
+	public static String getAddressDomain(String address) {
+		if (address == null) return null;
+		int pos = address.lastIndexOf('@');
+		if ((pos < 0) || (pos == address.length()-1)) return null;
+		return address.substring(pos+1).trim().toLowerCase();
+	}
+}
@@ -0,0 +1,117 @@
+package rs.mail.queue;
+
+import com.github.cowwoc.tokenbucket.Bucket;
+
+/**
+ * Sending limits for messages to a specific recipient domain.
+ * <p>Large receivers throttle the number of messages and connections per sending host.
+ *    A {@link MailQueue} with a {@link DomainExtractor} keeps messages to different
+ *    domains apart and applies the policy of each domain individually. A throttled
+ *    domain therefore does not hold back messages to other domains.</p>
+ * 
+ * @author ralph
+ *
+ * @see MailQueue#setDomainPolicy(String, DomainPolicy)
+ */
+public class DomainPolicy {
+
+	/** Value of the maximum messages being sent at the same time when there is no limit */
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+	
+	private Bucket tokenBucket;
+	private int maxInFlight;
+	private long retryPeriod;
+	private RetryPolicy retryPolicy;
+	
+	/**
+	 * Constructor.
+	 * <p>The policy has no limits and uses the retry period of the queue.</p>
+	 */
+	public DomainPolicy() {
+		this(null, UNLIMITED, 0);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param tokenBucket - the token bucket for this domain, can be {@code null}
+	 * @param maxInFlight - the maximum number of messages being sent to this domain at the same time
+	 * @param retryPeriod - the period in milliseconds before a failed message will be tried again, 0 for the retry period of the queue
+	 */
+	public DomainPolicy(Bucket tokenBucket, int maxInFlight, long retryPeriod) {
+		this.tokenBucket = tokenBucket;
+		this.maxInFlight = maxInFlight;
+		this.retryPeriod = retryPeriod;
+		this.retryPolicy = null;
+	}
+
+	/**
+	 * Returns the token bucket.
+	 * <p>The token bucket controls how many emails may be sent to the domain in a certain time window.
+	 *    It applies in addition to the token bucket of the queue.</p>
+	 * @return the token bucket or {@code null} when there is no restriction
+	 */
+	public Bucket getTokenBucket() {
+		return tokenBucket;
+	}
+
+	/**
+	 * Sets the token bucket.
+	 * <p>The token bucket controls how many emails may be sent to the domain in a certain time window.
+	 *    It applies in addition to the token bucket of the queue.</p>
+	 * @param tokenBucket the token bucket or {@code null} when there is no restriction
+	 */
+	public void setTokenBucket(Bucket tokenBucket) {
+		this.tokenBucket = tokenBucket;
+	}
+
+	/**
+	 * Returns the maximum number of messages being sent to the domain at the same time.
+	 * @return the maximum number of messages (Default: {@link #UNLIMITED})
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Sets the maximum number of messages being sent to the domain at the same time.
+	 * @param maxInFlight the maximum number of messages (Default: {@link #UNLIMITED})
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Returns the period in milliseconds that has to pass before a failed message will be tried again.
+	 * @return the retry period in milliseconds, 0 when the retry period of the queue applies (Default: 0)
+	 */
+	public long getRetryPeriod() {
+		return retryPeriod;
+	}
+
+	/**
+	 * Sets the period in milliseconds that has to pass before a failed message will be tried again.
+	 * @param retryPeriod the retry period in milliseconds, 0 when the retry period of the queue applies (Default: 0)
+	 */
+	public void setRetryPeriod(long retryPeriod) {
+		this.retryPeriod = retryPeriod;
+	}
+
+	/**
+	 * Returns the retry policy for the domain.
+	 * <p>The policy replaces the retry policy and retry period of the queue for messages to this domain.</p>
+	 * @return the retry policy or {@code null} when the retry settings of the queue apply (Default: {@code null})
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets the retry policy for the domain.
+	 * <p>The policy replaces the retry policy and retry period of the queue for messages to this domain.</p>
+	 * @param retryPolicy the retry policy or {@code null} when the retry settings of the queue apply (Default: {@code null})
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+}
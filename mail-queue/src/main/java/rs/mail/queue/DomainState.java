@@ -0,0 +1,131 @@
+package rs.mail.queue;
+
+import com.github.cowwoc.tokenbucket.Bucket;
+import com.github.cowwoc.tokenbucket.ConsumptionResult;
+
+/**
+ * Runtime state of a recipient domain in a {@link MailQueue}.
+ * <p>The state is shared by all lanes of the queue. It tracks the messages of the
+ *    domain and decides whether another message can be sent to the domain according
+ *    to its {@link DomainPolicy}.</p>
+ * <p>This class is not thread-safe. All access must be guarded by the lock of the
+ *    owning {@link MailQueue}.</p>
+ *
+ * @author ralph
+ *
+ */
+class DomainState {
+
+	private String domain;
+	private DomainPolicy policy;
+	private int size;
+	private int inFlight;
+	private long nextTokenTimeInMillis;
+	private int refunded;
+
+	/**
+	 * Constructor.
+	 * @param domain - the domain, can be {@code null} for messages without domain
+	 * @param policy - the policy of the domain
+	 */
+	DomainState(String domain, DomainPolicy policy) {
+		this.domain   = domain;
+		this.policy   = policy;
+		this.size     = 0;
+		this.inFlight = 0;
+		this.refunded = 0;
+	}
+
+	/**
+	 * Returns the domain.
+	 * @return the domain
+	 */
+	String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * Returns the policy.
+	 * @return the policy
+	 */
+	DomainPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns whether the maximum number of messages being sent to the domain is reached.
+	 * @return {@code true} when no more messages can be sent at this time
+	 */
+	boolean isSaturated() {
+		return inFlight >= policy.getMaxInFlight();
+	}
+
+	/**
+	 * Tries to clear a message for sending to the domain.
+	 * <p>A token of the domain's token bucket is consumed when the maximum number of 
+	 *    messages being sent is not reached yet. Tokens given back by {@link #refund()} are used first.</p>
+	 * @return {@code true} when the message can be sent
+	 */
+	boolean tryAcquire() {
+		if (isSaturated()) return false;
+		Bucket tokenBucket = policy.getTokenBucket();
+		if (refunded > 0) {
+			refunded--;
+		} else if (tokenBucket != null) {
+			ConsumptionResult result = tokenBucket.tryConsume();
+			if (result.getTokensConsumed() == 0) {
+				nextTokenTimeInMillis = result.getAvailableAt().toEpochMilli();
+				return false;
+			}
+		}
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Records that a message being sent to the domain has finished.
+	 */
+	void release() {
+		inFlight--;
+	}
+
+	/**
+	 * Gives back a token that was acquired but not used as the message was not sent.
+	 * <p>The token bucket cannot take tokens back, so the token is kept for the next {@link #tryAcquire()}.</p>
+	 */
+	void refund() {
+		if (policy.getTokenBucket() != null) refunded++;
+	}
+
+	/**
+	 * Returns the time when the domain's token bucket is expected to provide the next token.
+	 * @return the time in milliseconds
+	 */
+	long getNextTokenTime() {
+		return nextTokenTimeInMillis;
+	}
+
+	/**
+	 * Records that a message to the domain was queued.
+	 */
+	void added() {
+		size++;
+	}
+
+	/**
+	 * Records that a message to the domain left the queue.
+	 * @return {@code true} when no more messages to the domain are queued
+	 */
+	boolean removed() {
+		size--;
+		return size <= 0;
+	}
+
+	/**
+	 * Returns the number of messages being sent to the domain.
+	 * @return the number of messages
+	 */
+	int getInFlight() {
+		return inFlight;
+	}
+}
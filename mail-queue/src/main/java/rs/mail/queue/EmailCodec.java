@@ -0,0 +1,39 @@
+package rs.mail.queue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.converter.EmailConverter;
+
+/**
+ * Converts Simple Java Mail messages into their RFC 822 representation and back.
+ * 
+ * @author ralph
+ *
+ */
+public class EmailCodec implements MessageCodec<Email> {
+
+	/**
+	 * Constructor.
+	 */
+	public EmailCodec() {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] encode(Email message) throws Exception {
+		return EmailConverter.emailToEML(message).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Email decode(byte[] data) throws Exception {
+		return EmailConverter.emlToEmail(new ByteArrayInputStream(data));
+	}
+
+}
@@ -0,0 +1,29 @@
+package rs.mail.queue;
+
+import java.util.List;
+
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.api.email.Recipient;
+
+/**
+ * Determines the recipient domain of SimpleJavaMail {@link Email} objects.
+ * <p>The domain of the first recipient is used.</p>
+ *    
+ * @author ralph
+ *
+ */
+public class EmailDomainExtractor implements DomainExtractor<Email> {
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getDomain(Email message) throws Exception {
+		List<Recipient> recipients = message.getRecipients();
+		if ((recipients != null) && !recipients.isEmpty()) {
+			return DomainExtractor.getAddressDomain(recipients.get(0).getAddress());
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,26 @@
+package rs.mail.queue;
+
+/**
+ * Defines how a {@link MailQueue} sends messages when started.
+ * 
+ * @author ralph
+ *
+ * @see MailQueue#start(ExecutionMode, int)
+ */
+public enum ExecutionMode {
+
+	/**
+	 * A fixed number of platform threads that pick and send messages.
+	 * <p>The concurrency defines the number of worker threads.</p>
+	 */
+	PLATFORM_THREADS,
+	
+	/**
+	 * A single dispatcher that starts a virtual thread for each message being sent.
+	 * <p>The concurrency defines the maximum number of messages being sent at the same time.
+	 *    This mode suits mail relays with a high latency as sending is mostly waiting
+	 *    for the network.</p>
+	 */
+	VIRTUAL_THREADS;
+	
+}
@@ -0,0 +1,188 @@
+package rs.mail.queue;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries a message with exponentially growing delays.
+ * <p>The delay starts with the base delay and is multiplied for each further failure
+ *    until it reaches the maximum delay. A random jitter spreads the retries of many
+ *    messages that failed at the same time, e.g. during an outage of the mail relay.</p>
+ * <p>The policy evaluates the SMTP reply code of a failure:</p>
+ * <ul>
+ * <li>Permanent errors (5xx) are not retried at all (unless disabled).</li>
+ * <li>Temporary errors (4xx) start with the shorter temporary failure delay.</li>
+ * <li>All other failures (e.g. connection problems) start with the base delay.</li>
+ * </ul>
+ * 
+ * @author ralph
+ *
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+	/** Default number of retries before giving up */
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	/** Default delay in milliseconds after the first failure */
+	public static final long DEFAULT_BASE_DELAY = 60000;
+	/** Default delay in milliseconds after the first temporary failure (4xx) */
+	public static final long DEFAULT_TEMPORARY_FAILURE_DELAY = 10000;
+	/** Default maximum delay in milliseconds */
+	public static final long DEFAULT_MAX_DELAY = 3600000;
+	/** Default factor the delay grows with each failure */
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+	
+	/**
+	 * The kind of randomization applied to the delays.
+	 */
+	public static enum Jitter {
+		/** The exponential delay is used as it is */
+		NONE,
+		/** A random delay between 0 and the exponential delay */
+		FULL,
+		/** A random delay between the base delay and three times the previous delay */
+		DECORRELATED;
+	}
+	
+	private int maxRetries;
+	private long baseDelay;
+	private long temporaryFailureDelay;
+	private long maxDelay;
+	private double multiplier;
+	private Jitter jitter;
+	private boolean giveUpOnPermanentFailure;
+	
+	/**
+	 * Constructor.
+	 * <p>Uses the default values and full jitter.</p>
+	 */
+	public ExponentialBackoffRetryPolicy() {
+		this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, Jitter.FULL);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param maxRetries - the number of retries before giving up
+	 * @param baseDelay - the delay in milliseconds after the first failure
+	 * @param maxDelay - the maximum delay in milliseconds
+	 * @param jitter - the kind of randomization
+	 */
+	public ExponentialBackoffRetryPolicy(int maxRetries, long baseDelay, long maxDelay, Jitter jitter) {
+		this.maxRetries               = maxRetries;
+		this.baseDelay                = baseDelay;
+		this.temporaryFailureDelay    = Math.min(baseDelay, DEFAULT_TEMPORARY_FAILURE_DELAY);
+		this.maxDelay                 = maxDelay;
+		this.multiplier               = DEFAULT_MULTIPLIER;
+		this.jitter                   = jitter != null ? jitter : Jitter.NONE;
+		this.giveUpOnPermanentFailure = true;
+	}
+
+	/**
+	 * Returns the number of retries before giving up.
+	 * @return the number of retries (Default: 5)
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Returns the delay in milliseconds after the first failure.
+	 * @return the base delay (Default: 60000)
+	 */
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	/**
+	 * Returns the delay in milliseconds after the first temporary failure (4xx).
+	 * @return the temporary failure delay (Default: 10000)
+	 */
+	public long getTemporaryFailureDelay() {
+		return temporaryFailureDelay;
+	}
+
+	/**
+	 * Sets the delay in milliseconds after the first temporary failure (4xx).
+	 * @param temporaryFailureDelay the temporary failure delay (Default: 10000)
+	 */
+	public void setTemporaryFailureDelay(long temporaryFailureDelay) {
+		this.temporaryFailureDelay = temporaryFailureDelay;
+	}
+
+	/**
+	 * Returns the maximum delay in milliseconds.
+	 * @return the maximum delay (Default: 3600000)
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Returns the factor the delay grows with each failure.
+	 * @return the multiplier (Default: 2.0)
+	 */
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	/**
+	 * Sets the factor the delay grows with each failure.
+	 * @param multiplier the multiplier (Default: 2.0)
+	 */
+	public void setMultiplier(double multiplier) {
+		this.multiplier = multiplier;
+	}
+
+	/**
+	 * Returns the kind of randomization.
+	 * @return the jitter
+	 */
+	public Jitter getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Returns whether permanent failures (5xx) are not retried.
+	 * @return {@code true} when the policy gives up on permanent failures (Default: {@code true})
+	 */
+	public boolean isGiveUpOnPermanentFailure() {
+		return giveUpOnPermanentFailure;
+	}
+
+	/**
+	 * Sets whether permanent failures (5xx) are not retried.
+	 * @param giveUpOnPermanentFailure {@code true} when the policy shall give up on permanent failures (Default: {@code true})
+	 */
+	public void setGiveUpOnPermanentFailure(boolean giveUpOnPermanentFailure) {
+		this.giveUpOnPermanentFailure = giveUpOnPermanentFailure;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getRetryDelay(int failedAttempts, long lastDelay, Throwable cause) {
+		if (failedAttempts > maxRetries) return GIVE_UP;
+		if (giveUpOnPermanentFailure && RetryPolicy.isPermanentFailure(cause)) return GIVE_UP;
+		long base = RetryPolicy.isTemporaryFailure(cause) ? temporaryFailureDelay : baseDelay;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		switch (jitter) {
+		case FULL:
+			return random.nextLong(getExponentialDelay(base, failedAttempts) + 1);
+		case DECORRELATED:
+			long upper = Math.min(maxDelay, Math.max(base, lastDelay) * 3);
+			return upper > base ? random.nextLong(base, upper + 1) : Math.min(base, maxDelay);
+		default:
+			return getExponentialDelay(base, failedAttempts);
+		}
+	}
+	
+	/**
+	 * Returns the delay without jitter.
+	 * @param base - the delay after the first failure
+	 * @param failedAttempts - the number of failed attempts
+	 * @return the delay in milliseconds, limited by the maximum delay
+	 */
+	protected long getExponentialDelay(long base, int failedAttempts) {
+		double rc = base * Math.pow(multiplier, Math.max(0, failedAttempts-1));
+		return rc >= maxDelay ? maxDelay : (long)rc;
+	}
+}
@@ -0,0 +1,49 @@
+package rs.mail.queue;
+
+/**
+ * Retries a message after a fixed period for a limited number of times.
+ * <p>This is the behaviour of a {@link MailQueue} without a retry policy.</p>
+ * 
+ * @author ralph
+ *
+ */
+public class FixedRetryPolicy implements RetryPolicy {
+
+	private int maxRetries;
+	private long retryPeriod;
+	
+	/**
+	 * Constructor.
+	 * @param maxRetries - the number of retries before giving up
+	 * @param retryPeriod - the period in milliseconds before a failed message will be tried again
+	 */
+	public FixedRetryPolicy(int maxRetries, long retryPeriod) {
+		this.maxRetries  = maxRetries;
+		this.retryPeriod = retryPeriod;
+	}
+
+	/**
+	 * Returns the number of retries before giving up.
+	 * @return the number of retries
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Returns the period in milliseconds before a failed message will be tried again.
+	 * @return the retry period
+	 */
+	public long getRetryPeriod() {
+		return retryPeriod;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getRetryDelay(int failedAttempts, long lastDelay, Throwable cause) {
+		return failedAttempts > maxRetries ? GIVE_UP : retryPeriod;
+	}
+
+}
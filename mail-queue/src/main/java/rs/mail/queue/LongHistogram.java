@@ -0,0 +1,218 @@
+package rs.mail.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values that can be recorded concurrently without allocating objects.
+ * <p>Values below 16 are counted exactly. Larger values are counted in 8 buckets per power of two,
+ *    so percentiles are reported with a relative error of at most 12.5%. The histogram has a fixed
+ *    size of 488 buckets and covers the whole range of {@code long}. Negative values are recorded as 0.</p>
+ * <p>The count and the total are not reset. Monitoring systems usually compute rates from them.
+ *    The maximum and the percentiles describe recent values only: the buckets are kept in two
+ *    windows that take turns. Values are recorded into the current window and the older window
+ *    is cleared when the current one has lasted for the window length. The maximum and the
+ *    percentiles therefore cover the values of the last one to two window lengths.</p>
+ *
+ * @author ralph
+ *
+ * @see MailQueueMetrics
+ */
+public class LongHistogram {
+
+	/** Default length of a window in milliseconds */
+	public static final long DEFAULT_WINDOW = 60000L;
+
+	/** Number of sub-buckets per power of two */
+	private static final int SUB_BUCKETS = 8;
+	/** Number of values counted exactly */
+	private static final int LINEAR_VALUES = 2*SUB_BUCKETS;
+	/** Number of buckets */
+	private static final int BUCKET_COUNT = LINEAR_VALUES + (63-4)*SUB_BUCKETS;
+
+	private long windowInMillis;
+	private Window[] windows;
+	private volatile int current;
+	private AtomicLong rotated;
+	private LongAdder count;
+	private LongAdder total;
+
+	/**
+	 * Constructor.
+	 * <p>The histogram uses the default window length.</p>
+	 * @see #DEFAULT_WINDOW
+	 */
+	public LongHistogram() {
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Constructor.
+	 * @param windowInMillis - the length of a window in milliseconds
+	 */
+	public LongHistogram(long windowInMillis) {
+		if (windowInMillis < 1) throw new IllegalArgumentException("Window must be at least 1ms");
+		this.windowInMillis = windowInMillis;
+		this.windows        = new Window[] { new Window(), new Window() };
+		this.current        = 0;
+		this.rotated        = new AtomicLong(System.currentTimeMillis());
+		this.count          = new LongAdder();
+		this.total          = new LongAdder();
+	}
+
+	/**
+	 * Returns the length of a window.
+	 * @return the length in milliseconds
+	 */
+	public long getWindow() {
+		return windowInMillis;
+	}
+
+	/**
+	 * Records a value.
+	 * @param value the value
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		rotate(System.currentTimeMillis());
+		windows[current].record(value);
+		count.increment();
+		total.add(value);
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 * @return the number of values since the histogram was created
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of all recorded values.
+	 * @return the sum since the histogram was created
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/**
+	 * Returns the largest value recorded recently.
+	 * @return the maximum of the last one to two windows or 0 when no value was recorded
+	 */
+	public long getMax() {
+		rotate(System.currentTimeMillis());
+		return Math.max(windows[0].max.get(), windows[1].max.get());
+	}
+
+	/**
+	 * Returns the average of all recorded values.
+	 * @return the mean since the histogram was created or 0 when no value was recorded
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count > 0 ? (double)getTotal() / count : 0;
+	}
+
+	/**
+	 * Returns the value below or at which the given fraction of recently recorded values lie.
+	 * <p>The result is the upper bound of the bucket containing the percentile, limited by the maximum.</p>
+	 * @param quantile the fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return the value of the last one to two windows or 0 when no value was recorded
+	 */
+	public long getPercentile(double quantile) {
+		long max = getMax();
+		long[] counts = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			counts[i] = windows[0].buckets.get(i) + windows[1].buckets.get(i);
+			count    += counts[i];
+		}
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long)Math.ceil(Math.min(1, Math.max(0, quantile)) * count));
+		long seen = 0;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(getUpperBound(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Starts a new window when the current one has lasted for the window length.
+	 * <p>The older window is cleared and becomes the current one. Both windows are cleared
+	 *    when no window was started for two window lengths. Only one thread rotates, a value
+	 *    recorded while the older window is cleared may get lost.</p>
+	 * @param now the current time in milliseconds
+	 */
+	void rotate(long now) {
+		long last = rotated.get();
+		if (now - last < windowInMillis) return;
+		if (!rotated.compareAndSet(last, now)) return;
+		int older = current ^ 1;
+		windows[older].clear();
+		if (now - last >= 2*windowInMillis) windows[current].clear();
+		current = older;
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 * @param value the non-negative value
+	 * @return the index of the bucket
+	 */
+	static int getBucket(long value) {
+		if (value < LINEAR_VALUES) return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift    = exponent - 3;
+		return LINEAR_VALUES + (exponent-4)*SUB_BUCKETS + (int)((value >>> shift) & (SUB_BUCKETS-1));
+	}
+
+	/**
+	 * Returns the largest value counted in a bucket.
+	 * @param bucket the index of the bucket
+	 * @return the upper bound of the bucket
+	 */
+	static long getUpperBound(int bucket) {
+		if (bucket < LINEAR_VALUES) return bucket;
+		int exponent = (bucket - LINEAR_VALUES) / SUB_BUCKETS + 4;
+		int sub      = (bucket - LINEAR_VALUES) % SUB_BUCKETS;
+		int shift    = exponent - 3;
+		return ((long)(SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+	}
+
+	/**
+	 * The buckets and the maximum of a window.
+	 */
+	private static class Window {
+
+		private AtomicLongArray buckets;
+		private AtomicLong max;
+
+		/**
+		 * Constructor.
+		 */
+		private Window() {
+			this.buckets = new AtomicLongArray(BUCKET_COUNT);
+			this.max     = new AtomicLong(0);
+		}
+
+		/**
+		 * Records a value.
+		 * @param value the non-negative value
+		 */
+		private void record(long value) {
+			buckets.incrementAndGet(getBucket(value));
+			long current = max.get();
+			while ((value > current) && !max.compareAndSet(current, value)) current = max.get();
+		}
+
+		/**
+		 * Removes all values.
+		 */
+		private void clear() {
+			for (int i=0; i<BUCKET_COUNT; i++) buckets.set(i, 0);
+			max.set(0);
+		}
+	}
+}
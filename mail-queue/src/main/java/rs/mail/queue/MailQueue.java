@@ -1,10 +1,24 @@
 package rs.mail.queue;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,24 +41,61 @@ public class MailQueue<T> {
 	public static final int DEFAULT_MAX_SIZE          = 1000;
 	/** Default size of the mail queue for priority emails */
 	public static final int DEFAULT_MAX_PRIORITY_SIZE = 50;
+	/** Default number of priority emails sent for each normal email when both are waiting */
+	public static final int DEFAULT_PRIORITY_WEIGHT = 10;
 	/** Default number of retries before giving up when sending fails */
 	public static final int DEFAULT_MAX_RETRIES = 3;
 	/** Default period of time after a failed message will be tried again */
 	public static final long DEFAULT_RETRY_PERIOD = 60000;
 	/** The default period of time a queuing operation shall wait before giving up. */
 	public static final long DEFAULT_QUEUING_TIMEOUT_SECONDS = 10;
+	/** Default number of messages that are handed to the {@link MailSender} at once */
+	public static final int DEFAULT_BATCH_SIZE = 1;
+	/** Default maximum period of time in milliseconds a worker waits before checking the queue again when there is nothing to do */
+	public static final long DEFAULT_IDLE_PERIOD = 60000;
+	
+	private static final MailQueueListener[] NO_LISTENERS = new MailQueueListener[0];
 	
 	private Logger log = LoggerFactory.getLogger(getClass());
 	
 	private MailSender<T> mailSender;
-	private LinkedBlockingDeque<MessageEntry<T>> queue;
-	private LinkedBlockingDeque<MessageEntry<T>> priorityQueue;
-	private int maxSize;
-	private int maxPrioritySize;
-	private Bucket tokenBucket;
-	private int maxRetries;
-	private long retryPeriod;
-	private Set<MailQueueListener> listeners;
+	private ReentrantLock lock;
+	private Condition workAvailable;
+	private List<PriorityClass> priorityClasses;
+	private Map<String, Integer> priorityClassIndex;
+	private List<MessageLane<T>> lanes;
+	private int currentLane;
+	private int deficit;
+	private volatile Bucket tokenBucket;
+	private volatile int maxRetries;
+	private volatile long retryPeriod;
+	private volatile RetryPolicy retryPolicy;
+	private volatile long idlePeriod;
+	private volatile int batchSize;
+	private volatile long nextTokenTimeInMillis;
+	private volatile MailQueueListener[] listeners;
+	private volatile List<MailQueueSubscriber<T>> subscribers;
+	private volatile MailQueueEventBus eventBus;
+	private volatile Executor completionExecutor;
+	private volatile DomainExtractor<T> domainExtractor;
+	private Map<String, DomainPolicy> domainPolicies;
+	private volatile DomainPolicy defaultDomainPolicy;
+	private volatile MailQueueJournal<T> journal;
+	private volatile MappedMessageStore<T> messageStore;
+	private volatile MailQueueMetrics metrics;
+	private volatile DeduplicationIndex deduplicationIndex;
+	private Map<String, DomainState> domains;
+	private DomainState defaultDomain;
+	private volatile TenantExtractor<T> tenantExtractor;
+	private Map<String, TenantPolicy> tenantPolicies;
+	private volatile TenantPolicy defaultTenantPolicy;
+	private Map<String, TenantState> tenants;
+	private TenantState defaultTenant;
+	private Map<String, MessageEntry<T>> entries;
+	private volatile boolean running;
+	private List<Thread> workers;
+	private ExecutorService senders;
+	private Semaphore sendPermits;
 	
 	/**
 	 * Constructor.
@@ -70,19 +121,61 @@ public class MailQueue<T> {
 	
 	/**
 	 * Constructor.
+	 * <p>Priority messages are sent {@link #DEFAULT_PRIORITY_WEIGHT} times as often as normal messages
+	 *    while both are waiting.</p>
 	 * @param mailSender the handler that actually sends the mail
 	 * @param maxSize - the maximum size of the queue for non-priority messages
 	 * @param maxPrioritySize - the maximum size of the queue for priority messages
 	 */
 	public MailQueue(MailSender<T> mailSender, int maxSize, int maxPrioritySize) {
-		this.mailSender      = mailSender;
-		this.queue           = new LinkedBlockingDeque<>(maxSize);
-		this.priorityQueue   = new LinkedBlockingDeque<>(maxPrioritySize);
-		this.listeners       = new HashSet<>();
-		this.maxRetries      = DEFAULT_MAX_RETRIES;
-		this.retryPeriod     = DEFAULT_RETRY_PERIOD;
-		this.maxSize         = maxSize;
-		this.maxPrioritySize = maxPrioritySize;
+		this(mailSender, Arrays.asList(
+			new PriorityClass(PriorityClass.PRIORITY, maxPrioritySize, DEFAULT_PRIORITY_WEIGHT),
+			new PriorityClass(PriorityClass.NORMAL,   maxSize,         1)
+		));
+	}
+	
+	/**
+	 * Constructor.
+	 * <p>The queue keeps the messages of each class apart and lets the classes take turns according
+	 *    to their weights. Messages queued with priority belong to the first class, messages queued
+	 *    without priority to the second class (or the first class when there is only one).</p>
+	 * @param mailSender the handler that actually sends the mail
+	 * @param priorityClasses - the classes of messages, the class of priority messages first
+	 * @throws IllegalArgumentException when no class is given or the names of the classes are not unique
+	 * @see PriorityClass
+	 */
+	public MailQueue(MailSender<T> mailSender, List<PriorityClass> priorityClasses) {
+		if (priorityClasses.isEmpty()) throw new IllegalArgumentException("At least one priority class is required");
+		this.mailSender          = mailSender;
+		this.lock                = new ReentrantLock();
+		this.workAvailable       = lock.newCondition();
+		this.priorityClasses     = Collections.unmodifiableList(new ArrayList<>(priorityClasses));
+		this.priorityClassIndex  = new HashMap<>();
+		this.lanes               = new ArrayList<>(priorityClasses.size());
+		for (PriorityClass priorityClass : this.priorityClasses) {
+			if (priorityClassIndex.put(priorityClass.getName(), lanes.size()) != null) throw new IllegalArgumentException("Duplicate priority class: "+priorityClass.getName());
+			lanes.add(new MessageLane<>(priorityClass.getCapacity(), lock.newCondition()));
+		}
+		this.currentLane         = 0;
+		this.deficit             = this.priorityClasses.get(0).getWeight();
+		this.listeners           = NO_LISTENERS;
+		this.subscribers         = Collections.emptyList();
+		this.domainPolicies      = new ConcurrentHashMap<>();
+		this.defaultDomainPolicy = new DomainPolicy();
+		this.domains             = new HashMap<>();
+		this.defaultDomain       = new DomainState(null, defaultDomainPolicy);
+		this.tenantPolicies      = new ConcurrentHashMap<>();
+		this.defaultTenantPolicy = new TenantPolicy();
+		this.tenants             = new HashMap<>();
+		this.defaultTenant       = new TenantState(null, defaultTenantPolicy);
+		this.entries             = new ConcurrentHashMap<>();
+		this.completionExecutor  = ForkJoinPool.commonPool();
+		this.maxRetries          = DEFAULT_MAX_RETRIES;
+		this.retryPeriod         = DEFAULT_RETRY_PERIOD;
+		this.idlePeriod          = DEFAULT_IDLE_PERIOD;
+		this.batchSize           = DEFAULT_BATCH_SIZE;
+		this.running             = false;
+		this.workers             = new ArrayList<>();
 	}
 	
 	/**
@@ -137,6 +230,386 @@ public class MailQueue<T> {
 		this.retryPeriod = retryPeriod;
 	}
 
+	/**
+	 * Returns the policy that decides whether and when a failed message will be tried again.
+	 * @return the retry policy or {@code null} when the maximum retries and retry period apply (Default: {@code null})
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets the policy that decides whether and when a failed message will be tried again.
+	 * <p>The policy replaces the maximum retries and the retry period of the queue. The retry
+	 *    policy of a {@link DomainPolicy} takes precedence over this policy.</p>
+	 * @param retryPolicy the retry policy or {@code null} when the maximum retries and retry period apply (Default: {@code null})
+	 * @see ExponentialBackoffRetryPolicy
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Returns the journal that makes the messages survive a restart.
+	 * @return the journal or {@code null} when messages are kept in memory only (Default: {@code null})
+	 */
+	public MailQueueJournal<T> getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Sets the journal that makes the messages survive a restart.
+	 * <p>The journal is opened and all messages that were neither sent nor given up are restored
+	 *    into the queue with their failed attempts and retry time, even when they exceed the capacity.
+	 *    Listeners are not notified about restored messages. The journal must be set before any message
+	 *    is queued. It is not closed by the queue.</p>
+	 * @param journal the journal or {@code null} when messages are kept in memory only
+	 * @throws IOException when the journal cannot be opened
+	 */
+	public void setJournal(MailQueueJournal<T> journal) throws IOException {
+		if (journal != null) {
+			for (MailQueueJournal.Restored<T> restored : journal.open()) restore(restored.entry, restored.tenant);
+		}
+		this.journal = journal;
+	}
+
+	/**
+	 * Returns the store that keeps queued messages outside the heap.
+	 * @return the message store or {@code null} when messages are kept on the heap (Default: {@code null})
+	 */
+	public MappedMessageStore<T> getMessageStore() {
+		return messageStore;
+	}
+
+	/**
+	 * Sets the store that keeps queued messages outside the heap.
+	 * <p>Queued messages are converted into bytes and restored right before they are sent.
+	 *    The store must be set before any message is queued or a journal is set. It is not closed
+	 *    by the queue.</p>
+	 * @param messageStore the message store or {@code null} when messages are kept on the heap
+	 */
+	public void setMessageStore(MappedMessageStore<T> messageStore) {
+		this.messageStore = messageStore;
+	}
+
+	/**
+	 * Returns the metrics of the queue.
+	 * @return the metrics or {@code null} when no metrics are recorded (Default: {@code null})
+	 */
+	public MailQueueMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics of the queue.
+	 * <p>The queue counts the messages queued, rejected, sent, failed and given up as well as
+	 *    the denials of its token bucket, and records the latency from queuing to sending, the
+	 *    duration of sending and the retries per message.</p>
+	 * @param metrics the metrics or {@code null} when no metrics shall be recorded
+	 */
+	public void setMetrics(MailQueueMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the index of recently queued reference IDs.
+	 * @return the index or {@code null} when messages are not deduplicated (Default: {@code null})
+	 */
+	public DeduplicationIndex getDeduplicationIndex() {
+		return deduplicationIndex;
+	}
+
+	/**
+	 * Sets the index of recently queued reference IDs.
+	 * <p>A message is not queued again when a message with the same reference ID is still queued,
+	 *    being sent or was sent within the TTL of the index. Queuing such a duplicate succeeds as the
+	 *    message was queued before, but listeners are not notified. Messages without reference ID
+	 *    are not checked. Messages restored from the journal are not checked either, but their IDs
+	 *    are recorded, so their duplicates are not queued after a restart. An ID is recorded once its
+	 *    message was admitted. The ID of a message that was given up is forgotten, so it can be queued
+	 *    again. The index must be set before any message is queued.</p>
+	 * @param deduplicationIndex the index or {@code null} when messages shall not be deduplicated
+	 */
+	public void setDeduplicationIndex(DeduplicationIndex deduplicationIndex) {
+		lock.lock();
+		try {
+			// Messages restored from the journal before are covered as well
+			if (deduplicationIndex != null) {
+				for (String referenceId : entries.keySet()) deduplicationIndex.add(referenceId);
+			}
+			this.deduplicationIndex = deduplicationIndex;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the executor that completes the futures of submitted messages.
+	 * @return the executor (Default: {@link ForkJoinPool#commonPool()})
+	 */
+	public Executor getCompletionExecutor() {
+		return completionExecutor;
+	}
+
+	/**
+	 * Sets the executor that completes the futures of submitted messages.
+	 * <p>Futures are never completed on the threads sending the messages, so callbacks
+	 *    cannot delay sending.</p>
+	 * @param completionExecutor the executor
+	 * @see #submit(Object, String)
+	 */
+	public void setCompletionExecutor(Executor completionExecutor) {
+		this.completionExecutor = completionExecutor != null ? completionExecutor : ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * Returns the spill for normal or prioritized messages exceeding the capacity.
+	 * @param isPriority whether the spill for priority or normal messages shall be returned
+	 * @return the spill or {@code null} when messages exceeding the capacity are rejected (Default: {@code null})
+	 */
+	public MessageSpill<T> getSpill(boolean isPriority) {
+		lock.lock();
+		try {
+			return getLane(isPriority).getSpill();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the spill for normal or prioritized messages exceeding the capacity.
+	 * <p>Messages queued while the lane is full are written to the spill and read back in order of queuing
+	 *    as messages are sent. The spill must be set before any message is queued. It is not closed by the queue.</p>
+	 * @param isPriority whether the spill for priority or normal messages shall be set
+	 * @param spill the spill or {@code null} when messages exceeding the capacity shall be rejected
+	 */
+	public void setSpill(boolean isPriority, MessageSpill<T> spill) {
+		lock.lock();
+		try {
+			getLane(isPriority).setSpill(spill);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the spill for messages of a priority class exceeding the capacity.
+	 * @param priorityClass the name of the priority class
+	 * @return the spill or {@code null} when messages exceeding the capacity are rejected (Default: {@code null})
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 */
+	public MessageSpill<T> getSpill(String priorityClass) {
+		lock.lock();
+		try {
+			return getLane(priorityClass).getSpill();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the spill for messages of a priority class exceeding the capacity.
+	 * <p>The spill must be set before any message is queued. It is not closed by the queue.</p>
+	 * @param priorityClass the name of the priority class
+	 * @param spill the spill or {@code null} when messages exceeding the capacity shall be rejected
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 * @see #setSpill(boolean, MessageSpill)
+	 */
+	public void setSpill(String priorityClass, MessageSpill<T> spill) {
+		lock.lock();
+		try {
+			getLane(priorityClass).setSpill(spill);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the maximum period in milliseconds a worker waits before checking the queue again when there is nothing to do.
+	 * @return the idle period in milliseconds (Default: 60000)
+	 */
+	public long getIdlePeriod() {
+		return idlePeriod;
+	}
+
+	/**
+	 * Sets the maximum period in milliseconds a worker waits before checking the queue again when there is nothing to do.
+	 * <p>Workers are woken up when a new message is queued, when the next retry becomes due
+	 *    or when the token bucket is expected to provide the next token. The idle period
+	 *    is only an upper limit for the waiting time.</p>
+	 * @param idlePeriod the idle period in milliseconds (Default: 60000)
+	 */
+	public void setIdlePeriod(long idlePeriod) {
+		this.idlePeriod = idlePeriod;
+	}
+
+	/**
+	 * Returns the extractor for the recipient domain of messages.
+	 * @return the domain extractor or {@code null} when messages are not separated by domain
+	 */
+	public DomainExtractor<T> getDomainExtractor() {
+		return domainExtractor;
+	}
+
+	/**
+	 * Sets the extractor for the recipient domain of messages.
+	 * <p>Messages to different domains are kept apart and take turns when being sent.
+	 *    Each domain is subject to its own {@link DomainPolicy}. A domain that cannot
+	 *    receive another message at this time does not hold back messages to other domains.
+	 *    The extractor applies to messages queued afterwards.</p>
+	 * @param domainExtractor the domain extractor or {@code null} when messages shall not be separated by domain
+	 * @see MessageDomainExtractor
+	 * @see EmailDomainExtractor
+	 */
+	public void setDomainExtractor(DomainExtractor<T> domainExtractor) {
+		this.domainExtractor = domainExtractor;
+	}
+
+	/**
+	 * Returns the sending policy of a recipient domain.
+	 * @param domain the domain
+	 * @return the policy of the domain or {@code null} when the default policy applies
+	 */
+	public DomainPolicy getDomainPolicy(String domain) {
+		return domainPolicies.get(domain.toLowerCase());
+	}
+
+	/**
+	 * Sets the sending policy of a recipient domain.
+	 * <p>The policy applies to messages queued afterwards and requires a domain extractor.</p>
+	 * @param domain the domain
+	 * @param policy the policy or {@code null} when the default policy shall apply
+	 * @see #setDomainExtractor(DomainExtractor)
+	 */
+	public void setDomainPolicy(String domain, DomainPolicy policy) {
+		if (policy != null) domainPolicies.put(domain.toLowerCase(), policy);
+		else domainPolicies.remove(domain.toLowerCase());
+	}
+
+	/**
+	 * Returns the sending policy of recipient domains that have no policy of their own.
+	 * @return the default policy
+	 */
+	public DomainPolicy getDefaultDomainPolicy() {
+		return defaultDomainPolicy;
+	}
+
+	/**
+	 * Sets the sending policy of recipient domains that have no policy of their own.
+	 * <p>Please notice that a token bucket of the default policy is shared by all these domains.</p>
+	 * @param defaultDomainPolicy the default policy
+	 */
+	public void setDefaultDomainPolicy(DomainPolicy defaultDomainPolicy) {
+		lock.lock();
+		try {
+			this.defaultDomainPolicy = defaultDomainPolicy != null ? defaultDomainPolicy : new DomainPolicy();
+			this.defaultDomain       = new DomainState(null, this.defaultDomainPolicy);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the extractor for the tenant of messages.
+	 * @return the tenant extractor or {@code null} when messages are not separated by tenant
+	 */
+	public TenantExtractor<T> getTenantExtractor() {
+		return tenantExtractor;
+	}
+
+	/**
+	 * Sets the extractor for the tenant of messages.
+	 * <p>Messages of different tenants are kept apart and take turns when being sent.
+	 *    Each tenant is subject to its own {@link TenantPolicy}. A tenant given when
+	 *    queuing a message takes precedence over the extractor. The extractor applies
+	 *    to messages queued afterwards.</p>
+	 * @param tenantExtractor the tenant extractor or {@code null} when messages shall not be separated by tenant
+	 * @see #queue(Object, String, boolean, String)
+	 */
+	public void setTenantExtractor(TenantExtractor<T> tenantExtractor) {
+		this.tenantExtractor = tenantExtractor;
+	}
+
+	/**
+	 * Returns the policy of a tenant.
+	 * @param tenant the tenant
+	 * @return the policy of the tenant or {@code null} when the default policy applies
+	 */
+	public TenantPolicy getTenantPolicy(String tenant) {
+		return tenantPolicies.get(tenant);
+	}
+
+	/**
+	 * Sets the policy of a tenant.
+	 * <p>The policy applies to messages queued afterwards while the tenant has no messages in the queue.</p>
+	 * @param tenant the tenant
+	 * @param policy the policy or {@code null} when the default policy shall apply
+	 */
+	public void setTenantPolicy(String tenant, TenantPolicy policy) {
+		if (policy != null) tenantPolicies.put(tenant, policy);
+		else tenantPolicies.remove(tenant);
+	}
+
+	/**
+	 * Returns the policy of tenants that have no policy of their own.
+	 * @return the default policy
+	 */
+	public TenantPolicy getDefaultTenantPolicy() {
+		return defaultTenantPolicy;
+	}
+
+	/**
+	 * Sets the policy of tenants that have no policy of their own.
+	 * <p>The maximum size applies to each of these tenants. Please notice that a token bucket of the
+	 *    default policy is shared by all these tenants.</p>
+	 * @param defaultTenantPolicy the default policy
+	 */
+	public void setDefaultTenantPolicy(TenantPolicy defaultTenantPolicy) {
+		lock.lock();
+		try {
+			this.defaultTenantPolicy = defaultTenantPolicy != null ? defaultTenantPolicy : new TenantPolicy();
+			this.defaultTenant       = new TenantState(null, this.defaultTenantPolicy);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages of a tenant in the queue.
+	 * @param tenant the tenant or {@code null} for messages without tenant
+	 * @return the number of messages, including spilled messages
+	 */
+	public int getTenantSize(String tenant) {
+		lock.lock();
+		try {
+			TenantState state = tenant != null ? tenants.get(tenant) : defaultTenant;
+			return state != null ? state.size() : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the maximum number of messages that are handed to the {@link MailSender} at once.
+	 * @return the batch size (Default: 1)
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of messages that are handed to the {@link MailSender} at once.
+	 * <p>A batch size greater than 1 lets the sender deliver several ready messages
+	 *    over a single connection. Each message still requires its own token and 
+	 *    listeners are still informed about each message individually.</p>
+	 * @param batchSize the batch size (Default: 1)
+	 * @see MailSender#sendMessages(List)
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1");
+		this.batchSize = batchSize;
+	}
+
 	/**
 	 * Add the message to the queue for sending with normal priority.
 	 * <p>The message will be tried to be queued immediately without any blocking.</p>
@@ -214,170 +687,1693 @@ public class MailQueue<T> {
 	public boolean queue(T message, String referenceId, boolean isPriority, int previousErrorCount, long timeoutInSeconds) {
 		MessageEntry<T> entry = new MessageEntry<T>(referenceId, message, isPriority);
 		entry.failedAttempts = previousErrorCount;
-		return queue(entry, isPriority ? priorityQueue : queue, timeoutInSeconds);
+		return queue(entry, timeoutInSeconds);
 	}
 	
 	/**
-	 * Internal queuing implementation - queues the entry in th egiven queue using the given maximum waiting time.
-	 * @param message the message to be queued
-	 * @param queue the queue to be used
+	 * Add the message to the queue for sending in the given priority class.
+	 * <p>The message will be tried to be queued immediately without any blocking.</p>
+	 * @param message - message to be sent
+	 * @param referenceId - reference id for the client
+	 * @param priorityClass - the name of the priority class
+	 * @return {@code true} when the message was queued, {@code false} when it cannot be queued at this time
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 */
+	public boolean queue(T message, String referenceId, String priorityClass) {
+		return queue(message, referenceId, priorityClass, 0);
+	}
+	
+	/**
+	 * Add the message to the queue for sending in the given priority class.
+	 * @param message - message to be sent
+	 * @param referenceId - reference id for the client
+	 * @param priorityClass - the name of the priority class
 	 * @param timeoutInSeconds the maximum waiting time to queue before giving up
 	 * @return {@code true} when the message was queued, {@code false} when it cannot be queued at this time
+	 * @throws IllegalArgumentException when the priority class does not exist
 	 */
-	protected boolean queue(MessageEntry<T> message, LinkedBlockingDeque<MessageEntry<T>> queue, long timeoutInSeconds) {
-		try {
-			boolean rc = false;
-			if (timeoutInSeconds > 0) {
-				rc = queue.offer(message, timeoutInSeconds, TimeUnit.SECONDS);
-			} else {
-				rc = queue.offer(message);
-			}
-			if (rc) mailQueued(message);
-			return rc;
-		} catch (InterruptedException e) {
-			log.error("Queuing interrupted on "+message.referenceId, e);
-		}
-		return false;
+	public boolean queue(T message, String referenceId, String priorityClass, long timeoutInSeconds) {
+		return queue(new MessageEntry<T>(referenceId, message, getPriorityClassIndex(priorityClass)), timeoutInSeconds);
 	}
 	
 	/**
-	 * Returns the current size of the queue.
-	 * @return the size of the queue
+	 * Add the message of a tenant to the queue for sending.
+	 * <p>The message will be tried to be queued immediately without any blocking.</p>
+	 * @param message - message to be sent
+	 * @param referenceId - reference id for the client
+	 * @param isPriority - when the mail shall be sent with priority
+	 * @param tenant - the tenant of the message, {@code null} when the tenant extractor shall determine it
+	 * @return {@code true} when the message was queued, {@code false} when it cannot be queued at this time
+	 * @see #setTenantExtractor(TenantExtractor)
 	 */
-	public int size() {
-		return size(true)+size(false);
+	public boolean queue(T message, String referenceId, boolean isPriority, String tenant) {
+		return queue(new MessageEntry<T>(referenceId, message, isPriority), tenant, 0);
 	}
 	
 	/**
-	 * Returns the current size of the queue for normal or prioritized messages only.
-	 * @param isPriority whether the priority or normal number of messages shall be returned
-	 * @return the size of the queue
+	 * Add the message of a tenant to the queue for sending in the given priority class.
+	 * @param message - message to be sent
+	 * @param referenceId - reference id for the client
+	 * @param priorityClass - the name of the priority class
+	 * @param tenant - the tenant of the message, {@code null} when the tenant extractor shall determine it
+	 * @param timeoutInSeconds the maximum waiting time to queue before giving up
+	 * @return {@code true} when the message was queued, {@code false} when it cannot be queued at this time
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 * @see #setTenantExtractor(TenantExtractor)
 	 */
-	public int size(boolean isPriority) {
-		return isPriority ? priorityQueue.size() : queue.size();
+	public boolean queue(T message, String referenceId, String priorityClass, String tenant, long timeoutInSeconds) {
+		return queue(new MessageEntry<T>(referenceId, message, getPriorityClassIndex(priorityClass)), tenant, timeoutInSeconds);
 	}
-
+	
 	/**
-	 * Returns the total capacity of the normal or prioritized queue.
-	 * @param isPriority whether the capacity for priority or normal messages shall be returned
-	 * @return the total capacity
+	 * Add the message to the queue for sending and returns the future outcome.
+	 * <p>The message will be tried to be queued immediately without any blocking. The future
+	 *    completes when the message was sent, given up or cancelled. It also completes when
+	 *    the message cannot be queued.</p>
+	 * @param message - message to be sent
+	 * @param referenceId - reference id for the client
+	 * @return the future outcome
+	 * @see #setCompletionExecutor(Executor)
 	 */
-	public int capacity(boolean isPriority) {
-		return isPriority ? maxPrioritySize : maxSize;
+	public CompletableFuture<DeliveryResult> submit(T message, String referenceId) {
+		return submit(message, referenceId, null, null);
 	}
-		
+	
 	/**
-	 * Returns the remaining capacity of the normal or prioritized queue.
-	 * @param isPriority whether the capacity for priority or normal messages shall be returned
-	 * @return the remaining capacity
+	 * Add the message to the queue for sending in the given priority class and returns the future outcome.
+	 * <p>The message will be tried to be queued immediately without any blocking.</p>
+	 * @param message - message to be sent
+	 * @param referenceId - reference id for the client
+	 * @param priorityClass - the name of the priority class, {@code null} when the message has no priority
+	 * @return the future outcome
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 * @see #submit(Object, String)
 	 */
-	public int remainingCapacity(boolean isPriority) {
-		return isPriority ? priorityQueue.remainingCapacity() : queue.remainingCapacity();
+	public CompletableFuture<DeliveryResult> submit(T message, String referenceId, String priorityClass) {
+		return submit(message, referenceId, priorityClass, null);
 	}
 	
 	/**
-	 * Adds a listener to this queue.
-	 * @param listener the listener to add
+	 * Add the message of a tenant to the queue for sending in the given priority class and returns the future outcome.
+	 * <p>The message will be tried to be queued immediately without any blocking. The future
+	 *    completes when the message was sent, given up or cancelled. It also completes when
+	 *    the message cannot be queued. A duplicate shares the outcome of the queued message.
+	 *    The future is completed by the completion executor, never by a thread sending messages.
+	 *    The queue does not keep the future or the message after completion.</p>
+	 * @param message - message to be sent
+	 * @param referenceId - reference id for the client
+	 * @param priorityClass - the name of the priority class, {@code null} when the message has no priority
+	 * @param tenant - the tenant of the message, {@code null} when the tenant extractor shall determine it
+	 * @return the future outcome
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 * @see #setCompletionExecutor(Executor)
 	 */
-	public void addListener(MailQueueListener listener) {
-		listeners.add(listener);
+	public CompletableFuture<DeliveryResult> submit(T message, String referenceId, String priorityClass, String tenant) {
+		MessageEntry<T> entry = priorityClass != null
+			? new MessageEntry<T>(referenceId, message, getPriorityClassIndex(priorityClass))
+			: new MessageEntry<T>(referenceId, message, false);
+		CompletableFuture<DeliveryResult> rc = new CompletableFuture<>();
+		entry.future = rc;
+		queue(entry, tenant, 0);
+		return rc;
 	}
 	
 	/**
-	 * Removes a listener from this queue.
-	 * @param listener the listener to remove
+	 * Internal queuing implementation - queues the entry in its lane using the given maximum waiting time.
+	 * @param message the message to be queued
+	 * @param timeoutInSeconds the maximum waiting time to queue before giving up
+	 * @return {@code true} when the message was queued, {@code false} when it cannot be queued at this time
 	 */
-	public void removeListener(MailQueueListener listener) {
-		listeners.remove(listener);
+	protected boolean queue(MessageEntry<T> message, long timeoutInSeconds) {
+		return queue(message, null, timeoutInSeconds);
 	}
 	
 	/**
-	 * Informs listeners that a message was queued.
-	 * @param entry the message entry
+	 * Internal queuing implementation - queues the entry of a tenant in its lane using the given maximum waiting time.
+	 * <p>The message is rejected when either its lane or its tenant is full. A duplicate
+	 *    is accepted without being queued again.</p>
+	 * @param message the message to be queued
+	 * @param tenant the tenant of the message, {@code null} when the tenant extractor shall determine it
+	 * @param timeoutInSeconds the maximum waiting time to queue before giving up
+	 * @return {@code true} when the message was queued, {@code false} when it cannot be queued at this time
+	 * @see #setDeduplicationIndex(DeduplicationIndex)
 	 */
-	protected void mailQueued(MessageEntry<T> entry) {
-		for (MailQueueListener listener : listeners) {
-			listener.onQueued(entry.referenceId);
-		}
+	protected boolean queue(MessageEntry<T> message, String tenant, long timeoutInSeconds) {
+		return queue(message, tenant, timeoutInSeconds, true);
 	}
 	
 	/**
-	 * Informs listeners that a message is being sent.
-	 * @param entry the message entry
+	 * Offers a message of a subscriber to the queue without blocking.
+	 * <p>A message that does not fit is not counted as rejected as the subscriber keeps it
+	 *    until the queue has space again.</p>
+	 * @param item the message
+	 * @param priorityClass the name of the priority class
+	 * @return {@code true} when the message was queued, {@code false} when it does not fit at this time
+	 * @see MailQueueSubscriber
 	 */
-	protected void mailSending(MessageEntry<T> entry) {
-		for (MailQueueListener listener : listeners) {
-			listener.onSending(entry.referenceId);
-		}
+	boolean offer(QueueItem<T> item, String priorityClass) {
+		MessageEntry<T> entry = new MessageEntry<T>(item.getReferenceId(), item.getMessage(), getPriorityClassIndex(priorityClass));
+		return queue(entry, item.getTenant(), 0, false);
 	}
 	
 	/**
-	 * Informs listeners that a message was sent successfully.
-	 * @param entry the message entry
+	 * Internal queuing implementation.
+	 * @param message the message to be queued
+	 * @param tenant the tenant of the message, {@code null} when the tenant extractor shall determine it
+	 * @param timeoutInSeconds the maximum waiting time to queue before giving up
+	 * @param reject whether a message that does not fit counts as rejected
+	 * @return {@code true} when the message was queued, {@code false} when it cannot be queued at this time
 	 */
-	protected void mailSent(MessageEntry<T> entry) {
-		for (MailQueueListener listener : listeners) {
-			listener.onSent(entry.referenceId);
+	private boolean queue(MessageEntry<T> message, String tenant, long timeoutInSeconds, boolean reject) {
+		DeduplicationIndex index = this.deduplicationIndex;
+		// The index only holds IDs of admitted messages, so a known ID is a duplicate for sure
+		if (isDuplicate(index, message)) {
+			duplicate(message);
+			return true;
+		}
+		MessageLane<T> lane = getLane(message);
+		String domain = getDomain(message);
+		if (tenant == null) tenant = getTenant(message);
+		MailQueueJournal<T> journal = this.journal;
+		boolean queued    = false;
+		boolean duplicate = false;
+		try {
+			byte[] data = journal != null ? journal.encode(message) : null;
+			MessageCodec<T> codec = journal != null ? journal.getCodec() : null;
+			// Encode outside the lock when the message will probably be spilled
+			byte[] spillData = lane.mightSpill() ? encode(message, lane.getSpill().getCodec(), codec, data) : null;
+			if ((spillData == null) && (messageStore != null)) store(message, encode(message, messageStore.getCodec(), codec, data));
+			// Journal outside the lock, the message cannot be sent before it is admitted below
+			if (journal != null) journal.sync(journal.queued(message, tenant, data));
+			long nanos = TimeUnit.SECONDS.toNanos(timeoutInSeconds);
+			lock.lockInterruptibly();
+			try {
+				// Another producer may have admitted the same ID in the meantime
+				while (!(duplicate = isDuplicate(index, message)) && (lane.isFull() || isTenantFull(tenant))) {
+					if (nanos <= 0) {
+						MailQueueMetrics metrics = this.metrics;
+						if ((metrics != null) && reject) metrics.rejected();
+						return false;
+					}
+					nanos = lane.getNotFull().awaitNanos(nanos);
+				}
+				if (!duplicate) {
+					enqueue(lane, message, domain, tenant, spillData);
+					queued = true;
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (duplicate) {
+				duplicate(message);
+				return true;
+			}
+			MailQueueMetrics metrics = this.metrics;
+			if (metrics != null) metrics.queued();
+			mailQueued(message);
+			return true;
+		} catch (InterruptedException e) {
+			log.error("Queuing interrupted on "+message.referenceId, e);
+		} catch (IOException e) {
+			log.error("Cannot journal or store message "+message.referenceId, e);
+		} finally {
+			if (!queued) {
+				// A journaled message that was not queued must not be restored
+				journalGaveUp(message);
+				free(message);
+				if (!duplicate) complete(message, DeliveryResult.Outcome.REJECTED);
+			}
 		}
+		return false;
 	}
 	
 	/**
-	 * Informs listeners that a message failed.
+	 * Returns whether a message is a duplicate of an admitted message.
+	 * @param index the deduplication index or {@code null}
 	 * @param entry the message entry
-	 * @param reason the reson why sending failed
+	 * @return {@code true} when a message with the same reference ID is queued or was sent recently
 	 */
-	protected void mailFailed(MessageEntry<T> entry, String reason) {
-		for (MailQueueListener listener : listeners) {
-			listener.onFailed(entry.referenceId, entry.failedAttempts, reason);
-		}
+	private boolean isDuplicate(DeduplicationIndex index, MessageEntry<T> entry) {
+		return (index != null) && (entry.referenceId != null) && index.contains(entry.referenceId);
 	}
 	
 	/**
-	 * Process the queue once.
-	 * <p>The method must be called periodically. The method stops when</p>
-	 * <ul>
-	 * <li>The queue is empty and no more messages to be sent, or</li>
+	 * Accepts a duplicate without queuing it.
+	 * <p>A submitted duplicate shares the outcome of the queued message. It completes immediately
+	 *    when the queued message left the queue already.</p>
+	 * @param duplicate the duplicate
+	 */
+	private void duplicate(MessageEntry<T> duplicate) {
+		MailQueueMetrics metrics = this.metrics;
+		if (metrics != null) metrics.duplicate();
+		CompletableFuture<DeliveryResult> future = duplicate.future;
+		if (future == null) return;
+		lock.lock();
+		try {
+			MessageEntry<T> entry = entries.get(duplicate.referenceId);
+			if (entry != null) {
+				duplicate.future = null;
+				if (entry.future == null) entry.future = future;
+				else entry.future.whenComplete((result, t) -> future.complete(result));
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		complete(duplicate, DeliveryResult.Outcome.DUPLICATE);
+	}
+	
+	/**
+	 * Completes the future of a submitted message.
+	 * <p>The future is completed by the completion executor and is forgotten by the entry.
+	 *    The entry must have left the queue already so that no duplicate can attach to it anymore.</p>
+	 * @param entry the message entry
+	 * @param outcome the final outcome of the message
+	 */
+	private void complete(MessageEntry<T> entry, DeliveryResult.Outcome outcome) {
+		CompletableFuture<DeliveryResult> future = entry.future;
+		if (future == null) return;
+		entry.future = null;
+		int attempts = outcome == DeliveryResult.Outcome.SENT ? entry.failedAttempts + 1 : entry.failedAttempts;
+		DeliveryResult result = new DeliveryResult(entry.referenceId, outcome, attempts, entry.lastError, entry.queuedTimeInMillis, System.currentTimeMillis());
+		try {
+			future.completeAsync(() -> result, completionExecutor);
+		} catch (RejectedExecutionException e) {
+			future.complete(result);
+		}
+	}
+	
+	/**
+	 * Adds many messages to the queue at once.
+	 * <p>The messages will be tried to be queued immediately without any blocking. Each message
+	 *    is queued when its lane and its tenant have space left, otherwise it is rejected.</p>
+	 * @param items - the messages to be sent, each item records whether its message was queued
+	 * @return the number of messages queued
+	 * @throws IllegalArgumentException when a priority class does not exist
+	 * @see #queueAll(Collection, boolean)
+	 */
+	public int queueAll(Collection<QueueItem<T>> items) {
+		return queueAll(items, false);
+	}
+	
+	/**
+	 * Adds many messages to the queue at once.
+	 * <p>The messages will be tried to be queued immediately without any blocking. The queue is locked
+	 *    once for all messages, the journal is forced to disk once and listeners are informed about all
+	 *    queued messages at once. Messages are queued in the order of the collection, so their order is
+	 *    kept within their lanes. Duplicates are accepted without being queued again. With a deduplication
+	 *    index, a reference ID repeated within the collection shares the outcome of its first occurrence.</p>
+	 * <p>When not atomic, each message is queued when its lane and its tenant have space left, otherwise
+	 *    it is rejected. A message that cannot be journaled is rejected. When atomic, all messages are
+	 *    rejected when any of them does not fit or cannot be journaled. All messages are rejected when
+	 *    the journal cannot be forced to disk, as {@link #queue(Object, String)} does for a single message.</p>
+	 * @param items - the messages to be sent, each item records whether its message was queued
+	 * @param atomic - whether all messages must be queued or none of them
+	 * @return the number of messages queued
+	 * @throws IllegalArgumentException when a priority class does not exist
+	 */
+	public int queueAll(Collection<QueueItem<T>> items, boolean atomic) {
+		DeduplicationIndex index = this.deduplicationIndex;
+		List<Admission> admissions = new ArrayList<>(items.size());
+		Map<String, Admission> firsts = new HashMap<>();
+		for (QueueItem<T> item : items) {
+			item.setQueued(false);
+			MessageEntry<T> entry = item.getPriorityClass() != null
+				? new MessageEntry<T>(item.getReferenceId(), item.getMessage(), getPriorityClassIndex(item.getPriorityClass()))
+				: new MessageEntry<T>(item.getReferenceId(), item.getMessage(), false);
+			Admission admission = new Admission(item, entry);
+			if ((index != null) && (entry.referenceId != null)) admission.first = firsts.putIfAbsent(entry.referenceId, admission);
+			admissions.add(admission);
+		}
+		MailQueueJournal<T> journal = this.journal;
+		MessageCodec<T> codec = journal != null ? journal.getCodec() : null;
+		MailQueueMetrics metrics = this.metrics;
+		boolean rejectAll = false;
+		long sequence = 0;
+		// Encode and journal outside the lock
+		for (Admission admission : admissions) {
+			MessageEntry<T> entry = admission.entry;
+			// Repeated IDs are resolved once the first occurrence was queued
+			if (admission.first != null) continue;
+			if (isDuplicate(index, entry)) {
+				if (metrics != null) metrics.duplicate();
+				admission.item.setQueued(true);
+				continue;
+			}
+			if (rejectAll) continue;
+			admission.lane   = getLane(entry);
+			admission.domain = getDomain(entry);
+			admission.tenant = admission.item.getTenant() != null ? admission.item.getTenant() : getTenant(entry);
+			try {
+				admission.data      = journal != null ? journal.encode(entry) : null;
+				admission.spillData = admission.lane.mightSpill() ? encode(entry, admission.lane.getSpill().getCodec(), codec, admission.data) : null;
+				if ((admission.spillData == null) && (messageStore != null)) store(entry, encode(entry, messageStore.getCodec(), codec, admission.data));
+				if (journal != null) sequence = Math.max(sequence, journal.queued(entry, admission.tenant, admission.data));
+				admission.prepared  = true;
+			} catch (IOException e) {
+				log.error("Cannot journal or store message "+entry.referenceId, e);
+				rejectAll = atomic;
+			}
+		}
+		// Force the records to disk before any message can be sent
+		boolean forced = true;
+		try {
+			if (journal != null) journal.sync(sequence);
+		} catch (IOException e) {
+			log.error("Cannot journal messages", e);
+			forced = false;
+		}
+		List<MessageEntry<T>> queued = new ArrayList<>(admissions.size());
+		// No message is queued when none of the records may be durable
+		if (forced) {
+			lock.lock();
+			try {
+				if (atomic) {
+					if (!rejectAll && fits(index, admissions)) admitAll(admissions, queued);
+				} else {
+					for (Admission admission : admissions) {
+						if (!admission.prepared) continue;
+						// Another producer may have admitted the same ID in the meantime
+						if (isDuplicate(index, admission.entry)) {
+							admission.duplicate = true;
+							admission.item.setQueued(true);
+							continue;
+						}
+						if (admission.lane.isFull() || isTenantFull(admission.tenant)) continue;
+						enqueue(admission.lane, admission.entry, admission.domain, admission.tenant, admission.spillData);
+						admission.admitted = true;
+						admission.item.setQueued(true);
+						queued.add(admission.entry);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		// Journaled messages that were not queued must not be restored
+		for (Admission admission : admissions) {
+			if (admission.prepared && !admission.admitted) journalGaveUp(admission.entry);
+		}
+		int rc = 0;
+		for (Admission admission : admissions) {
+			if (admission.first != null) {
+				admission.item.setQueued(admission.first.item.isQueued());
+				admission.duplicate = admission.item.isQueued();
+			}
+			if (admission.duplicate) {
+				if (metrics != null) metrics.duplicate();
+				free(admission.entry);
+			}
+			if (admission.item.isQueued()) {
+				rc++;
+			} else {
+				if (metrics != null) metrics.rejected();
+				free(admission.entry);
+			}
+		}
+		if (metrics != null) {
+			for (int i=0; i<queued.size(); i++) metrics.queued();
+		}
+		mailQueued(queued);
+		return rc;
+	}
+	
+	/**
+	 * Queues all prepared messages of a bulk.
+	 * <p>The caller must hold the lock and must have checked that all messages fit. The messages were
+	 *    journaled before, so queuing them cannot fail anymore.</p>
+	 * @param admissions the messages
+	 * @param queued receives the queued messages
+	 */
+	private void admitAll(List<Admission> admissions, List<MessageEntry<T>> queued) {
+		DeduplicationIndex index = this.deduplicationIndex;
+		for (Admission admission : admissions) {
+			if (!admission.prepared) continue;
+			// Another producer may have admitted the same ID in the meantime
+			if (isDuplicate(index, admission.entry)) {
+				admission.duplicate = true;
+				admission.item.setQueued(true);
+				continue;
+			}
+			enqueue(admission.lane, admission.entry, admission.domain, admission.tenant, admission.spillData);
+			admission.admitted = true;
+			admission.item.setQueued(true);
+			queued.add(admission.entry);
+		}
+	}
+
+	/**
+	 * Returns whether all prepared messages of a bulk fit into their lanes and tenants.
+	 * <p>The caller must hold the lock. Duplicates are not counted as they will not be queued.</p>
+	 * @param index the deduplication index or {@code null}
+	 * @param admissions the messages
+	 * @return {@code true} when all messages can be queued
+	 */
+	private boolean fits(DeduplicationIndex index, List<Admission> admissions) {
+		Map<MessageLane<T>, Integer> laneCounts = new HashMap<>();
+		Map<String, Integer> tenantCounts = new HashMap<>();
+		for (Admission admission : admissions) {
+			if (!admission.prepared || isDuplicate(index, admission.entry)) continue;
+			laneCounts.merge(admission.lane, 1, Integer::sum);
+			tenantCounts.merge(admission.tenant, 1, Integer::sum);
+		}
+		for (Map.Entry<MessageLane<T>, Integer> count : laneCounts.entrySet()) {
+			if (count.getKey().remainingCapacity() < count.getValue()) return false;
+		}
+		for (Map.Entry<String, Integer> count : tenantCounts.entrySet()) {
+			String tenant = count.getKey();
+			TenantState state = tenant != null ? tenants.get(tenant) : defaultTenant;
+			TenantPolicy policy = state != null ? state.getPolicy() : tenantPolicies.getOrDefault(tenant, defaultTenantPolicy);
+			int size = state != null ? state.size() : 0;
+			if (policy.getMaxSize() - size < count.getValue()) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds a journaled message to its lane or the spill of the lane.
+	 * <p>The caller must hold the lock and must have checked the capacity of the lane and tenant.</p>
+	 * @param lane the lane of the message
+	 * @param message the message entry
+	 * @param domain the recipient domain of the message
+	 * @param tenant the tenant of the message
+	 * @param spillData the message encoded for the spill or {@code null}
+	 */
+	private void enqueue(MessageLane<T> lane, MessageEntry<T> message, String domain, String tenant, byte[] spillData) {
+		// The ID is recorded under the lock once the message cannot fail anymore
+		DeduplicationIndex index = this.deduplicationIndex;
+		if ((index != null) && (message.referenceId != null)) index.add(message.referenceId);
+		message.tenant = getTenantState(tenant);
+		message.tenant.added();
+		if (message.referenceId != null) entries.put(message.referenceId, message);
+		if (!lane.mustSpill() || !spill(lane, message, domain, spillData)) {
+			message.domain = getDomainState(domain);
+			message.domain.added();
+			lane.add(message);
+			workAvailable.signal();
+		}
+	}
+	
+	/**
+	 * Adds a message restored from the journal without journaling it again.
+	 * <p>The capacity of the lane is not checked as restored messages must not be lost.</p>
+	 * @param entry the restored message
+	 * @param tenant the journaled tenant of the message, {@code null} when the tenant extractor shall determine it
+	 */
+	private void restore(MessageEntry<T> entry, String tenant) {
+		MessageLane<T> lane = getLane(entry);
+		String domain = getDomain(entry);
+		if (tenant == null) tenant = getTenant(entry);
+		lock.lock();
+		try {
+			entry.tenant = getTenantState(tenant);
+			entry.tenant.added();
+			if (entry.referenceId != null) entries.put(entry.referenceId, entry);
+			// A retried call must not queue a restored message again
+			DeduplicationIndex index = this.deduplicationIndex;
+			if ((index != null) && (entry.referenceId != null)) index.add(entry.referenceId);
+			if (lane.mustSpill() && spill(lane, entry, domain, null)) return;
+			try {
+				store(entry, null);
+			} catch (IOException e) {
+				log.error("Cannot store message "+entry.referenceId, e);
+			}
+			entry.domain = getDomainState(domain);
+			entry.domain.added();
+			lane.add(entry);
+			workAvailable.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes the message to the spill of the lane.
+	 * <p>The caller must hold the lock. The message entry stays with the lane without its message
+	 *    when it was spilled, so the message can be found and cancelled.</p>
+	 * @param lane the lane of the message
+	 * @param entry the message entry
+	 * @param domain the recipient domain of the message
+	 * @param data the message encoded for the spill or {@code null} when it must be encoded
+	 * @return {@code true} when the message was spilled, {@code false} when it must be kept in memory
+	 */
+	private boolean spill(MessageLane<T> lane, MessageEntry<T> entry, String domain, byte[] data) {
+		MessageSpill<T> spill = lane.getSpill();
+		try {
+			if (data == null) {
+				load(entry);
+				data = spill.encode(entry.message);
+			}
+			spill.add(entry, domain, data);
+			free(entry);
+			entry.message = null;
+			entry.data    = null;
+			lane.addSpilled(entry);
+			return true;
+		} catch (IOException e) {
+			log.error("Cannot spill message "+entry.referenceId+", keeping it in memory", e);
+		}
+		return false;
+	}
+	
+	/**
+	 * Moves spilled messages into the lane while it has space.
+	 * <p>The caller must hold the lock. The messages stay encoded until they are sent.
+	 *    Cancelled messages are dropped.</p>
+	 * @param lane the lane
+	 */
+	private void pageIn(MessageLane<T> lane) {
+		MappedMessageStore<T> messageStore = this.messageStore;
+		while (lane.canPageIn()) {
+			MessageSpill<T> spill = lane.getSpill();
+			int spillSize = spill.size();
+			MessageSpill.Spilled<T> spilled = null;
+			try {
+				spilled = spill.poll();
+			} catch (IOException e) {
+				log.error("Cannot read spilled message", e);
+			}
+			// The spill drops the messages of a corrupt segment
+			for (int i=spillSize-spill.size()-(spilled != null ? 1 : 0); i>0; i--) {
+				MessageEntry<T> lost = lane.pollSpilled();
+				if ((lost != null) && !lost.cancelled) {
+					forget(lost);
+					complete(lost, DeliveryResult.Outcome.GAVE_UP);
+				}
+			}
+			if (spilled == null) return;
+			MessageEntry<T> entry = lane.pollSpilled();
+			if (entry == null) {
+				entry = spilled.entry;
+				entry.tenant = getTenantState(spilled.tenant);
+			} else if (entry.cancelled) {
+				continue;
+			} else {
+				entry.data = spilled.entry.data;
+			}
+			if ((messageStore != null) && (messageStore.getCodec() == spill.getCodec())) {
+				int offset = messageStore.put(entry.data);
+				if (offset != MappedMessageStore.NOT_STORED) {
+					entry.storeOffset = offset;
+					entry.data        = null;
+				}
+			}
+			entry.domain = getDomainState(spilled.domain);
+			entry.domain.added();
+			lane.add(entry);
+			workAvailable.signal();
+		}
+	}
+	
+	/**
+	 * Encodes the message with the given codec unless it was encoded by the same codec already.
+	 * @param entry the message entry
+	 * @param codec the codec to be used
+	 * @param dataCodec the codec of the encoded message or {@code null}
+	 * @param data the encoded message or {@code null}
+	 * @return the message encoded by the codec
+	 * @throws IOException when the message cannot be encoded
+	 */
+	private byte[] encode(MessageEntry<T> entry, MessageCodec<T> codec, MessageCodec<T> dataCodec, byte[] data) throws IOException {
+		if ((data != null) && (codec == dataCodec)) return data;
+		try {
+			return codec.encode(entry.message);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Cannot encode message "+entry.referenceId, e);
+		}
+	}
+	
+	/**
+	 * Moves the message of an entry from the heap into the message store.
+	 * <p>The message stays on the heap when no store is set or the store has no space left.</p>
+	 * @param entry the message entry
+	 * @param data the encoded message or {@code null} when it must be encoded by the store
+	 * @throws IOException when the message cannot be encoded
+	 */
+	private void store(MessageEntry<T> entry, byte[] data) throws IOException {
+		MappedMessageStore<T> messageStore = this.messageStore;
+		if (messageStore == null) return;
+		int offset = messageStore.put(data != null ? data : messageStore.encode(entry.message));
+		if (offset != MappedMessageStore.NOT_STORED) {
+			entry.storeOffset = offset;
+			entry.message     = null;
+		}
+	}
+	
+	/**
+	 * Restores the message of an entry from the message store or its spilled bytes before it is sent.
+	 * @param entry the message entry
+	 * @throws IOException when the message cannot be restored
+	 */
+	private void load(MessageEntry<T> entry) throws IOException {
+		if (entry.message != null) return;
+		if (entry.data != null) {
+			entry.message = getLane(entry).getSpill().decode(entry.data);
+			entry.data    = null;
+		} else if (entry.storeOffset != MappedMessageStore.NOT_STORED) {
+			entry.message = messageStore.get(entry.storeOffset);
+		}
+	}
+	
+	/**
+	 * Drops the message of an entry from the heap again when it is kept in the message store.
+	 * @param entry the message entry
+	 */
+	private void unload(MessageEntry<T> entry) {
+		if (entry.storeOffset != MappedMessageStore.NOT_STORED) entry.message = null;
+	}
+	
+	/**
+	 * Releases the space of the message in the message store.
+	 * @param entry the message entry
+	 */
+	private void free(MessageEntry<T> entry) {
+		if (entry.storeOffset != MappedMessageStore.NOT_STORED) {
+			messageStore.free(entry.storeOffset);
+			entry.storeOffset = MappedMessageStore.NOT_STORED;
+		}
+	}
+	
+	/**
+	 * Determines the recipient domain of the message.
+	 * @param entry the message entry
+	 * @return the domain or {@code null} when messages are not separated by domain or the domain cannot be determined
+	 */
+	private String getDomain(MessageEntry<T> entry) {
+		DomainExtractor<T> domainExtractor = this.domainExtractor;
+		if (domainExtractor != null) {
+			try {
+				String rc = domainExtractor.getDomain(entry.message);
+				return rc != null ? rc.toLowerCase() : null;
+			} catch (Throwable t) {
+				log.error("Cannot determine domain of "+entry.referenceId, t);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the runtime state of the domain and creates it if required.
+	 * <p>The caller must hold the lock.</p>
+	 * @param domain the domain
+	 * @return the state of the domain
+	 */
+	private DomainState getDomainState(String domain) {
+		if (domain == null) return defaultDomain;
+		DomainState rc = domains.get(domain);
+		if (rc == null) {
+			DomainPolicy policy = domainPolicies.get(domain);
+			rc = new DomainState(domain, policy != null ? policy : defaultDomainPolicy);
+			domains.put(domain, rc);
+		}
+		return rc;
+	}
+	
+	/**
+	 * Returns the priority classes of the queue.
+	 * @return the priority classes in the order they take turns, the class of priority messages first
+	 */
+	public List<PriorityClass> getPriorityClasses() {
+		return priorityClasses;
+	}
+	
+	/**
+	 * Returns the index of a priority class.
+	 * @param priorityClass the name of the priority class
+	 * @return the index
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 */
+	private int getPriorityClassIndex(String priorityClass) {
+		Integer rc = priorityClassIndex.get(priorityClass);
+		if (rc == null) throw new IllegalArgumentException("Unknown priority class: "+priorityClass);
+		return rc;
+	}
+	
+	/**
+	 * Determines the tenant of the message.
+	 * @param entry the message entry
+	 * @return the tenant or {@code null} when messages are not separated by tenant or the tenant cannot be determined
+	 */
+	private String getTenant(MessageEntry<T> entry) {
+		TenantExtractor<T> tenantExtractor = this.tenantExtractor;
+		if (tenantExtractor != null) {
+			try {
+				return tenantExtractor.getTenant(entry.message);
+			} catch (Throwable t) {
+				log.error("Cannot determine tenant of "+entry.referenceId, t);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the runtime state of the tenant and creates it if required.
+	 * <p>The caller must hold the lock.</p>
+	 * @param tenant the tenant
+	 * @return the state of the tenant
+	 */
+	private TenantState getTenantState(String tenant) {
+		if (tenant == null) return defaultTenant;
+		TenantState rc = tenants.get(tenant);
+		if (rc == null) {
+			TenantPolicy policy = tenantPolicies.get(tenant);
+			rc = new TenantState(tenant, policy != null ? policy : defaultTenantPolicy);
+			tenants.put(tenant, rc);
+		}
+		return rc;
+	}
+	
+	/**
+	 * Returns whether the tenant reached its maximum number of messages.
+	 * <p>The caller must hold the lock.</p>
+	 * @param tenant the tenant
+	 * @return {@code true} when no more messages of the tenant can be queued
+	 */
+	private boolean isTenantFull(String tenant) {
+		TenantState state = tenant != null ? tenants.get(tenant) : defaultTenant;
+		return (state != null) && state.isFull();
+	}
+	
+	/**
+	 * Returns the lane for normal or prioritized messages.
+	 * @param isPriority whether the priority or normal lane shall be returned
+	 * @return the lane
+	 */
+	private MessageLane<T> getLane(boolean isPriority) {
+		return getLane(isPriority ? MessageEntry.PRIORITY : MessageEntry.NORMAL);
+	}
+	
+	/**
+	 * Returns the lane of a priority class.
+	 * @param priorityClass the name of the priority class
+	 * @return the lane
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 */
+	private MessageLane<T> getLane(String priorityClass) {
+		return lanes.get(getPriorityClassIndex(priorityClass));
+	}
+	
+	/**
+	 * Returns the lane of a message.
+	 * @param entry the message entry
+	 * @return the lane
+	 */
+	private MessageLane<T> getLane(MessageEntry<T> entry) {
+		return getLane(entry.priorityClass);
+	}
+	
+	/**
+	 * Returns the lane of a priority class.
+	 * <p>Messages of classes that do not exist, e.g. restored from the journal of a queue with more classes,
+	 *    belong to the last class.</p>
+	 * @param index the index of the priority class
+	 * @return the lane
+	 */
+	private MessageLane<T> getLane(int index) {
+		return lanes.get(Math.max(0, Math.min(index, lanes.size()-1)));
+	}
+	
+	/**
+	 * Returns the current size of the queue.
+	 * <p>The size includes messages in the spills.</p>
+	 * @return the size of the queue
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			int rc = 0;
+			for (MessageLane<T> lane : lanes) rc += lane.size();
+			return rc;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the current size of the queue for normal or prioritized messages only.
+	 * @param isPriority whether the priority or normal number of messages shall be returned
+	 * @return the size of the queue
+	 */
+	public int size(boolean isPriority) {
+		lock.lock();
+		try {
+			return getLane(isPriority).size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the current size of the queue for messages of a priority class only.
+	 * @param priorityClass the name of the priority class
+	 * @return the size of the queue
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 */
+	public int size(String priorityClass) {
+		lock.lock();
+		try {
+			return getLane(priorityClass).size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages currently being sent.
+	 * @return the number of in-flight messages
+	 */
+	public int getInFlightCount() {
+		int rc = 0;
+		for (MessageLane<T> lane : lanes) rc += lane.inFlight();
+		return rc;
+	}
+
+	/**
+	 * Returns the time the oldest message waiting in the normal or prioritized queue was queued.
+	 * <p>Messages being sent are not considered. The method takes linear time and is meant for monitoring.</p>
+	 * @param isPriority whether the priority or normal messages shall be checked
+	 * @return the age in milliseconds, 0 when no message is waiting
+	 */
+	public long getOldestMessageAge(boolean isPriority) {
+		return getOldestMessageAge(isPriority ? MessageEntry.PRIORITY : MessageEntry.NORMAL);
+	}
+
+	/**
+	 * Returns the time the oldest message of a priority class waiting in the queue was queued.
+	 * <p>Messages being sent are not considered. The method takes linear time and is meant for monitoring.</p>
+	 * @param priorityClass the name of the priority class
+	 * @return the age in milliseconds, 0 when no message is waiting
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 */
+	public long getOldestMessageAge(String priorityClass) {
+		return getOldestMessageAge(getPriorityClassIndex(priorityClass));
+	}
+
+	/**
+	 * Returns the time the oldest message waiting in a lane was queued.
+	 * @param index the index of the priority class
+	 * @return the age in milliseconds, 0 when no message is waiting
+	 */
+	private long getOldestMessageAge(int index) {
+		long oldest;
+		lock.lock();
+		try {
+			oldest = getLane(index).getOldestQueuedTime();
+		} finally {
+			lock.unlock();
+		}
+		return oldest != Long.MAX_VALUE ? Math.max(0, System.currentTimeMillis() - oldest) : 0;
+	}
+
+	/**
+	 * Returns the total capacity of the normal or prioritized queue.
+	 * <p>The capacity includes the maximum size of the spill.</p>
+	 * @param isPriority whether the capacity for priority or normal messages shall be returned
+	 * @return the total capacity
+	 */
+	public int capacity(boolean isPriority) {
+		return getLane(isPriority).capacity();
+	}
+	
+	/**
+	 * Returns the total capacity of the queue for messages of a priority class.
+	 * <p>The capacity includes the maximum size of the spill.</p>
+	 * @param priorityClass the name of the priority class
+	 * @return the total capacity
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 */
+	public int capacity(String priorityClass) {
+		return getLane(priorityClass).capacity();
+	}
+		
+	/**
+	 * Returns the remaining capacity of the normal or prioritized queue.
+	 * <p>The remaining capacity includes the spill.</p>
+	 * @param isPriority whether the capacity for priority or normal messages shall be returned
+	 * @return the remaining capacity
+	 */
+	public int remainingCapacity(boolean isPriority) {
+		lock.lock();
+		try {
+			return getLane(isPriority).remainingCapacity();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the remaining capacity of the queue for messages of a priority class.
+	 * <p>The remaining capacity includes the spill.</p>
+	 * @param priorityClass the name of the priority class
+	 * @return the remaining capacity
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 */
+	public int remainingCapacity(String priorityClass) {
+		lock.lock();
+		try {
+			return getLane(priorityClass).remainingCapacity();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the status of a message in the queue.
+	 * <p>The message is looked up by its reference ID in constant time. When several messages
+	 *    with the same reference ID are queued, the status of the most recent one is returned.</p>
+	 * @param referenceId the reference ID of the message
+	 * @return the status or {@code null} when the message is not in the queue, i.e. it was sent, given up or cancelled
+	 */
+	public MessageStatus getStatus(String referenceId) {
+		if ((referenceId == null) || !entries.containsKey(referenceId)) return null;
+		lock.lock();
+		try {
+			MessageEntry<T> entry = entries.get(referenceId);
+			if (entry == null)  return null;
+			if (entry.inFlight) return MessageStatus.SENDING;
+			if (entry.spilled)  return MessageStatus.SPILLED;
+			return entry.notBeforeTimeInMillis > System.currentTimeMillis() ? MessageStatus.DELAYED : MessageStatus.QUEUED;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Withdraws a message from the queue.
+	 * <p>The message is looked up by its reference ID in constant time and will not be sent.
+	 *    It leaves the queue immediately, including messages in a spill. A message that is being
+	 *    sent cannot be cancelled anymore. The reference ID is forgotten by the deduplication index
+	 *    before the queue is unlocked, so the message can be queued again right away. The journal
+	 *    records the message as given up and listeners are notified with
+	 *    {@link MailQueueListener#onCancelled(String)}. When several messages with the same reference ID are queued, the most recent one is
+	 *    cancelled.</p>
+	 * @param referenceId the reference ID of the message
+	 * @return {@code true} when the message was cancelled, {@code false} when it is not in the queue or being sent
+	 */
+	public boolean cancel(String referenceId) {
+		if ((referenceId == null) || !entries.containsKey(referenceId)) return false;
+		MessageEntry<T> entry = null;
+		lock.lock();
+		try {
+			entry = entries.get(referenceId);
+			if (entry == null) return false;
+			MessageLane<T> lane = getLane(entry);
+			if (!lane.cancel(entry)) return false;
+			// The entry stays in the lane until it comes up, but its message can be released
+			free(entry);
+			entry.message = null;
+			entry.data    = null;
+			forget(entry);
+			// Messages with this ID are added to the index while holding the lock
+			DeduplicationIndex index = this.deduplicationIndex;
+			if (index != null) index.remove(referenceId);
+			pageIn(lane);
+		} finally {
+			lock.unlock();
+		}
+		released(entry);
+		journalGaveUp(entry);
+		mailCancelled(entry);
+		complete(entry, DeliveryResult.Outcome.CANCELLED);
+		return true;
+	}
+
+	/**
+	 * Adds a listener to this queue.
+	 * <p>Listeners can be added and removed at any time, even while they are informed.</p>
+	 * @param listener the listener to add
+	 */
+	public synchronized void addListener(MailQueueListener listener) {
+		MailQueueListener[] current = listeners;
+		for (MailQueueListener l : current) {
+			if (l.equals(listener)) return;
+		}
+		MailQueueListener[] rc = new MailQueueListener[current.length+1];
+		System.arraycopy(current, 0, rc, 0, current.length);
+		rc[current.length] = listener;
+		listeners = rc;
+	}
+	
+	/**
+	 * Removes a listener from this queue.
+	 * @param listener the listener to remove
+	 */
+	public synchronized void removeListener(MailQueueListener listener) {
+		MailQueueListener[] current = listeners;
+		for (int i=0; i<current.length; i++) {
+			if (current[i].equals(listener)) {
+				MailQueueListener[] rc = new MailQueueListener[current.length-1];
+				System.arraycopy(current, 0, rc, 0, i);
+				System.arraycopy(current, i+1, rc, i, current.length-i-1);
+				listeners = rc;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the event bus that informs the listeners.
+	 * @return the event bus or {@code null} when listeners are informed on the queuing and sending threads (Default: {@code null})
+	 */
+	public MailQueueEventBus getEventBus() {
+		return eventBus;
+	}
+	
+	/**
+	 * Sets the event bus that informs the listeners.
+	 * <p>Listeners are called on the queuing and sending threads by default. A slow listener
+	 *    then slows down {@link #queue(Object, String, boolean)} and {@link #run()}. An event bus
+	 *    calls the listeners on its own thread instead. The queue does not close the event bus.</p>
+	 * @param eventBus the event bus or {@code null} when listeners shall be informed on the queuing and sending threads
+	 */
+	public void setEventBus(MailQueueEventBus eventBus) {
+		this.eventBus = eventBus;
+	}
+	
+	/**
+	 * Informs listeners that a message was queued.
+	 * @param entry the message entry
+	 */
+	protected void mailQueued(MessageEntry<T> entry) {
+		mailEvent(entry, MailQueueEvent.State.QUEUED, null);
+	}
+	
+	/**
+	 * Informs listeners that messages were added to the queue.
+	 * @param entries the message entries
+	 */
+	protected void mailQueued(List<MessageEntry<T>> entries) {
+		MailQueueListener[] listeners = this.listeners;
+		if ((listeners.length == 0) || entries.isEmpty()) return;
+		MailQueueEventBus eventBus = this.eventBus;
+		if (eventBus != null) {
+			long now = System.currentTimeMillis();
+			for (MessageEntry<T> entry : entries) {
+				eventBus.publish(listeners, MailQueueEvent.State.QUEUED, entry.referenceId, entry.failedAttempts, null, now);
+			}
+		} else {
+			List<String> referenceIds = new ArrayList<>(entries.size());
+			for (MessageEntry<T> entry : entries) referenceIds.add(entry.referenceId);
+			for (MailQueueListener listener : listeners) {
+				listener.onQueued(referenceIds);
+			}
+		}
+	}
+	
+	/**
+	 * Informs listeners that a message is being sent.
+	 * @param entry the message entry
+	 */
+	protected void mailSending(MessageEntry<T> entry) {
+		mailEvent(entry, MailQueueEvent.State.SENDING, null);
+	}
+	
+	/**
+	 * Informs listeners that a message was sent successfully.
+	 * @param entry the message entry
+	 */
+	protected void mailSent(MessageEntry<T> entry) {
+		mailEvent(entry, MailQueueEvent.State.SENT, null);
+	}
+	
+	/**
+	 * Informs listeners that a message failed.
+	 * @param entry the message entry
+	 * @param reason the reson why sending failed
+	 */
+	protected void mailFailed(MessageEntry<T> entry, String reason) {
+		mailEvent(entry, MailQueueEvent.State.FAILED, reason);
+	}
+	
+	/**
+	 * Informs listeners that sending a message was given up.
+	 * @param entry the message entry
+	 * @param reason the reason why the last attempt failed
+	 */
+	protected void mailGaveUp(MessageEntry<T> entry, String reason) {
+		mailEvent(entry, MailQueueEvent.State.GAVE_UP, reason);
+	}
+	
+	/**
+	 * Informs listeners that a message was cancelled.
+	 * @param entry the message entry
+	 */
+	protected void mailCancelled(MessageEntry<T> entry) {
+		mailEvent(entry, MailQueueEvent.State.CANCELLED, null);
+	}
+	
+	/**
+	 * Informs listeners about a status change of a message.
+	 * <p>The time of the event is taken here, so listeners behind the event bus receive the time
+	 *    the queue raised the event.</p>
+	 * @param entry the message entry
+	 * @param state the new state of the message
+	 * @param reason the reason of a failure or {@code null}
+	 */
+	private void mailEvent(MessageEntry<T> entry, MailQueueEvent.State state, String reason) {
+		MailQueueListener[] listeners = this.listeners;
+		if (listeners.length == 0) return;
+		long now = System.currentTimeMillis();
+		MailQueueEventBus eventBus = this.eventBus;
+		if (eventBus != null) {
+			eventBus.publish(listeners, state, entry.referenceId, entry.failedAttempts, reason, now);
+		} else {
+			for (MailQueueListener listener : listeners) {
+				listener.onEvent(state, entry.referenceId, entry.failedAttempts, reason, now);
+			}
+		}
+	}
+	
+	/**
+	 * Process the queue once.
+	 * <p>The method must be called periodically. The method stops when</p>
+	 * <ul>
+	 * <li>The queue is empty and no more messages to be sent, or</li>
 	 * <li>The rate limit has been reached and we need to wait before sending</li>
 	 * </ul>
+	 * <p>The method returns when it is useful to call it again: the time when the token bucket
+	 *    is expected to provide the next token or the next message waiting for a retry becomes due.
+	 *    Newly queued messages can be sent immediately of course.</p>
+	 * @return the time in milliseconds when the next message can be sent, {@link Long#MAX_VALUE} when no message is waiting
 	 * @throws Exception when the processing caused a severe faiulure
 	 */
-	public void run() throws Exception {
+	public long run() throws Exception {
 		if (log.isDebugEnabled()) log.debug("I have "+size()+" messages queued");
-		MessageEntry<T> candidate = getNext();
+		List<MessageEntry<T>> batch = nextBatch(pollNext());
+		while (!batch.isEmpty()) {
+			send(batch);
+			// Try next
+			batch = nextBatch(pollNext());
+		} 
+		return getNextRunTime();
+	}
+	
+	/**
+	 * Process the queue once and waits until the next message can be sent.
+	 * <p>The method processes the queue like {@link #run()} and then blocks until
+	 *    the token bucket is expected to provide the next token, the next retry becomes
+	 *    due or a new message was queued. It does not wait longer than the given timeout.
+	 *    Calling this method in a loop fully uses the rate limit without busy polling.</p>
+	 * @param timeoutInMillis the maximum time to wait
+	 * @throws Exception when the processing caused a severe faiulure
+	 */
+	public void run(long timeoutInMillis) throws Exception {
+		long nextRunTime = run();
+		lock.lockInterruptibly();
+		try {
+			long wait = Math.min(nextRunTime - System.currentTimeMillis(), timeoutInMillis);
+			if (wait > 0) workAvailable.await(wait, TimeUnit.MILLISECONDS);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the time when the next message can be sent.
+	 * <p>Ready messages can be sent when the token bucket provides the next token,
+	 *    other messages when their retry becomes due.</p>
+	 * @return the time in milliseconds, {@link Long#MAX_VALUE} when no message is waiting
+	 */
+	protected long getNextRunTime() {
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			long rc = getNextDueTime();
+			for (MessageLane<T> lane : lanes) {
+				if (lane.isReady(now)) {
+					rc = Math.min(rc, Math.max(now, getNextTokenTime()));
+					break;
+				}
+			}
+			return rc;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the time when the token bucket is expected to provide the next token.
+	 * <p>The time is reported by the token bucket when it could not provide a token
+	 *    the last time.</p>
+	 * @return the time in milliseconds, it is in the past when tokens are available
+	 */
+	public long getNextTokenTime() {
+		return tokenBucket != null ? nextTokenTimeInMillis : 0;
+	}
+	
+	/**
+	 * Collects the messages to be sent next.
+	 * <p>The batch starts with the given message and is filled with further messages
+	 *    picked by {@link #pollNext()} until the batch size is reached. Each message 
+	 *    consumes a token. A message that cannot get a token is released back to the queue,
+	 *    its domain and tenant get back the tokens it consumed.</p>
+	 * @param first the first message of the batch, picked by {@link #pollNext()}
+	 * @return the messages cleared to be sent, empty when no message can be sent at this time
+	 */
+	protected List<MessageEntry<T>> nextBatch(MessageEntry<T> first) {
+		if (first == null) return Collections.emptyList();
+		int size = batchSize;
+		List<MessageEntry<T>> rc = new ArrayList<>(size);
+		MessageEntry<T> candidate = first;
 		while (candidate != null) {
-			if (getBucketToken()) {
-				mailSending(candidate);
+			if (!getBucketToken()) {
+				release(candidate);
+				break;
+			}
+			rc.add(candidate);
+			if (rc.size() >= size) break;
+			candidate = pollNext();
+		}
+		return rc;
+	}
+	
+	/**
+	 * Sends a batch of messages picked by {@link #nextBatch(MessageEntry)} and updates the queue according to the results.
+	 * @param batch the messages to be sent
+	 * @see #send(MessageEntry)
+	 */
+	protected void send(List<MessageEntry<T>> batch) {
+		if (batch.size() == 1) {
+			send(batch.get(0));
+			return;
+		}
+		List<BatchItem<T>> items  = new ArrayList<>(batch.size());
+		List<BatchItem<T>> loaded = new ArrayList<>(batch.size());
+		for (MessageEntry<T> candidate : batch) {
+			mailSending(candidate);
+			BatchItem<T> item = null;
+			try {
+				load(candidate);
+				item = new BatchItem<>(candidate.message, candidate.referenceId);
+				loaded.add(item);
+			} catch (IOException e) {
+				item = new BatchItem<>(null, candidate.referenceId);
+				item.setFailure(e);
+			}
+			items.add(item);
+		}
+		long start = System.nanoTime();
+		try {
+			if (!loaded.isEmpty()) mailSender.sendMessages(loaded);
+		} catch (Throwable t) {
+			for (BatchItem<T> item : loaded) item.setFailure(t);
+		}
+		MailQueueMetrics metrics = this.metrics;
+		if ((metrics != null) && !loaded.isEmpty()) metrics.sendDuration(System.nanoTime() - start);
+		for (int i=0; i<batch.size(); i++) {
+			MessageEntry<T> candidate = batch.get(i);
+			Throwable failure = items.get(i).getFailure();
+			if (failure == null) {
 				try {
-					mailSender.sendMessage(candidate.message, candidate.referenceId); 
-					mailSent(candidate);
+					sent(candidate);
 					remove(candidate);
+					complete(candidate, DeliveryResult.Outcome.SENT);
 				} catch (Throwable t) {
-					candidate.failedAttempts++;
-					mailFailed(candidate, t.getMessage());
-					log.error("Cannot send message", t);
-					if (candidate.failedAttempts > getMaxRetries()) {
-						remove(candidate);
+					failed(candidate, t);
+				}
+			} else {
+				failed(candidate, failure);
+			}
+		}
+	}
+	
+	/**
+	 * Sends a message picked by {@link #pollNext()} and updates the queue according to the result.
+	 * <p>A message sent successfully is removed from the queue. A failed message is put on hold
+	 *    for the retry period or removed when it exceeded the maximum number of retries.</p>
+	 * @param candidate the message to be sent
+	 */
+	protected void send(MessageEntry<T> candidate) {
+		mailSending(candidate);
+		try {
+			load(candidate);
+			long start = System.nanoTime();
+			try {
+				mailSender.sendMessage(candidate.message, candidate.referenceId); 
+			} finally {
+				MailQueueMetrics metrics = this.metrics;
+				if (metrics != null) metrics.sendDuration(System.nanoTime() - start);
+			}
+			sent(candidate);
+			remove(candidate);
+			complete(candidate, DeliveryResult.Outcome.SENT);
+		} catch (Throwable t) {
+			failed(candidate, t);
+		}
+	}
+	
+	/**
+	 * Records that a message was sent successfully.
+	 * @param candidate the message that was sent
+	 */
+	private void sent(MessageEntry<T> candidate) {
+		MailQueueMetrics metrics = this.metrics;
+		if (metrics != null) metrics.sent(System.currentTimeMillis() - candidate.queuedTimeInMillis, candidate.failedAttempts);
+		mailSent(candidate);
+		journalSent(candidate);
+	}
+	
+	/**
+	 * Handles a message that could not be sent.
+	 * <p>The message is put on hold for the retry delay or removed when the
+	 *    retry policy gives up on it.</p>
+	 * @param candidate the message that failed
+	 * @param t the reason of the failure
+	 * @see #getRetryDelay(MessageEntry, Throwable)
+	 */
+	protected void failed(MessageEntry<T> candidate, Throwable t) {
+		candidate.failedAttempts++;
+		candidate.lastError = t;
+		MailQueueMetrics metrics = this.metrics;
+		if (metrics != null) metrics.failed();
+		mailFailed(candidate, t.getMessage());
+		log.error("Cannot send message", t);
+		long delay = getRetryDelay(candidate, t);
+		if (delay < 0) {
+			if (metrics != null) metrics.gaveUp(candidate.failedAttempts);
+			journalGaveUp(candidate);
+			DeduplicationIndex index = this.deduplicationIndex;
+			if ((index != null) && (candidate.referenceId != null)) index.remove(candidate.referenceId);
+			remove(candidate);
+			mailGaveUp(candidate, t.getMessage());
+			complete(candidate, DeliveryResult.Outcome.GAVE_UP);
+		} else {
+			candidate.lastRetryDelay        = delay;
+			candidate.notBeforeTimeInMillis = System.currentTimeMillis()+delay;
+			journalFailed(candidate);
+			unload(candidate);
+			retry(candidate);
+		}
+	}
+	
+	/**
+	 * Records in the journal that the message was sent.
+	 * @param candidate the message
+	 */
+	private void journalSent(MessageEntry<T> candidate) {
+		MailQueueJournal<T> journal = this.journal;
+		if (journal == null) return;
+		try {
+			journal.sent(candidate);
+		} catch (IOException e) {
+			log.error("Cannot journal message "+candidate.referenceId, e);
+		}
+	}
+	
+	/**
+	 * Records in the journal that the message failed and will be tried again.
+	 * @param candidate the message
+	 */
+	private void journalFailed(MessageEntry<T> candidate) {
+		MailQueueJournal<T> journal = this.journal;
+		if (journal == null) return;
+		try {
+			journal.failed(candidate);
+		} catch (IOException e) {
+			log.error("Cannot journal message "+candidate.referenceId, e);
+		}
+	}
+	
+	/**
+	 * Records in the journal that sending the message was given up.
+	 * @param candidate the message
+	 */
+	private void journalGaveUp(MessageEntry<T> candidate) {
+		MailQueueJournal<T> journal = this.journal;
+		if (journal == null) return;
+		try {
+			journal.gaveUp(candidate);
+		} catch (IOException e) {
+			log.error("Cannot journal message "+candidate.referenceId, e);
+		}
+	}
+	
+	/**
+	 * Returns the delay before a failed message will be tried again.
+	 * <p>The retry policy of the message's domain is asked first, then the retry policy of the queue.
+	 *    Without any retry policy the message is retried after the retry period of its domain or the queue
+	 *    until it exceeded the maximum number of retries.</p>
+	 * @param candidate the message that failed, its failed attempts include the current failure
+	 * @param t the reason of the failure
+	 * @return the delay in milliseconds or {@link RetryPolicy#GIVE_UP} when the message shall be removed
+	 */
+	protected long getRetryDelay(MessageEntry<T> candidate, Throwable t) {
+		DomainPolicy domainPolicy = candidate.domain.getPolicy();
+		RetryPolicy  policy       = domainPolicy.getRetryPolicy();
+		if (policy == null) policy = retryPolicy;
+		if (policy != null) return policy.getRetryDelay(candidate.failedAttempts, candidate.lastRetryDelay, t);
+		if (candidate.failedAttempts > getMaxRetries()) return RetryPolicy.GIVE_UP;
+		long period = domainPolicy.getRetryPeriod();
+		return period > 0 ? period : retryPeriod;
+	}
+	
+	/**
+	 * Starts a single worker thread that processes the queue.
+	 * <p>The worker waits until a message is queued, the next retry becomes due or
+	 *    the token bucket provides the next token. It does not consume any CPU while waiting.
+	 *    There is no need to call {@link #run()} while the worker is running.</p>
+	 * @throws IllegalStateException when the worker is already running
+	 * @see #stop()
+	 */
+	public void start() {
+		start(ExecutionMode.PLATFORM_THREADS, 1);
+	}
+	
+	/**
+	 * Starts worker threads that process the queue concurrently.
+	 * <p>Each worker picks the next message (priority messages first), consumes a token
+	 *    from the token bucket and sends the message. Workers wait for new messages
+	 *    when the queue is empty. There is no need to call {@link #run()} while the
+	 *    workers are running.</p>
+	 * @param workerCount the number of worker threads
+	 * @throws IllegalStateException when the workers are already running
+	 * @throws IllegalArgumentException when the worker count is less than 1
+	 * @see #stop()
+	 */
+	public void start(int workerCount) {
+		start(ExecutionMode.PLATFORM_THREADS, workerCount);
+	}
+	
+	/**
+	 * Starts processing the queue concurrently in the given mode.
+	 * <p>With {@link ExecutionMode#PLATFORM_THREADS} the concurrency is the number of worker
+	 *    threads. With {@link ExecutionMode#VIRTUAL_THREADS} a dispatcher thread starts a
+	 *    virtual thread for each message and the concurrency is the maximum number of messages
+	 *    being sent at the same time. The dispatcher waits when this maximum is reached or
+	 *    the token bucket is exhausted. There is no need to call {@link #run()} while the
+	 *    queue is running.</p>
+	 * @param mode the execution mode
+	 * @param concurrency the number of worker threads or messages being sent at the same time
+	 * @throws IllegalStateException when the queue is already running
+	 * @throws IllegalArgumentException when the concurrency is less than 1
+	 * @see #stop()
+	 */
+	public synchronized void start(ExecutionMode mode, int concurrency) {
+		if (running) throw new IllegalStateException("MailQueue is already running");
+		if (concurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1");
+		running = true;
+		switch (mode) {
+		case VIRTUAL_THREADS:
+			senders     = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("MailQueue-sender-", 1).factory());
+			sendPermits = new Semaphore(concurrency);
+			startThread(this::dispatch, "MailQueue-dispatcher");
+			break;
+		default:
+			for (int i=0; i<concurrency; i++) {
+				startThread(this::work, "MailQueue-worker-"+(i+1));
+			}
+		}
+	}
+	
+	/**
+	 * Starts a daemon thread for processing the queue.
+	 * @param runnable the processing loop
+	 * @param name the name of the thread
+	 */
+	private void startThread(Runnable runnable, String name) {
+		Thread worker = new Thread(runnable, name);
+		worker.setDaemon(true);
+		workers.add(worker);
+		worker.start();
+	}
+	
+	/**
+	 * Stops the worker threads.
+	 * <p>The method waits until all messages currently being sent are finished.
+	 *    Messages still in the queue remain there.</p>
+	 * @throws InterruptedException when the thread was interrupted while waiting for the workers
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (!running) return;
+		running = false;
+		lock.lock();
+		try {
+			workAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		workers.clear();
+		if (senders != null) {
+			senders.close();
+			senders     = null;
+			sendPermits = null;
+		}
+	}
+	
+	/**
+	 * Returns whether worker threads are processing the queue.
+	 * @return {@code true} when the workers were started
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Main loop of a worker thread.
+	 */
+	protected void work() {
+		while (running) {
+			try {
+				MessageEntry<T> candidate = takeNext(idlePeriod);
+				if (candidate == null) continue;
+				List<MessageEntry<T>> batch = nextBatch(candidate);
+				if (!batch.isEmpty()) {
+					send(batch);
+				} else {
+					awaitToken();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Throwable t) {
+				log.error("Cannot process queue", t);
+			}
+		}
+	}
+	
+	/**
+	 * Main loop of the dispatcher thread in {@link ExecutionMode#VIRTUAL_THREADS} mode.
+	 * <p>The dispatcher waits for a free sending slot before picking the next message
+	 *    and hands the message to a new virtual thread after a token was consumed.
+	 *    A batch of messages occupies a single sending slot.</p>
+	 */
+	protected void dispatch() {
+		while (running) {
+			boolean dispatched = false;
+			try {
+				sendPermits.acquire();
+				try {
+					MessageEntry<T> candidate = takeNext(idlePeriod);
+					if (candidate == null) continue;
+					List<MessageEntry<T>> batch = nextBatch(candidate);
+					if (!batch.isEmpty()) {
+						senders.execute(() -> {
+							try {
+								send(batch);
+							} finally {
+								sendPermits.release();
+							}
+						});
+						dispatched = true;
 					} else {
-						candidate.notBeforeTimeInMillis = System.currentTimeMillis()+retryPeriod;
+						awaitToken();
 					}
+				} finally {
+					if (!dispatched) sendPermits.release();
 				}
-				// Try next
-				candidate = getNext();
-			} else {
-				candidate = null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Throwable t) {
+				log.error("Cannot process queue", t);
 			}
-		} 
+		}
+	}
+	
+	/**
+	 * Picks the next message for sending and waits when no message is ready.
+	 * <p>The method waits until a message is queued, the next retry becomes due or
+	 *    the timeout elapsed, whatever comes first.</p>
+	 * @param timeoutInMillis maximum time to wait for a message
+	 * @return a message cleared to be sent or {@code null} when the timeout elapsed or the workers were stopped
+	 * @throws InterruptedException when the thread was interrupted while waiting
+	 * @see #pollNext()
+	 */
+	protected MessageEntry<T> takeNext(long timeoutInMillis) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			MessageEntry<T> rc = pollNext();
+			if ((rc == null) && running) {
+				long now      = System.currentTimeMillis();
+				long deadline = Math.min(now + timeoutInMillis, getNextDueTime());
+				if (deadline > now) workAvailable.await(deadline - now, TimeUnit.MILLISECONDS);
+				rc = pollNext();
+			}
+			return rc;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the time when the next message waiting for a retry or for its domain can be sent.
+	 * <p>The caller must hold the lock.</p>
+	 * @return the time in milliseconds or {@link Long#MAX_VALUE} when no message is waiting for a retry
+	 */
+	private long getNextDueTime() {
+		long rc      = Long.MAX_VALUE;
+		long blocked = Long.MAX_VALUE;
+		for (MessageLane<T> lane : lanes) {
+			rc      = Math.min(rc, lane.getNextDueTime());
+			blocked = Math.min(blocked, lane.getBlockedUntil());
+		}
+		// A message becomes due after its notBeforeTimeInMillis has passed
+		if (rc < Long.MAX_VALUE) rc++;
+		// A domain skipped for lack of tokens can be sent to again
+		return Math.min(rc, blocked);
+	}
+	
+	/**
+	 * Waits until the token bucket is expected to provide the next token.
+	 * <p>The method returns earlier when the workers are stopped or the queue changed.</p>
+	 * @throws InterruptedException when the thread was interrupted while waiting
+	 */
+	protected void awaitToken() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			long wait = Math.min(nextTokenTimeInMillis - System.currentTimeMillis(), idlePeriod);
+			if (running && (wait > 0)) workAvailable.await(wait, TimeUnit.MILLISECONDS);
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
 	 * Picks the next message for sending if available.
-	 * <p>The method does not yet remove the message from the queue.</p>
+	 * <p>The method does not yet remove the message from the queue. It returns the message
+	 *    that {@link #pollNext()} would pick unless the token bucket of its domain is exhausted.</p>
 	 * @return a message cleared to be sent
 	 */
 	protected MessageEntry<T> getNext() {
-		MessageEntry<T> rc = getNext(true);
-		if (rc == null) rc = getNext(false);
-		return rc;
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			int count = lanes.size();
+			for (int i=0; i<=count; i++) {
+				// The current class used up its turn when it has no deficit left
+				if ((i == 0) && (deficit <= 0)) continue;
+				MessageEntry<T> rc = lanes.get((currentLane+i) % count).peek(now);
+				if (rc != null) return rc;
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
@@ -388,14 +2384,64 @@ public class MailQueue<T> {
 	 */
 	protected MessageEntry<T> getNext(boolean isPriority) {
 		long now = System.currentTimeMillis();
-		BlockingQueue<MessageEntry<T>> queue = isPriority ? this.priorityQueue : this.queue;
-		Object list[] = queue.toArray();
-		for (Object o : list) {
-			@SuppressWarnings("unchecked")
-			MessageEntry<T> entry = (MessageEntry<T>)o;
-			if (entry.notBeforeTimeInMillis < now) return entry;
+		lock.lock();
+		try {
+			return getLane(isPriority).peek(now);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Picks the next message for sending and marks it as in-flight.
+	 * <p>The message is taken out of the sending order but still counts towards
+	 *    the size of the queue. It must be passed to {@link #remove(MessageEntry)},
+	 *    {@link #retry(MessageEntry)} or {@link #release(MessageEntry)} afterwards.</p>
+	 * <p>The priority classes take turns (deficit round-robin). The current class keeps its
+	 *    turn until it sent as many messages as its weight or has no message ready. When no class
+	 *    has a message ready, the next message will be picked from the first class again.</p>
+	 * @return a message cleared to be sent
+	 */
+	protected MessageEntry<T> pollNext() {
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			int count = lanes.size();
+			for (int i=0; i<=count; i++) {
+				if (deficit > 0) {
+					MessageEntry<T> rc = lanes.get(currentLane).poll(now);
+					if (rc != null) {
+						deficit--;
+						return rc;
+					}
+				}
+				// The class used up its turn or has no message ready
+				currentLane = (currentLane+1) % count;
+				deficit     = priorityClasses.get(currentLane).getWeight();
+			}
+			currentLane = 0;
+			deficit     = priorityClasses.get(0).getWeight();
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns a message picked by {@link #pollNext()} to the head of its queue.
+	 * @param entry the message that cannot be sent at this time
+	 */
+	protected void release(MessageEntry<T> entry) {
+		lock.lock();
+		try {
+			MessageLane<T> lane = getLane(entry);
+			// The message does not count towards the turn of its class
+			if (entry.inFlight && (lane == lanes.get(currentLane))) deficit++;
+			lane.release(entry);
+			workAvailable.signal();
+		} finally {
+			lock.unlock();
 		}
-		return null;
 	}
 	
 	/**
@@ -403,8 +2449,86 @@ public class MailQueue<T> {
 	 * @param entry the message to be removed
 	 */
 	protected void remove(MessageEntry<T> entry) {
-		if (entry.isPriority) priorityQueue.remove(entry);
-		else queue.remove(entry);
+		boolean removed = false;
+		lock.lock();
+		try {
+			MessageLane<T> lane = getLane(entry);
+			if (lane.remove(entry)) {
+				removed = true;
+				free(entry);
+				// The ID of a sent message is remembered for the TTL of the index
+				DeduplicationIndex index = this.deduplicationIndex;
+				if ((index != null) && (entry.referenceId != null)) index.sent(entry.referenceId);
+				pageIn(lane);
+				forget(entry);
+				// The domain may accept another message now
+				workAvailable.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (removed) released(entry);
+	}
+	
+	/**
+	 * Registers a subscriber to be informed when messages leave the queue.
+	 * @param subscriber the subscriber
+	 */
+	synchronized void addSubscriber(MailQueueSubscriber<T> subscriber) {
+		List<MailQueueSubscriber<T>> rc = new ArrayList<>(subscribers);
+		if (!rc.contains(subscriber)) rc.add(subscriber);
+		subscribers = rc;
+	}
+	
+	/**
+	 * Unregisters a subscriber.
+	 * @param subscriber the subscriber
+	 */
+	synchronized void removeSubscriber(MailQueueSubscriber<T> subscriber) {
+		List<MailQueueSubscriber<T>> rc = new ArrayList<>(subscribers);
+		if (rc.remove(subscriber)) subscribers = rc;
+	}
+	
+	/**
+	 * Informs subscribers that a message left the queue.
+	 * <p>Must not be called while holding the lock as subscribers may request new messages.</p>
+	 * @param entry the message that left the queue
+	 */
+	private void released(MessageEntry<T> entry) {
+		List<MailQueueSubscriber<T>> subscribers = this.subscribers;
+		if (subscribers.isEmpty()) return;
+		MessageLane<T> lane = getLane(entry);
+		for (MailQueueSubscriber<T> subscriber : subscribers) subscriber.released(getLane(subscriber.getPriorityClass()) == lane);
+	}
+	
+	/**
+	 * Releases the reference ID, domain and tenant of a message that left the queue.
+	 * <p>The caller must hold the lock.</p>
+	 * @param entry the message
+	 */
+	private void forget(MessageEntry<T> entry) {
+		if (entry.referenceId != null) entries.remove(entry.referenceId, entry);
+		// Spilled messages do not count towards their domain yet
+		if ((entry.domain != null) && entry.domain.removed() && (entry.domain != defaultDomain)) domains.remove(entry.domain.getDomain());
+		// Messages of a full tenant may wait in any lane
+		if (entry.tenant.isFull()) {
+			for (MessageLane<T> l : lanes) l.getNotFull().signalAll();
+		}
+		if (entry.tenant.removed() && (entry.tenant != defaultTenant)) tenants.remove(entry.tenant.getTenant());
+	}
+	
+	/**
+	 * Puts the message on hold until its {@code notBeforeTimeInMillis} has passed.
+	 * @param entry the message to be retried later
+	 */
+	protected void retry(MessageEntry<T> entry) {
+		lock.lock();
+		try {
+			getLane(entry).retry(entry);
+			workAvailable.signal();
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
@@ -413,33 +2537,114 @@ public class MailQueue<T> {
 	 *    token if possible. If no token is available, the method will 
 	 *    not block and return {@code false}.</p>
 	 * <p>Always returns {@code true} when no token bucket was set.</p>
+	 * <p>When no token is available, the time of the next token as reported by the
+	 *    token bucket is remembered for waiting workers.</p>
 	 * @return {@code true} when a token was consumed, {@code false} otherwise.
 	 */
 	protected boolean getBucketToken() {
+		Bucket tokenBucket = this.tokenBucket;
 		if (tokenBucket != null) {
 			ConsumptionResult result = tokenBucket.tryConsume();
-			return result.getTokensConsumed() > 0;
+			if (result.getTokensConsumed() > 0) return true;
+			nextTokenTimeInMillis = result.getAvailableAt().toEpochMilli();
+			MailQueueMetrics metrics = this.metrics;
+			if (metrics != null) metrics.tokenDenied();
+			return false;
 		}
 		return true;
 	}
 	
+	/**
+	 * A message of a bulk while it is being queued.
+	 */
+	private class Admission {
+		/** The item of the caller */
+		private QueueItem<T> item;
+		/** The message entry */
+		private MessageEntry<T> entry;
+		/** The lane of the message */
+		private MessageLane<T> lane;
+		/** The recipient domain of the message */
+		private String domain;
+		/** The tenant of the message */
+		private String tenant;
+		/** The message encoded by the journal */
+		private byte[] data;
+		/** The message encoded for the spill */
+		private byte[] spillData;
+		/** Whether the message is no duplicate and was encoded successfully */
+		private boolean prepared;
+		/** Whether the message turned out to be a duplicate while being queued */
+		private boolean duplicate;
+		/** Whether the message was added to its lane */
+		private boolean admitted;
+		/** The first item of the bulk with the same reference ID, {@code null} when this is the first */
+		private Admission first;
+		/**
+		 * Constructor.
+		 * @param item the item of the caller
+		 * @param entry the message entry
+		 */
+		private Admission(QueueItem<T> item, MessageEntry<T> entry) {
+			this.item      = item;
+			this.entry     = entry;
+			this.prepared  = false;
+			this.duplicate = false;
+			this.admitted  = false;
+		}
+	}
+	
 	/**
 	 * Helper class to store messages in the queue.
+	 * <p>The fields {@code message}, {@code notBeforeTimeInMillis}, {@code failedAttempts} and {@code lastRetryDelay} are only modified
+	 *    by the thread that picked the message for sending. The message is handed back to the
+	 *    queue under the queue's lock afterwards, so other threads see the updated values.
+	 *    {@code inFlight} is only modified while holding the queue's lock.</p>
 	 * 
 	 * @author ralph
 	 *
 	 */
 	protected static class MessageEntry<X> {
+		/** Index of the priority class of priority messages */
+		static final int PRIORITY = 0;
+		/** Index of the priority class of normal messages */
+		static final int NORMAL   = 1;
 		/** Reference ID of the message */
 		protected String referenceId;
-		/** The message itself */
+		/** The message itself, {@code null} while it is kept in the message store only */
 		protected X message;
 		/** A timestamp to hold the message */
 		protected long notBeforeTimeInMillis;
 		/** Number of failed attempts */
 		protected int failedAttempts;
+		/** The delay in milliseconds applied after the last failure */
+		protected long lastRetryDelay;
+		/** The time the message was queued or restored from the journal */
+		protected long queuedTimeInMillis;
+		/** The ID of the message in the journal, 0 when not journaled */
+		protected long journalId;
+		/** The offset of the message in the message store, {@link MappedMessageStore#NOT_STORED} when kept on the heap */
+		protected int storeOffset;
+		/** The encoded message read back from a spill until it is decoded */
+		protected byte[] data;
 		/** Whether it is priority */
 		protected boolean isPriority;
+		/** The index of the priority class */
+		protected int priorityClass;
+		/** Whether it was picked for sending and is not part of the sending order */
+		protected boolean inFlight;
+		/** The recipient domain of the message */
+		protected DomainState domain;
+		/** The tenant of the message */
+		protected TenantState tenant;
+		/** Whether the message waits in the spill, the entry does not hold the message then */
+		protected boolean spilled;
+		/** Whether the message was cancelled and must be skipped */
+		protected boolean cancelled;
+		/** The reason of the last failed attempt */
+		protected Throwable lastError;
+		/** The future outcome of a submitted message, {@code null} when not submitted or completed */
+		protected CompletableFuture<DeliveryResult> future;
 		/**
 		 * Constructor.
 		 * @param referenceId reference ID of th emessage
@@ -447,11 +2652,50 @@ public class MailQueue<T> {
 		 * @param isPriority whether it is prioritized
 		 */
 		public MessageEntry(String referenceId, X message, boolean isPriority) {
+			this(referenceId, message, isPriority ? PRIORITY : NORMAL);
+		}
+		/**
+		 * Constructor.
+		 * @param referenceId reference ID of the message
+		 * @param message the message
+		 * @param priorityClass the index of the priority class
+		 */
+		public MessageEntry(String referenceId, X message, int priorityClass) {
 			this.referenceId           = referenceId;
 			this.message               = message;
-			this.isPriority            = isPriority;
+			this.isPriority            = priorityClass == PRIORITY;
+			this.priorityClass         = priorityClass;
 			this.notBeforeTimeInMillis = 0;
 			this.failedAttempts        = 0;
+			this.lastRetryDelay        = 0;
+			this.queuedTimeInMillis    = System.currentTimeMillis();
+			this.journalId             = 0;
+			this.storeOffset           = MappedMessageStore.NOT_STORED;
+			this.data                  = null;
+			this.inFlight              = false;
+		}
+		/**
+		 * Returns the code of the priority class for writing it to a file.
+		 * <p>Earlier versions wrote a boolean for priority messages. The codes 0 and 1 therefore
+		 *    stand for normal and priority messages, all other codes for the index of the class.</p>
+		 * @return the code
+		 */
+		int getPriorityCode() {
+			return toPriorityCode(priorityClass);
+		}
+		/**
+		 * Converts between the index of a priority class and its code in a file.
+		 * <p>The conversion is its own inverse.</p>
+		 * @param value the index or the code
+		 * @return the code or the index
+		 * @see #getPriorityCode()
+		 */
+		static int toPriorityCode(int value) {
+			switch (value) {
+			case PRIORITY: return 1;
+			case NORMAL:   return 0;
+			default:       return value;
+			}
 		}
 	}
 
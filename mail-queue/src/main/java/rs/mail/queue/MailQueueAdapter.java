@@ -70,5 +70,21 @@ public class MailQueueAdapter implements MailQueueListener {
 		log.error("Reason: "+reason);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onGaveUp(String referenceId, int failedAttempts, String reason) {
+		log.error("Message given up ("+failedAttempts+"): "+referenceId);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onCancelled(String referenceId) {
+		if (log.isInfoEnabled()) log.info("Message cancelled: "+referenceId);
+	}
+
 	
 }
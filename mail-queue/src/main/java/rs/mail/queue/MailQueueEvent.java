@@ -0,0 +1,99 @@
+package rs.mail.queue;
+
+/**
+ * A status change of a message in a {@link MailQueue}.
+ * 
+ * @author ralph
+ *
+ * @see BatchMailQueueListener
+ */
+public class MailQueueEvent {
+
+	/**
+	 * The state of a message.
+	 */
+	public static enum State {
+		/** The message was accepted to the queue */
+		QUEUED,
+		/** The message was picked for sending and is currently being sent */
+		SENDING,
+		/** The message has been sent successfully */
+		SENT,
+		/** The message could not be sent and will be tried again */
+		FAILED,
+		/** Sending the message was given up, it left the queue */
+		GAVE_UP,
+		/** The message was cancelled, it left the queue */
+		CANCELLED;
+	}
+
+	private String referenceId;
+	private State state;
+	private int failedAttempts;
+	private String reason;
+	private long timestamp;
+
+	/**
+	 * Constructor.
+	 * @param referenceId - the reference ID of the message
+	 * @param state - the new state of the message
+	 * @param failedAttempts - the number of failed attempts
+	 * @param reason - the reason why sending failed, {@code null} unless the state is {@link State#FAILED} or {@link State#GAVE_UP}
+	 * @param timestamp - the time of the status change in milliseconds
+	 */
+	public MailQueueEvent(String referenceId, State state, int failedAttempts, String reason, long timestamp) {
+		this.referenceId    = referenceId;
+		this.state          = state;
+		this.failedAttempts = failedAttempts;
+		this.reason         = reason;
+		this.timestamp      = timestamp;
+	}
+
+	/**
+	 * Returns the reference ID of the message.
+	 * @return the reference ID
+	 */
+	public String getReferenceId() {
+		return referenceId;
+	}
+
+	/**
+	 * Returns the new state of the message.
+	 * @return the state
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the number of failed attempts.
+	 * @return the number of failed attempts
+	 */
+	public int getFailedAttempts() {
+		return failedAttempts;
+	}
+
+	/**
+	 * Returns the reason why sending failed.
+	 * @return the reason, {@code null} unless the state is {@link State#FAILED} or {@link State#GAVE_UP}
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Returns the time of the status change.
+	 * @return the time in milliseconds
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return state+":"+referenceId;
+	}
+}
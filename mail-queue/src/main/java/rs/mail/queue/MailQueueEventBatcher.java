@@ -0,0 +1,261 @@
+package rs.mail.queue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rs.mail.queue.MailQueueEvent.State;
+
+/**
+ * Collects the events of a mail queue and hands them to a {@link BatchMailQueueListener} in batches.
+ * <p>A batch is delivered when it reached its maximum size or when its oldest event waited for
+ *    the maximum delay, whatever comes first. Batches are delivered one after another in the order
+ *    of the events. A batch that is full is delivered on the thread that added the last event,
+ *    a batch that is due on a background thread. Combine the batcher with a {@link MailQueueEventBus}
+ *    when the queuing and sending threads shall not deliver batches.</p>
+ * <p>The timestamp of an event is the time the queue raised it, even when an event bus delivers
+ *    it later. Events of the single methods, e.g. {@link #onSent(String)}, carry the time the batcher
+ *    received them and no failed attempts.</p>
+ *
+ * <pre>
+ * queue.addListener(new MailQueueEventBatcher(events -&gt; repository.saveAll(events), 100, 1000));
+ * </pre>
+ *
+ * @author ralph
+ *
+ */
+public class MailQueueEventBatcher implements MailQueueListener, AutoCloseable {
+
+	/** Default maximum number of events in a batch */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+	/** Default maximum time in milliseconds an event waits for its batch to be delivered */
+	public static final long DEFAULT_MAX_DELAY = 1000;
+
+	private Logger log = LoggerFactory.getLogger(getClass());
+
+	private BatchMailQueueListener listener;
+	private int maxBatchSize;
+	private long maxDelay;
+	private List<MailQueueEvent> batch;
+	private ArrayDeque<List<MailQueueEvent>> completed;
+	private long generation;
+	private Object deliveryLock;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Constructor.
+	 * <p>The batcher uses the default batch size and delay.</p>
+	 * @param listener - the listener to receive the batches
+	 * @see #DEFAULT_MAX_BATCH_SIZE
+	 * @see #DEFAULT_MAX_DELAY
+	 */
+	public MailQueueEventBatcher(BatchMailQueueListener listener) {
+		this(listener, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * Constructor.
+	 * @param listener - the listener to receive the batches
+	 * @param maxBatchSize - the maximum number of events in a batch
+	 * @param maxDelay - the maximum time in milliseconds an event waits for its batch to be delivered
+	 */
+	public MailQueueEventBatcher(BatchMailQueueListener listener, int maxBatchSize, long maxDelay) {
+		if (maxBatchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1");
+		if (maxDelay < 1) throw new IllegalArgumentException("Delay must be at least 1ms");
+		this.listener     = listener;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelay     = maxDelay;
+		this.batch        = new ArrayList<>(maxBatchSize);
+		this.completed    = new ArrayDeque<>();
+		this.generation   = 0;
+		this.deliveryLock = new Object();
+		this.scheduler    = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread rc = new Thread(r, "MailQueueEventBatcher");
+			rc.setDaemon(true);
+			return rc;
+		});
+	}
+
+	/**
+	 * Returns the listener that receives the batches.
+	 * @return the listener
+	 */
+	public BatchMailQueueListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Returns the maximum number of events in a batch.
+	 * @return the maximum batch size
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Returns the maximum time an event waits for its batch to be delivered.
+	 * @return the maximum delay in milliseconds
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onQueued(String referenceId) {
+		add(new MailQueueEvent(referenceId, State.QUEUED, 0, null, System.currentTimeMillis()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onSending(String referenceId) {
+		add(new MailQueueEvent(referenceId, State.SENDING, 0, null, System.currentTimeMillis()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onSent(String referenceId) {
+		add(new MailQueueEvent(referenceId, State.SENT, 0, null, System.currentTimeMillis()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onFailed(String referenceId, int failedCount, String reason) {
+		add(new MailQueueEvent(referenceId, State.FAILED, failedCount, reason, System.currentTimeMillis()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onGaveUp(String referenceId, int failedCount, String reason) {
+		add(new MailQueueEvent(referenceId, State.GAVE_UP, failedCount, reason, System.currentTimeMillis()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onCancelled(String referenceId) {
+		add(new MailQueueEvent(referenceId, State.CANCELLED, 0, null, System.currentTimeMillis()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>The event keeps the failed attempts and the time given by the queue.</p>
+	 */
+	@Override
+	public void onEvent(State state, String referenceId, int failedCount, String reason, long timestamp) {
+		add(new MailQueueEvent(referenceId, state, failedCount, reason, timestamp));
+	}
+
+	/**
+	 * Delivers the events collected so far.
+	 */
+	public void flush() {
+		synchronized (this) {
+			complete(-1);
+		}
+		deliver();
+	}
+
+	/**
+	 * Stops the batcher and delivers the events collected so far.
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		flush();
+	}
+
+	/**
+	 * Adds an event to the current batch.
+	 * @param event the event
+	 */
+	protected void add(MailQueueEvent event) {
+		boolean full = false;
+		synchronized (this) {
+			batch.add(event);
+			if (batch.size() >= maxBatchSize) {
+				full = complete(-1);
+			} else if ((batch.size() == 1) && !scheduler.isShutdown()) {
+				long due = generation;
+				scheduler.schedule(() -> flushDue(due), maxDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (full) deliver();
+	}
+
+	/**
+	 * Delivers the batch of the given generation when it was not delivered yet.
+	 * @param due the generation of the batch
+	 */
+	private void flushDue(long due) {
+		boolean ready;
+		synchronized (this) {
+			ready = complete(due);
+		}
+		if (ready) deliver();
+	}
+
+	/**
+	 * Completes the current batch and starts a new one.
+	 * <p>Must be called while holding the lock of the batcher.</p>
+	 * @param due the generation of the batch to complete, -1 for any batch
+	 * @return {@code true} when the batch was completed, {@code false} when it is empty or not due
+	 */
+	private boolean complete(long due) {
+		if (batch.isEmpty() || ((due >= 0) && (due != generation))) return false;
+		completed.add(batch);
+		batch = new ArrayList<>(maxBatchSize);
+		generation++;
+		return true;
+	}
+
+	/**
+	 * Takes the oldest completed batch.
+	 * @return the batch or {@code null} when there is none
+	 */
+	private synchronized List<MailQueueEvent> poll() {
+		return completed.poll();
+	}
+
+	/**
+	 * Hands all completed batches to the listener.
+	 * <p>Only one thread delivers at a time, so the batches arrive in order.</p>
+	 */
+	private void deliver() {
+		synchronized (deliveryLock) {
+			List<MailQueueEvent> events;
+			while ((events = poll()) != null) {
+				deliver(events);
+			}
+		}
+	}
+
+	/**
+	 * Hands the events to the listener.
+	 * @param events the events
+	 */
+	private void deliver(List<MailQueueEvent> events) {
+		try {
+			listener.onEvents(events);
+		} catch (Throwable t) {
+			log.error("Cannot deliver "+events.size()+" events", t);
+		}
+	}
+}
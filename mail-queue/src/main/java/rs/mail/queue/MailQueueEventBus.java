@@ -0,0 +1,353 @@
+package rs.mail.queue;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rs.mail.queue.MailQueueEvent.State;
+
+/**
+ * Informs the listeners of a {@link MailQueue} on a dedicated thread.
+ * <p>Without an event bus, listeners are called on the thread that queues or sends a message,
+ *    so a slow listener slows down queuing and sending. The event bus puts the events into a
+ *    bounded lock-free ring buffer instead. A dedicated thread takes the events in order and
+ *    calls the listeners. Publishing an event does not allocate any objects.</p>
+ * <p>The {@link OverflowPolicy} decides what happens when the listeners cannot keep up and the
+ *    ring buffer is full.</p>
+ * <p>Exceptions thrown by listeners are logged and do not affect other listeners.</p>
+ *
+ * @author ralph
+ *
+ * @see MailQueue#setEventBus(MailQueueEventBus)
+ */
+public class MailQueueEventBus implements AutoCloseable {
+
+	/** Default number of events in the ring buffer */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Defines what happens to an event when the ring buffer is full.
+	 */
+	public static enum OverflowPolicy {
+		/** The publishing thread waits until the event can be added */
+		BLOCK,
+		/** The event is dropped */
+		DROP,
+		/** Only the most recent event of each message is kept until the ring buffer has space again */
+		COALESCE;
+	}
+
+	/** Maximum time in nanoseconds the dispatcher sleeps before checking for events again */
+	private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	/** Time in nanoseconds a blocked publisher waits before checking for space again */
+	private static final long BLOCK_SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private Logger log = LoggerFactory.getLogger(getClass());
+
+	private Event[] slots;
+	private int mask;
+	private AtomicLong tail;
+	private long head;
+	private OverflowPolicy overflowPolicy;
+	private ConcurrentHashMap<String, Event> overflow;
+	private AtomicLong dropped;
+	private AtomicLong coalesced;
+	private Thread thread;
+	private volatile boolean sleeping;
+	private volatile boolean running;
+
+	/**
+	 * Constructor.
+	 * <p>The event bus uses the default capacity and blocks publishers when it is full.</p>
+	 * @see #DEFAULT_CAPACITY
+	 */
+	public MailQueueEventBus() {
+		this(DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Constructor.
+	 * @param capacity - the number of events in the ring buffer, rounded up to the next power of two
+	 * @param overflowPolicy - what happens to an event when the ring buffer is full
+	 */
+	public MailQueueEventBus(int capacity, OverflowPolicy overflowPolicy) {
+		if (capacity < 2) throw new IllegalArgumentException("Capacity must be at least 2");
+		int size = Integer.highestOneBit(capacity-1) << 1;
+		this.slots          = new Event[size];
+		this.mask           = size - 1;
+		this.tail           = new AtomicLong(0);
+		this.head           = 0;
+		this.overflowPolicy = overflowPolicy;
+		this.overflow       = new ConcurrentHashMap<>();
+		this.dropped        = new AtomicLong(0);
+		this.coalesced      = new AtomicLong(0);
+		this.sleeping       = false;
+		this.running        = true;
+		for (int i=0; i<size; i++) slots[i] = new Event(i);
+		this.thread = new Thread(this::dispatch, "MailQueueEventBus");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Returns the number of events in the ring buffer.
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns what happens to an event when the ring buffer is full.
+	 * @return the overflow policy
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Returns the number of events dropped because the ring buffer was full.
+	 * @return the number of dropped events
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of events replaced by a more recent event of the same message.
+	 * @return the number of coalesced events
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns whether the event bus accepts events.
+	 * @return {@code true} until the event bus is closed
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Publishes an event to the listeners that happened now.
+	 * @param listeners the listeners to be informed
+	 * @param state the new state of the message
+	 * @param referenceId the reference ID of the message
+	 * @param failedCount the number of failed attempts
+	 * @param reason the reason of a failure
+	 * @see #publish(MailQueueListener[], State, String, int, String, long)
+	 */
+	public void publish(MailQueueListener[] listeners, State state, String referenceId, int failedCount, String reason) {
+		publish(listeners, state, referenceId, failedCount, reason, System.currentTimeMillis());
+	}
+
+	/**
+	 * Publishes an event to the listeners.
+	 * <p>Events published from a listener or after the event bus was closed are delivered
+	 *    immediately on the calling thread. The listeners receive the time the event was raised,
+	 *    not the time it was delivered.</p>
+	 * @param listeners the listeners to be informed
+	 * @param state the new state of the message
+	 * @param referenceId the reference ID of the message
+	 * @param failedCount the number of failed attempts
+	 * @param reason the reason of a failure
+	 * @param timestamp the time the event was raised in milliseconds
+	 */
+	public void publish(MailQueueListener[] listeners, State state, String referenceId, int failedCount, String reason, long timestamp) {
+		if (!running || (Thread.currentThread() == thread)) {
+			dispatch(listeners, state, referenceId, failedCount, reason, timestamp);
+			return;
+		}
+		if ((overflowPolicy == OverflowPolicy.COALESCE) && !overflow.isEmpty()) {
+			// Keep the order of events of a message while the overflow is drained
+			coalesce(listeners, state, referenceId, failedCount, reason, timestamp);
+		} else if (!offer(listeners, state, referenceId, failedCount, reason, timestamp)) {
+			switch (overflowPolicy) {
+			case DROP:
+				dropped.incrementAndGet();
+				break;
+			case COALESCE:
+				coalesce(listeners, state, referenceId, failedCount, reason, timestamp);
+				break;
+			default:
+				while (!offer(listeners, state, referenceId, failedCount, reason, timestamp)) {
+					if (!running) {
+						dispatch(listeners, state, referenceId, failedCount, reason, timestamp);
+						break;
+					}
+					LockSupport.parkNanos(BLOCK_SLEEP_NANOS);
+				}
+			}
+		}
+		if (sleeping) LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Stops the event bus.
+	 * <p>Events published before are still delivered. The method waits until they were delivered.</p>
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(thread);
+		if (Thread.currentThread() == thread) return;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Tries to add an event to the ring buffer.
+	 * @return {@code true} when the event was added, {@code false} when the ring buffer is full
+	 */
+	private boolean offer(MailQueueListener[] listeners, State state, String referenceId, int failedCount, String reason, long timestamp) {
+		long position = tail.get();
+		while (true) {
+			Event event = slots[(int)position & mask];
+			long diff = event.sequence - position;
+			if (diff == 0) {
+				if (tail.compareAndSet(position, position+1)) {
+					event.set(listeners, state, referenceId, failedCount, reason, timestamp);
+					// Publishes the event to the dispatcher
+					event.sequence = position+1;
+					return true;
+				}
+				position = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Keeps the event in the overflow, replacing an earlier event of the same message.
+	 */
+	private void coalesce(MailQueueListener[] listeners, State state, String referenceId, int failedCount, String reason, long timestamp) {
+		Event event = new Event(0);
+		event.set(listeners, state, referenceId, failedCount, reason, timestamp);
+		if (overflow.put(referenceId != null ? referenceId : "", event) != null) coalesced.incrementAndGet();
+	}
+
+	/**
+	 * The loop of the dispatcher thread.
+	 */
+	private void dispatch() {
+		while (true) {
+			int count = drainRing() + drainOverflow();
+			if (count > 0) continue;
+			if (!running && isEmpty()) break;
+			sleeping = true;
+			if (isEmpty() && running) LockSupport.parkNanos(MAX_SLEEP_NANOS);
+			sleeping = false;
+		}
+	}
+
+	/**
+	 * Delivers all events in the ring buffer.
+	 * @return the number of events delivered
+	 */
+	private int drainRing() {
+		int rc = 0;
+		while (true) {
+			Event event = slots[(int)head & mask];
+			if (event.sequence != head+1) return rc;
+			dispatch(event.listeners, event.state, event.referenceId, event.failedCount, event.reason, event.timestamp);
+			event.clear();
+			// Frees the slot for the publishers
+			event.sequence = head+slots.length;
+			head++;
+			rc++;
+		}
+	}
+
+	/**
+	 * Delivers all events in the overflow.
+	 * @return the number of events delivered
+	 */
+	private int drainOverflow() {
+		int rc = 0;
+		Iterator<String> keys = overflow.keySet().iterator();
+		while (keys.hasNext()) {
+			Event event = overflow.remove(keys.next());
+			if (event != null) {
+				dispatch(event.listeners, event.state, event.referenceId, event.failedCount, event.reason, event.timestamp);
+				rc++;
+			}
+		}
+		return rc;
+	}
+
+	/**
+	 * Returns whether no events are waiting.
+	 * @return {@code true} when there is nothing to deliver
+	 */
+	private boolean isEmpty() {
+		return (slots[(int)head & mask].sequence != head+1) && overflow.isEmpty();
+	}
+
+	/**
+	 * Calls the listeners.
+	 */
+	private void dispatch(MailQueueListener[] listeners, State state, String referenceId, int failedCount, String reason, long timestamp) {
+		for (MailQueueListener listener : listeners) {
+			try {
+				listener.onEvent(state, referenceId, failedCount, reason, timestamp);
+			} catch (Throwable t) {
+				log.error("Listener failed on "+state+" event of "+referenceId, t);
+			}
+		}
+	}
+
+	/**
+	 * A slot of the ring buffer.
+	 */
+	private static class Event {
+		/** The position this slot can be written at (position) or read at (position+1) */
+		private volatile long sequence;
+		private MailQueueListener[] listeners;
+		private State state;
+		private String referenceId;
+		private int failedCount;
+		private String reason;
+		private long timestamp;
+
+		/**
+		 * Constructor.
+		 * @param sequence - the initial sequence
+		 */
+		private Event(long sequence) {
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Sets the event.
+		 */
+		private void set(MailQueueListener[] listeners, State state, String referenceId, int failedCount, String reason, long timestamp) {
+			this.listeners   = listeners;
+			this.state       = state;
+			this.referenceId = referenceId;
+			this.failedCount = failedCount;
+			this.reason      = reason;
+			this.timestamp   = timestamp;
+		}
+
+		/**
+		 * Releases the references of the event.
+		 */
+		private void clear() {
+			this.listeners   = null;
+			this.referenceId = null;
+			this.reason      = null;
+		}
+	}
+}
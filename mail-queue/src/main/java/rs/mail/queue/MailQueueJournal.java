@@ -0,0 +1,988 @@
+package rs.mail.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+
+/**
+ * A write-ahead journal that makes the messages of a {@link MailQueue} survive a restart.
+ * <p>The journal appends a record for each queued, sent, failed and abandoned message to
+ *    segment files in a directory. When the journal is opened, it replays all segments and
+ *    restores the messages that were neither sent nor given up, including their failed
+ *    attempts and the time of their next retry.</p>
+ * <p>Queuing a message waits until its record was written to disk according to the
+ *    {@link SyncPolicy}. Forcing the file to disk is shared by all threads waiting at the same
+ *    time (group commit), so concurrent producers pay for a single {@code force()} only.
+ *    Other records are never waited for. A message may therefore be sent again after a crash
+ *    but it is never lost.</p>
+ * <p>The queue writes and forces the record of a message before it locks itself for queuing the
+ *    message, so producers and workers never wait for the disk while holding the queue's lock.
+ *    A message that cannot be forced to disk is rejected. A message that was journaled but not
+ *    queued, e.g. as its priority class is full, is recorded as given up.</p>
+ * <p>Segments are rolled when they reach the maximum segment size. A background task deletes
+ *    the oldest segments once all their messages are gone. Messages that stay in the queue for a
+ *    long time are copied to the current segment, so they do not keep old segments alive.</p>
+ * <p>Record format: {@code length (int), CRC32 (int), type (byte), journal ID (long), data}.
+ *    A torn record at the end of the last segment is discarded when the journal is opened.
+ *    A queued record holds the tenant of the message when its priority code carries a flag, so
+ *    records of earlier versions without tenant can still be read.</p>
+ *
+ * @param <T> the email message object
+ *
+ * @author ralph
+ *
+ * @see MailQueue#setJournal(MailQueueJournal)
+ */
+public class MailQueueJournal<T> implements AutoCloseable {
+
+	/** Default maximum size of a segment file in bytes */
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 16*1024*1024;
+	/** Default period in milliseconds for forcing records to disk with {@link SyncPolicy#INTERVAL} */
+	public static final long DEFAULT_SYNC_INTERVAL = 1000;
+	/** Default period in milliseconds between two compactions */
+	public static final long DEFAULT_COMPACTION_INTERVAL = 60000;
+	/** Default fraction of live messages below which the oldest segment is compacted */
+	public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+	/**
+	 * Defines when records are forced to disk.
+	 */
+	public static enum SyncPolicy {
+		/** Records are forced to disk before queuing returns, concurrent producers share a single force */
+		ALWAYS,
+		/** Records are forced to disk periodically, a crash of the machine loses the last period */
+		INTERVAL,
+		/** Records are left to the operating system, a crash of the process loses nothing */
+		NEVER;
+	}
+
+	private static final byte QUEUED  = 1;
+	private static final byte SENT    = 2;
+	private static final byte FAILED  = 3;
+	private static final byte GAVE_UP = 4;
+
+	private static final int HEADER_SIZE = 8;
+	/** Flag in the priority code of a queued record that a tenant follows */
+	private static final int TENANT_FLAG = 0x80;
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private Logger log = LoggerFactory.getLogger(getClass());
+
+	private Path directory;
+	private MessageCodec<T> codec;
+	private volatile SyncPolicy syncPolicy;
+	private volatile long syncInterval;
+	private volatile long maxSegmentSize;
+	private volatile long compactionInterval;
+	private volatile double compactionThreshold;
+
+	private ReentrantLock writeLock;
+	private TreeMap<Long, Segment> segments;
+	private Map<Long, LiveEntry> live;
+	private Segment active;
+	private long nextId;
+	private long appendedSequence;
+
+	private ReentrantLock compactionLock;
+
+	private ReentrantLock syncLock;
+	private Condition synced;
+	private boolean syncing;
+	private long syncedSequence;
+
+	private ScheduledExecutorService scheduler;
+	private volatile boolean open;
+
+	/**
+	 * Constructor.
+	 * @param directory - the directory of the segment files, will be created if necessary
+	 * @param codec - the codec for storing the messages
+	 */
+	public MailQueueJournal(Path directory, MessageCodec<T> codec) {
+		this.directory           = directory;
+		this.codec               = codec;
+		this.syncPolicy          = SyncPolicy.ALWAYS;
+		this.syncInterval        = DEFAULT_SYNC_INTERVAL;
+		this.maxSegmentSize      = DEFAULT_MAX_SEGMENT_SIZE;
+		this.compactionInterval  = DEFAULT_COMPACTION_INTERVAL;
+		this.compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+		this.writeLock           = new ReentrantLock();
+		this.segments            = new TreeMap<>();
+		this.live                = new HashMap<>();
+		this.nextId              = 1;
+		this.appendedSequence    = 0;
+		this.compactionLock      = new ReentrantLock();
+		this.syncLock            = new ReentrantLock();
+		this.synced              = syncLock.newCondition();
+		this.syncing             = false;
+		this.syncedSequence      = 0;
+		this.open                = false;
+	}
+
+	/**
+	 * Returns the directory of the segment files.
+	 * @return the directory
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the codec for storing the messages.
+	 * @return the codec
+	 */
+	public MessageCodec<T> getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Returns when records are forced to disk.
+	 * @return the sync policy (Default: {@link SyncPolicy#ALWAYS})
+	 */
+	public SyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+
+	/**
+	 * Sets when records are forced to disk.
+	 * <p>The policy must be set before the journal is opened.</p>
+	 * @param syncPolicy the sync policy (Default: {@link SyncPolicy#ALWAYS})
+	 */
+	public void setSyncPolicy(SyncPolicy syncPolicy) {
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * Returns the period in milliseconds for forcing records to disk with {@link SyncPolicy#INTERVAL}.
+	 * @return the sync interval (Default: 1000)
+	 */
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Sets the period in milliseconds for forcing records to disk with {@link SyncPolicy#INTERVAL}.
+	 * <p>The interval must be set before the journal is opened.</p>
+	 * @param syncInterval the sync interval (Default: 1000)
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+
+	/**
+	 * Returns the maximum size of a segment file in bytes.
+	 * @return the maximum segment size (Default: 16MB)
+	 */
+	public long getMaxSegmentSize() {
+		return maxSegmentSize;
+	}
+
+	/**
+	 * Sets the maximum size of a segment file in bytes.
+	 * @param maxSegmentSize the maximum segment size (Default: 16MB)
+	 */
+	public void setMaxSegmentSize(long maxSegmentSize) {
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	/**
+	 * Returns the period in milliseconds between two compactions.
+	 * @return the compaction interval (Default: 60000)
+	 */
+	public long getCompactionInterval() {
+		return compactionInterval;
+	}
+
+	/**
+	 * Sets the period in milliseconds between two compactions.
+	 * <p>The interval must be set before the journal is opened. Background compaction
+	 *    is disabled with a value of 0.</p>
+	 * @param compactionInterval the compaction interval (Default: 60000)
+	 */
+	public void setCompactionInterval(long compactionInterval) {
+		this.compactionInterval = compactionInterval;
+	}
+
+	/**
+	 * Returns the fraction of live messages below which the oldest segment is compacted.
+	 * @return the compaction threshold (Default: 0.5)
+	 */
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets the fraction of live messages below which the oldest segment is compacted.
+	 * @param compactionThreshold the compaction threshold (Default: 0.5)
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Returns whether the journal is open.
+	 * @return {@code true} when the journal records messages
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Returns the number of messages in the journal that were neither sent nor given up.
+	 * @return the number of messages
+	 */
+	public int size() {
+		writeLock.lock();
+		try {
+			return live.size();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of segment files.
+	 * @return the number of segments
+	 */
+	public int getSegmentCount() {
+		writeLock.lock();
+		try {
+			return segments.size();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Opens the journal and restores the messages that were neither sent nor given up.
+	 * <p>This method is called by {@link MailQueue#setJournal(MailQueueJournal)}.</p>
+	 * @return the restored messages in order of queuing
+	 * @throws IOException when the journal cannot be read
+	 */
+	protected List<Restored<T>> open() throws IOException {
+		writeLock.lock();
+		try {
+			if (open) throw new IllegalStateException("Journal is already open");
+			Files.createDirectories(directory);
+			Map<Long, Replayed> replayed = new LinkedHashMap<>();
+			List<Path> paths = listSegments();
+			for (int i=0; i<paths.size(); i++) {
+				Segment segment = new Segment(getSegmentIndex(paths.get(i)), paths.get(i));
+				segments.put(segment.index, segment);
+				replay(segment, replayed, i == paths.size()-1);
+			}
+			List<Restored<T>> rc = new ArrayList<>(replayed.size());
+			for (Replayed r : replayed.values()) {
+				MessageEntry<T> entry = restore(r);
+				if (entry != null) {
+					rc.add(new Restored<>(entry, r.tenant));
+				} else {
+					remove(r.id);
+				}
+			}
+			roll();
+			open = true;
+			startScheduler();
+			return rc;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Converts a replayed message into a message entry.
+	 * @param replayed the replayed message
+	 * @return the message entry or {@code null} when the message cannot be decoded
+	 */
+	private MessageEntry<T> restore(Replayed replayed) {
+		try {
+			MessageEntry<T> rc = new MessageEntry<>(replayed.referenceId, codec.decode(replayed.data), replayed.priorityClass);
+			rc.journalId             = replayed.id;
+			rc.failedAttempts        = replayed.failedAttempts;
+			rc.notBeforeTimeInMillis = replayed.notBeforeTimeInMillis;
+			return rc;
+		} catch (Throwable t) {
+			log.error("Cannot restore message "+replayed.referenceId+" from journal", t);
+		}
+		return null;
+	}
+
+	/**
+	 * Encodes the message of an entry for {@link #queued(MessageEntry, byte[])}.
+	 * <p>This can be done before any lock is acquired.</p>
+	 * @param entry the message entry
+	 * @return the encoded message
+	 * @throws IOException when the message cannot be encoded
+	 */
+	protected byte[] encode(MessageEntry<T> entry) throws IOException {
+		try {
+			return codec.encode(entry.message);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Cannot encode message "+entry.referenceId, e);
+		}
+	}
+
+	/**
+	 * Records that a message was queued.
+	 * <p>The record is written but not forced to disk. Pass the returned sequence to
+	 *    {@link #sync(long)} in order to wait until it is durable.</p>
+	 * @param entry the message entry, its journal ID will be set
+	 * @param tenant the tenant of the message or {@code null}
+	 * @param data the encoded message
+	 * @return the sequence of the record
+	 * @throws IOException when the record cannot be written
+	 */
+	protected long queued(MessageEntry<T> entry, String tenant, byte[] data) throws IOException {
+		writeLock.lock();
+		try {
+			checkOpen();
+			entry.journalId = nextId++;
+			return appendQueued(entry.journalId, entry.referenceId, entry.priorityClass, tenant, entry.failedAttempts, entry.notBeforeTimeInMillis, data);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Records that a message was sent.
+	 * @param entry the message entry
+	 * @throws IOException when the record cannot be written
+	 */
+	protected void sent(MessageEntry<T> entry) throws IOException {
+		finished(entry, SENT);
+	}
+
+	/**
+	 * Records that sending of a message was given up.
+	 * @param entry the message entry
+	 * @throws IOException when the record cannot be written
+	 */
+	protected void gaveUp(MessageEntry<T> entry) throws IOException {
+		finished(entry, GAVE_UP);
+	}
+
+	/**
+	 * Records that sending a message failed and will be tried again.
+	 * @param entry the message entry with its updated failed attempts and retry time
+	 * @throws IOException when the record cannot be written
+	 */
+	protected void failed(MessageEntry<T> entry) throws IOException {
+		if (entry.journalId == 0) return;
+		writeLock.lock();
+		try {
+			checkOpen();
+			LiveEntry liveEntry = live.get(entry.journalId);
+			if (liveEntry == null) return;
+			liveEntry.failedAttempts        = entry.failedAttempts;
+			liveEntry.notBeforeTimeInMillis = entry.notBeforeTimeInMillis;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+			DataOutputStream out = startRecord(bytes, FAILED, entry.journalId);
+			out.writeInt(entry.failedAttempts);
+			out.writeLong(entry.notBeforeTimeInMillis);
+			append(bytes);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Records that a message left the queue.
+	 * @param entry the message entry
+	 * @param type the record type
+	 * @throws IOException when the record cannot be written
+	 */
+	private void finished(MessageEntry<T> entry, byte type) throws IOException {
+		if (entry.journalId == 0) return;
+		writeLock.lock();
+		try {
+			checkOpen();
+			if (!remove(entry.journalId)) return;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+			startRecord(bytes, type, entry.journalId);
+			append(bytes);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the record with the given sequence is durable according to the sync policy.
+	 * <p>The first waiting thread forces the segment to disk for all records written so far.
+	 *    Threads arriving while a force is in progress wait for the next one.</p>
+	 * @param sequence the sequence of the record
+	 * @throws IOException when the journal cannot be forced to disk
+	 */
+	protected void sync(long sequence) throws IOException {
+		if (syncPolicy != SyncPolicy.ALWAYS) return;
+		syncLock.lock();
+		try {
+			while (syncedSequence < sequence) {
+				if (syncing) {
+					synced.awaitUninterruptibly();
+					continue;
+				}
+				syncing = true;
+				syncLock.unlock();
+				long target = 0;
+				try {
+					target = force();
+				} finally {
+					syncLock.lock();
+					syncing = false;
+					if (target > syncedSequence) syncedSequence = target;
+					synced.signalAll();
+				}
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Forces all records written so far to disk.
+	 * @return the sequence of the last record that is durable now
+	 * @throws IOException when the segment cannot be forced to disk
+	 */
+	private long force() throws IOException {
+		FileChannel channel = null;
+		long rc = 0;
+		writeLock.lock();
+		try {
+			if (active == null) return appendedSequence;
+			channel = active.channel;
+			rc      = appendedSequence;
+		} finally {
+			writeLock.unlock();
+		}
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException e) {
+			// The segment was rolled or the journal closed, both force the segment before
+		}
+		return rc;
+	}
+
+	/**
+	 * Deletes segments that do not contain any messages anymore.
+	 * <p>The oldest segment is compacted first when its fraction of live messages is below the
+	 *    compaction threshold: its messages are copied to the current segment with their current state.
+	 *    Segments are deleted in order only, so a record of a deleted segment never outlives the
+	 *    records of the same message in newer segments.</p>
+	 * <p>The write lock is taken for each copied record only. Reading the old segment and forcing the
+	 *    copies to disk happen without it, so appending records is not held up by a compaction.</p>
+	 * @throws IOException when the segments cannot be compacted
+	 */
+	public void compact() throws IOException {
+		compactionLock.lock();
+		try {
+			while (true) {
+				Segment head = null;
+				List<Long> positions = null;
+				writeLock.lock();
+				try {
+					checkOpen();
+					if (segments.size() < 2) return;
+					head = segments.firstEntry().getValue();
+					if (head == active) return;
+					if ((head.live > 0) && (head.live >= head.records * compactionThreshold)) return;
+					positions = getLivePositions(head);
+				} finally {
+					writeLock.unlock();
+				}
+				if (!positions.isEmpty()) {
+					copyForward(head, positions);
+					// The copies must be durable before the originals are deleted
+					force();
+				}
+				writeLock.lock();
+				try {
+					checkOpen();
+					// Records are never added to an old segment, so all its messages were copied or are gone
+					if (head.live > 0) return;
+					segments.remove(head.index);
+					Files.deleteIfExists(head.path);
+					if (log.isDebugEnabled()) log.debug("Deleted journal segment "+head.path);
+				} finally {
+					writeLock.unlock();
+				}
+			}
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the journal.
+	 * <p>All records are forced to disk before. Messages that were neither sent nor given up
+	 *    will be restored when the journal is opened again.</p>
+	 * @throws IOException when the journal cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		ScheduledExecutorService scheduler = this.scheduler;
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.scheduler = null;
+		}
+		writeLock.lock();
+		try {
+			if (!open) return;
+			open = false;
+			if (active != null) {
+				active.channel.force(false);
+				active.channel.close();
+				active = null;
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Starts the background tasks for syncing and compaction.
+	 */
+	private void startScheduler() {
+		boolean interval   = (syncPolicy == SyncPolicy.INTERVAL) && (syncInterval > 0);
+		boolean compaction = compactionInterval > 0;
+		if (!interval && !compaction) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread rc = new Thread(r, "MailQueueJournal-"+directory.getFileName());
+			rc.setDaemon(true);
+			return rc;
+		});
+		if (interval) scheduler.scheduleWithFixedDelay(() -> runSafely(this::force), syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+		if (compaction) scheduler.scheduleWithFixedDelay(() -> runSafely(this::compact), compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a background task and logs its failures.
+	 * @param task the task
+	 */
+	private void runSafely(IOTask task) {
+		try {
+			if (open) task.run();
+		} catch (Throwable t) {
+			if (open) log.error("Journal maintenance failed", t);
+		}
+	}
+
+	/**
+	 * Writes a queued record and tracks the message as live.
+	 * <p>Must be called while holding the write lock.</p>
+	 * @return the sequence of the record
+	 */
+	private long appendQueued(long id, String referenceId, int priorityClass, String tenant, int failedAttempts, long notBeforeTimeInMillis, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length+64);
+		DataOutputStream out = startRecord(bytes, QUEUED, id);
+		out.writeBoolean(referenceId != null);
+		if (referenceId != null) out.writeUTF(referenceId);
+		out.writeByte(MessageEntry.toPriorityCode(priorityClass) | (tenant != null ? TENANT_FLAG : 0));
+		if (tenant != null) out.writeUTF(tenant);
+		out.writeInt(failedAttempts);
+		out.writeLong(notBeforeTimeInMillis);
+		out.writeInt(data.length);
+		out.write(data);
+		// The append may roll the active segment
+		Segment segment = active;
+		long position = segment.size;
+		long rc = append(bytes);
+		LiveEntry previous = live.put(id, new LiveEntry(segment, position, failedAttempts, notBeforeTimeInMillis));
+		if (previous != null) previous.segment.live--;
+		segment.live++;
+		segment.records++;
+		return rc;
+	}
+
+	/**
+	 * Starts a record.
+	 * @param bytes the buffer of the record
+	 * @param type the record type
+	 * @param id the journal ID
+	 * @return the stream to write the data of the record to
+	 */
+	private DataOutputStream startRecord(ByteArrayOutputStream bytes, byte type, long id) throws IOException {
+		DataOutputStream rc = new DataOutputStream(bytes);
+		rc.writeByte(type);
+		rc.writeLong(id);
+		return rc;
+	}
+
+	/**
+	 * Writes the record to the active segment and rolls the segment when it is full.
+	 * <p>Must be called while holding the write lock.</p>
+	 * @param bytes the buffer of the record
+	 * @return the sequence of the record
+	 */
+	private long append(ByteArrayOutputStream bytes) throws IOException {
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE+payload.length);
+		buffer.putInt(payload.length);
+		buffer.putInt((int)crc.getValue());
+		buffer.put(payload);
+		buffer.flip();
+		while (buffer.hasRemaining()) active.channel.write(buffer);
+		active.size += HEADER_SIZE+payload.length;
+		appendedSequence++;
+		long rc = appendedSequence;
+		if (active.size >= maxSegmentSize) roll();
+		return rc;
+	}
+
+	/**
+	 * Stops tracking a message.
+	 * <p>Must be called while holding the write lock.</p>
+	 * @param id the journal ID
+	 * @return {@code true} when the message was live
+	 */
+	private boolean remove(long id) {
+		LiveEntry entry = live.remove(id);
+		if (entry == null) return false;
+		entry.segment.live--;
+		return true;
+	}
+
+	/**
+	 * Returns the positions of the queued records of the live messages in a segment.
+	 * <p>Must be called while holding the write lock.</p>
+	 * @param segment the segment
+	 * @return the positions in the order of the records
+	 */
+	private List<Long> getLivePositions(Segment segment) {
+		List<Long> rc = new ArrayList<>(segment.live);
+		for (LiveEntry entry : live.values()) {
+			if (entry.segment == segment) rc.add(entry.position);
+		}
+		rc.sort(null);
+		return rc;
+	}
+
+	/**
+	 * Copies the live messages of a segment to the active segment.
+	 * <p>Must be called without holding the write lock. The segment is not written anymore, so it is
+	 *    read without the lock. The lock is taken for appending each copy. Messages that left the queue
+	 *    or were copied in the meantime are skipped.</p>
+	 * @param segment the segment to be compacted
+	 * @param positions the positions of the queued records of the live messages
+	 */
+	private void copyForward(Segment segment, List<Long> positions) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+			for (long position : positions) {
+				Replayed r = readQueued(channel, position);
+				if (r == null) throw new IOException("Cannot read message at position "+position+" from "+segment.path);
+				writeLock.lock();
+				try {
+					checkOpen();
+					LiveEntry entry = live.get(r.id);
+					if ((entry == null) || (entry.segment != segment)) continue;
+					appendQueued(r.id, r.referenceId, r.priorityClass, r.tenant, entry.failedAttempts, entry.notBeforeTimeInMillis, r.data);
+				} finally {
+					writeLock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a queued record at the given position.
+	 * @return the record or {@code null} when it is not a valid queued record
+	 */
+	private Replayed readQueued(FileChannel channel, long position) throws IOException {
+		byte[] payload = readRecord(channel, position, Long.MAX_VALUE);
+		if (payload == null) return null;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		if (in.readByte() != QUEUED) return null;
+		return readQueued(in.readLong(), in);
+	}
+
+	/**
+	 * Reads the data of a queued record.
+	 */
+	private Replayed readQueued(long id, DataInputStream in) throws IOException {
+		Replayed rc = new Replayed(id);
+		rc.referenceId           = in.readBoolean() ? in.readUTF() : null;
+		int code                 = in.readUnsignedByte();
+		rc.priorityClass         = MessageEntry.toPriorityCode(code & ~TENANT_FLAG);
+		rc.tenant                = (code & TENANT_FLAG) != 0 ? in.readUTF() : null;
+		rc.failedAttempts        = in.readInt();
+		rc.notBeforeTimeInMillis = in.readLong();
+		rc.data                  = new byte[in.readInt()];
+		in.readFully(rc.data);
+		return rc;
+	}
+
+	/**
+	 * Reads the payload of a record.
+	 * @param channel the segment file
+	 * @param position the position of the record
+	 * @param limit the end of the valid data
+	 * @return the payload or {@code null} when the record is incomplete or corrupt
+	 */
+	private byte[] readRecord(FileChannel channel, long position, long limit) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (!readFully(channel, header, position)) return null;
+		header.flip();
+		int length = header.getInt();
+		int crc    = header.getInt();
+		if ((length <= 0) || (position+HEADER_SIZE+length > limit)) return null;
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		if (!readFully(channel, payload, position+HEADER_SIZE)) return null;
+		CRC32 check = new CRC32();
+		check.update(payload.array());
+		if ((int)check.getValue() != crc) return null;
+		return payload.array();
+	}
+
+	/**
+	 * Reads until the buffer is full.
+	 * @return {@code false} when the end of the file was reached before
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position+buffer.position());
+			if (read < 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replays the records of a segment.
+	 * <p>Must be called while holding the write lock.</p>
+	 * @param segment the segment
+	 * @param replayed the messages restored so far
+	 * @param last whether this is the most recent segment, a torn record will be truncated
+	 */
+	private void replay(Segment segment, Map<Long, Replayed> replayed, boolean last) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				byte[] payload = readRecord(channel, position, size);
+				if (payload == null) {
+					log.warn("Discarding corrupt journal records in "+segment.path+" at position "+position);
+					if (last) channel.truncate(position);
+					break;
+				}
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				byte type = in.readByte();
+				long id   = in.readLong();
+				nextId    = Math.max(nextId, id+1);
+				switch (type) {
+				case QUEUED:
+					Replayed r = readQueued(id, in);
+					replayed.remove(id);
+					replayed.put(id, r);
+					LiveEntry previous = live.put(id, new LiveEntry(segment, position, r.failedAttempts, r.notBeforeTimeInMillis));
+					if (previous != null) previous.segment.live--;
+					segment.live++;
+					segment.records++;
+					break;
+				case FAILED:
+					Replayed failed = replayed.get(id);
+					if (failed != null) {
+						failed.failedAttempts        = in.readInt();
+						failed.notBeforeTimeInMillis = in.readLong();
+						LiveEntry entry = live.get(id);
+						entry.failedAttempts        = failed.failedAttempts;
+						entry.notBeforeTimeInMillis = failed.notBeforeTimeInMillis;
+					}
+					break;
+				case SENT:
+				case GAVE_UP:
+					replayed.remove(id);
+					remove(id);
+					break;
+				default:
+					log.warn("Unknown journal record type "+type+" in "+segment.path);
+				}
+				position += HEADER_SIZE+payload.length;
+			}
+			segment.size = position;
+		}
+	}
+
+	/**
+	 * Closes the active segment and starts a new one.
+	 * <p>Must be called while holding the write lock.</p>
+	 */
+	private void roll() throws IOException {
+		if (active != null) {
+			active.channel.force(false);
+			active.channel.close();
+		}
+		long index = segments.isEmpty() ? 1 : segments.lastKey()+1;
+		Path path = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+		Segment segment = new Segment(index, path);
+		segment.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		segments.put(index, segment);
+		active = segment;
+	}
+
+	/**
+	 * Lists the segment files in order.
+	 */
+	private List<Path> listSegments() throws IOException {
+		List<Path> rc = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX+"*"+SEGMENT_SUFFIX)) {
+			for (Path path : stream) rc.add(path);
+		}
+		rc.sort((a, b) -> Long.compare(getSegmentIndex(a), getSegmentIndex(b)));
+		return rc;
+	}
+
+	/**
+	 * Extracts the index from a segment file name.
+	 */
+	private static long getSegmentIndex(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * Fails when the journal is not open.
+	 */
+	private void checkOpen() throws IOException {
+		if (!open) throw new IOException("Journal is not open");
+	}
+
+	/**
+	 * A background task that can fail.
+	 */
+	@FunctionalInterface
+	private static interface IOTask {
+		void run() throws IOException;
+	}
+
+	/**
+	 * A segment file.
+	 */
+	private static class Segment {
+		/** The index of the segment, defining the order */
+		private long index;
+		/** The file */
+		private Path path;
+		/** The file for appending, only for the active segment */
+		private FileChannel channel;
+		/** The size of the valid records */
+		private long size;
+		/** The number of queued records */
+		private int records;
+		/** The number of queued records of messages still in the queue */
+		private int live;
+
+		/**
+		 * Constructor.
+		 * @param index - the index of the segment
+		 * @param path - the file
+		 */
+		private Segment(long index, Path path) {
+			this.index   = index;
+			this.path    = path;
+			this.size    = 0;
+			this.records = 0;
+			this.live    = 0;
+		}
+	}
+
+	/**
+	 * The location and current state of a message still in the queue.
+	 */
+	private static class LiveEntry {
+		/** The segment of the latest queued record */
+		private Segment segment;
+		/** The position of the latest queued record */
+		private long position;
+		/** The current number of failed attempts */
+		private int failedAttempts;
+		/** The current time of the next retry */
+		private long notBeforeTimeInMillis;
+
+		/**
+		 * Constructor.
+		 */
+		private LiveEntry(Segment segment, long position, int failedAttempts, long notBeforeTimeInMillis) {
+			this.segment               = segment;
+			this.position              = position;
+			this.failedAttempts        = failedAttempts;
+			this.notBeforeTimeInMillis = notBeforeTimeInMillis;
+		}
+	}
+
+	/**
+	 * A message read from the journal.
+	 */
+	private static class Replayed {
+		private long id;
+		private String referenceId;
+		private int priorityClass;
+		private String tenant;
+		private int failedAttempts;
+		private long notBeforeTimeInMillis;
+		private byte[] data;
+
+		/**
+		 * Constructor.
+		 * @param id - the journal ID
+		 */
+		private Replayed(long id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * A message restored from the journal.
+	 *
+	 * @param <T> the email message object
+	 */
+	static class Restored<T> {
+		/** The message entry */
+		MessageEntry<T> entry;
+		/** The tenant of the message, {@code null} when the record has none */
+		String tenant;
+
+		/**
+		 * Constructor.
+		 * @param entry - the message entry
+		 * @param tenant - the tenant
+		 */
+		Restored(MessageEntry<T> entry, String tenant) {
+			this.entry  = entry;
+			this.tenant = tenant;
+		}
+	}
+}
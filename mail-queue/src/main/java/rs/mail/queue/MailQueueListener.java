@@ -1,5 +1,9 @@
 package rs.mail.queue;
 
+import java.util.List;
+
+import rs.mail.queue.MailQueueEvent.State;
+
 /**
  * A listener that gets informed about events in a mail queue.
  * 
@@ -14,6 +18,16 @@ public interface MailQueueListener {
 	 */
 	public void onQueued(String referenceId);
 	
+	/**
+	 * Informs that many messages were added to the queue at once.
+	 * <p>The default implementation informs about each message separately.</p>
+	 * @param referenceIds - the reference IDs of the messages in the order they were queued
+	 * @see MailQueue#queueAll(java.util.Collection)
+	 */
+	public default void onQueued(List<String> referenceIds) {
+		for (String referenceId : referenceIds) onQueued(referenceId);
+	}
+	
 	/**
 	 * Informs that the message is now being sent.
 	 * @param referenceId - the reference ID of the message
@@ -34,4 +48,57 @@ public interface MailQueueListener {
 	 */
 	public void onFailed(String referenceId, int failedCount, String reason);
 	
+	/**
+	 * Informs that sending a message was given up and the message left the queue.
+	 * <p>The default implementation does nothing.</p>
+	 * @param referenceId - the reference ID of the message
+	 * @param failedCount - the number of failed attempts
+	 * @param reason - reason string why the last attempt failed
+	 */
+	public default void onGaveUp(String referenceId, int failedCount, String reason) {
+	}
+	
+	/**
+	 * Informs that a message was cancelled and left the queue.
+	 * <p>The default implementation does nothing.</p>
+	 * @param referenceId - the reference ID of the message
+	 * @see MailQueue#cancel(String)
+	 */
+	public default void onCancelled(String referenceId) {
+	}
+	
+	/**
+	 * Informs about a status change of a message with all its details.
+	 * <p>The queue informs about each single message by this method. The default implementation
+	 *    calls the method of the state. Override it when the number of failed attempts or the time
+	 *    of the status change is required for all states.</p>
+	 * @param state - the new state of the message
+	 * @param referenceId - the reference ID of the message
+	 * @param failedCount - the number of failed attempts
+	 * @param reason - reason string why sending failed, {@code null} unless sending failed or was given up
+	 * @param timestamp - the time the queue raised the event in milliseconds
+	 */
+	public default void onEvent(State state, String referenceId, int failedCount, String reason, long timestamp) {
+		switch (state) {
+		case QUEUED:
+			onQueued(referenceId);
+			break;
+		case SENDING:
+			onSending(referenceId);
+			break;
+		case SENT:
+			onSent(referenceId);
+			break;
+		case FAILED:
+			onFailed(referenceId, failedCount, reason);
+			break;
+		case GAVE_UP:
+			onGaveUp(referenceId, failedCount, reason);
+			break;
+		case CANCELLED:
+			onCancelled(referenceId);
+			break;
+		}
+	}
+	
 }
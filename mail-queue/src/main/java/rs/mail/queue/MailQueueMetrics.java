@@ -0,0 +1,202 @@
+package rs.mail.queue;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of a {@link MailQueue}.
+ * <p>The queue records into the metrics while queuing and sending messages. Recording does
+ *    not allocate objects and does not take any lock. The current state of the queue, such as
+ *    its size, the number of messages being sent or the age of the oldest message, is available
+ *    from the queue itself.</p>
+ * <p>The metrics do not depend on any monitoring library. Use the {@code mail-queue-micrometer}
+ *    module for publishing them to Micrometer.</p>
+ *
+ * @author ralph
+ *
+ * @see MailQueue#setMetrics(MailQueueMetrics)
+ */
+public class MailQueueMetrics {
+
+	private LongAdder queued;
+	private LongAdder rejected;
+	private LongAdder sent;
+	private LongAdder failed;
+	private LongAdder gaveUp;
+	private LongAdder tokenDenials;
+	private LongAdder duplicates;
+	private LongHistogram queuedToSent;
+	private LongHistogram sendDuration;
+	private LongHistogram retries;
+
+	/**
+	 * Constructor.
+	 * <p>The histograms use the default window length.</p>
+	 * @see LongHistogram#DEFAULT_WINDOW
+	 */
+	public MailQueueMetrics() {
+		this(LongHistogram.DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Constructor.
+	 * @param windowInMillis - the length of a window of the histograms in milliseconds, usually the step of the monitoring system
+	 * @see LongHistogram#LongHistogram(long)
+	 */
+	public MailQueueMetrics(long windowInMillis) {
+		this.queued       = new LongAdder();
+		this.rejected     = new LongAdder();
+		this.sent         = new LongAdder();
+		this.failed       = new LongAdder();
+		this.gaveUp       = new LongAdder();
+		this.tokenDenials = new LongAdder();
+		this.duplicates   = new LongAdder();
+		this.queuedToSent = new LongHistogram(windowInMillis);
+		this.sendDuration = new LongHistogram(windowInMillis);
+		this.retries      = new LongHistogram(windowInMillis);
+	}
+
+	/**
+	 * Returns the number of messages accepted by the queue.
+	 * @return the number of queued messages
+	 */
+	public long getQueuedCount() {
+		return queued.sum();
+	}
+
+	/**
+	 * Returns the number of messages the queue did not accept as it was full.
+	 * @return the number of rejected messages
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Returns the number of messages the queue did not queue again as they were duplicates.
+	 * @return the number of duplicate messages
+	 * @see MailQueue#setDeduplicationIndex(DeduplicationIndex)
+	 */
+	public long getDuplicateCount() {
+		return duplicates.sum();
+	}
+
+	/**
+	 * Returns the number of messages sent successfully.
+	 * @return the number of sent messages
+	 */
+	public long getSentCount() {
+		return sent.sum();
+	}
+
+	/**
+	 * Returns the number of failed attempts to send a message.
+	 * @return the number of failures
+	 */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	/**
+	 * Returns the number of messages removed from the queue without being sent.
+	 * @return the number of abandoned messages
+	 */
+	public long getGaveUpCount() {
+		return gaveUp.sum();
+	}
+
+	/**
+	 * Returns the number of times the token bucket of the queue denied sending a message.
+	 * @return the number of token denials
+	 */
+	public long getTokenDenialCount() {
+		return tokenDenials.sum();
+	}
+
+	/**
+	 * Returns the time from queuing a message until it was sent successfully.
+	 * @return the histogram of the latency in milliseconds
+	 */
+	public LongHistogram getQueuedToSent() {
+		return queuedToSent;
+	}
+
+	/**
+	 * Returns the time each call of the {@link MailSender} took.
+	 * <p>A batch of messages is a single call.</p>
+	 * @return the histogram of the duration in microseconds
+	 */
+	public LongHistogram getSendDuration() {
+		return sendDuration;
+	}
+
+	/**
+	 * Returns the number of failed attempts of messages that were sent or given up.
+	 * @return the histogram of the retries per message
+	 */
+	public LongHistogram getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Records that a message was queued.
+	 */
+	protected void queued() {
+		queued.increment();
+	}
+
+	/**
+	 * Records that a message was not accepted.
+	 */
+	protected void rejected() {
+		rejected.increment();
+	}
+
+	/**
+	 * Records that a message was sent.
+	 * @param queuedToSent the time in milliseconds since the message was queued
+	 * @param failedAttempts the number of failed attempts before
+	 */
+	protected void sent(long queuedToSent, int failedAttempts) {
+		sent.increment();
+		this.queuedToSent.record(queuedToSent);
+		retries.record(failedAttempts);
+	}
+
+	/**
+	 * Records that an attempt to send a message failed.
+	 */
+	protected void failed() {
+		failed.increment();
+	}
+
+	/**
+	 * Records that a message was given up.
+	 * @param failedAttempts the number of failed attempts
+	 */
+	protected void gaveUp(int failedAttempts) {
+		gaveUp.increment();
+		retries.record(failedAttempts);
+	}
+
+	/**
+	 * Records that a message was not queued again as it is a duplicate.
+	 */
+	protected void duplicate() {
+		duplicates.increment();
+	}
+
+	/**
+	 * Records that the token bucket denied sending a message.
+	 */
+	protected void tokenDenied() {
+		tokenDenials.increment();
+	}
+
+	/**
+	 * Records the duration of a call of the {@link MailSender}.
+	 * @param durationInNanos the duration in nanoseconds
+	 */
+	protected void sendDuration(long durationInNanos) {
+		sendDuration.record(durationInNanos / 1000);
+	}
+}
@@ -0,0 +1,286 @@
+package rs.mail.queue;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Feeds the messages of a reactive publisher into a {@link MailQueue}.
+ * <p>The subscriber requests messages only as the queue has space for them. The initial demand is
+ *    the remaining capacity of its priority class. Later demand is requested when messages left the
+ *    queue, in batches of about the number of messages the queue drains within the refill period.
+ *    A fast publisher therefore never overruns the queue and no message is rejected.</p>
+ * <p>All messages are queued in the priority class of the subscriber as the demand is tied to its
+ *    capacity. A message of a full tenant is held back and queued once the tenant has space again.</p>
+ *
+ * <pre>
+ * publisher.subscribe(new MailQueueSubscriber&lt;&gt;(queue, PriorityClass.NORMAL));
+ * </pre>
+ *
+ * @param <T> the type of email object
+ *
+ * @author ralph
+ *
+ */
+public class MailQueueSubscriber<T> implements Flow.Subscriber<QueueItem<T>> {
+
+	/** Default period in milliseconds the queue shall drain between two requests */
+	public static final long DEFAULT_REFILL_PERIOD = 100;
+
+	private Logger log = LoggerFactory.getLogger(getClass());
+
+	private MailQueue<T> queue;
+	private String priorityClass;
+	private long refillPeriod;
+	private int maxBatchSize;
+	private Object lock;
+	private Flow.Subscription subscription;
+	private ArrayDeque<QueueItem<T>> pending;
+	private long requested;
+	private int released;
+	private int batchSize;
+	private long drained;
+	private long drainTime;
+	private double drainRate;
+	private boolean completed;
+
+	/**
+	 * Constructor.
+	 * <p>The subscriber uses the default refill period.</p>
+	 * @param queue - the queue to feed
+	 * @param priorityClass - the name of the priority class of the messages
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 * @see #DEFAULT_REFILL_PERIOD
+	 */
+	public MailQueueSubscriber(MailQueue<T> queue, String priorityClass) {
+		this(queue, priorityClass, DEFAULT_REFILL_PERIOD);
+	}
+
+	/**
+	 * Constructor.
+	 * @param queue - the queue to feed
+	 * @param priorityClass - the name of the priority class of the messages
+	 * @param refillPeriod - the period in milliseconds the queue shall drain between two requests
+	 * @throws IllegalArgumentException when the priority class does not exist
+	 */
+	public MailQueueSubscriber(MailQueue<T> queue, String priorityClass, long refillPeriod) {
+		if (refillPeriod < 1) throw new IllegalArgumentException("Refill period must be at least 1ms");
+		this.queue         = queue;
+		this.priorityClass = priorityClass;
+		this.refillPeriod  = refillPeriod;
+		this.maxBatchSize  = Math.max(1, queue.capacity(priorityClass) / 2);
+		this.lock          = new Object();
+		this.pending       = new ArrayDeque<>();
+		this.requested     = 0;
+		this.released      = 0;
+		this.batchSize     = 1;
+		this.drained       = 0;
+		this.drainTime     = 0;
+		this.drainRate     = 0;
+		this.completed     = false;
+	}
+
+	/**
+	 * Returns the queue being fed.
+	 * @return the queue
+	 */
+	public MailQueue<T> getQueue() {
+		return queue;
+	}
+
+	/**
+	 * Returns the name of the priority class of the messages.
+	 * @return the priority class
+	 */
+	public String getPriorityClass() {
+		return priorityClass;
+	}
+
+	/**
+	 * Returns the period the queue shall drain between two requests.
+	 * @return the refill period in milliseconds
+	 */
+	public long getRefillPeriod() {
+		return refillPeriod;
+	}
+
+	/**
+	 * Returns the number of messages requested but not yet received.
+	 * @return the outstanding demand
+	 */
+	public long getRequestedCount() {
+		synchronized (lock) {
+			return requested;
+		}
+	}
+
+	/**
+	 * Returns the number of messages held back as their tenant was full.
+	 * @return the number of pending messages
+	 */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Returns the measured drain rate of the priority class.
+	 * @return the number of messages leaving the queue per second
+	 */
+	public double getDrainRate() {
+		synchronized (lock) {
+			return drainRate;
+		}
+	}
+
+	/**
+	 * Returns the number of messages that must leave the queue before more messages are requested.
+	 * @return the current batch size
+	 */
+	public int getBatchSize() {
+		synchronized (lock) {
+			return batchSize;
+		}
+	}
+
+	/**
+	 * Returns whether the publisher finished and all its messages were queued.
+	 * @return {@code true} when the subscriber is done
+	 */
+	public boolean isDone() {
+		synchronized (lock) {
+			return completed && pending.isEmpty();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		synchronized (lock) {
+			if ((this.subscription != null) || completed) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+			this.drainTime    = System.currentTimeMillis();
+		}
+		queue.addSubscriber(this);
+		synchronized (lock) {
+			refill();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onNext(QueueItem<T> item) {
+		synchronized (lock) {
+			if (requested > 0) requested--;
+			// Keep the order when messages are held back already
+			if (pending.isEmpty() && queue.offer(item, priorityClass)) {
+				item.setQueued(true);
+			} else {
+				pending.add(item);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onError(Throwable throwable) {
+		log.error("Publisher failed", throwable);
+		finish();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onComplete() {
+		finish();
+	}
+
+	/**
+	 * Cancels the subscription.
+	 * <p>Messages held back are still queued once their tenant has space again.</p>
+	 */
+	public void cancel() {
+		Flow.Subscription subscription = null;
+		synchronized (lock) {
+			if (completed) return;
+			subscription = this.subscription;
+		}
+		if (subscription != null) subscription.cancel();
+		finish();
+	}
+
+	/**
+	 * Informs the subscriber that a message left the queue.
+	 * @param sameLane whether the message belonged to the priority class of the subscriber
+	 */
+	void released(boolean sameLane) {
+		synchronized (lock) {
+			if (subscription == null) return;
+			if (sameLane) {
+				released++;
+				drained++;
+			}
+			// Held back messages may fit now, more messages are requested in batches
+			if (!pending.isEmpty() || (released >= batchSize)) refill();
+		}
+	}
+
+	/**
+	 * Queues held back messages and requests as many messages as the queue has space for.
+	 * <p>The caller must hold the lock.</p>
+	 */
+	private void refill() {
+		while (!pending.isEmpty() && queue.offer(pending.peek(), priorityClass)) {
+			pending.poll().setQueued(true);
+		}
+		measure();
+		if (completed) {
+			if (pending.isEmpty()) queue.removeSubscriber(this);
+			return;
+		}
+		long demand = queue.remainingCapacity(priorityClass) - requested - pending.size();
+		if (demand <= 0) return;
+		released   = 0;
+		requested += demand;
+		// The publisher may deliver on this thread
+		subscription.request(demand);
+	}
+
+	/**
+	 * Updates the drain rate and the batch size once per refill period.
+	 * <p>The caller must hold the lock.</p>
+	 */
+	private void measure() {
+		long now     = System.currentTimeMillis();
+		long elapsed = now - drainTime;
+		if (elapsed < refillPeriod) return;
+		double rate = drained * 1000d / elapsed;
+		drainRate   = drainRate == 0 ? rate : 0.8 * drainRate + 0.2 * rate;
+		batchSize   = (int)Math.max(1, Math.min(maxBatchSize, drainRate * refillPeriod / 1000));
+		drained     = 0;
+		drainTime   = now;
+	}
+
+	/**
+	 * Marks the publisher as finished and unregisters when no message is held back anymore.
+	 */
+	private void finish() {
+		synchronized (lock) {
+			completed = true;
+			if (pending.isEmpty()) queue.removeSubscriber(this);
+		}
+	}
+}
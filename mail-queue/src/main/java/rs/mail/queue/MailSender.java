@@ -3,6 +3,8 @@
  */
 package rs.mail.queue;
 
+import java.util.List;
+
 /**
  * A helper interface that actually will send e-mails.
  * 
@@ -21,4 +23,23 @@ public interface MailSender<T> {
 	 */
 	public void sendMessage(T message, String referenceId) throws Exception;
 	
+	/**
+	 * Sends a batch of message objects.
+	 * <p>Implementations record a failure of an individual message in its item and
+	 *    continue with the next message. They can use this method to send all
+	 *    messages over a single connection. The default implementation sends each
+	 *    message via {@link #sendMessage(Object, String)}.</p>
+	 * @param batch - the messages to be sent
+	 * @throws Exception - when the batch cannot be sent at all, all messages are considered as failed then
+	 */
+	public default void sendMessages(List<BatchItem<T>> batch) throws Exception {
+		for (BatchItem<T> item : batch) {
+			try {
+				sendMessage(item.getMessage(), item.getReferenceId());
+			} catch (Exception e) {
+				item.setFailure(e);
+			}
+		}
+	}
+	
 }
@@ -0,0 +1,262 @@
+package rs.mail.queue;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps queued messages as bytes in a memory-mapped file instead of the heap.
+ * <p>A {@link MailQueue} with a message store converts each message with a {@link MessageCodec}
+ *    when it is queued and keeps only a small index entry on the heap. The message is restored
+ *    right before it is sent and dropped from the heap again when it must be retried later.
+ *    Large queues of {@code MimeMessage} or {@code Email} objects therefore do not fill the heap
+ *    or keep the garbage collector busy.</p>
+ * <p>The file is used as a ring buffer: messages are written one after another and the space
+ *    is reclaimed from the oldest message on once it was sent. Space of messages sent out of
+ *    order is reclaimed as soon as all older messages are gone. A message that does not fit
+ *    into the ring buffer stays on the heap.</p>
+ * <p>Each message takes a header of 8 bytes (length and state) and is aligned to 8 bytes.
+ *    The store does not survive a restart, use a {@link MailQueueJournal} for that.</p>
+ *
+ * @param <T> the email message object
+ *
+ * @author ralph
+ *
+ * @see MailQueue#setMessageStore(MappedMessageStore)
+ */
+public class MappedMessageStore<T> implements AutoCloseable {
+
+	/** Default size of the ring buffer in bytes */
+	public static final int DEFAULT_CAPACITY = 256*1024*1024;
+	/** Offset value of a message that is not in a store */
+	public static final int NOT_STORED = -1;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int LIVE    = 1;
+	private static final int FREE    = 2;
+	private static final int PADDING = 3;
+
+	private Logger log = LoggerFactory.getLogger(getClass());
+
+	private Path file;
+	private boolean deleteOnClose;
+	private MessageCodec<T> codec;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int head;
+	private int tail;
+	private int used;
+	private int count;
+
+	/**
+	 * Constructor.
+	 * <p>The store uses a temporary file of the default capacity that is deleted when the store is closed.</p>
+	 * @param codec - the codec for storing the messages
+	 * @throws IOException when the file cannot be mapped
+	 * @see #DEFAULT_CAPACITY
+	 */
+	public MappedMessageStore(MessageCodec<T> codec) throws IOException {
+		this(Files.createTempFile("mail-queue-", ".store"), DEFAULT_CAPACITY, codec);
+		this.deleteOnClose = true;
+	}
+
+	/**
+	 * Constructor.
+	 * <p>An existing file will be overwritten.</p>
+	 * @param file - the file of the ring buffer
+	 * @param capacity - the size of the ring buffer in bytes
+	 * @param codec - the codec for storing the messages
+	 * @throws IOException when the file cannot be mapped
+	 */
+	public MappedMessageStore(Path file, int capacity, MessageCodec<T> codec) throws IOException {
+		if (capacity < 2*HEADER_SIZE) throw new IllegalArgumentException("Capacity must be at least "+(2*HEADER_SIZE)+" bytes");
+		this.file          = file;
+		this.deleteOnClose = false;
+		this.codec         = codec;
+		this.capacity      = capacity & ~(HEADER_SIZE-1);
+		this.channel       = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.buffer        = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+		this.head          = 0;
+		this.tail          = 0;
+		this.used          = 0;
+		this.count         = 0;
+	}
+
+	/**
+	 * Returns the file of the ring buffer.
+	 * @return the file
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the codec for storing the messages.
+	 * @return the codec
+	 */
+	public MessageCodec<T> getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Returns the size of the ring buffer in bytes.
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of bytes that cannot be reused yet.
+	 * <p>This includes space of messages that were sent before older messages.</p>
+	 * @return the number of bytes used
+	 */
+	public synchronized int getUsed() {
+		return used;
+	}
+
+	/**
+	 * Returns the number of messages in the store.
+	 * @return the number of messages
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Converts the message into bytes.
+	 * @param message the message
+	 * @return the bytes representing the message
+	 * @throws IOException when the message cannot be converted
+	 */
+	public byte[] encode(T message) throws IOException {
+		try {
+			return codec.encode(message);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Cannot encode message", e);
+		}
+	}
+
+	/**
+	 * Stores the bytes of a message.
+	 * @param data the bytes created by {@link #encode(Object)}
+	 * @return the offset of the message or {@link #NOT_STORED} when the ring buffer has no space left
+	 */
+	public int put(byte[] data) {
+		int rc = allocate(data.length);
+		if (rc != NOT_STORED) buffer.put(rc+HEADER_SIZE, data);
+		return rc;
+	}
+
+	/**
+	 * Restores a message.
+	 * @param offset the offset returned by {@link #put(byte[])}
+	 * @return the message
+	 * @throws IOException when the message cannot be restored
+	 */
+	public T get(int offset) throws IOException {
+		byte[] data = new byte[buffer.getInt(offset)];
+		buffer.get(offset+HEADER_SIZE, data);
+		try {
+			return codec.decode(data);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Cannot decode message at "+offset, e);
+		}
+	}
+
+	/**
+	 * Releases the space of a message.
+	 * <p>The space is reused once all older messages were released as well.</p>
+	 * @param offset the offset returned by {@link #put(byte[])}
+	 */
+	public synchronized void free(int offset) {
+		if (buffer.getInt(offset+4) != LIVE) return;
+		buffer.putInt(offset+4, FREE);
+		count--;
+		while (used > 0) {
+			int state = buffer.getInt(tail+4);
+			if ((state != FREE) && (state != PADDING)) break;
+			int size = getSlotSize(buffer.getInt(tail));
+			used -= size;
+			tail += size;
+			if (tail >= capacity) tail = 0;
+		}
+		if (used == 0) {
+			head = 0;
+			tail = 0;
+		}
+	}
+
+	/**
+	 * Closes the store.
+	 * <p>Messages still in the store cannot be restored afterwards.</p>
+	 * @throws IOException when the file cannot be closed
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+		if (deleteOnClose) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				// Still mapped on some platforms
+				if (log.isDebugEnabled()) log.debug("Cannot delete "+file, e);
+				file.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Reserves the space for a message at the head of the ring buffer.
+	 * @param length the length of the message
+	 * @return the offset of the message or {@link #NOT_STORED} when there is no space left
+	 */
+	private synchronized int allocate(int length) {
+		int size = getSlotSize(length);
+		if ((size > capacity) || (size <= 0)) return NOT_STORED;
+		int rc = NOT_STORED;
+		if ((used == 0) || (head > tail)) {
+			// Free space is behind the head and in front of the tail
+			if (capacity - head >= size) {
+				rc = head;
+			} else if (tail >= size) {
+				int padding = capacity - head;
+				buffer.putInt(head, padding - HEADER_SIZE);
+				buffer.putInt(head+4, PADDING);
+				used += padding;
+				rc = 0;
+			}
+		} else if (tail - head >= size) {
+			// Free space is between head and tail
+			rc = head;
+		}
+		if (rc == NOT_STORED) return NOT_STORED;
+		buffer.putInt(rc, length);
+		buffer.putInt(rc+4, LIVE);
+		head = rc + size;
+		if (head >= capacity) head = 0;
+		used += size;
+		count++;
+		return rc;
+	}
+
+	/**
+	 * Returns the space a message occupies including its header.
+	 * @param length the length of the message
+	 * @return the size of the slot
+	 */
+	private static int getSlotSize(int length) {
+		return (HEADER_SIZE + length + HEADER_SIZE - 1) & ~(HEADER_SIZE-1);
+	}
+}
@@ -0,0 +1,32 @@
+package rs.mail.queue;
+
+/**
+ * Converts messages into bytes and back.
+ * <p>A codec is required when messages of a {@link MailQueue} are stored outside the heap,
+ *    e.g. in a {@link MailQueueJournal}.</p>
+ * 
+ * @param <T> the email message object
+ * 
+ * @author ralph
+ *
+ * @see MimeMessageCodec
+ * @see EmailCodec
+ */
+public interface MessageCodec<T> {
+
+	/**
+	 * Converts the message into bytes.
+	 * @param message - the message
+	 * @return the bytes representing the message
+	 * @throws Exception when the message cannot be converted
+	 */
+	public byte[] encode(T message) throws Exception;
+	
+	/**
+	 * Restores the message from its bytes.
+	 * @param data - the bytes created by {@link #encode(Object)}
+	 * @return the message
+	 * @throws Exception when the message cannot be restored
+	 */
+	public T decode(byte[] data) throws Exception;
+}
@@ -0,0 +1,28 @@
+package rs.mail.queue;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.internet.InternetAddress;
+
+/**
+ * Determines the recipient domain of {@link jakarta.mail.Message} objects.
+ * <p>The domain of the first recipient is used.</p>
+ *    
+ * @author ralph
+ *
+ */
+public class MessageDomainExtractor implements DomainExtractor<Message> {
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getDomain(Message message) throws Exception {
+		Address recipients[] = message.getAllRecipients();
+		if ((recipients != null) && (recipients.length > 0) && (recipients[0] instanceof InternetAddress)) {
+			return DomainExtractor.getAddressDomain(((InternetAddress)recipients[0]).getAddress());
+		}
+		return null;
+	}
+
+}
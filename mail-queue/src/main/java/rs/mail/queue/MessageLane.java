@@ -0,0 +1,618 @@
+package rs.mail.queue;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+
+/**
+ * Holds the messages of a single lane (i.e. a {@link PriorityClass}) of a {@link MailQueue}.
+ * <p>Messages that can be sent immediately are kept in order of queuing. Messages
+ *    waiting for a retry are kept in a heap ordered by their {@code notBeforeTimeInMillis}
+ *    and are moved back to the ready messages once they are due. Picking the next
+ *    message is therefore independent of the number of messages waiting for a retry.</p>
+ * <p>Ready messages are kept apart by tenant. Tenants with ready messages take turns when
+ *    picking the next message, each sending up to the weight of its {@link TenantPolicy} in its
+ *    turn. Within a tenant, ready messages are kept in a separate flow per recipient domain.
+ *    Flows with ready messages take turns as well. A flow is skipped when its domain does not
+ *    allow another message at this time, so a throttled domain does not hold back messages to
+ *    other domains. A tenant whose token bucket is exhausted is parked until its next token is
+ *    expected, so it is not visited again before. Tenants and flows without ready messages are
+ *    forgotten, so picking the next message does not depend on the number of idle or throttled
+ *    tenants. Without tenants and domains all messages share a single flow.</p>
+ * <p>Messages picked for sending via {@link #poll(long)} are removed from the ready messages
+ *    immediately but still count towards the size of the lane until they are either
+ *    {@link #remove(MessageEntry) removed} or put on hold for a {@link #retry(MessageEntry) retry}.
+ *    Both operations take constant time for such in-flight messages.</p>
+ * <p>Messages exceeding the capacity can be written to a {@link MessageSpill}. The size and
+ *    capacity of the lane include the spill. The lane keeps a small entry without the message
+ *    for each spilled message in the same order as the spill.</p>
+ * <p>Waiting messages can be {@link #cancel(MessageEntry) cancelled} in constant time. A cancelled
+ *    message does not count towards the size of the lane anymore but stays in its flow or among the
+ *    messages waiting for a retry until it comes up. It is skipped then.</p>
+ * <p>This class is not thread-safe. All access must be guarded by the lock of the
+ *    owning {@link MailQueue}.</p>
+ *
+ * @param <T> the email message object
+ *
+ * @author ralph
+ *
+ */
+class MessageLane<T> {
+
+	/** Orders messages by the time they can be sent again */
+	private static final Comparator<MessageEntry<?>> NOT_BEFORE_ORDER = Comparator.comparingLong(e -> e.notBeforeTimeInMillis);
+	/** Orders parked tenants by the time they can send again */
+	private static final Comparator<Tenant<?>> PARKED_ORDER = Comparator.comparingLong(t -> t.parkedUntil);
+
+	private Map<TenantState, Tenant<T>> tenants;
+	private ArrayDeque<Tenant<T>> activeTenants;
+	private PriorityQueue<Tenant<T>> parkedTenants;
+	private PriorityQueue<MessageEntry<T>> delayed;
+	private int capacity;
+	private volatile int size;
+	private volatile int inFlight;
+	private MessageSpill<T> spill;
+	private ArrayDeque<MessageEntry<T>> spilled;
+	private int cancelledSpilled;
+	private long blockedUntil;
+	private boolean ready;
+	private Condition notFull;
+
+	/**
+	 * Constructor.
+	 * @param capacity - the maximum number of messages in this lane
+	 * @param notFull - the condition to be signalled when a message left the lane
+	 */
+	MessageLane(int capacity, Condition notFull) {
+		this.tenants          = new HashMap<>();
+		this.activeTenants    = new ArrayDeque<>();
+		this.parkedTenants    = new PriorityQueue<>(PARKED_ORDER);
+		this.delayed          = new PriorityQueue<>(NOT_BEFORE_ORDER);
+		this.capacity         = capacity;
+		this.size             = 0;
+		this.inFlight         = 0;
+		this.spilled          = new ArrayDeque<>();
+		this.cancelledSpilled = 0;
+		this.blockedUntil     = Long.MAX_VALUE;
+		this.ready            = true;
+		this.notFull          = notFull;
+	}
+
+	/**
+	 * Returns the condition that is signalled when a message left the lane.
+	 * @return the condition
+	 */
+	Condition getNotFull() {
+		return notFull;
+	}
+
+	/**
+	 * Returns the spill for messages exceeding the capacity.
+	 * @return the spill or {@code null}
+	 */
+	MessageSpill<T> getSpill() {
+		return spill;
+	}
+
+	/**
+	 * Sets the spill for messages exceeding the capacity.
+	 * @param spill the spill or {@code null}
+	 */
+	void setSpill(MessageSpill<T> spill) {
+		this.spill = spill;
+	}
+
+	/**
+	 * Returns whether the capacity of the lane and its spill is exhausted.
+	 * @return {@code true} when no more messages can be added
+	 */
+	boolean isFull() {
+		return (size >= capacity) && ((spill == null) || spill.isFull());
+	}
+
+	/**
+	 * Returns whether the next message must be written to the spill.
+	 * <p>This is the case when the lane is full or older messages are still in the spill.</p>
+	 * @return {@code true} when the message must be spilled
+	 */
+	boolean mustSpill() {
+		return (spill != null) && ((size >= capacity) || !spill.isEmpty());
+	}
+
+	/**
+	 * Returns whether the next message is likely to be spilled.
+	 * <p>This method can be called without holding the lock. The result is a hint only.</p>
+	 * @return {@code true} when the message will probably be spilled
+	 */
+	boolean mightSpill() {
+		MessageSpill<T> spill = this.spill;
+		return (spill != null) && ((size >= capacity) || !spill.isEmpty());
+	}
+
+	/**
+	 * Returns whether a spilled message can be moved into the lane.
+	 * @return {@code true} when there is space for a spilled message
+	 */
+	boolean canPageIn() {
+		return (spill != null) && (size < capacity) && !spill.isEmpty();
+	}
+
+	/**
+	 * Adds the message to the lane.
+	 * @param entry - the message entry
+	 */
+	void add(MessageEntry<T> entry) {
+		if (entry.notBeforeTimeInMillis > 0) delayed.add(entry);
+		else addReady(entry, false);
+		size++;
+	}
+
+	/**
+	 * Returns the next message that can be sent at the given time.
+	 * <p>The message will not be removed from the lane. The token buckets of its tenant and domain are not checked,
+	 *    but messages of parked tenants are not considered.</p>
+	 * @param now - the current time in milliseconds
+	 * @return the next message or {@code null} when no message is ready
+	 */
+	MessageEntry<T> peek(long now) {
+		promote(now);
+		unpark(now);
+		for (Tenant<T> tenant : activeTenants) {
+			for (Flow<T> flow : tenant.activeFlows) {
+				MessageEntry<T> rc = first(flow);
+				if ((rc != null) && !flow.domain.isSaturated()) return rc;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether a message might be sent at the given time.
+	 * <p>This is the case when tenants take part in the rotation and the last {@link #poll(long)} did
+	 *    not come back empty-handed since. Messages becoming ready, released or leaving the lane reset
+	 *    the result. Unlike {@link #peek(long)}, this takes constant time.</p>
+	 * @param now - the current time in milliseconds
+	 * @return {@code true} when picking the next message is worth a try
+	 */
+	boolean isReady(long now) {
+		promote(now);
+		unpark(now);
+		return ready && !activeTenants.isEmpty();
+	}
+
+	/**
+	 * Picks the next message that can be sent at the given time.
+	 * <p>The message is removed from the ready messages and marked as in-flight.
+	 *    It still counts towards the size of the lane. Its domain counts it as
+	 *    being sent.</p>
+	 * @param now - the current time in milliseconds
+	 * @return the next message or {@code null} when no message is ready
+	 */
+	MessageEntry<T> poll(long now) {
+		promote(now);
+		unpark(now);
+		blockedUntil = Long.MAX_VALUE;
+		int count = activeTenants.size();
+		for (int i=0; i<count; i++) {
+			Tenant<T> tenant = activeTenants.peekFirst();
+			if (tenant.activeFlows.isEmpty()) {
+				activeTenants.pollFirst();
+				deactivate(tenant);
+				continue;
+			}
+			if (!tenant.state.tryAcquire()) {
+				park(tenant);
+				continue;
+			}
+			MessageEntry<T> rc = poll(tenant);
+			if (rc != null) {
+				tenant.deficit--;
+				if ((tenant.deficit <= 0) || tenant.activeFlows.isEmpty()) next(tenant);
+				rc.inFlight = true;
+				inFlight++;
+				return rc;
+			}
+			// None of the tenant's domains can be sent to, so its token was not used
+			tenant.state.refund();
+			next(tenant);
+		}
+		ready = false;
+		return null;
+	}
+
+	/**
+	 * Takes the tenant at the head of the rotation out until its next token is expected.
+	 * @param tenant - the tenant
+	 */
+	private void park(Tenant<T> tenant) {
+		activeTenants.pollFirst();
+		tenant.parkedUntil = tenant.state.getNextTokenTime();
+		parkedTenants.add(tenant);
+	}
+
+	/**
+	 * Returns all parked tenants whose next token is expected by now to the rotation.
+	 * @param now - the current time in milliseconds
+	 */
+	private void unpark(long now) {
+		Tenant<T> tenant = parkedTenants.peek();
+		while ((tenant != null) && (tenant.parkedUntil <= now)) {
+			parkedTenants.poll();
+			tenant.deficit = tenant.state.getPolicy().getWeight();
+			activeTenants.addLast(tenant);
+			ready = true;
+			tenant = parkedTenants.peek();
+		}
+	}
+
+	/**
+	 * Picks the next message of a tenant whose domain can be sent to.
+	 * @param tenant - the tenant
+	 * @return the next message or {@code null} when no domain of the tenant can be sent to
+	 */
+	private MessageEntry<T> poll(Tenant<T> tenant) {
+		int count = tenant.activeFlows.size();
+		for (int i=0; i<count; i++) {
+			Flow<T> flow = tenant.activeFlows.pollFirst();
+			if (first(flow) == null) {
+				deactivate(tenant, flow);
+				continue;
+			}
+			if (flow.domain.tryAcquire()) {
+				MessageEntry<T> rc = flow.ready.pollFirst();
+				if (first(flow) == null) deactivate(tenant, flow);
+				else tenant.activeFlows.addLast(flow);
+				return rc;
+			}
+			if (!flow.domain.isSaturated()) blockedUntil = Math.min(blockedUntil, flow.domain.getNextTokenTime());
+			tenant.activeFlows.addLast(flow);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the first ready message of a flow.
+	 * <p>Cancelled messages at the head of the flow are dropped.</p>
+	 * @param flow - the flow
+	 * @return the first message or {@code null} when the flow has no ready message
+	 */
+	private MessageEntry<T> first(Flow<T> flow) {
+		MessageEntry<T> rc = flow.ready.peekFirst();
+		while ((rc != null) && rc.cancelled) {
+			flow.ready.pollFirst();
+			rc = flow.ready.peekFirst();
+		}
+		return rc;
+	}
+
+	/**
+	 * Ends the turn of the tenant at the head of the rotation.
+	 * <p>The tenant is forgotten when it has no ready messages anymore.</p>
+	 * @param tenant - the tenant
+	 */
+	private void next(Tenant<T> tenant) {
+		activeTenants.pollFirst();
+		if (tenant.activeFlows.isEmpty()) {
+			deactivate(tenant);
+		} else {
+			tenant.deficit = tenant.state.getPolicy().getWeight();
+			activeTenants.addLast(tenant);
+		}
+	}
+
+	/**
+	 * Returns an in-flight message to the head of the ready messages.
+	 * <p>This is used when a picked message cannot be sent at this time. The tokens
+	 *    its tenant and domain spent on the message are given back.</p>
+	 * @param entry - the message entry
+	 */
+	void release(MessageEntry<T> entry) {
+		if (entry.inFlight) {
+			entry.inFlight = false;
+			entry.domain.release();
+			entry.domain.refund();
+			entry.tenant.refund();
+			inFlight--;
+			ready = true;
+			addReady(entry, true);
+		}
+	}
+
+	/**
+	 * Moves a message back into the waiting messages after its {@code notBeforeTimeInMillis} was updated.
+	 * @param entry - the message entry
+	 */
+	void retry(MessageEntry<T> entry) {
+		if (entry.inFlight) {
+			entry.inFlight = false;
+			entry.domain.release();
+			inFlight--;
+			ready = true;
+			delayed.add(entry);
+		} else if (removeReady(entry)) {
+			delayed.add(entry);
+		}
+	}
+
+	/**
+	 * Removes the message from the lane.
+	 * @param entry - the message entry
+	 * @return {@code true} when the message was removed
+	 */
+	boolean remove(MessageEntry<T> entry) {
+		boolean rc = false;
+		if (entry.inFlight) {
+			entry.inFlight = false;
+			entry.domain.release();
+			inFlight--;
+			ready = true;
+			rc = true;
+		} else if (!entry.cancelled) {
+			rc = removeReady(entry) || delayed.remove(entry);
+		}
+		if (rc) {
+			size--;
+			notFull.signal();
+		}
+		return rc;
+	}
+
+	/**
+	 * Cancels a message that waits in the lane or its spill.
+	 * <p>The message is skipped when it comes up. In-flight messages cannot be cancelled.</p>
+	 * @param entry - the message entry
+	 * @return {@code true} when the message was cancelled
+	 */
+	boolean cancel(MessageEntry<T> entry) {
+		if (entry.inFlight || entry.cancelled) return false;
+		entry.cancelled = true;
+		if (entry.spilled) {
+			cancelledSpilled++;
+		} else {
+			size--;
+			notFull.signal();
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers a message that was written to the spill.
+	 * @param entry - the message entry without the message
+	 */
+	void addSpilled(MessageEntry<T> entry) {
+		entry.spilled = true;
+		spilled.addLast(entry);
+	}
+
+	/**
+	 * Returns the entry of the oldest spilled message.
+	 * <p>This is called when the oldest message was read back or dropped from the spill.</p>
+	 * @return the message entry or {@code null} when no message was spilled
+	 */
+	MessageEntry<T> pollSpilled() {
+		MessageEntry<T> rc = spilled.pollFirst();
+		if (rc != null) {
+			rc.spilled = false;
+			if (rc.cancelled) cancelledSpilled--;
+		}
+		return rc;
+	}
+
+	/**
+	 * Adds the message to the ready messages of its flow.
+	 * @param entry - the message entry
+	 * @param first - whether the message shall be sent first within its flow
+	 */
+	private void addReady(MessageEntry<T> entry, boolean first) {
+		Tenant<T> tenant = tenants.get(entry.tenant);
+		if (tenant == null) {
+			tenant = new Tenant<>(entry.tenant);
+			tenants.put(entry.tenant, tenant);
+		}
+		Flow<T> flow = tenant.flows.get(entry.domain);
+		if (flow == null) {
+			flow = new Flow<>(entry.domain);
+			tenant.flows.put(entry.domain, flow);
+		}
+		if (first) flow.ready.addFirst(entry);
+		else flow.ready.addLast(entry);
+		ready = true;
+		if (!flow.active) {
+			flow.active = true;
+			if (first) tenant.activeFlows.addFirst(flow);
+			else tenant.activeFlows.addLast(flow);
+		}
+		if (!tenant.active) {
+			tenant.active  = true;
+			tenant.deficit = entry.tenant.getPolicy().getWeight();
+			if (first) activeTenants.addFirst(tenant);
+			else activeTenants.addLast(tenant);
+		}
+	}
+
+	/**
+	 * Removes the message from the ready messages.
+	 * <p>The message is usually the first one of its flow as it was picked by {@link #peek(long)} before.
+	 *    An emptied flow is deactivated the next time it takes its turn.</p>
+	 * @param entry - the message entry
+	 * @return {@code true} when the message was removed
+	 */
+	private boolean removeReady(MessageEntry<T> entry) {
+		Tenant<T> tenant = tenants.get(entry.tenant);
+		Flow<T> flow = tenant != null ? tenant.flows.get(entry.domain) : null;
+		if (flow == null) return false;
+		if (flow.ready.peekFirst() == entry) {
+			flow.ready.pollFirst();
+			return true;
+		}
+		return flow.ready.remove(entry);
+	}
+
+	/**
+	 * Takes an empty flow out of the rotation and forgets it.
+	 * @param tenant - the tenant of the flow
+	 * @param flow - the flow
+	 */
+	private void deactivate(Tenant<T> tenant, Flow<T> flow) {
+		flow.active = false;
+		tenant.flows.remove(flow.domain);
+	}
+
+	/**
+	 * Takes a tenant without ready messages out of the rotation and forgets it.
+	 * @param tenant - the tenant
+	 */
+	private void deactivate(Tenant<T> tenant) {
+		tenant.active = false;
+		tenants.remove(tenant.state);
+	}
+
+	/**
+	 * Moves all waiting messages that are due to the ready messages.
+	 * @param now - the current time in milliseconds
+	 */
+	private void promote(long now) {
+		MessageEntry<T> entry = delayed.peek();
+		while ((entry != null) && (entry.notBeforeTimeInMillis < now)) {
+			delayed.poll();
+			if (!entry.cancelled) addReady(entry, false);
+			entry = delayed.peek();
+		}
+	}
+
+	/**
+	 * Returns the time when the next message waiting for a retry can be sent.
+	 * @return the {@code notBeforeTimeInMillis} of that message or {@link Long#MAX_VALUE} when no message is waiting
+	 */
+	long getNextDueTime() {
+		MessageEntry<T> entry = delayed.peek();
+		while ((entry != null) && entry.cancelled) {
+			delayed.poll();
+			entry = delayed.peek();
+		}
+		return entry != null ? entry.notBeforeTimeInMillis : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the earliest time when a parked tenant or a domain skipped by the last {@link #poll(long)}
+	 * is expected to provide the next token.
+	 * @return the time in milliseconds or {@link Long#MAX_VALUE} when no tenant or domain waits for tokens
+	 */
+	long getBlockedUntil() {
+		Tenant<T> parked = parkedTenants.peek();
+		return parked != null ? Math.min(blockedUntil, parked.parkedUntil) : blockedUntil;
+	}
+
+	/**
+	 * Returns the number of messages in this lane, including the spill.
+	 * @return the number of messages
+	 */
+	int size() {
+		return spill != null ? size + spill.size() - cancelledSpilled : size;
+	}
+
+	/**
+	 * Returns the number of messages picked for sending and not yet removed or put on hold.
+	 * @return the number of in-flight messages
+	 */
+	int inFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the time the oldest message waiting in this lane was queued.
+	 * <p>In-flight messages are not considered. Spilled messages are not considered either as
+	 *    they were queued after all messages in memory. The method takes linear time.</p>
+	 * @return the time in milliseconds or {@link Long#MAX_VALUE} when no message is waiting
+	 */
+	long getOldestQueuedTime() {
+		long rc = Long.MAX_VALUE;
+		for (Tenant<T> tenant : tenants.values()) {
+			for (Flow<T> flow : tenant.activeFlows) {
+				for (MessageEntry<T> entry : flow.ready) {
+					if (!entry.cancelled) rc = Math.min(rc, entry.queuedTimeInMillis);
+				}
+			}
+		}
+		for (MessageEntry<T> entry : delayed) {
+			if (!entry.cancelled) rc = Math.min(rc, entry.queuedTimeInMillis);
+		}
+		return rc;
+	}
+
+	/**
+	 * Returns the maximum number of messages in this lane, including the spill.
+	 * @return the capacity
+	 */
+	int capacity() {
+		MessageSpill<T> spill = this.spill;
+		return spill != null ? capacity + spill.getMaxSize() : capacity;
+	}
+
+	/**
+	 * Returns the number of messages that can still be added to this lane, including the spill.
+	 * @return the remaining capacity
+	 */
+	int remainingCapacity() {
+		int rc = Math.max(0, capacity - size);
+		return spill != null ? rc + spill.remainingCapacity() : rc;
+	}
+
+	/**
+	 * The ready messages of a single tenant.
+	 */
+	private static class Tenant<T> {
+		/** The tenant of the messages */
+		private TenantState state;
+		/** The flows of the tenant by domain */
+		private Map<DomainState, Flow<T>> flows;
+		/** The flows with ready messages in order of their turns */
+		private ArrayDeque<Flow<T>> activeFlows;
+		/** The number of messages the tenant may still send in its turn */
+		private int deficit;
+		/** Whether the tenant takes part in the rotation, parked tenants do as well */
+		private boolean active;
+		/** The time the tenant can send again while it is parked */
+		private long parkedUntil;
+
+		/**
+		 * Constructor.
+		 * @param state - the tenant of the messages
+		 */
+		private Tenant(TenantState state) {
+			this.state       = state;
+			this.flows       = new HashMap<>();
+			this.activeFlows = new ArrayDeque<>();
+			this.deficit     = 0;
+			this.active      = false;
+			this.parkedUntil = 0;
+		}
+	}
+
+	/**
+	 * The ready messages of a single domain of a tenant.
+	 */
+	private static class Flow<T> {
+		/** The domain of the messages */
+		private DomainState domain;
+		/** The ready messages in order of queuing */
+		private ArrayDeque<MessageEntry<T>> ready;
+		/** Whether the flow takes part in the rotation */
+		private boolean active;
+
+		/**
+		 * Constructor.
+		 * @param domain - the domain of the messages
+		 */
+		private Flow(DomainState domain) {
+			this.domain = domain;
+			this.ready  = new ArrayDeque<>();
+			this.active = false;
+		}
+	}
+}
@@ -1,12 +1,17 @@
 package rs.mail.queue;
 
+import java.util.List;
 import java.util.Properties;
 
 import jakarta.mail.Authenticator;
 import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
 import jakarta.mail.Session;
 import jakarta.mail.Transport;
 
+import rs.mail.queue.TransportPool.PooledTransport;
+
 /**
  * Sends messages for {@link javax.mail.Message} objects.
  *    
@@ -16,6 +21,7 @@ import jakarta.mail.Transport;
 public class MessageMailSender implements MailSender<Message> {
 
 	private Session session;
+	private TransportPool transportPool;
 	
 	/**
 	 * Constructor from system properties.
@@ -58,11 +64,125 @@ public class MessageMailSender implements MailSender<Message> {
 		return session;
 	}
 
+	/**
+	 * Returns the pool of connected transports.
+	 * @return the transport pool or {@code null} when each message opens its own connection
+	 */
+	public TransportPool getTransportPool() {
+		return transportPool;
+	}
+
+	/**
+	 * Sets the pool of connected transports.
+	 * <p>Messages will be sent over the transports of the pool which avoids connecting
+	 *    and authenticating for each message. The pool shall be created from the
+	 *    same session as this sender.</p>
+	 * @param transportPool the transport pool or {@code null} when each message shall open its own connection
+	 */
+	public void setTransportPool(TransportPool transportPool) {
+		this.transportPool = transportPool;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public void sendMessage(Message message, String referenceId) throws Exception {
-		Transport.send(message);
-	}				  
+		TransportPool pool = getTransportPool();
+		if (pool != null) {
+			PooledTransport transport = pool.borrow();
+			boolean broken = false;
+			try {
+				send(transport.getTransport(), message);
+				transport.messageSent();
+			} catch (Exception e) {
+				broken = isBroken(transport.getTransport(), e);
+				throw e;
+			} finally {
+				pool.release(transport, broken);
+			}
+		} else {
+			Transport.send(message);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>All messages are sent over a single connection, either borrowed from the
+	 *    transport pool or opened from the session's transport. A pooled connection is
+	 *    given back and another one is borrowed when the connection broke or reached the
+	 *    maximum number of messages of the pool. The remaining messages fail when no
+	 *    other connection can be borrowed.</p>
+	 */
+	@Override
+	public void sendMessages(List<BatchItem<Message>> batch) throws Exception {
+		TransportPool pool = getTransportPool();
+		if (pool != null) {
+			PooledTransport transport = pool.borrow();
+			try {
+				for (int i=0; i<batch.size(); i++) {
+					BatchItem<Message> item = batch.get(i);
+					if (transport == null) {
+						try {
+							transport = pool.borrow();
+						} catch (MessagingException | InterruptedException e) {
+							if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+							for (BatchItem<Message> remaining : batch.subList(i, batch.size())) remaining.setFailure(e);
+							return;
+						}
+					}
+					boolean broken = false;
+					try {
+						send(transport.getTransport(), item.getMessage());
+						transport.messageSent();
+					} catch (Exception e) {
+						item.setFailure(e);
+						broken = isBroken(transport.getTransport(), e);
+					}
+					if (broken || (transport.getMessageCount() >= pool.getMaxMessages())) {
+						pool.release(transport, broken);
+						transport = null;
+					}
+				}
+			} finally {
+				if (transport != null) pool.release(transport, false);
+			}
+		} else {
+			try (Transport transport = session.getTransport()) {
+				for (BatchItem<Message> item : batch) {
+					try {
+						if (!transport.isConnected()) transport.connect();
+						send(transport, item.getMessage());
+					} catch (Exception e) {
+						item.setFailure(e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decides whether a failure broke the connection.
+	 * <p>A {@link SendFailedException} is raised when the server rejected recipients or the
+	 *    message, e.g. with a 5xx reply. The connection is still usable then as long as it is
+	 *    connected. Any other failure leaves the connection in an unknown state.</p>
+	 * @param transport - the transport the message was sent over
+	 * @param e - the failure
+	 * @return {@code true} when the connection shall not be used anymore
+	 */
+	protected boolean isBroken(Transport transport, Exception e) {
+		if (e instanceof SendFailedException) return !transport.isConnected();
+		return true;
+	}
+
+	/**
+	 * Sends the message over the connected transport.
+	 * @param transport - the connected transport
+	 * @param message - the message
+	 * @throws MessagingException - when sending fails
+	 */
+	protected void send(Transport transport, Message message) throws MessagingException {
+		message.saveChanges();
+		transport.sendMessage(message, message.getAllRecipients());
+	}
 }
@@ -0,0 +1,416 @@
+package rs.mail.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+
+/**
+ * Takes the messages of a {@link MailQueue} lane that exceed its in-memory capacity.
+ * <p>A full lane writes new messages to segment files on local disk instead of rejecting them.
+ *    Once messages in memory were sent, the oldest messages are read back in order of queuing.
+ *    Messages queued while the spill holds messages are spilled as well, so the order is kept.
+ *    The heap only needs to hold the in-memory capacity of the lane while bursts of many more
+ *    messages are absorbed.</p>
+ * <p>The spill does not survive a restart, its directory is cleared when it is created.
+ *    Use a {@link MailQueueJournal} to restore the messages after a restart.</p>
+ * <p>Record format: {@code length (int), CRC32 (int), data}.</p>
+ *
+ * @param <T> the email message object
+ *
+ * @author ralph
+ *
+ * @see MailQueue#setSpill(boolean, MessageSpill)
+ */
+public class MessageSpill<T> implements AutoCloseable {
+
+	/** Default maximum number of messages in the spill */
+	public static final int DEFAULT_MAX_SIZE = 100000;
+	/** Default maximum size of a segment file in bytes */
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 64*1024*1024;
+
+	private static final int HEADER_SIZE = 8;
+	private static final String SEGMENT_PREFIX = "spill-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private Logger log = LoggerFactory.getLogger(getClass());
+
+	private Path directory;
+	private MessageCodec<T> codec;
+	private int maxSize;
+	private volatile long maxSegmentSize;
+	private ArrayDeque<Segment> segments;
+	private long nextIndex;
+	private volatile int size;
+
+	/**
+	 * Constructor.
+	 * <p>The spill uses the default maximum size.</p>
+	 * @param directory - the directory of the segment files, will be created if necessary
+	 * @param codec - the codec for storing the messages
+	 * @throws IOException when the directory cannot be prepared
+	 * @see #DEFAULT_MAX_SIZE
+	 */
+	public MessageSpill(Path directory, MessageCodec<T> codec) throws IOException {
+		this(directory, codec, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * <p>Segment files of a previous spill in the directory are deleted.</p>
+	 * @param directory - the directory of the segment files, will be created if necessary
+	 * @param codec - the codec for storing the messages
+	 * @param maxSize - the maximum number of messages in the spill
+	 * @throws IOException when the directory cannot be prepared
+	 */
+	public MessageSpill(Path directory, MessageCodec<T> codec, int maxSize) throws IOException {
+		this.directory      = directory;
+		this.codec          = codec;
+		this.maxSize        = maxSize;
+		this.maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+		this.segments       = new ArrayDeque<>();
+		this.nextIndex      = 1;
+		this.size           = 0;
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX+"*"+SEGMENT_SUFFIX)) {
+			for (Path path : stream) Files.delete(path);
+		}
+	}
+
+	/**
+	 * Returns the directory of the segment files.
+	 * @return the directory
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the codec for storing the messages.
+	 * @return the codec
+	 */
+	public MessageCodec<T> getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Returns the maximum number of messages in the spill.
+	 * @return the maximum size
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the maximum size of a segment file in bytes.
+	 * @return the maximum segment size (Default: 64MB)
+	 */
+	public long getMaxSegmentSize() {
+		return maxSegmentSize;
+	}
+
+	/**
+	 * Sets the maximum size of a segment file in bytes.
+	 * <p>Segments are deleted once all their messages were read back.</p>
+	 * @param maxSegmentSize the maximum segment size (Default: 64MB)
+	 */
+	public void setMaxSegmentSize(long maxSegmentSize) {
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	/**
+	 * Returns the number of messages in the spill.
+	 * @return the number of messages
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns whether the spill holds no messages.
+	 * @return {@code true} when the spill is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns whether the maximum number of messages is reached.
+	 * @return {@code true} when no more messages can be spilled
+	 */
+	public boolean isFull() {
+		return size >= maxSize;
+	}
+
+	/**
+	 * Returns the number of messages that can still be spilled.
+	 * @return the remaining capacity
+	 */
+	public int remainingCapacity() {
+		return Math.max(0, maxSize - size);
+	}
+
+	/**
+	 * Converts the message into bytes.
+	 * @param message the message
+	 * @return the bytes representing the message
+	 * @throws IOException when the message cannot be converted
+	 */
+	public byte[] encode(T message) throws IOException {
+		try {
+			return codec.encode(message);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Cannot encode message", e);
+		}
+	}
+
+	/**
+	 * Restores a message from its bytes.
+	 * @param data the bytes created by {@link #encode(Object)}
+	 * @return the message
+	 * @throws IOException when the message cannot be restored
+	 */
+	public T decode(byte[] data) throws IOException {
+		try {
+			return codec.decode(data);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Cannot decode message", e);
+		}
+	}
+
+	/**
+	 * Writes a message at the end of the spill.
+	 * @param entry the message entry
+	 * @param domain the recipient domain of the message, can be {@code null}
+	 * @param data the encoded message
+	 * @throws IOException when the message cannot be written
+	 */
+	protected synchronized void add(MessageEntry<T> entry, String domain, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length+64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeString(out, entry.referenceId);
+		writeString(out, domain);
+		writeString(out, entry.tenant != null ? entry.tenant.getTenant() : null);
+		out.writeByte(entry.getPriorityCode());
+		out.writeInt(entry.failedAttempts);
+		out.writeLong(entry.notBeforeTimeInMillis);
+		out.writeLong(entry.lastRetryDelay);
+		out.writeLong(entry.queuedTimeInMillis);
+		out.writeLong(entry.journalId);
+		out.writeInt(data.length);
+		out.write(data);
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE+payload.length);
+		buffer.putInt(payload.length);
+		buffer.putInt((int)crc.getValue());
+		buffer.put(payload);
+		buffer.flip();
+
+		Segment segment = segments.peekLast();
+		if ((segment == null) || (segment.writePosition >= maxSegmentSize)) segment = newSegment();
+		while (buffer.hasRemaining()) segment.writePosition += segment.channel.write(buffer, segment.writePosition);
+		segment.count++;
+		size++;
+	}
+
+	/**
+	 * Reads the oldest message from the spill.
+	 * <p>A corrupt segment is dropped with all its remaining messages.</p>
+	 * @return the message or {@code null} when the spill is empty
+	 * @throws IOException when the message cannot be read
+	 */
+	protected synchronized Spilled<T> poll() throws IOException {
+		while (size > 0) {
+			Segment segment = segments.peekFirst();
+			if (segment.count == 0) {
+				removeFirst();
+				continue;
+			}
+			byte[] payload = readRecord(segment);
+			if (payload == null) {
+				log.error("Dropping "+segment.count+" corrupt spilled messages in "+segment.path);
+				size -= segment.count;
+				segment.count = 0;
+				continue;
+			}
+			segment.count--;
+			size--;
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			String referenceId = readString(in);
+			String domain      = readString(in);
+			String tenant      = readString(in);
+			MessageEntry<T> entry = new MessageEntry<>(referenceId, null, MessageEntry.toPriorityCode(in.readByte()));
+			entry.failedAttempts        = in.readInt();
+			entry.notBeforeTimeInMillis = in.readLong();
+			entry.lastRetryDelay        = in.readLong();
+			entry.queuedTimeInMillis    = in.readLong();
+			entry.journalId             = in.readLong();
+			entry.data                  = new byte[in.readInt()];
+			in.readFully(entry.data);
+			if (segment.count == 0) {
+				if (segments.size() > 1) {
+					removeFirst();
+				} else {
+					// Reuse the file from its start
+					segment.readPosition  = 0;
+					segment.writePosition = 0;
+				}
+			}
+			return new Spilled<>(entry, domain, tenant);
+		}
+		return null;
+	}
+
+	/**
+	 * Deletes all messages and segment files.
+	 * @throws IOException when the files cannot be deleted
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		while (!segments.isEmpty()) removeFirst();
+		size = 0;
+	}
+
+	/**
+	 * Reads the next record of a segment.
+	 * @param segment the segment
+	 * @return the payload or {@code null} when the record is corrupt
+	 */
+	private byte[] readRecord(Segment segment) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (!readFully(segment.channel, header, segment.readPosition)) return null;
+		header.flip();
+		int length = header.getInt();
+		int crc    = header.getInt();
+		if ((length <= 0) || (segment.readPosition+HEADER_SIZE+length > segment.writePosition)) return null;
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		if (!readFully(segment.channel, payload, segment.readPosition+HEADER_SIZE)) return null;
+		CRC32 check = new CRC32();
+		check.update(payload.array());
+		if ((int)check.getValue() != crc) return null;
+		segment.readPosition += HEADER_SIZE+length;
+		return payload.array();
+	}
+
+	/**
+	 * Reads until the buffer is full.
+	 * @return {@code false} when the end of the file was reached before
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position+buffer.position());
+			if (read < 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts a new segment file.
+	 * @return the segment
+	 */
+	private Segment newSegment() throws IOException {
+		Path path = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, nextIndex++, SEGMENT_SUFFIX));
+		Segment rc = new Segment(path, FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+		segments.addLast(rc);
+		return rc;
+	}
+
+	/**
+	 * Closes and deletes the oldest segment file.
+	 */
+	private void removeFirst() throws IOException {
+		Segment segment = segments.pollFirst();
+		segment.channel.close();
+		Files.deleteIfExists(segment.path);
+	}
+
+	/**
+	 * Writes a string that can be {@code null}.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * A message read back from the spill.
+	 *
+	 * @param <T> the email message object
+	 */
+	static class Spilled<T> {
+		/** The message entry, its message is still encoded */
+		MessageEntry<T> entry;
+		/** The recipient domain of the message */
+		String domain;
+		/** The tenant of the message */
+		String tenant;
+
+		/**
+		 * Constructor.
+		 * @param entry - the message entry
+		 * @param domain - the recipient domain
+		 * @param tenant - the tenant
+		 */
+		Spilled(MessageEntry<T> entry, String domain, String tenant) {
+			this.entry  = entry;
+			this.domain = domain;
+			this.tenant = tenant;
+		}
+	}
+
+	/**
+	 * A segment file.
+	 */
+	private static class Segment {
+		/** The file */
+		private Path path;
+		/** The file for reading and writing */
+		private FileChannel channel;
+		/** The end of the written records */
+		private long writePosition;
+		/** The start of the next record to be read */
+		private long readPosition;
+		/** The number of records not read yet */
+		private int count;
+
+		/**
+		 * Constructor.
+		 * @param path - the file
+		 * @param channel - the opened file
+		 */
+		private Segment(Path path, FileChannel channel) {
+			this.path          = path;
+			this.channel       = channel;
+			this.writePosition = 0;
+			this.readPosition  = 0;
+			this.count         = 0;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package rs.mail.queue;
+
+/**
+ * The status of a message in a {@link MailQueue}.
+ * 
+ * @author ralph
+ *
+ * @see MailQueue#getStatus(String)
+ */
+public enum MessageStatus {
+
+	/**
+	 * The message waits for its turn to be sent.
+	 */
+	QUEUED,
+	
+	/**
+	 * The message waits until it can be tried again after sending failed.
+	 */
+	DELAYED,
+	
+	/**
+	 * The message waits in the spill of its lane as the lane was full.
+	 */
+	SPILLED,
+	
+	/**
+	 * The message was picked and is being sent.
+	 */
+	SENDING;
+	
+}
@@ -0,0 +1,54 @@
+package rs.mail.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Converts JavaMail messages into their RFC 822 representation and back.
+ * 
+ * @author ralph
+ *
+ */
+public class MimeMessageCodec implements MessageCodec<Message> {
+
+	private Session session;
+	
+	/**
+	 * Constructor.
+	 * @param session - the session that restored messages will belong to
+	 */
+	public MimeMessageCodec(Session session) {
+		this.session = session;
+	}
+
+	/**
+	 * Returns the session that restored messages will belong to.
+	 * @return the session
+	 */
+	public Session getSession() {
+		return session;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] encode(Message message) throws Exception {
+		ByteArrayOutputStream rc = new ByteArrayOutputStream(4096);
+		message.writeTo(rc);
+		return rc.toByteArray();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Message decode(byte[] data) throws Exception {
+		return new MimeMessage(session, new ByteArrayInputStream(data));
+	}
+
+}
@@ -0,0 +1,87 @@
+package rs.mail.queue;
+
+/**
+ * A class of messages that share a capacity and a share of the sending capacity.
+ * <p>A {@link MailQueue} keeps the messages of each class apart. When messages of several
+ *    classes are waiting, the classes take turns in the order they were given to the queue.
+ *    Each class may send as many messages in its turn as its weight says (deficit round-robin).
+ *    A class with weight 10 therefore sends ten times as many messages as a class with weight 1
+ *    while both are busy, but cannot hold back the other class indefinitely. A class that has no
+ *    message ready gives up its turn immediately.</p>
+ * <p>The first class receives messages queued with priority, the second class receives all other
+ *    messages queued without a class.</p>
+ *
+ * <pre>
+ * new MailQueue&lt;&gt;(sender, List.of(
+ * 	new PriorityClass("transactional", 100,   20),
+ * 	new PriorityClass("notification",  1000,  5),
+ * 	new PriorityClass("digest",        5000,  2),
+ * 	new PriorityClass("marketing",     50000, 1)
+ * ));
+ * </pre>
+ *
+ * @author ralph
+ *
+ * @see MailQueue#MailQueue(MailSender, java.util.List)
+ * @see MailQueue#queue(Object, String, String)
+ */
+public class PriorityClass {
+
+	/** Name of the class for priority messages of a queue with two classes */
+	public static final String PRIORITY = "priority";
+	/** Name of the class for normal messages of a queue with two classes */
+	public static final String NORMAL   = "normal";
+
+	private String name;
+	private int capacity;
+	private int weight;
+
+	/**
+	 * Constructor.
+	 * @param name - the name of the class
+	 * @param capacity - the maximum number of messages of this class in the queue
+	 * @param weight - the number of messages this class may send in its turn, at least 1
+	 * @throws IllegalArgumentException when the name is missing, the capacity is negative or the weight is less than 1
+	 */
+	public PriorityClass(String name, int capacity, int weight) {
+		if (name == null) throw new IllegalArgumentException("Name is required");
+		if (capacity < 0) throw new IllegalArgumentException("Capacity must not be negative");
+		if (weight < 1)   throw new IllegalArgumentException("Weight must be at least 1");
+		this.name     = name;
+		this.capacity = capacity;
+		this.weight   = weight;
+	}
+
+	/**
+	 * Returns the name of the class.
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the maximum number of messages of this class in the queue.
+	 * <p>The capacity does not include a spill.</p>
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of messages this class may send in its turn.
+	 * @return the weight
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return name+"[capacity="+capacity+",weight="+weight+"]";
+	}
+}
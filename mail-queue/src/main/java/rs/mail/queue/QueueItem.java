@@ -0,0 +1,105 @@
+package rs.mail.queue;
+
+/**
+ * A message to be queued as part of a bulk.
+ * <p>The {@link MailQueue} records in the item whether the message was queued.</p>
+ *
+ * @param <T> the type of email object
+ *
+ * @author ralph
+ *
+ * @see MailQueue#queueAll(java.util.Collection)
+ */
+public class QueueItem<T> {
+
+	private T message;
+	private String referenceId;
+	private String priorityClass;
+	private String tenant;
+	private boolean queued;
+
+	/**
+	 * Constructor.
+	 * <p>The message will be queued without priority.</p>
+	 * @param message - the message object
+	 * @param referenceId - the reference ID of the message
+	 */
+	public QueueItem(T message, String referenceId) {
+		this(message, referenceId, null, null);
+	}
+
+	/**
+	 * Constructor.
+	 * @param message - the message object
+	 * @param referenceId - the reference ID of the message
+	 * @param priorityClass - the name of the priority class, {@code null} when the message has no priority
+	 */
+	public QueueItem(T message, String referenceId, String priorityClass) {
+		this(message, referenceId, priorityClass, null);
+	}
+
+	/**
+	 * Constructor.
+	 * @param message - the message object
+	 * @param referenceId - the reference ID of the message
+	 * @param priorityClass - the name of the priority class, {@code null} when the message has no priority
+	 * @param tenant - the tenant of the message, {@code null} when the tenant extractor shall determine it
+	 */
+	public QueueItem(T message, String referenceId, String priorityClass, String tenant) {
+		this.message       = message;
+		this.referenceId   = referenceId;
+		this.priorityClass = priorityClass;
+		this.tenant        = tenant;
+		this.queued        = false;
+	}
+
+	/**
+	 * Returns the message.
+	 * @return the message
+	 */
+	public T getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the reference ID.
+	 * @return the reference ID
+	 */
+	public String getReferenceId() {
+		return referenceId;
+	}
+
+	/**
+	 * Returns the name of the priority class.
+	 * @return the priority class or {@code null} when the message has no priority
+	 */
+	public String getPriorityClass() {
+		return priorityClass;
+	}
+
+	/**
+	 * Returns the tenant.
+	 * @return the tenant or {@code null} when the tenant extractor shall determine it
+	 */
+	public String getTenant() {
+		return tenant;
+	}
+
+	/**
+	 * Returns whether the message was queued.
+	 * <p>A duplicate counts as queued.</p>
+	 * @return {@code true} when the message was queued, {@code false} when it was rejected
+	 */
+	public boolean isQueued() {
+		return queued;
+	}
+
+	/**
+	 * Records whether the message was queued.
+	 * @param queued whether the message was queued
+	 */
+	public void setQueued(boolean queued) {
+		this.queued = queued;
+	}
+
+}
@@ -0,0 +1,72 @@
+package rs.mail.queue;
+
+import java.lang.reflect.Method;
+
+/**
+ * Decides whether and when a message that could not be sent shall be tried again.
+ * <p>A policy can take the failure cause into account, e.g. to give up on permanent
+ *    SMTP errors (5xx) immediately or to retry temporary errors (4xx) sooner.</p>
+ * 
+ * @author ralph
+ *
+ * @see MailQueue#setRetryPolicy(RetryPolicy)
+ * @see FixedRetryPolicy
+ * @see ExponentialBackoffRetryPolicy
+ */
+@FunctionalInterface
+public interface RetryPolicy {
+
+	/** Delay value that tells the queue to give up on the message */
+	public static final long GIVE_UP = -1;
+	
+	/**
+	 * Returns the delay before the message shall be tried again.
+	 * @param failedAttempts - the number of failed attempts including the current failure
+	 * @param lastDelay - the delay returned for the previous failure, 0 for the first failure
+	 * @param cause - the reason of the current failure
+	 * @return the delay in milliseconds or {@link #GIVE_UP} when the message shall not be tried again
+	 */
+	public long getRetryDelay(int failedAttempts, long lastDelay, Throwable cause);
+	
+	/**
+	 * Returns the SMTP reply code of a failure.
+	 * <p>The method inspects the cause chain for an exception of the SMTP provider
+	 *    that reports a reply code (e.g. {@code SMTPSendFailedException}).</p>
+	 * @param cause - the reason of a failure
+	 * @return the SMTP reply code or 0 when it cannot be determined
+	 */
+	public static int getSmtpReturnCode(Throwable cause) {
+		Throwable t = cause;
+		for (int depth=0; (t != null) && (depth < 10); depth++) {
+			try {
+				Method method = t.getClass().getMethod("getReturnCode");
+				Object rc = method.invoke(t);
+				if (rc instanceof Integer) return (Integer)rc;
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// Not an SMTP exception
+			}
+			t = t.getCause();
+		}
+		return 0;
+	}
+	
+	/**
+	 * Returns whether the failure is permanent (SMTP reply code 5xx).
+	 * @param cause - the reason of a failure
+	 * @return {@code true} when trying again will not succeed
+	 */
+	public static boolean isPermanentFailure(Throwable cause) {
+		int code = getSmtpReturnCode(cause);
+		return (code >= 500) && (code < 600);
+	}
+	
+	/**
+	 * Returns whether the failure is temporary (SMTP reply code 4xx).
+	 * @param cause - the reason of a failure
+	 * @return {@code true} when the mail server asked to try again later
+	 */
+	public static boolean isTemporaryFailure(Throwable cause) {
+		int code = getSmtpReturnCode(cause);
+		return (code >= 400) && (code < 500);
+	}
+}
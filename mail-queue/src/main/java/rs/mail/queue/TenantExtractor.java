@@ -0,0 +1,25 @@
+package rs.mail.queue;
+
+/**
+ * Determines the tenant of a message.
+ * <p>A {@link MailQueue} uses the tenant to keep messages of different tenants
+ *    apart and to apply the {@link TenantPolicy} of a tenant.</p>
+ * 
+ * @param <T> the type of email object
+ * 
+ * @author ralph
+ *
+ * @see MailQueue#setTenantExtractor(TenantExtractor)
+ */
+@FunctionalInterface
+public interface TenantExtractor<T> {
+
+	/**
+	 * Returns the tenant of the message.
+	 * @param message - the message object
+	 * @return the tenant or {@code null} when it cannot be determined
+	 * @throws Exception - when the message cannot be inspected
+	 */
+	public String getTenant(T message) throws Exception;
+	
+}
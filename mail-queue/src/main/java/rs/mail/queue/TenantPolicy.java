@@ -0,0 +1,104 @@
+package rs.mail.queue;
+
+import com.github.cowwoc.tokenbucket.Bucket;
+
+/**
+ * Limits for the messages of a specific tenant.
+ * <p>A {@link MailQueue} serving many tenants keeps the messages of each tenant apart.
+ *    Tenants with messages ready take turns when the next message is picked, so a tenant
+ *    queuing a large campaign does not hold back the messages of other tenants. The policy
+ *    limits how many messages a tenant may have in the queue, how fast they are sent and
+ *    how many messages the tenant may send in its turn.</p>
+ * 
+ * @author ralph
+ *
+ * @see MailQueue#setTenantPolicy(String, TenantPolicy)
+ */
+public class TenantPolicy {
+
+	/** Value of the maximum number of queued messages when there is no limit */
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+	
+	private Bucket tokenBucket;
+	private int maxSize;
+	private int weight;
+	
+	/**
+	 * Constructor.
+	 * <p>The policy has no limits and a weight of 1.</p>
+	 */
+	public TenantPolicy() {
+		this(null, UNLIMITED, 1);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param tokenBucket - the token bucket for this tenant, can be {@code null}
+	 * @param maxSize - the maximum number of messages of this tenant in the queue
+	 * @param weight - the number of messages this tenant may send in its turn
+	 * @throws IllegalArgumentException when the weight is less than 1
+	 */
+	public TenantPolicy(Bucket tokenBucket, int maxSize, int weight) {
+		if (weight < 1) throw new IllegalArgumentException("Weight must be at least 1");
+		this.tokenBucket = tokenBucket;
+		this.maxSize     = maxSize;
+		this.weight      = weight;
+	}
+
+	/**
+	 * Returns the token bucket.
+	 * <p>The token bucket controls how many emails of the tenant may be sent in a certain time window.
+	 *    It applies in addition to the token buckets of the queue and the recipient domain.</p>
+	 * @return the token bucket or {@code null} when there is no restriction
+	 */
+	public Bucket getTokenBucket() {
+		return tokenBucket;
+	}
+
+	/**
+	 * Sets the token bucket.
+	 * <p>The token bucket controls how many emails of the tenant may be sent in a certain time window.
+	 *    It applies in addition to the token buckets of the queue and the recipient domain.</p>
+	 * @param tokenBucket the token bucket or {@code null} when there is no restriction
+	 */
+	public void setTokenBucket(Bucket tokenBucket) {
+		this.tokenBucket = tokenBucket;
+	}
+
+	/**
+	 * Returns the maximum number of messages of the tenant in the queue.
+	 * <p>Spilled messages count towards this limit.</p>
+	 * @return the maximum number of messages (Default: {@link #UNLIMITED})
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum number of messages of the tenant in the queue.
+	 * <p>Further messages of the tenant are rejected, even when the queue has space left.</p>
+	 * @param maxSize the maximum number of messages (Default: {@link #UNLIMITED})
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the number of messages the tenant may send in its turn.
+	 * @return the weight (Default: 1)
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Sets the number of messages the tenant may send in its turn.
+	 * @param weight the weight, at least 1 (Default: 1)
+	 * @throws IllegalArgumentException when the weight is less than 1
+	 */
+	public void setWeight(int weight) {
+		if (weight < 1) throw new IllegalArgumentException("Weight must be at least 1");
+		this.weight = weight;
+	}
+	
+}
@@ -0,0 +1,121 @@
+package rs.mail.queue;
+
+import com.github.cowwoc.tokenbucket.Bucket;
+import com.github.cowwoc.tokenbucket.ConsumptionResult;
+
+/**
+ * Runtime state of a tenant in a {@link MailQueue}.
+ * <p>The state is shared by all lanes of the queue. It counts the messages of the
+ *    tenant, including spilled messages, and decides whether another message of the
+ *    tenant can be queued or sent according to its {@link TenantPolicy}.</p>
+ * <p>This class is not thread-safe. All access must be guarded by the lock of the
+ *    owning {@link MailQueue}.</p>
+ *
+ * @author ralph
+ *
+ */
+class TenantState {
+
+	private String tenant;
+	private TenantPolicy policy;
+	private int size;
+	private long nextTokenTimeInMillis;
+	private int refunded;
+
+	/**
+	 * Constructor.
+	 * @param tenant - the tenant, can be {@code null} for messages without tenant
+	 * @param policy - the policy of the tenant
+	 */
+	TenantState(String tenant, TenantPolicy policy) {
+		this.tenant   = tenant;
+		this.policy   = policy;
+		this.size     = 0;
+		this.refunded = 0;
+	}
+
+	/**
+	 * Returns the tenant.
+	 * @return the tenant
+	 */
+	String getTenant() {
+		return tenant;
+	}
+
+	/**
+	 * Returns the policy.
+	 * @return the policy
+	 */
+	TenantPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns whether the maximum number of messages of the tenant is reached.
+	 * @return {@code true} when no more messages of the tenant can be queued
+	 */
+	boolean isFull() {
+		return size >= policy.getMaxSize();
+	}
+
+	/**
+	 * Tries to consume a token of the tenant's token bucket.
+	 * <p>Tokens given back by {@link #refund()} are used first.</p>
+	 * @return {@code true} when a message of the tenant can be sent
+	 */
+	boolean tryAcquire() {
+		if (refunded > 0) {
+			refunded--;
+			return true;
+		}
+		Bucket tokenBucket = policy.getTokenBucket();
+		if (tokenBucket != null) {
+			ConsumptionResult result = tokenBucket.tryConsume();
+			if (result.getTokensConsumed() == 0) {
+				nextTokenTimeInMillis = result.getAvailableAt().toEpochMilli();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back a token that was acquired but not used as no message was sent.
+	 * <p>The token bucket cannot take tokens back, so the token is kept for the next {@link #tryAcquire()}.</p>
+	 */
+	void refund() {
+		if (policy.getTokenBucket() != null) refunded++;
+	}
+
+	/**
+	 * Returns the time when the tenant's token bucket is expected to provide the next token.
+	 * @return the time in milliseconds
+	 */
+	long getNextTokenTime() {
+		return nextTokenTimeInMillis;
+	}
+
+	/**
+	 * Records that a message of the tenant was queued.
+	 */
+	void added() {
+		size++;
+	}
+
+	/**
+	 * Records that a message of the tenant left the queue.
+	 * @return {@code true} when no more messages of the tenant are queued
+	 */
+	boolean removed() {
+		size--;
+		return size <= 0;
+	}
+
+	/**
+	 * Returns the number of messages of the tenant in the queue.
+	 * @return the number of messages
+	 */
+	int size() {
+		return size;
+	}
+}
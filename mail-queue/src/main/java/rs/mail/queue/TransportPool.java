@@ -0,0 +1,352 @@
+package rs.mail.queue;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+
+/**
+ * A bounded pool of connected {@link Transport} objects of a mail session.
+ * <p>Connecting to a mail relay requires a TCP connection, usually a TLS handshake and
+ *    the authentication. The pool keeps connected transports and hands them out for
+ *    sending messages again and again, also across threads.</p>
+ * <p>A transport is not reused but closed when</p>
+ * <ul>
+ * <li>it was idle for longer than the maximum idle time,</li>
+ * <li>it was connected for longer than the maximum lifetime,</li>
+ * <li>it has sent the maximum number of messages per connection,</li>
+ * <li>it is not connected anymore (the SMTP transport sends a NOOP command to check this), or</li>
+ * <li>it was returned as broken.</li>
+ * </ul>
+ * <p>Idle transports are evicted whenever a transport is borrowed or returned, or when
+ *    {@link #evictIdle()} is called explicitly.</p>
+ *
+ * @author ralph
+ *
+ */
+public class TransportPool implements AutoCloseable {
+
+	/** Default maximum number of connected transports */
+	public static final int DEFAULT_MAX_SIZE = 4;
+	/** Default maximum time in milliseconds a transport can be idle before it is closed */
+	public static final long DEFAULT_MAX_IDLE_TIME = 30000;
+	/** Default maximum time in milliseconds a transport will be used after it was connected */
+	public static final long DEFAULT_MAX_LIFETIME = 600000;
+	/** Default maximum number of messages sent over a single connection */
+	public static final int DEFAULT_MAX_MESSAGES = 100;
+	/** Default maximum time in milliseconds to wait for a transport when all are in use */
+	public static final long DEFAULT_BORROW_TIMEOUT = 30000;
+
+	private Logger log = LoggerFactory.getLogger(getClass());
+
+	private Session session;
+	private int maxSize;
+	private Semaphore permits;
+	private ArrayDeque<PooledTransport> idle;
+	private volatile long maxIdleTime;
+	private volatile long maxLifetime;
+	private volatile int maxMessages;
+	private volatile long borrowTimeout;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor.
+	 * <p>The pool will use the standard maximum size.</p>
+	 * @param session - the mail session to create transports from
+	 * @see #DEFAULT_MAX_SIZE
+	 */
+	public TransportPool(Session session) {
+		this(session, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * @param session - the mail session to create transports from
+	 * @param maxSize - the maximum number of connected transports
+	 */
+	public TransportPool(Session session, int maxSize) {
+		if (maxSize < 1) throw new IllegalArgumentException("Pool size must be at least 1");
+		this.session       = session;
+		this.maxSize       = maxSize;
+		this.permits       = new Semaphore(maxSize, true);
+		this.idle          = new ArrayDeque<>(maxSize);
+		this.maxIdleTime   = DEFAULT_MAX_IDLE_TIME;
+		this.maxLifetime   = DEFAULT_MAX_LIFETIME;
+		this.maxMessages   = DEFAULT_MAX_MESSAGES;
+		this.borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+		this.closed        = false;
+	}
+
+	/**
+	 * Returns the mail session.
+	 * @return the session
+	 */
+	public Session getSession() {
+		return session;
+	}
+
+	/**
+	 * Returns the maximum number of connected transports.
+	 * @return the maximum size
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the maximum time in milliseconds a transport can be idle before it is closed.
+	 * @return the maximum idle time (Default: 30000)
+	 */
+	public long getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds a transport can be idle before it is closed.
+	 * @param maxIdleTime the maximum idle time (Default: 30000)
+	 */
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	/**
+	 * Returns the maximum time in milliseconds a transport will be used after it was connected.
+	 * @return the maximum lifetime (Default: 600000)
+	 */
+	public long getMaxLifetime() {
+		return maxLifetime;
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds a transport will be used after it was connected.
+	 * @param maxLifetime the maximum lifetime (Default: 600000)
+	 */
+	public void setMaxLifetime(long maxLifetime) {
+		this.maxLifetime = maxLifetime;
+	}
+
+	/**
+	 * Returns the maximum number of messages sent over a single connection.
+	 * @return the maximum number of messages (Default: 100)
+	 */
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	/**
+	 * Sets the maximum number of messages sent over a single connection.
+	 * @param maxMessages the maximum number of messages (Default: 100)
+	 */
+	public void setMaxMessages(int maxMessages) {
+		this.maxMessages = maxMessages;
+	}
+
+	/**
+	 * Returns the maximum time in milliseconds to wait for a transport when all are in use.
+	 * @return the borrow timeout (Default: 30000)
+	 */
+	public long getBorrowTimeout() {
+		return borrowTimeout;
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds to wait for a transport when all are in use.
+	 * @param borrowTimeout the borrow timeout (Default: 30000)
+	 */
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/**
+	 * Returns the number of connected transports that are currently not in use.
+	 * @return the number of idle transports
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Borrows a connected transport from the pool.
+	 * <p>The method reuses an idle transport that is still alive or connects a new one.
+	 *    It blocks until a transport becomes available when all transports are in use.
+	 *    The transport must be given back by {@link #release(PooledTransport, boolean)}.</p>
+	 * @return the connected transport
+	 * @throws MessagingException when no transport can be connected or the borrow timeout elapsed
+	 * @throws InterruptedException when the thread was interrupted while waiting
+	 */
+	public PooledTransport borrow() throws MessagingException, InterruptedException {
+		if (closed) throw new MessagingException("Transport pool is closed");
+		if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+			throw new MessagingException("No transport available within "+borrowTimeout+"ms");
+		}
+		try {
+			PooledTransport rc = pollIdle();
+			while (rc != null) {
+				if (isReusable(rc, System.currentTimeMillis()) && rc.transport.isConnected()) return rc;
+				close(rc);
+				rc = pollIdle();
+			}
+			Transport transport = session.getTransport();
+			transport.connect();
+			return new PooledTransport(transport);
+		} catch (MessagingException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives a borrowed transport back to the pool.
+	 * <p>Broken transports and transports that reached their maximum lifetime or number of
+	 *    messages are closed instead of being reused.</p>
+	 * @param transport the transport borrowed from this pool
+	 * @param broken {@code true} when the transport shall not be reused
+	 */
+	public void release(PooledTransport transport, boolean broken) {
+		try {
+			long now = System.currentTimeMillis();
+			transport.lastUsedTimeInMillis = now;
+			if (broken || closed || !isReusable(transport, now)) {
+				close(transport);
+			} else {
+				synchronized (this) {
+					idle.addFirst(transport);
+				}
+			}
+			evictIdle();
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes all idle transports that exceeded the maximum idle time or lifetime.
+	 */
+	public void evictIdle() {
+		long now = System.currentTimeMillis();
+		PooledTransport evicted = pollExpired(now);
+		while (evicted != null) {
+			close(evicted);
+			evicted = pollExpired(now);
+		}
+	}
+
+	/**
+	 * Closes all idle transports and refuses to hand out transports afterwards.
+	 * <p>Transports currently in use are closed when they are given back.</p>
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		PooledTransport transport = pollIdle();
+		while (transport != null) {
+			close(transport);
+			transport = pollIdle();
+		}
+	}
+
+	/**
+	 * Takes the most recently used idle transport.
+	 * @return the transport or {@code null} when no transport is idle
+	 */
+	private synchronized PooledTransport pollIdle() {
+		return idle.pollFirst();
+	}
+
+	/**
+	 * Takes an idle transport that shall not be used anymore.
+	 * <p>The least recently used transports are at the end of the idle transports.</p>
+	 * @param now the current time in milliseconds
+	 * @return the transport or {@code null} when no transport expired
+	 */
+	private synchronized PooledTransport pollExpired(long now) {
+		Iterator<PooledTransport> i = idle.descendingIterator();
+		while (i.hasNext()) {
+			PooledTransport transport = i.next();
+			if (!isReusable(transport, now)) {
+				i.remove();
+				return transport;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks the idle time, lifetime and number of messages of the transport.
+	 * @param transport the transport
+	 * @param now the current time in milliseconds
+	 * @return {@code true} when the transport can be used again
+	 */
+	private boolean isReusable(PooledTransport transport, long now) {
+		return (now - transport.lastUsedTimeInMillis <= maxIdleTime)
+				&& (now - transport.createdTimeInMillis <= maxLifetime)
+				&& (transport.messageCount < maxMessages);
+	}
+
+	/**
+	 * Closes the transport quietly.
+	 * @param transport the transport
+	 */
+	private void close(PooledTransport transport) {
+		try {
+			transport.transport.close();
+		} catch (Throwable t) {
+			if (log.isDebugEnabled()) log.debug("Cannot close transport", t);
+		}
+	}
+
+	/**
+	 * A connected transport borrowed from the pool.
+	 *
+	 * @author ralph
+	 *
+	 */
+	public static class PooledTransport {
+
+		private Transport transport;
+		private long createdTimeInMillis;
+		private long lastUsedTimeInMillis;
+		private int messageCount;
+
+		/**
+		 * Constructor.
+		 * @param transport the connected transport
+		 */
+		protected PooledTransport(Transport transport) {
+			this.transport            = transport;
+			this.createdTimeInMillis  = System.currentTimeMillis();
+			this.lastUsedTimeInMillis = createdTimeInMillis;
+			this.messageCount         = 0;
+		}
+
+		/**
+		 * Returns the connected transport.
+		 * @return the transport
+		 */
+		public Transport getTransport() {
+			return transport;
+		}
+
+		/**
+		 * Returns the number of messages sent over this connection.
+		 * @return the number of messages
+		 */
+		public int getMessageCount() {
+			return messageCount;
+		}
+
+		/**
+		 * Records that a message was sent over this connection.
+		 */
+		public void messageSent() {
+			messageCount++;
+		}
+	}
+}
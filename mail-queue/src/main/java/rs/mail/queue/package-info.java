@@ -50,6 +50,54 @@
  * <p>Please notice that you can control the capacity only when creating the queue. Once set
  * it cannot be modified anymore.</p>
  * 
+ * <p>Instead of rejecting messages when the capacity is exhausted, the queue can spill them to local disk.
+ * Spilled messages are read back in order of queuing as the messages in memory are sent. The size and
+ * capacity of the queue include the spilled messages then.</p>
+ * 
+ * <pre>
+ * queue.setSpill(false, new MessageSpill&lt;&gt;(Path.of("/tmp/mail-queue-spill"), new MimeMessageCodec(session), 100000));
+ * </pre>
+ *
+ * <h2>Priority Classes</h2>
+ * 
+ * <p>Priority messages are preferred over normal messages, but a flood of priority messages does not hold back
+ * normal messages forever: while both are waiting, the queue sends 10 priority messages for each normal
+ * message. Earlier versions always sent priority messages first, give the priority class a weight of
+ * {@code Integer.MAX_VALUE} for this strict precedence. You can define any number of priority classes, each with its own capacity and weight:</p>
+ * 
+ * <pre>
+ * MailQueue&lt;Message&gt; queue = new MailQueue&lt;&gt;(sender, List.of(
+ * 	new PriorityClass("transactional", 100,   20),
+ * 	new PriorityClass("notification",  1000,  5),
+ * 	new PriorityClass("marketing",     50000, 1)
+ * ));
+ * queue.queue(message, referenceId, "marketing");
+ * </pre>
+ * 
+ * <p>The classes take turns in the given order. Each class may send as many messages in its turn as its weight
+ * says, but gives up its turn as soon as it has no message ready. Messages queued with priority belong to the
+ * first class, other messages to the second class.</p>
+ * 
+ * <h2>Queuing in Bulk</h2>
+ * 
+ * <p>{@code queueAll()} queues many messages while locking the queue and forcing the journal only once.
+ * Each {@code QueueItem} records whether its message was queued. An atomic bulk is queued completely or
+ * not at all:</p>
+ * 
+ * <pre>
+ * int queued = queue.queueAll(items);
+ * queue.queueAll(items, true);
+ * </pre>
+ * 
+ * <h2>Reactive Producers</h2>
+ * 
+ * <p>A {@code MailQueueSubscriber} feeds the messages of a {@code Flow.Publisher} into the queue. It requests
+ * messages only as the queue has space for them, so no message is rejected:</p>
+ * 
+ * <pre>
+ * publisher.subscribe(new MailQueueSubscriber&lt;&gt;(queue, PriorityClass.NORMAL));
+ * </pre>
+ * 
  * <h2>Throttling</h2>
  * 
  * <p>The sending process can be throttled by using a token bucket. The {@code MailQueue} can be
@@ -74,8 +122,89 @@
  * <p>That said it is made clear that {@code run()} will never block when there is nothing to do at
  * the given moment. It will simply return.</p>
  * 
+ * <p>{@code run()} returns the time when calling it again is useful, i.e. when the token bucket is
+ * expected to provide the next token or the next retry becomes due. {@code run(timeout)} processes
+ * the queue and then blocks exactly until that time or until a new message is queued.</p>
+ * 
  * <p>You can start a separate thread in your application and run the method periodically.</p>
  * 
+ * <p>Alternatively, the {@code MailQueue} can process itself. {@code start()} starts a worker
+ * thread that waits until a message is queued, a retry becomes due or the token bucket provides
+ * the next token. It does not poll and sends new messages without delay.</p>
+ * 
+ * <pre>
+ * queue.start();
+ * ...
+ * queue.stop();
+ * </pre>
+ * 
+ * <p>Several worker threads send messages concurrently. Workers still honor the token bucket, the
+ * retry settings and the priority of messages. Your {@code MailSender} and listeners must be
+ * thread-safe in this case.</p>
+ * 
+ * <pre>
+ * queue.start(4);
+ * </pre>
+ * 
+ * <p>Virtual threads can be used instead of a fixed number of workers. The queue then starts a
+ * virtual thread for each message being sent, limited by the given maximum number of
+ * concurrent messages:</p>
+ * 
+ * <pre>
+ * queue.start(ExecutionMode.VIRTUAL_THREADS, 1000);
+ * </pre>
+ * 
+ * <p>The queue can hand several ready messages to the {@code MailSender} at once. {@code MessageMailSender}
+ * sends such a batch over a single connection. Each message still requires a token from the token bucket
+ * and listeners are informed about each message individually.</p>
+ * 
+ * <pre>
+ * queue.setBatchSize(20);
+ * </pre>
+ * 
+ * <h2>Tenants</h2>
+ * 
+ * <p>When a single queue serves many customers, a large campaign of one customer must not delay the
+ * messages of all others. The queue can keep the messages of different tenants apart. Tenants with
+ * messages ready then take turns when messages are sent:</p>
+ * 
+ * <pre>
+ * queue.setTenantExtractor(message -&gt; getCustomerId(message));
+ * queue.setTenantPolicy("acme", new TenantPolicy(acmeBucket, 200000, 2));
+ * queue.queue(message, referenceId, false, "acme"); // or pass the tenant explicitly
+ * </pre>
+ * 
+ * <p>A {@code TenantPolicy} defines the token bucket, the maximum number of messages in the queue and the
+ * weight of a tenant, i.e. the number of messages it may send in its turn.</p>
+ * 
+ * <h2>Duplicate Messages</h2>
+ * 
+ * <p>A {@code DeduplicationIndex} makes queuing idempotent by the reference ID. A message is not queued
+ * again while a message with the same reference ID is queued, being sent or was sent within the TTL
+ * of the index:</p>
+ * 
+ * <pre>
+ * queue.setDeduplicationIndex(new DeduplicationIndex(1000000, 24*60*60*1000L));
+ * </pre>
+ * 
+ * <h2>Status and Cancellation</h2>
+ * 
+ * <p>A queued message can be looked up and withdrawn by its reference ID in constant time:</p>
+ * 
+ * <pre>
+ * MessageStatus status = queue.getStatus(referenceId);
+ * queue.cancel(referenceId);
+ * </pre>
+ * 
+ * <h2>Awaiting the Outcome</h2>
+ * 
+ * <p>{@code submit()} queues a message and returns a future of its {@code DeliveryResult}. The future
+ * completes on the completion executor once the message was sent, given up, cancelled or rejected:</p>
+ * 
+ * <pre>
+ * queue.submit(message, referenceId).thenAccept(result -&gt; ...);
+ * </pre>
+ * 
  * <h2>Failed Message Sending</h2>
  * 
  * <p>Messages that cannot be sent due to some failure will be queued for a limited number of retries
@@ -88,6 +217,44 @@
  * 
  * <p>Default behaviour is to retry every 60 seconds and 3 times.</p>
  * 
+ * <p>A {@code RetryPolicy} sees the failure and decides whether and when the message is tried again.
+ * {@code ExponentialBackoffRetryPolicy} doubles the delay with each failure up to a maximum delay and
+ * adds a random jitter. It gives up on permanent SMTP errors (5xx) immediately and retries temporary
+ * SMTP errors (4xx) with a shorter delay.</p>
+ * 
+ * <pre>
+ * queue.setRetryPolicy(new ExponentialBackoffRetryPolicy(5, 60000, 3600000, Jitter.FULL));
+ * </pre>
+ * 
+ * <h2>Surviving a Restart</h2>
+ * 
+ * <p>A {@code MailQueueJournal} records each queued, sent, failed and abandoned message in segment files
+ * and restores the remaining messages when the queue is set up again after a restart or crash. A
+ * {@code MessageCodec} converts the messages into bytes. Queuing a message waits until its record was forced
+ * to disk, concurrent producers share a single force (group commit).</p>
+ * 
+ * <pre>
+ * MailQueueJournal&lt;Message&gt; journal = new MailQueueJournal&lt;&gt;(Path.of("/var/spool/mail-queue"), new MimeMessageCodec(session));
+ * queue.setJournal(journal);
+ * </pre>
+ * 
+ * <p>A {@code MappedMessageStore} keeps the queued messages as bytes in a memory-mapped ring buffer
+ * instead of the heap and restores each message right before it is sent.</p>
+ * 
+ * <pre>
+ * queue.setMessageStore(new MappedMessageStore&lt;&gt;(new MimeMessageCodec(session)));
+ * </pre>
+ * 
+ * <h2>Monitoring the MailQueue</h2>
+ * 
+ * <p>The queue records counters and latency histograms into a {@code MailQueueMetrics} object. The size,
+ * the number of messages being sent and the age of the oldest message are available from the queue itself.
+ * The {@code mail-queue-micrometer} module publishes all of them to Micrometer.</p>
+ * 
+ * <pre>
+ * queue.setMetrics(new MailQueueMetrics());
+ * </pre>
+ * 
  * <h2>Listening to the MailQueue</h2>
  * 
  * <p>You can listen to any status change of messages by registering a {@code MailQueueListener}:</p>
@@ -110,6 +277,20 @@
  * <li>FAILED - The message could not be sent.</li>
  * </ul>
  * 
+ * <p>Listeners are called on the thread that queues or sends the message. A {@code MailQueueEventBus}
+ * calls them on its own thread instead, so that a slow listener does not slow down the queue:</p>
+ * 
+ * <pre>
+ * queue.setEventBus(new MailQueueEventBus(4096, OverflowPolicy.DROP));
+ * </pre>
+ * 
+ * <p>A {@code MailQueueEventBatcher} hands the events to a {@code BatchMailQueueListener} in batches
+ * bounded by size and time, e.g. for writing them to a database with a single statement:</p>
+ * 
+ * <pre>
+ * queue.addListener(new MailQueueEventBatcher(events -&gt; repository.saveAll(events), 100, 1000));
+ * </pre>
+ * 
  * <h2>Using your own Mailing Framework</h2>
  * 
  * <p>If you want to use your own mailing framework, you can write an implementation of the {@code MailSender}
@@ -0,0 +1,170 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+
+/**
+ * Tests the {@link DeduplicationIndex} and its use by the {@link MailQueue}.
+ *
+ * @author ralph
+ *
+ */
+public class DeduplicationIndexTest {
+
+	// Test an ID is a duplicate until it was removed
+	@Test
+	public void testAdd_withKnownId_thenDuplicate() {
+		DeduplicationIndex index = new DeduplicationIndex(100);
+		assertTrue(index.add("id-1"));
+		assertFalse(index.add("id-1"));
+		assertTrue(index.contains("id-1"));
+		assertFalse(index.contains("id-2"));
+		index.remove("id-1");
+		assertFalse(index.contains("id-1"));
+		assertTrue(index.add("id-1"));
+	}
+
+	// Test a sent ID is forgotten after the TTL
+	@Test
+	public void testSent_withTtl_thenExpired() throws Exception {
+		DeduplicationIndex index = new DeduplicationIndex(100, 50L);
+		assertTrue(index.add("id-1"));
+		index.sent("id-1");
+		assertTrue(index.contains("id-1"));
+		Thread.sleep(100L);
+		assertFalse(index.contains("id-1"));
+		assertTrue(index.add("id-1"));
+	}
+
+	// Test many IDs including removals are still found (probing and closing gaps)
+	@Test
+	public void testAdd_withManyIds_thenAllFound() {
+		DeduplicationIndex index = new DeduplicationIndex(10000);
+		for (int i=0; i<10000; i++) assertTrue(index.add("id-"+i));
+		for (int i=0; i<10000; i+=3) index.remove("id-"+i);
+		for (int i=0; i<10000; i++) assertEquals(i % 3 != 0, index.contains("id-"+i));
+		assertEquals(0, index.getOverflowCount());
+	}
+
+	// Test expired IDs are purged when the index is full and live IDs are never dropped
+	@Test
+	public void testAdd_withFullIndex_thenPurgedOrOverflow() {
+		DeduplicationIndex index = new DeduplicationIndex(64, 0L);
+		for (int i=0; i<1000; i++) {
+			assertTrue(index.add("id-"+i));
+			index.sent("id-"+i);
+		}
+		assertEquals(0, index.getOverflowCount());
+		assertTrue(index.size() < 1000);
+
+		index = new DeduplicationIndex(64);
+		for (int i=0; i<1000; i++) assertTrue(index.add("id-"+i));
+		assertTrue(index.getOverflowCount() > 0);
+		assertEquals(1000, index.size() + index.getOverflowCount());
+	}
+
+	// Test a full index of queued IDs overflows until the IDs were sent and expired
+	@Test
+	public void testAdd_withPinnedIds_thenPurgedAfterExpiry() throws Exception {
+		DeduplicationIndex index = new DeduplicationIndex(64, 50L);
+		for (int i=0; i<1000; i++) assertTrue(index.add("id-"+i));
+		int size = index.size();
+		long overflows = index.getOverflowCount();
+		assertEquals(1000, size + overflows);
+		for (int i=0; i<1000; i++) assertTrue(index.add("other-"+i));
+		assertEquals(1000, index.size() - size + index.getOverflowCount() - overflows);
+		assertEquals(2000, index.size() + index.getOverflowCount());
+
+		for (int i=0; i<1000; i++) index.sent("id-"+i);
+		Thread.sleep(100L);
+		overflows = index.getOverflowCount();
+		for (int i=0; i<1000; i++) assertTrue(index.add("next-"+i));
+		int recorded = 0;
+		for (int i=0; i<1000; i++) {
+			assertFalse(index.contains("id-"+i));
+			if (index.contains("next-"+i)) recorded++;
+		}
+		// Every segment was full, so each recorded ID required a purge
+		assertTrue(recorded > 500, "recorded="+recorded);
+		assertEquals(1000, recorded + index.getOverflowCount() - overflows);
+	}
+
+	// Test the queue accepts a duplicate without queuing it again
+	@Test
+	public void testQueue_withDuplicate_thenMerged() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(100, 5, false, null);
+		queue.setMetrics(new MailQueueMetrics());
+		queue.setDeduplicationIndex(new DeduplicationIndex(1000));
+		assertTrue(queue.queue(new DummyMail("A"), "A"));
+		assertTrue(queue.queue(new DummyMail("A"), "A"));
+		assertTrue(queue.queue(new DummyMail("A"), "A", true));
+		assertTrue(queue.queue(new DummyMail("B"), "B"));
+		assertEquals(2, queue.size());
+		assertEquals(2, queue.getMetrics().getQueuedCount());
+		assertEquals(2, queue.getMetrics().getDuplicateCount());
+
+		// Sent messages are remembered for the TTL
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		queue.remove(entry);
+		assertTrue(queue.queue(new DummyMail("A"), "A"));
+		assertEquals(1, queue.size());
+	}
+
+	// Test a message that was rejected or given up can be queued again
+	@Test
+	public void testQueue_withRejectedOrGivenUp_thenQueuedAgain() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(1, 5, false, null);
+		queue.setDeduplicationIndex(new DeduplicationIndex(1000));
+		queue.setRetryPolicy((failedAttempts, lastDelay, cause) -> RetryPolicy.GIVE_UP);
+		assertTrue(queue.queue(new DummyMail("A"), "A"));
+		assertFalse(queue.queue(new DummyMail("B"), "B"));
+		assertFalse(queue.getDeduplicationIndex().contains("B"));
+
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		queue.failed(entry, new Exception("Test"));
+		assertEquals(0, queue.size());
+		assertTrue(queue.queue(new DummyMail("B"), "B"));
+		assertTrue(queue.queue(new DummyMail("A"), "A", true));
+		assertEquals(2, queue.size());
+	}
+
+	// Test the ID of a message waiting for space is not recorded before it was admitted
+	@Test
+	public void testQueue_withWaitingOriginal_thenNoDuplicate() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(1, 5, false, null);
+		queue.setDeduplicationIndex(new DeduplicationIndex(1000));
+		assertTrue(queue.queue(new DummyMail("A"), "A"));
+		Thread producer = new Thread(() -> queue.queue(new DummyMail("B"), "B", false, 1));
+		producer.start();
+		Thread.sleep(100L);
+		assertFalse(queue.getDeduplicationIndex().contains("B"));
+		assertFalse(queue.queue(new DummyMail("B"), "B"));
+		producer.join(5000L);
+		assertFalse(queue.getDeduplicationIndex().contains("B"));
+		assertEquals(1, queue.size());
+	}
+
+	// Test a cancelled message is forgotten before listeners learn about it
+	@Test
+	public void testCancel_thenQueuedAgain() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 5, false, null);
+		queue.setDeduplicationIndex(new DeduplicationIndex(1000));
+		boolean[] requeued = new boolean[1];
+		queue.addListener(new MailQueueAdapter() {
+			@Override
+			public void onCancelled(String referenceId) {
+				requeued[0] = !queue.getDeduplicationIndex().contains(referenceId) && queue.queue(new DummyMail(referenceId), referenceId);
+			}
+		});
+		assertTrue(queue.queue(new DummyMail("A"), "A"));
+		assertTrue(queue.cancel("A"));
+		assertTrue(requeued[0]);
+		assertTrue(queue.getDeduplicationIndex().contains("A"));
+		assertEquals(MessageStatus.QUEUED, queue.getStatus("A"));
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * 
+ */
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.email.EmailBuilder;
+
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Tests the {@link DomainExtractor} implementations.
+ * 
+ * @author ralph
+ *
+ */
+public class DomainExtractorTest {
+
+	// Test domain of an address
+	@Test
+	public void testGetAddressDomain() {
+		assertEquals("example.com", DomainExtractor.getAddressDomain("john.doe@Example.COM"));
+		assertNull(DomainExtractor.getAddressDomain("john.doe"));
+		assertNull(DomainExtractor.getAddressDomain("john.doe@"));
+		assertNull(DomainExtractor.getAddressDomain(null));
+	}
+	
+	// Test domain of a Jakarta Mail message
+	@Test
+	public void testGetDomain_withMessage() throws Exception {
+		MimeMessage message = new MimeMessage(Session.getInstance(new java.util.Properties()));
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress("john.doe@Example.com"));
+		message.addRecipient(Message.RecipientType.CC, new InternetAddress("jane.doe@example.org"));
+		assertEquals("example.com", new MessageDomainExtractor().getDomain(message));
+	}
+	
+	// Test domain of a Simple Java Mail email
+	@Test
+	public void testGetDomain_withEmail() throws Exception {
+		Email email = EmailBuilder.startingBlank()
+				.from("sender@example.org")
+				.to("john.doe@Example.com")
+				.withSubject("Subject")
+				.withPlainText("Body")
+				.buildEmail();
+		assertEquals("example.com", new EmailDomainExtractor().getDomain(email));
+	}
+}
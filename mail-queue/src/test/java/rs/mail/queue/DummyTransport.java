@@ -0,0 +1,82 @@
+/**
+ * 
+ */
+package rs.mail.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Provider;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.URLName;
+
+/**
+ * A dummy {@link Transport} that records connections and messages in tests.
+ * 
+ * @author ralph
+ *
+ */
+public class DummyTransport extends Transport {
+
+	/** Provider to be registered with a session */
+	public static final Provider PROVIDER = new Provider(Provider.Type.TRANSPORT, "smtp", DummyTransport.class.getName(), "rs", "1.0");
+	
+	/** Number of connections opened */
+	public static int connectCount;
+	/** Number of connections closed */
+	public static int closeCount;
+	/** Messages sent */
+	public static List<Message> sentMessages = new ArrayList<>();
+	/** Subject of a message that shall fail */
+	public static String failSubject;
+	/** Subject of a message that the server shall reject */
+	public static String rejectSubject;
+	
+	public DummyTransport(Session session, URLName urlname) {
+		super(session, urlname);
+	}
+
+	/**
+	 * Creates a session that uses this transport.
+	 * @return the session
+	 */
+	public static Session createSession() throws Exception {
+		connectCount = 0;
+		closeCount   = 0;
+		sentMessages.clear();
+		failSubject   = null;
+		rejectSubject = null;
+		Session rc = Session.getInstance(new java.util.Properties());
+		rc.setProvider(PROVIDER);
+		return rc;
+	}
+	
+	@Override
+	protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+		connectCount++;
+		return true;
+	}
+
+	@Override
+	public synchronized void close() throws MessagingException {
+		if (isConnected()) closeCount++;
+		super.close();
+	}
+
+	@Override
+	public void sendMessage(Message msg, Address[] addresses) throws MessagingException {
+		if ((failSubject != null) && failSubject.equals(msg.getSubject())) {
+			throw new MessagingException("Sending Message Failure Test - ignore in tests!");
+		}
+		if ((rejectSubject != null) && rejectSubject.equals(msg.getSubject())) {
+			throw new SendFailedException("Rejecting Message Test - ignore in tests!");
+		}
+		sentMessages.add(msg);
+	}
+
+}
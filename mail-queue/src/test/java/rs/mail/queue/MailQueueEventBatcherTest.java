@@ -0,0 +1,129 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueueEvent.State;
+
+/**
+ * Tests the {@link MailQueueEventBatcher}.
+ *
+ * @author ralph
+ *
+ */
+public class MailQueueEventBatcherTest {
+
+	// Test a full batch is delivered immediately
+	@Test
+	public void testAdd_withFullBatch_thenDelivered() {
+		List<List<MailQueueEvent>> batches = Collections.synchronizedList(new ArrayList<>());
+		try (MailQueueEventBatcher batcher = new MailQueueEventBatcher(batches::add, 3, 60000)) {
+			for (int i=0; i<7; i++) batcher.onQueued("Message"+i);
+			assertEquals(2, batches.size());
+			assertEquals("[QUEUED:Message0, QUEUED:Message1, QUEUED:Message2]", batches.get(0).toString());
+			assertEquals("[QUEUED:Message3, QUEUED:Message4, QUEUED:Message5]", batches.get(1).toString());
+		}
+		assertEquals(3, batches.size());
+		assertEquals("[QUEUED:Message6]", batches.get(2).toString());
+	}
+
+	// Test a batch is delivered after the maximum delay
+	@Test
+	public void testAdd_withDelay_thenDelivered() throws Exception {
+		CountDownLatch delivered = new CountDownLatch(1);
+		List<MailQueueEvent> events = Collections.synchronizedList(new ArrayList<>());
+		try (MailQueueEventBatcher batcher = new MailQueueEventBatcher(batch -> { events.addAll(batch); delivered.countDown(); }, 100, 50)) {
+			long start = System.currentTimeMillis();
+			batcher.onSending("Message0");
+			batcher.onFailed("Message0", 2, "error");
+			assertTrue(delivered.await(5, TimeUnit.SECONDS));
+			assertTrue(System.currentTimeMillis() - start >= 50);
+		}
+		assertEquals(2, events.size());
+		assertEquals(State.SENDING, events.get(0).getState());
+		assertEquals(State.FAILED, events.get(1).getState());
+		assertEquals("Message0", events.get(1).getReferenceId());
+		assertEquals(2, events.get(1).getFailedAttempts());
+		assertEquals("error", events.get(1).getReason());
+		assertTrue(events.get(1).getTimestamp() > 0);
+	}
+
+	// Test the queue delivers its events in batches
+	@Test
+	public void testMailQueue_withBatcher_thenEventsInBatches() throws Exception {
+		List<List<MailQueueEvent>> batches = Collections.synchronizedList(new ArrayList<>());
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false), 10);
+		try (MailQueueEventBatcher batcher = new MailQueueEventBatcher(batches::add, 4, 60000)) {
+			queue.addListener(batcher);
+			queue.queue(new DummyMail("Message0"), "Message0");
+			queue.queue(new DummyMail("Message1"), "Message1");
+			queue.run();
+		}
+		assertEquals(2, batches.size());
+		assertEquals("[QUEUED:Message0, QUEUED:Message1, SENDING:Message0, SENT:Message0]", batches.get(0).toString());
+		assertEquals("[SENDING:Message1, SENT:Message1]", batches.get(1).toString());
+	}
+
+	// Test the events of the queue carry the failed attempts and the terminal states
+	@Test
+	public void testMailQueue_withBatcher_thenAttemptsAndTerminalStates() throws Exception {
+		List<MailQueueEvent> events = Collections.synchronizedList(new ArrayList<>());
+		int[] calls = new int[1];
+		MailQueue<DummyMail> queue = new MailQueue<>((message, referenceId) -> {
+			if (calls[0]++ == 0) throw new Exception("error");
+		}, 10);
+		queue.setRetryPolicy((failedAttempts, lastDelay, cause) -> 0L);
+		try (MailQueueEventBatcher batcher = new MailQueueEventBatcher(events::addAll, 100, 60000)) {
+			queue.addListener(batcher);
+			queue.queue(new DummyMail("Message0"), "Message0");
+			queue.run();
+			Thread.sleep(5);
+			queue.run();
+			queue.queue(new DummyMail("Message2"), "Message2");
+			assertTrue(queue.cancel("Message2"));
+		}
+		assertEquals("[QUEUED:Message0, SENDING:Message0, FAILED:Message0, SENDING:Message0, SENT:Message0, QUEUED:Message2, CANCELLED:Message2]", events.toString());
+		assertEquals(1, events.get(3).getFailedAttempts());
+		assertEquals(1, events.get(4).getFailedAttempts());
+		assertEquals(0, events.get(6).getFailedAttempts());
+	}
+
+	// Test giving up a message raises a terminal event with the reason
+	@Test
+	public void testMailQueue_withGiveUp_thenGaveUpEvent() throws Exception {
+		List<MailQueueEvent> events = Collections.synchronizedList(new ArrayList<>());
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(true), 10);
+		queue.setRetryPolicy((failedAttempts, lastDelay, cause) -> RetryPolicy.GIVE_UP);
+		try (MailQueueEventBatcher batcher = new MailQueueEventBatcher(events::addAll, 100, 60000)) {
+			queue.addListener(batcher);
+			queue.queue(new DummyMail("Message0"), "Message0");
+			queue.run();
+		}
+		assertEquals("[QUEUED:Message0, SENDING:Message0, FAILED:Message0, GAVE_UP:Message0]", events.toString());
+		assertEquals(1, events.get(3).getFailedAttempts());
+		assertEquals("Sending Message Failure Test - ignore in tests!", events.get(3).getReason());
+	}
+
+	// Test the timestamp is the time the event was raised, not the time it was delivered
+	@Test
+	public void testEventBus_withBatcher_thenRaisedTimestamp() {
+		List<MailQueueEvent> events = Collections.synchronizedList(new ArrayList<>());
+		try (MailQueueEventBatcher batcher = new MailQueueEventBatcher(events::addAll, 100, 60000)) {
+			try (MailQueueEventBus eventBus = new MailQueueEventBus(8, MailQueueEventBus.OverflowPolicy.BLOCK)) {
+				eventBus.publish(new MailQueueListener[] { batcher }, State.SENT, "Message0", 3, null, 42L);
+			}
+		}
+		assertEquals(1, events.size());
+		assertEquals(State.SENT, events.get(0).getState());
+		assertEquals(3, events.get(0).getFailedAttempts());
+		assertEquals(42L, events.get(0).getTimestamp());
+	}
+}
@@ -0,0 +1,203 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueueEvent.State;
+import rs.mail.queue.MailQueueEventBus.OverflowPolicy;
+
+/**
+ * Tests the {@link MailQueueEventBus}.
+ *
+ * @author ralph
+ *
+ */
+public class MailQueueEventBusTest {
+
+	// Test events are delivered in order on the dispatcher thread
+	@Test
+	public void testPublish_thenDeliveredInOrder() {
+		RecordingListener listener = new RecordingListener();
+		try (MailQueueEventBus eventBus = new MailQueueEventBus(8, OverflowPolicy.BLOCK)) {
+			for (int i=0; i<100; i++) {
+				eventBus.publish(new MailQueueListener[] { listener }, State.QUEUED, "Message"+i, 0, null);
+			}
+		}
+		assertEquals(100, listener.events.size());
+		for (int i=0; i<100; i++) assertEquals("QUEUED:Message"+i, listener.events.get(i));
+		assertNotEquals(Thread.currentThread(), listener.thread);
+	}
+
+	// Test events are dropped when the ring buffer is full
+	@Test
+	public void testPublish_withDrop_thenDropped() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		listener.block();
+		MailQueueListener[] listeners = new MailQueueListener[] { listener };
+		try (MailQueueEventBus eventBus = new MailQueueEventBus(4, OverflowPolicy.DROP)) {
+			eventBus.publish(listeners, State.QUEUED, "Message0", 0, null);
+			assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+			// The slot of the first event is freed once it was delivered
+			for (int i=1; i<6; i++) {
+				eventBus.publish(listeners, State.QUEUED, "Message"+i, 0, null);
+			}
+			assertEquals(2, eventBus.getDroppedCount());
+			listener.release();
+		}
+		assertEquals(List.of("QUEUED:Message0", "QUEUED:Message1", "QUEUED:Message2", "QUEUED:Message3"), listener.events);
+	}
+
+	// Test only the most recent event of a message is kept when the ring buffer is full
+	@Test
+	public void testPublish_withCoalesce_thenLatestEventKept() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		listener.block();
+		MailQueueListener[] listeners = new MailQueueListener[] { listener };
+		try (MailQueueEventBus eventBus = new MailQueueEventBus(2, OverflowPolicy.COALESCE)) {
+			eventBus.publish(listeners, State.QUEUED, "Message0", 0, null);
+			assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+			eventBus.publish(listeners, State.QUEUED, "Message1", 0, null);
+			eventBus.publish(listeners, State.QUEUED, "Message2", 0, null);
+			eventBus.publish(listeners, State.SENDING, "Message2", 0, null);
+			eventBus.publish(listeners, State.FAILED, "Message2", 1, "error");
+			assertEquals(2, eventBus.getCoalescedCount());
+			assertEquals(0, eventBus.getDroppedCount());
+			listener.release();
+		}
+		assertEquals(List.of("QUEUED:Message0", "QUEUED:Message1", "FAILED:Message2"), listener.events);
+	}
+
+	// Test the publisher waits until the ring buffer has space again
+	@Test
+	public void testPublish_withBlock_thenWaits() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		listener.block();
+		MailQueueListener[] listeners = new MailQueueListener[] { listener };
+		try (MailQueueEventBus eventBus = new MailQueueEventBus(2, OverflowPolicy.BLOCK)) {
+			eventBus.publish(listeners, State.QUEUED, "Message0", 0, null);
+			assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+			eventBus.publish(listeners, State.QUEUED, "Message1", 0, null);
+			CountDownLatch published = new CountDownLatch(1);
+			Thread publisher = new Thread(() -> {
+				eventBus.publish(listeners, State.QUEUED, "Message2", 0, null);
+				published.countDown();
+			});
+			publisher.start();
+			assertFalse(published.await(200, TimeUnit.MILLISECONDS));
+			listener.release();
+			assertTrue(published.await(5, TimeUnit.SECONDS));
+		}
+		assertEquals(List.of("QUEUED:Message0", "QUEUED:Message1", "QUEUED:Message2"), listener.events);
+	}
+
+	// Test a failing listener does not affect other listeners
+	@Test
+	public void testPublish_withFailingListener_thenOthersInformed() {
+		RecordingListener listener = new RecordingListener();
+		MailQueueListener failing = new MailQueueAdapter() {
+			@Override
+			public void onSent(String referenceId) {
+				throw new IllegalStateException("Test");
+			}
+		};
+		try (MailQueueEventBus eventBus = new MailQueueEventBus()) {
+			eventBus.publish(new MailQueueListener[] { failing, listener }, State.SENT, "Message0", 0, null);
+			eventBus.publish(new MailQueueListener[] { failing, listener }, State.SENT, "Message1", 0, null);
+		}
+		assertEquals(List.of("SENT:Message0", "SENT:Message1"), listener.events);
+	}
+
+	// Test the queue informs its listeners through the event bus
+	@Test
+	public void testMailQueue_withEventBus_thenListenersInformed() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false), 10);
+		queue.addListener(listener);
+		queue.addListener(listener);
+		try (MailQueueEventBus eventBus = new MailQueueEventBus()) {
+			queue.setEventBus(eventBus);
+			queue.queue(new DummyMail("Message0"), "Message0");
+			queue.run();
+		}
+		assertEquals(List.of("QUEUED:Message0", "SENDING:Message0", "SENT:Message0"), listener.events);
+		assertNotEquals(Thread.currentThread(), listener.thread);
+	}
+
+	// Test listeners can be removed
+	@Test
+	public void testMailQueue_withRemovedListener_thenNotInformed() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		RecordingListener removed  = new RecordingListener();
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false), 10);
+		queue.addListener(removed);
+		queue.addListener(listener);
+		queue.removeListener(removed);
+		queue.queue(new DummyMail("Message0"), "Message0");
+		assertEquals(List.of("QUEUED:Message0"), listener.events);
+		assertTrue(removed.events.isEmpty());
+		assertEquals(Thread.currentThread(), listener.thread);
+	}
+
+	/**
+	 * Records the events and can hold back the dispatcher.
+	 */
+	protected static class RecordingListener implements MailQueueListener {
+
+		public List<String> events = Collections.synchronizedList(new ArrayList<>());
+		public volatile Thread thread;
+		public CountDownLatch entered;
+		public CountDownLatch released;
+
+		public void block() {
+			entered  = new CountDownLatch(1);
+			released = new CountDownLatch(1);
+		}
+
+		public void release() {
+			released.countDown();
+		}
+
+		@Override
+		public void onQueued(String referenceId) {
+			record("QUEUED", referenceId);
+		}
+
+		@Override
+		public void onSending(String referenceId) {
+			record("SENDING", referenceId);
+		}
+
+		@Override
+		public void onSent(String referenceId) {
+			record("SENT", referenceId);
+		}
+
+		@Override
+		public void onFailed(String referenceId, int failedCount, String reason) {
+			record("FAILED", referenceId);
+		}
+
+		private void record(String type, String referenceId) {
+			thread = Thread.currentThread();
+			events.add(type+":"+referenceId);
+			if (entered != null) {
+				entered.countDown();
+				try {
+					released.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+
+/**
+ * Tests the {@link MailQueueJournal}.
+ * 
+ * @author ralph
+ *
+ */
+public class MailQueueJournalTest {
+
+	private Path directory;
+	private List<MailQueueJournal<DummyMail>> journals;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("mail-queue-journal");
+		journals  = new ArrayList<>();
+	}
+	
+	@AfterEach
+	public void tearDown() throws IOException {
+		for (MailQueueJournal<DummyMail> journal : journals) journal.close();
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+		}
+	}
+	
+	// Test queued messages are restored after a restart
+	@Test
+	public void testSetJournal_withQueuedMessages_thenRestored() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(false);
+		assertTrue(queue.queue(new DummyMail("Message1"), "Message1"));
+		assertTrue(queue.queue(new DummyMail("Message2"), "Message2", true));
+		restart(queue);
+		
+		MailQueue<DummyMail> restored = createQueue(false);
+		assertEquals(1, restored.size(false));
+		assertEquals(1, restored.size(true));
+		assertEquals("Message2", restored.pollNext().referenceId);
+		assertEquals("Message1", restored.pollNext().referenceId);
+	}
+	
+	// Test restored messages are covered by the deduplication index
+	@Test
+	public void testSetJournal_withDeduplicationIndex_thenRestoredIdsRecorded() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(false);
+		queue.setDeduplicationIndex(new DeduplicationIndex(100));
+		assertTrue(queue.queue(new DummyMail("Message1"), "Message1"));
+		restart(queue);
+
+		MailQueue<DummyMail> restored = createQueue(false);
+		restored.setDeduplicationIndex(new DeduplicationIndex(100));
+		assertTrue(restored.getDeduplicationIndex().contains("Message1"));
+		assertTrue(restored.queue(new DummyMail("Message1"), "Message1"));
+		assertEquals(1, restored.size());
+	}
+	
+	// Test the tenant of a message is restored, not derived again
+	@Test
+	public void testSetJournal_withTenant_thenTenantRestored() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(false);
+		assertTrue(queue.queue(new DummyMail("Message6"), "Message6", false, "acme"));
+		restart(queue);
+
+		MailQueue<DummyMail> restored = createQueue(false);
+		assertEquals(1, restored.getTenantSize("acme"));
+		assertEquals(0, restored.getTenantSize(null));
+	}
+
+	// Test a message is rejected and not restored when its record cannot be forced to disk
+	@Test
+	public void testQueue_withForceFailure_thenRejected() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false));
+		MailQueueJournal<DummyMail> journal = new MailQueueJournal<>(directory, new DummyMailCodec()) {
+			@Override
+			protected void sync(long sequence) throws IOException {
+				throw new IOException("Force Failure Test - ignore in tests!");
+			}
+		};
+		journals.add(journal);
+		queue.setJournal(journal);
+		queue.setMetrics(new MailQueueMetrics());
+		assertFalse(queue.queue(new DummyMail("Message7"), "Message7"));
+		assertEquals(0, queue.size());
+		assertEquals(0, queue.getMetrics().getQueuedCount());
+		restart(queue);
+
+		MailQueue<DummyMail> restored = createQueue(false);
+		assertEquals(0, restored.size());
+	}
+
+	// Test a bulk is rejected and not restored when its records cannot be forced to disk
+	@Test
+	public void testQueueAll_withForceFailure_thenRejected() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false));
+		MailQueueJournal<DummyMail> journal = new MailQueueJournal<>(directory, new DummyMailCodec()) {
+			@Override
+			protected void sync(long sequence) throws IOException {
+				throw new IOException("Force Failure Test - ignore in tests!");
+			}
+		};
+		journals.add(journal);
+		queue.setJournal(journal);
+		List<QueueItem<DummyMail>> items = new QueueAllTest().createItems("A", 3, null);
+		assertEquals(0, queue.queueAll(items));
+		for (QueueItem<DummyMail> item : items) assertFalse(item.isQueued());
+		assertEquals(0, queue.size());
+		restart(queue);
+
+		MailQueue<DummyMail> restored = createQueue(false);
+		assertEquals(0, restored.size());
+	}
+
+	// Test an atomic bulk queues nothing when a message cannot be journaled
+	@Test
+	public void testQueueAll_withJournalFailure_thenNoneQueued() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false));
+		MailQueueJournal<DummyMail> journal = new MailQueueJournal<>(directory, new DummyMailCodec()) {
+			@Override
+			protected long queued(MessageEntry<DummyMail> entry, String tenant, byte[] data) throws IOException {
+				if ("A2".equals(entry.referenceId)) throw new IOException("Journal Failure Test - ignore in tests!");
+				return super.queued(entry, tenant, data);
+			}
+		};
+		journals.add(journal);
+		queue.setJournal(journal);
+		List<QueueItem<DummyMail>> items = new QueueAllTest().createItems("A", 3, null);
+		assertEquals(0, queue.queueAll(items, true));
+		for (QueueItem<DummyMail> item : items) assertFalse(item.isQueued());
+		assertEquals(0, queue.size());
+		restart(queue);
+
+		MailQueue<DummyMail> restored = createQueue(false);
+		assertEquals(0, restored.size());
+	}
+
+	// Test sent messages are not restored
+	@Test
+	public void testSetJournal_withSentMessages_thenNotRestored() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(false);
+		assertTrue(queue.queue(new DummyMail("Message3"), "Message3"));
+		queue.run();
+		assertEquals(0, queue.size());
+		restart(queue);
+		
+		MailQueue<DummyMail> restored = createQueue(false);
+		assertEquals(0, restored.size());
+	}
+	
+	// Test failed messages are restored with their state
+	@Test
+	public void testSetJournal_withFailedMessage_thenStateRestored() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(true);
+		assertTrue(queue.queue(new DummyMail("Message4"), "Message4"));
+		MessageEntry<DummyMail> entry = queue.getNext(false);
+		queue.run();
+		restart(queue);
+		
+		MailQueue<DummyMail> restored = createQueue(true);
+		assertEquals(1, restored.size());
+		long nextRun = restored.run();
+		assertTrue(nextRun >= entry.notBeforeTimeInMillis);
+		assertTrue(nextRun <= entry.notBeforeTimeInMillis+1);
+	}
+	
+	// Test messages given up are not restored
+	@Test
+	public void testSetJournal_withGivenUpMessage_thenNotRestored() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(true);
+		assertTrue(queue.queue(new DummyMail("Message5"), "Message5", false, MailQueue.DEFAULT_MAX_RETRIES));
+		queue.run();
+		assertEquals(0, queue.size());
+		restart(queue);
+		
+		assertEquals(0, createQueue(true).size());
+	}
+	
+	// Test a torn record at the end of the journal is discarded
+	@Test
+	public void testSetJournal_withTornRecord_thenDiscarded() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(false);
+		assertTrue(queue.queue(new DummyMail("Message6"), "Message6"));
+		restart(queue);
+		Path last;
+		try (Stream<Path> paths = Files.list(directory)) {
+			last = paths.sorted().reduce((a, b) -> b).get();
+		}
+		Files.write(last, new byte[] { 0, 0, 0, 100, 1, 2, 3 }, StandardOpenOption.APPEND);
+		
+		MailQueue<DummyMail> restored = createQueue(false);
+		assertEquals(1, restored.size());
+		assertTrue(restored.queue(new DummyMail("Message7"), "Message7"));
+		restart(restored);
+		assertEquals(2, createQueue(false).size());
+	}
+	
+	// Test compaction deletes old segments but keeps live messages
+	@Test
+	public void testCompact_withLongLivedMessage_thenCopiedForward() throws Exception {
+		MailQueueJournal<DummyMail> journal = createJournal();
+		journal.setMaxSegmentSize(256);
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false));
+		queue.setJournal(journal);
+		assertTrue(queue.queue(new DummyMail("Message8"), "Message8"));
+		MessageEntry<DummyMail> longLived = queue.pollNext();
+		for (int i=0; i<20; i++) {
+			assertTrue(queue.queue(new DummyMail("Bulk"+i), "Bulk"+i));
+		}
+		queue.run();
+		assertEquals(1, queue.size());
+		int segments = journal.getSegmentCount();
+		assertTrue(segments > 2);
+		journal.compact();
+		assertTrue(journal.getSegmentCount() < segments);
+		assertEquals(1, journal.size());
+		queue.release(longLived);
+		restart(queue);
+		
+		MailQueue<DummyMail> restored = createQueue(false);
+		assertEquals(1, restored.size());
+		assertEquals("Message8", restored.pollNext().referenceId);
+	}
+	
+	// Test concurrent producers share the forces to disk
+	@Test
+	public void testQueue_withConcurrentProducers_thenAllRestored() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(false);
+		List<Thread> threads = new ArrayList<>();
+		for (int t=0; t<4; t++) {
+			int offset = t*25;
+			Thread thread = new Thread(() -> {
+				for (int i=0; i<25; i++) queue.queue(new DummyMail("Message"+(offset+i)), "Message"+(offset+i));
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) thread.join();
+		assertEquals(100, queue.size());
+		restart(queue);
+		
+		assertEquals(100, createQueue(false).size());
+	}
+	
+	/**
+	 * Creates a queue with a journal in the test directory.
+	 * @param failSending - whether sending shall fail
+	 * @return the queue
+	 */
+	protected MailQueue<DummyMail> createQueue(boolean failSending) throws IOException {
+		MailQueue<DummyMail> rc = new MailQueue<>(new DummyMailSender(failSending));
+		rc.setJournal(createJournal());
+		return rc;
+	}
+	
+	/**
+	 * Creates a journal in the test directory.
+	 * @return the journal
+	 */
+	protected MailQueueJournal<DummyMail> createJournal() {
+		MailQueueJournal<DummyMail> rc = new MailQueueJournal<>(directory, new DummyMailCodec());
+		rc.setCompactionInterval(0);
+		journals.add(rc);
+		return rc;
+	}
+	
+	/**
+	 * Simulates a restart by closing the journal of the queue.
+	 * @param queue - the queue
+	 */
+	protected void restart(MailQueue<DummyMail> queue) throws IOException {
+		queue.getJournal().close();
+	}
+	
+	/**
+	 * Stores the ID of a dummy mail only.
+	 */
+	protected static class DummyMailCodec implements MessageCodec<DummyMail> {
+
+		@Override
+		public byte[] encode(DummyMail message) throws Exception {
+			return message.getId().getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public DummyMail decode(byte[] data) throws Exception {
+			return new DummyMail(new String(data, StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the {@link MailQueueMetrics} and {@link LongHistogram}.
+ *
+ * @author ralph
+ *
+ */
+public class MailQueueMetricsTest {
+
+	// Test the counters of sent and rejected messages
+	@Test
+	public void testMetrics_withSentMessages_thenCounted() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(2, 1, false, null);
+		MailQueueMetrics metrics = new MailQueueMetrics();
+		queue.setMetrics(metrics);
+		assertTrue(queue.queue(new DummyMail("Message0"), "Message0"));
+		assertTrue(queue.queue(new DummyMail("Message1"), "Message1"));
+		assertTrue(!queue.queue(new DummyMail("Message2"), "Message2", 0L));
+		assertEquals(2, metrics.getQueuedCount());
+		assertEquals(1, metrics.getRejectedCount());
+		assertTrue(queue.getOldestMessageAge(false) >= 0);
+		assertEquals(0, queue.getOldestMessageAge(true));
+		queue.run();
+		assertEquals(2, metrics.getSentCount());
+		assertEquals(0, metrics.getFailedCount());
+		assertEquals(2, metrics.getQueuedToSent().getCount());
+		assertEquals(2, metrics.getSendDuration().getCount());
+		assertEquals(0, metrics.getRetries().getMax());
+		assertEquals(0, queue.getInFlightCount());
+		assertEquals(0, queue.getOldestMessageAge(false));
+	}
+
+	// Test the counters of failed and abandoned messages
+	@Test
+	public void testMetrics_withFailedMessages_thenCounted() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 5, true, null);
+		MailQueueMetrics metrics = new MailQueueMetrics();
+		queue.setMetrics(metrics);
+		queue.setMaxRetries(1);
+		queue.setRetryPeriod(1L);
+		assertTrue(queue.queue(new DummyMail("Message0"), "Message0"));
+		queue.run();
+		assertEquals(1, metrics.getFailedCount());
+		assertEquals(0, metrics.getGaveUpCount());
+		Thread.sleep(5L);
+		queue.run();
+		assertEquals(2, metrics.getFailedCount());
+		assertEquals(1, metrics.getGaveUpCount());
+		assertEquals(0, metrics.getSentCount());
+		assertEquals(1, metrics.getRetries().getCount());
+		assertEquals(2, metrics.getRetries().getMax());
+		assertEquals(0, queue.size());
+	}
+
+	// Test the token denials are counted
+	@Test
+	public void testMetrics_withExhaustedBucket_thenDenialsCounted() throws Exception {
+		MailQueueTest helper = new MailQueueTest();
+		MailQueue<DummyMail> queue = helper.createQueue(10, 5, false, helper.createBucket(1, 1));
+		MailQueueMetrics metrics = new MailQueueMetrics();
+		queue.setMetrics(metrics);
+		assertTrue(queue.queue(new DummyMail("Message0"), "Message0"));
+		assertTrue(queue.queue(new DummyMail("Message1"), "Message1"));
+		queue.run();
+		assertEquals(1, metrics.getSentCount());
+		assertEquals(1, metrics.getTokenDenialCount());
+	}
+
+	// Test small values are counted exactly and large values within the relative error
+	@Test
+	public void testHistogram_thenPercentiles() {
+		LongHistogram histogram = new LongHistogram();
+		for (int i=1; i<=100; i++) histogram.record(i);
+		assertEquals(100, histogram.getCount());
+		assertEquals(5050, histogram.getTotal());
+		assertEquals(100, histogram.getMax());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+		assertEquals(10, histogram.getPercentile(0.1));
+		long p50 = histogram.getPercentile(0.5);
+		assertTrue((p50 >= 50) && (p50 <= 50*1.125), "p50="+p50);
+		long p99 = histogram.getPercentile(0.99);
+		assertTrue((p99 >= 99) && (p99 <= 100), "p99="+p99);
+		assertEquals(100, histogram.getPercentile(1));
+	}
+
+	// Test the buckets cover the whole range of long
+	@Test
+	public void testHistogram_withExtremeValues_thenBucketsValid() {
+		long previous = -1;
+		for (int bucket=0; bucket<=LongHistogram.getBucket(Long.MAX_VALUE); bucket++) {
+			long upper = LongHistogram.getUpperBound(bucket);
+			assertTrue(upper > previous);
+			assertEquals(bucket, LongHistogram.getBucket(upper));
+			assertEquals(bucket, LongHistogram.getBucket(previous+1));
+			previous = upper;
+		}
+		assertEquals(Long.MAX_VALUE, previous);
+		LongHistogram histogram = new LongHistogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getPercentile(0.5));
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(1));
+	}
+
+	// Test the maximum and percentiles forget old values while count and total keep them
+	@Test
+	public void testHistogram_withRotation_thenRecentValues() {
+		LongHistogram histogram = new LongHistogram(1000L);
+		long now = System.currentTimeMillis();
+		histogram.record(500);
+		histogram.rotate(now+1000L);
+		histogram.record(10);
+		assertEquals(500, histogram.getMax());
+		assertEquals(500, histogram.getPercentile(1));
+		histogram.rotate(now+2000L);
+		assertEquals(10, histogram.getMax());
+		assertEquals(10, histogram.getPercentile(0.5));
+		histogram.rotate(now+5000L);
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(0.99));
+		assertEquals(2, histogram.getCount());
+		assertEquals(510, histogram.getTotal());
+	}
+}
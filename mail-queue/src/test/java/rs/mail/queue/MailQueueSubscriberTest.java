@@ -0,0 +1,129 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests feeding a {@link MailQueue} from a publisher with the {@link MailQueueSubscriber}.
+ *
+ * @author ralph
+ *
+ */
+public class MailQueueSubscriberTest {
+
+	// Test the subscriber requests only as many messages as fit into the queue
+	@Test
+	public void testSubscribe_withFastPublisher_thenNeverRejected() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(5, 5, false, null);
+		queue.setMetrics(new MailQueueMetrics());
+		ListPublisher publisher = new ListPublisher(new QueueAllTest().createItems("A", 20, null));
+		MailQueueSubscriber<DummyMail> subscriber = new MailQueueSubscriber<>(queue, PriorityClass.NORMAL);
+		publisher.subscribe(subscriber);
+		assertEquals(5, queue.size());
+		assertEquals(5, publisher.delivered);
+		assertEquals(0, subscriber.getRequestedCount());
+
+		queue.send(queue.pollNext());
+		queue.send(queue.pollNext());
+		assertEquals(5, queue.size());
+		assertEquals(7, publisher.delivered);
+
+		String sent = new PriorityClassTest().drain(queue);
+		assertEquals(18, sent.split(",").length);
+		assertTrue(sent.startsWith("A2,A3,A4"));
+		assertEquals(20, queue.getMetrics().getQueuedCount());
+		assertEquals(0, queue.getMetrics().getRejectedCount());
+		assertTrue(publisher.completed);
+		assertTrue(subscriber.isDone());
+	}
+
+	// Test messages of a full tenant are held back until the tenant has space again
+	@Test
+	public void testSubscribe_withFullTenant_thenHeldBack() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 5, false, null);
+		queue.setMetrics(new MailQueueMetrics());
+		queue.setTenantPolicy("a", new TenantPolicy(null, 2, 1));
+		ListPublisher publisher = new ListPublisher(new QueueAllTest().createItems("A", 6, "a"));
+		MailQueueSubscriber<DummyMail> subscriber = new MailQueueSubscriber<>(queue, PriorityClass.NORMAL);
+		publisher.subscribe(subscriber);
+		assertEquals(2, queue.size());
+		assertEquals(4, subscriber.getPendingCount());
+		assertFalse(subscriber.isDone());
+
+		assertEquals("A0,A1,A2,A3,A4,A5", new PriorityClassTest().drain(queue));
+		assertEquals(0, subscriber.getPendingCount());
+		assertEquals(0, queue.getMetrics().getRejectedCount());
+		assertTrue(subscriber.isDone());
+	}
+
+	// Test messages of other priority classes do not trigger requests
+	@Test
+	public void testSubscribe_withOtherClass_thenNoRequest() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(3, 5, false, null);
+		ListPublisher publisher = new ListPublisher(new QueueAllTest().createItems("A", 10, null));
+		MailQueueSubscriber<DummyMail> subscriber = new MailQueueSubscriber<>(queue, PriorityClass.PRIORITY);
+		publisher.subscribe(subscriber);
+		assertEquals(5, queue.size(true));
+		assertTrue(queue.queue(new DummyMail("B0"), "B0"));
+		queue.getNext(false);
+		assertEquals(5, publisher.delivered);
+
+		subscriber.cancel();
+		assertTrue(publisher.cancelled);
+		assertTrue(subscriber.isDone());
+		queue.send(queue.pollNext());
+		assertEquals(5, publisher.delivered);
+	}
+
+	/**
+	 * A publisher that delivers a list of items synchronously on request.
+	 */
+	protected static class ListPublisher implements Flow.Publisher<QueueItem<DummyMail>>, Flow.Subscription {
+
+		private List<QueueItem<DummyMail>> items;
+		private Flow.Subscriber<? super QueueItem<DummyMail>> subscriber;
+		private long demand;
+		private boolean delivering;
+		protected int delivered;
+		protected boolean completed;
+		protected boolean cancelled;
+
+		public ListPublisher(List<QueueItem<DummyMail>> items) {
+			this.items = new ArrayList<>(items);
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super QueueItem<DummyMail>> subscriber) {
+			this.subscriber = subscriber;
+			subscriber.onSubscribe(this);
+		}
+
+		@Override
+		public void request(long n) {
+			demand += n;
+			if (delivering) return;
+			delivering = true;
+			while ((demand > 0) && (delivered < items.size()) && !cancelled) {
+				demand--;
+				subscriber.onNext(items.get(delivered++));
+			}
+			delivering = false;
+			if ((delivered == items.size()) && !completed && !cancelled) {
+				completed = true;
+				subscriber.onComplete();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+}
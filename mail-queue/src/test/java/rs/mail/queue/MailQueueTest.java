@@ -6,9 +6,13 @@ package rs.mail.queue;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
@@ -358,6 +362,348 @@ public class MailQueueTest {
 		assertEquals("Message27", listener.failedReferenceId);
 	}
 	
+	// Test getNext() skips messages waiting for a retry
+	@Test
+	public void testGetNext_withRetryPending_thenSkipped() {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, null);
+		assertTrue(queue.queue(new DummyMail("Message28"), "Message28"));
+		assertTrue(queue.queue(new DummyMail("Message29"), "Message29"));
+		MessageEntry<DummyMail> entry = queue.getNext(false);
+		assertEquals("Message28", entry.referenceId);
+		entry.notBeforeTimeInMillis = System.currentTimeMillis() + MailQueue.DEFAULT_RETRY_PERIOD;
+		queue.retry(entry);
+		entry = queue.getNext(false);
+		assertNotNull(entry);
+		assertEquals("Message29", entry.referenceId);
+		assertEquals(2, queue.size(false));
+	}
+	
+	// Test getNext() returns a message again when its retry is due
+	@Test
+	public void testGetNext_withRetryDue_thenReturned() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, null);
+		assertTrue(queue.queue(new DummyMail("Message30"), "Message30"));
+		MessageEntry<DummyMail> entry = queue.getNext(false);
+		entry.notBeforeTimeInMillis = System.currentTimeMillis() + 50L;
+		queue.retry(entry);
+		assertNull(queue.getNext(false));
+		Thread.sleep(100L);
+		entry = queue.getNext(false);
+		assertNotNull(entry);
+		assertEquals("Message30", entry.referenceId);
+	}
+	
+	// Test pollNext() keeps the size but takes the message out of the sending order
+	@Test
+	public void testPollNext_withNormal_thenInFlight() {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, null);
+		assertTrue(queue.queue(new DummyMail("Message31"), "Message31"));
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		assertNotNull(entry);
+		assertTrue(entry.inFlight);
+		assertNull(queue.getNext(false));
+		assertEquals(1, queue.size(false));
+		assertEquals(9, queue.remainingCapacity(false));
+		queue.remove(entry);
+		assertEquals(0, queue.size(false));
+		assertEquals(10, queue.remainingCapacity(false));
+	}
+	
+	// Test release() puts a picked message back to the head
+	@Test
+	public void testRelease_withPriority_thenFirstAgain() {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, null);
+		assertTrue(queue.queue(new DummyMail("Message32"), "Message32", true));
+		assertTrue(queue.queue(new DummyMail("Message33"), "Message33", true));
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		assertEquals("Message32", entry.referenceId);
+		queue.release(entry);
+		assertFalse(entry.inFlight);
+		assertEquals("Message32", queue.getNext().referenceId);
+		assertEquals(2, queue.size(true));
+	}
+	
+	// Test workers send all messages concurrently
+	@Test
+	public void testStart_withWorkers_thenAllSent() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(100, 5, false, null);
+		DummyMail mails[] = new DummyMail[100];
+		for (int i=0; i<mails.length; i++) {
+			mails[i] = new DummyMail("Message"+i);
+			assertTrue(queue.queue(mails[i], "Message"+i));
+		}
+		queue.start(4);
+		assertTrue(queue.isRunning());
+		long end = System.currentTimeMillis() + 5000L;
+		while ((queue.size() > 0) && (System.currentTimeMillis() < end)) Thread.sleep(10L);
+		queue.stop();
+		assertFalse(queue.isRunning());
+		assertEquals(0, queue.size());
+		for (DummyMail mail : mails) assertNotNull(mail.getSentTime());
+	}
+	
+	// Test workers pick up messages queued after start
+	@Test
+	public void testStart_withLateMessage_thenSent() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, null);
+		queue.start(2);
+		DummyMail mail = new DummyMail("Message34");
+		assertTrue(queue.queue(mail, "Message34"));
+		long end = System.currentTimeMillis() + 5000L;
+		while ((mail.getSentTime() == null) && (System.currentTimeMillis() < end)) Thread.sleep(10L);
+		queue.stop();
+		assertNotNull(mail.getSentTime());
+	}
+	
+	// Test virtual threads send all messages and respect the concurrency limit
+	@Test
+	public void testStart_withVirtualThreads_thenConcurrencyLimited() throws Exception {
+		AtomicInteger current = new AtomicInteger();
+		AtomicInteger maximum = new AtomicInteger();
+		AtomicInteger sent    = new AtomicInteger();
+		MailQueue<DummyMail> queue = new MailQueue<>((message, referenceId) -> {
+			maximum.accumulateAndGet(current.incrementAndGet(), Math::max);
+			Thread.sleep(20L);
+			current.decrementAndGet();
+			sent.incrementAndGet();
+		}, 100, 5);
+		for (int i=0; i<100; i++) {
+			assertTrue(queue.queue(new DummyMail("Message"+i), "Message"+i));
+		}
+		queue.start(ExecutionMode.VIRTUAL_THREADS, 10);
+		long end = System.currentTimeMillis() + 5000L;
+		while ((queue.size() > 0) && (System.currentTimeMillis() < end)) Thread.sleep(10L);
+		queue.stop();
+		assertEquals(0, queue.size());
+		assertEquals(100, sent.get());
+		assertTrue(maximum.get() <= 10);
+		assertTrue(maximum.get() > 1);
+	}
+	
+	// Test the worker wakes up immediately when a message is queued
+	@Test
+	public void testStart_withIdleQueue_thenWokenUpByQueue() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, null);
+		queue.start();
+		Thread.sleep(50L);
+		DummyMail mail = new DummyMail("Message35");
+		long start = System.currentTimeMillis();
+		assertTrue(queue.queue(mail, "Message35"));
+		while ((queue.size() > 0) && (System.currentTimeMillis() < start + 5000L)) Thread.sleep(5L);
+		long diff = System.currentTimeMillis() - start;
+		queue.stop();
+		assertNotNull(mail.getSentTime());
+		assertTrue(diff < 1000L);
+	}
+	
+	// Test the worker wakes up when a retry becomes due
+	@Test
+	public void testStart_withRetry_thenWokenUpWhenDue() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		MailQueue<DummyMail> queue = new MailQueue<>((message, referenceId) -> {
+			if (attempts.incrementAndGet() == 1) throw new Exception("Sending Message Failure Test - ignore in tests!");
+		}, 10, 5);
+		queue.setRetryPeriod(100L);
+		assertTrue(queue.queue(new DummyMail("Message36"), "Message36"));
+		long start = System.currentTimeMillis();
+		queue.start();
+		while ((queue.size() > 0) && (System.currentTimeMillis() < start + 5000L)) Thread.sleep(5L);
+		long diff = System.currentTimeMillis() - start;
+		queue.stop();
+		assertEquals(0, queue.size());
+		assertEquals(2, attempts.get());
+		assertTrue(diff < 1000L);
+	}
+	
+	// Test run() hands batches to the sender and reports each message
+	@Test
+	public void testRun_withBatchSize_thenBatchesSent() throws Exception {
+		List<Integer> batchSizes = new ArrayList<>();
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false) {
+			@Override
+			public void sendMessages(List<BatchItem<DummyMail>> batch) throws Exception {
+				batchSizes.add(batch.size());
+				super.sendMessages(batch);
+			}
+		}, 20, 5);
+		queue.setBatchSize(5);
+		DummyMailQueueListener listener = new DummyMailQueueListener();
+		queue.addListener(listener);
+		for (int i=0; i<12; i++) {
+			assertTrue(queue.queue(new DummyMail("Message"+i), "Message"+i));
+		}
+		queue.run();
+		assertEquals(0, queue.size());
+		assertEquals(List.of(5, 5, 2), batchSizes);
+		assertEquals("Message11", listener.sentReferenceId);
+	}
+	
+	// Test a failed message in a batch is retried
+	@Test
+	public void testRun_withBatchFailure_thenRetry() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueue<>(new MailSender<DummyMail>() {
+			@Override
+			public void sendMessage(DummyMail message, String referenceId) throws Exception {
+				if (referenceId.equals("Message1")) throw new Exception("Sending Message Failure Test - ignore in tests!");
+			}
+		}, 20, 5);
+		queue.setBatchSize(5);
+		for (int i=0; i<3; i++) {
+			assertTrue(queue.queue(new DummyMail("Message"+i), "Message"+i));
+		}
+		queue.run();
+		assertEquals(1, queue.size());
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		assertNull(entry);
+	}
+	
+	// Test the domain and tenant tokens of a message released by the global bucket are given back
+	@Test
+	public void testNextBatch_withGlobalBucketDenied_thenScopedTokensKept() {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, createBucket(1, 1));
+		queue.setDomainExtractor(m -> DomainExtractor.getAddressDomain(m.getId()));
+		queue.setDomainPolicy("gmail.com", new DomainPolicy(createBucket(2, 1), DomainPolicy.UNLIMITED, 0));
+		queue.setTenantPolicy("a", new TenantPolicy(createBucket(2, 1), TenantPolicy.UNLIMITED, 1));
+		for (String id : new String[] { "a@gmail.com", "b@gmail.com" }) {
+			assertTrue(queue.queue(new DummyMail(id), id, false, "a"));
+		}
+		assertEquals(1, queue.nextBatch(queue.pollNext()).size());
+		for (int i=0; i<5; i++) assertTrue(queue.nextBatch(queue.pollNext()).isEmpty());
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		assertEquals("b@gmail.com", entry.referenceId);
+	}
+	
+	// Test messages to different domains take turns
+	@Test
+	public void testPollNext_withDomains_thenRoundRobin() {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, null);
+		queue.setDomainExtractor(m -> DomainExtractor.getAddressDomain(m.getId()));
+		for (String id : new String[] { "a@gmail.com", "b@gmail.com", "c@gmail.com", "a@outlook.com", "b@outlook.com" }) {
+			assertTrue(queue.queue(new DummyMail(id), id));
+		}
+		for (String id : new String[] { "a@gmail.com", "a@outlook.com", "b@gmail.com", "b@outlook.com", "c@gmail.com" }) {
+			MessageEntry<DummyMail> entry = queue.pollNext();
+			assertEquals(id, entry.referenceId);
+			queue.remove(entry);
+		}
+		assertEquals(0, queue.size());
+	}
+	
+	// Test a saturated domain does not hold back other domains
+	@Test
+	public void testPollNext_withSaturatedDomain_thenOtherDomainSent() {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, null);
+		queue.setDomainExtractor(m -> DomainExtractor.getAddressDomain(m.getId()));
+		queue.setDomainPolicy("GMail.com", new DomainPolicy(null, 1, 0));
+		for (String id : new String[] { "a@gmail.com", "b@gmail.com", "a@outlook.com", "b@outlook.com" }) {
+			assertTrue(queue.queue(new DummyMail(id), id));
+		}
+		MessageEntry<DummyMail> entry1 = queue.pollNext();
+		assertEquals("a@gmail.com", entry1.referenceId);
+		assertEquals("a@outlook.com", queue.pollNext().referenceId);
+		assertEquals("b@outlook.com", queue.pollNext().referenceId);
+		assertNull(queue.pollNext());
+		queue.remove(entry1);
+		assertEquals("b@gmail.com", queue.pollNext().referenceId);
+	}
+	
+	// Test the retry period of a domain
+	@Test
+	public void testSendFailed_withDomainPolicy_thenDomainRetryPeriod() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, true, null);
+		queue.setDomainExtractor(m -> DomainExtractor.getAddressDomain(m.getId()));
+		queue.setDomainPolicy("gmail.com", new DomainPolicy(null, DomainPolicy.UNLIMITED, 5000L));
+		assertTrue(queue.queue(new DummyMail("a@gmail.com"), "a@gmail.com"));
+		MessageEntry<DummyMail> entry = queue.getNext(false);
+		queue.run();
+		assertEquals(1, queue.size());
+		assertTrue(entry.notBeforeTimeInMillis < System.currentTimeMillis() + 5000L + 1000L);
+		assertTrue(entry.notBeforeTimeInMillis > System.currentTimeMillis() + 5000L - 1000L);
+	}
+	
+	// Test run() reports that nothing is waiting
+	@Test
+	public void testRun_withEmptyQueue_thenNoNextRun() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, null);
+		assertEquals(Long.MAX_VALUE, queue.run());
+	}
+	
+	// Test run() reports when the token bucket provides the next token
+	@Test
+	public void testRun_withExhaustedBucket_thenNextTokenTime() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, false, createBucket(1, 1));
+		assertTrue(queue.queue(new DummyMail("Message37"), "Message37"));
+		assertTrue(queue.queue(new DummyMail("Message38"), "Message38"));
+		long nextRun = queue.run();
+		assertEquals(1, queue.size());
+		assertTrue(nextRun > System.currentTimeMillis());
+		assertTrue(nextRun < Long.MAX_VALUE);
+		assertEquals(nextRun, queue.getNextTokenTime());
+	}
+	
+	// Test run() reports when the next retry becomes due
+	@Test
+	public void testRun_withRetry_thenRetryTime() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, true, null);
+		assertTrue(queue.queue(new DummyMail("Message39"), "Message39"));
+		long nextRun = queue.run();
+		assertTrue(nextRun > System.currentTimeMillis() + MailQueue.DEFAULT_RETRY_PERIOD - 1000L);
+		assertTrue(nextRun <= System.currentTimeMillis() + MailQueue.DEFAULT_RETRY_PERIOD + 1L);
+	}
+	
+	// Test run(long) waits until the next retry is due only
+	@Test
+	public void testRunBlocking_withRetry_thenWaitsUntilDue() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, true, null);
+		queue.setRetryPeriod(100L);
+		assertTrue(queue.queue(new DummyMail("Message40"), "Message40"));
+		long start = System.currentTimeMillis();
+		queue.run(5000L);
+		long diff = System.currentTimeMillis() - start;
+		assertTrue(diff >= 90L);
+		assertTrue(diff < 1000L);
+	}
+	
+	// Test the retry policy decides about the delay
+	@Test
+	public void testSendFailed_withRetryPolicy_thenPolicyDelay() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, true, null);
+		queue.setRetryPolicy(new ExponentialBackoffRetryPolicy(3, 2000L, 10000L, ExponentialBackoffRetryPolicy.Jitter.NONE));
+		assertTrue(queue.queue(new DummyMail("Message41"), "Message41"));
+		MessageEntry<DummyMail> entry = queue.getNext(false);
+		queue.run();
+		assertEquals(1, queue.size());
+		assertEquals(2000L, entry.lastRetryDelay);
+		assertTrue(entry.notBeforeTimeInMillis < System.currentTimeMillis() + 2000L + 1000L);
+	}
+	
+	// Test the retry policy gives up on a message
+	@Test
+	public void testSendFailed_withRetryPolicyGivingUp_thenRemoved() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, true, null);
+		queue.setRetryPolicy((failedAttempts, lastDelay, cause) -> RetryPolicy.GIVE_UP);
+		DummyMail mail = new DummyMail("Message42");
+		assertTrue(queue.queue(mail, "Message42"));
+		queue.run();
+		assertEquals(0, queue.size());
+		assertEquals(1, mail.getErrorCount());
+	}
+	
+	// Test the retry policy of a domain takes precedence
+	@Test
+	public void testSendFailed_withDomainRetryPolicy_thenDomainPolicyDelay() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(10, 5, true, null);
+		queue.setDomainExtractor(m -> DomainExtractor.getAddressDomain(m.getId()));
+		DomainPolicy policy = new DomainPolicy();
+		policy.setRetryPolicy(new FixedRetryPolicy(3, 3000L));
+		queue.setDomainPolicy("gmail.com", policy);
+		queue.setRetryPolicy(new FixedRetryPolicy(3, 100L));
+		assertTrue(queue.queue(new DummyMail("a@gmail.com"), "a@gmail.com"));
+		MessageEntry<DummyMail> entry = queue.getNext(false);
+		queue.run();
+		assertEquals(3000L, entry.lastRetryDelay);
+	}
+	
 	/**
 	 * Creates the queue for a test.
 	 * @param maxSize - size of queue
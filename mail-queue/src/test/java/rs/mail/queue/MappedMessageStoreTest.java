@@ -0,0 +1,126 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+import rs.mail.queue.MailQueueJournalTest.DummyMailCodec;
+
+/**
+ * Tests the {@link MappedMessageStore}.
+ * 
+ * @author ralph
+ *
+ */
+public class MappedMessageStoreTest {
+
+	private Path file;
+	private MappedMessageStore<DummyMail> store;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		file  = Files.createTempFile("mail-queue", ".store");
+		store = new MappedMessageStore<>(file, 64, new DummyMailCodec());
+	}
+	
+	@AfterEach
+	public void tearDown() throws IOException {
+		store.close();
+		Files.deleteIfExists(file);
+	}
+	
+	// Test messages are restored from the store
+	@Test
+	public void testPut_thenRestored() throws Exception {
+		int offset1 = store.put(store.encode(new DummyMail("Message1")));
+		int offset2 = store.put(store.encode(new DummyMail("Message2")));
+		assertEquals(2, store.size());
+		assertEquals("Message1", store.get(offset1).getId());
+		assertEquals("Message2", store.get(offset2).getId());
+	}
+	
+	// Test a full store rejects messages
+	@Test
+	public void testPut_withFullStore_thenNotStored() throws Exception {
+		assertTrue(store.put(new byte[20]) >= 0);
+		assertTrue(store.put(new byte[20]) >= 0);
+		assertEquals(MappedMessageStore.NOT_STORED, store.put(new byte[20]));
+		assertEquals(MappedMessageStore.NOT_STORED, store.put(new byte[100]));
+	}
+	
+	// Test space is reclaimed in order only
+	@Test
+	public void testFree_outOfOrder_thenReclaimedWithOldest() throws Exception {
+		int offset1 = store.put(new byte[20]);
+		int offset2 = store.put(new byte[20]);
+		store.free(offset2);
+		assertEquals(1, store.size());
+		assertEquals(64, store.getUsed());
+		store.free(offset1);
+		assertEquals(0, store.size());
+		assertEquals(0, store.getUsed());
+	}
+	
+	// Test the ring buffer wraps around
+	@Test
+	public void testPut_withWrapAround_thenRestored() throws Exception {
+		int offset1 = store.put(new byte[20]);
+		int offset2 = store.put(store.encode(new DummyMail("Message3")));
+		store.free(offset1);
+		int offset3 = store.put(new byte[20]);
+		assertEquals(0, offset3);
+		assertEquals("Message3", store.get(offset2).getId());
+		store.free(offset2);
+		assertEquals(32, store.getUsed());
+		store.free(offset3);
+		assertEquals(0, store.getUsed());
+	}
+	
+	// Test the queue keeps messages in the store until they are sent
+	@Test
+	public void testQueue_withStore_thenRestoredForSending() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false));
+		queue.setMessageStore(store);
+		assertTrue(queue.queue(new DummyMail("Message5"), "Message5"));
+		MessageEntry<DummyMail> entry = queue.getNext(false);
+		assertNull(entry.message);
+		assertEquals(1, store.size());
+		queue.run();
+		assertEquals(0, queue.size());
+		assertEquals(0, store.size());
+		assertEquals("Message5", entry.message.getId());
+		assertTrue(entry.message.getSentTime() != null);
+	}
+	
+	// Test a failed message is dropped from the heap again
+	@Test
+	public void testQueue_withStoreAndFailure_thenUnloaded() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(true));
+		queue.setMessageStore(store);
+		assertTrue(queue.queue(new DummyMail("Message6"), "Message6"));
+		MessageEntry<DummyMail> entry = queue.getNext(false);
+		queue.run();
+		assertEquals(1, queue.size());
+		assertNull(entry.message);
+		assertEquals(1, store.size());
+	}
+	
+	// Test a rejected message frees its space
+	@Test
+	public void testQueue_withFullQueue_thenFreed() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false), 1, 1);
+		queue.setMessageStore(store);
+		assertTrue(queue.queue(new DummyMail("Message7"), "Message7"));
+		assertTrue(!queue.queue(new DummyMail("Message8"), "Message8"));
+		assertEquals(1, store.size());
+	}
+}
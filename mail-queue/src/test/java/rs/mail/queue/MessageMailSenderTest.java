@@ -0,0 +1,138 @@
+/**
+ * 
+ */
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Tests the {@link MessageMailSender}.
+ * 
+ * @author ralph
+ *
+ */
+public class MessageMailSenderTest {
+
+	// Test a batch is sent over a single connection
+	@Test
+	public void testSendMessages_withBatch_thenSingleConnection() throws Exception {
+		Session session = DummyTransport.createSession();
+		MessageMailSender sender = new MessageMailSender(session);
+		List<BatchItem<Message>> batch = createBatch(session, 5);
+		sender.sendMessages(batch);
+		assertEquals(1, DummyTransport.connectCount);
+		assertEquals(5, DummyTransport.sentMessages.size());
+		for (BatchItem<Message> item : batch) assertTrue(item.isSent());
+	}
+	
+	// Test a failed message does not fail the whole batch
+	@Test
+	public void testSendMessages_withFailure_thenOthersSent() throws Exception {
+		Session session = DummyTransport.createSession();
+		MessageMailSender sender = new MessageMailSender(session);
+		List<BatchItem<Message>> batch = createBatch(session, 3);
+		DummyTransport.failSubject = "Subject1";
+		sender.sendMessages(batch);
+		assertEquals(2, DummyTransport.sentMessages.size());
+		assertTrue(batch.get(0).isSent());
+		assertFalse(batch.get(1).isSent());
+		assertTrue(batch.get(2).isSent());
+	}
+	
+	// Test messages are sent over a pooled connection
+	@Test
+	public void testSendMessage_withPool_thenConnectionReused() throws Exception {
+		Session session = DummyTransport.createSession();
+		MessageMailSender sender = new MessageMailSender(session);
+		sender.setTransportPool(new TransportPool(session));
+		for (BatchItem<Message> item : createBatch(session, 3)) {
+			sender.sendMessage(item.getMessage(), item.getReferenceId());
+		}
+		assertEquals(1, DummyTransport.connectCount);
+		assertEquals(3, DummyTransport.sentMessages.size());
+		assertEquals(1, sender.getTransportPool().getIdleCount());
+	}
+	
+	// Test a broken pooled connection is replaced for the rest of the batch
+	@Test
+	public void testSendMessages_withBrokenConnection_thenReconnected() throws Exception {
+		Session session = DummyTransport.createSession();
+		MessageMailSender sender = new MessageMailSender(session);
+		sender.setTransportPool(new TransportPool(session));
+		List<BatchItem<Message>> batch = createBatch(session, 3);
+		DummyTransport.failSubject = "Subject1";
+		sender.sendMessages(batch);
+		assertEquals(2, DummyTransport.connectCount);
+		assertEquals(1, DummyTransport.closeCount);
+		assertEquals(2, DummyTransport.sentMessages.size());
+		assertFalse(batch.get(1).isSent());
+		assertTrue(batch.get(2).isSent());
+		assertEquals(1, sender.getTransportPool().getIdleCount());
+	}
+
+	// Test a rejected message does not drop the pooled connection
+	@Test
+	public void testSendMessages_withRejectedMessage_thenConnectionKept() throws Exception {
+		Session session = DummyTransport.createSession();
+		MessageMailSender sender = new MessageMailSender(session);
+		sender.setTransportPool(new TransportPool(session));
+		List<BatchItem<Message>> batch = createBatch(session, 3);
+		DummyTransport.rejectSubject = "Subject1";
+		sender.sendMessages(batch);
+		assertEquals(1, DummyTransport.connectCount);
+		assertEquals(0, DummyTransport.closeCount);
+		assertFalse(batch.get(1).isSent());
+		assertTrue(batch.get(2).isSent());
+
+		DummyTransport.rejectSubject = null;
+		sender.sendMessage(batch.get(1).getMessage(), batch.get(1).getReferenceId());
+		assertEquals(1, DummyTransport.connectCount);
+		assertEquals(3, DummyTransport.sentMessages.size());
+	}
+
+	// Test a pooled connection is recycled within a batch after the maximum number of messages
+	@Test
+	public void testSendMessages_withMaxMessages_thenRecycled() throws Exception {
+		Session session = DummyTransport.createSession();
+		MessageMailSender sender = new MessageMailSender(session);
+		sender.setTransportPool(new TransportPool(session));
+		sender.getTransportPool().setMaxMessages(2);
+		List<BatchItem<Message>> batch = createBatch(session, 5);
+		sender.sendMessages(batch);
+		assertEquals(3, DummyTransport.connectCount);
+		assertEquals(2, DummyTransport.closeCount);
+		assertEquals(5, DummyTransport.sentMessages.size());
+		for (BatchItem<Message> item : batch) assertTrue(item.isSent());
+	}
+
+	/**
+	 * Creates a batch of messages.
+	 * @param session - the mail session
+	 * @param count - number of messages
+	 * @return the batch
+	 */
+	protected List<BatchItem<Message>> createBatch(Session session, int count) throws Exception {
+		List<BatchItem<Message>> rc = new ArrayList<>();
+		for (int i=0; i<count; i++) {
+			MimeMessage message = new MimeMessage(session);
+			message.setFrom(new InternetAddress("sender@example.com"));
+			message.setRecipient(Message.RecipientType.TO, new InternetAddress("recipient"+i+"@example.com"));
+			message.setSubject("Subject"+i);
+			message.setText("Body"+i);
+			rc.add(new BatchItem<>(message, "Message"+i));
+		}
+		return rc;
+	}
+}
@@ -0,0 +1,119 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+import rs.mail.queue.MailQueueJournalTest.DummyMailCodec;
+
+/**
+ * Tests the {@link MessageSpill}.
+ * 
+ * @author ralph
+ *
+ */
+public class MessageSpillTest {
+
+	private Path directory;
+	private MessageSpill<DummyMail> spill;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("mail-queue-spill");
+		spill     = new MessageSpill<>(directory, new DummyMailCodec(), 5);
+	}
+	
+	@AfterEach
+	public void tearDown() throws IOException {
+		spill.close();
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+		}
+	}
+	
+	// Test messages are read back in order across segments
+	@Test
+	public void testPoll_withSegments_thenInOrder() throws Exception {
+		spill.setMaxSegmentSize(64);
+		for (int i=0; i<5; i++) {
+			MessageEntry<DummyMail> entry = new MessageEntry<>("Message"+i, null, false);
+			entry.failedAttempts = i;
+			spill.add(entry, "example.com", spill.encode(new DummyMail("Message"+i)));
+		}
+		assertEquals(5, spill.size());
+		assertTrue(spill.isFull());
+		try (Stream<Path> paths = Files.list(directory)) {
+			assertTrue(paths.count() > 1);
+		}
+		for (int i=0; i<5; i++) {
+			MessageSpill.Spilled<DummyMail> spilled = spill.poll();
+			assertEquals("Message"+i, spilled.entry.referenceId);
+			assertEquals("example.com", spilled.domain);
+			assertEquals(i, spilled.entry.failedAttempts);
+			assertEquals("Message"+i, spill.decode(spilled.entry.data).getId());
+		}
+		assertNull(spill.poll());
+		assertTrue(spill.isEmpty());
+		try (Stream<Path> paths = Files.list(directory)) {
+			assertEquals(1, paths.count());
+		}
+	}
+	
+	// Test the queue reports both tiers
+	@Test
+	public void testQueue_withFullLane_thenSpilled() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(new ArrayList<>());
+		for (int i=0; i<4; i++) assertTrue(queue.queue(new DummyMail("Message"+i), "Message"+i));
+		assertEquals(4, queue.size(false));
+		assertEquals(2, spill.size());
+		assertEquals(7, queue.capacity(false));
+		assertEquals(3, queue.remainingCapacity(false));
+	}
+	
+	// Test the queue rejects messages when the spill is full
+	@Test
+	public void testQueue_withFullSpill_thenRejected() throws Exception {
+		MailQueue<DummyMail> queue = createQueue(new ArrayList<>());
+		for (int i=0; i<7; i++) assertTrue(queue.queue(new DummyMail("Message"+i), "Message"+i));
+		assertFalse(queue.queue(new DummyMail("Message7"), "Message7"));
+		assertEquals(0, queue.remainingCapacity(false));
+	}
+	
+	// Test spilled messages are sent in order of queuing
+	@Test
+	public void testRun_withSpilledMessages_thenSentInOrder() throws Exception {
+		List<String> sent = new ArrayList<>();
+		MailQueue<DummyMail> queue = createQueue(sent);
+		for (int i=0; i<5; i++) assertTrue(queue.queue(new DummyMail("Message"+i), "Message"+i));
+		queue.send(queue.pollNext());
+		assertTrue(queue.queue(new DummyMail("Message5"), "Message5"));
+		queue.run();
+		assertEquals(0, queue.size());
+		assertEquals(List.of("Message0", "Message1", "Message2", "Message3", "Message4", "Message5"), sent);
+	}
+	
+	/**
+	 * Creates a queue with an in-memory capacity of 2 and the spill of the test.
+	 * @param sent - collects the reference IDs of sent messages
+	 * @return the queue
+	 */
+	protected MailQueue<DummyMail> createQueue(List<String> sent) {
+		MailQueue<DummyMail> rc = new MailQueue<>((message, referenceId) -> sent.add(message.getId()), 2, 2);
+		rc.setSpill(false, spill);
+		return rc;
+	}
+}
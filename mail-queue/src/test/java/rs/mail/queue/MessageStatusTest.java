@@ -0,0 +1,124 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+import rs.mail.queue.MailQueueJournalTest.DummyMailCodec;
+
+/**
+ * Tests the status and cancellation of messages in the {@link MailQueue}.
+ *
+ * @author ralph
+ *
+ */
+public class MessageStatusTest {
+
+	private Path directory;
+	private MessageSpill<DummyMail> spill;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("mail-queue-status");
+		spill     = new MessageSpill<>(directory, new DummyMailCodec(), 5);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		spill.close();
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+		}
+	}
+
+	// Test the status follows the message through the queue
+	@Test
+	public void testGetStatus_withLifecycle_thenStatusChanges() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 5, false, null);
+		queue.setRetryPolicy((failedAttempts, lastDelay, cause) -> 60000L);
+		assertTrue(queue.queue(new DummyMail("A"), "A"));
+		assertEquals(MessageStatus.QUEUED, queue.getStatus("A"));
+		assertNull(queue.getStatus("B"));
+		assertNull(queue.getStatus(null));
+
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		assertEquals(MessageStatus.SENDING, queue.getStatus("A"));
+		queue.failed(entry, new Exception("Test"));
+		assertEquals(MessageStatus.DELAYED, queue.getStatus("A"));
+
+		entry.notBeforeTimeInMillis = 0;
+		entry = queue.pollNext();
+		queue.remove(entry);
+		assertNull(queue.getStatus("A"));
+	}
+
+	// Test a cancelled message is skipped and does not count anymore
+	@Test
+	public void testCancel_withQueuedMessage_thenSkipped() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 5, false, null);
+		for (int i=0; i<4; i++) assertTrue(queue.queue(new DummyMail("A"+i), "A"+i));
+		assertTrue(queue.cancel("A1"));
+		assertTrue(queue.cancel("A3"));
+		assertFalse(queue.cancel("A1"));
+		assertFalse(queue.cancel("B"));
+		assertNull(queue.getStatus("A1"));
+		assertEquals(2, queue.size());
+		assertEquals(8, queue.remainingCapacity(false));
+		assertEquals("A0,A2", new PriorityClassTest().drain(queue));
+		assertEquals(0, queue.size());
+	}
+
+	// Test messages being sent cannot be cancelled, messages waiting for a retry can
+	@Test
+	public void testCancel_withInFlightOrDelayed_thenOnlyDelayedCancelled() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 5, false, null);
+		queue.setRetryPolicy((failedAttempts, lastDelay, cause) -> 60000L);
+		assertTrue(queue.queue(new DummyMail("A"), "A"));
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		assertFalse(queue.cancel("A"));
+		assertEquals(MessageStatus.SENDING, queue.getStatus("A"));
+		queue.failed(entry, new Exception("Test"));
+		assertTrue(queue.cancel("A"));
+		assertEquals(0, queue.size());
+		assertEquals(Long.MAX_VALUE, queue.getNextRunTime());
+		assertNull(queue.pollNext());
+	}
+
+	// Test spilled messages can be found and cancelled
+	@Test
+	public void testCancel_withSpilledMessage_thenDropped() {
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false), 2, 2);
+		queue.setSpill(false, spill);
+		for (int i=0; i<5; i++) assertTrue(queue.queue(new DummyMail("A"+i), "A"+i));
+		assertEquals(MessageStatus.QUEUED, queue.getStatus("A1"));
+		assertEquals(MessageStatus.SPILLED, queue.getStatus("A2"));
+		assertTrue(queue.cancel("A2"));
+		assertTrue(queue.cancel("A0"));
+		assertEquals(3, queue.size());
+		assertEquals(MessageStatus.QUEUED, queue.getStatus("A3"));
+		assertEquals("A1,A3,A4", new PriorityClassTest().drain(queue));
+		assertEquals(0, queue.size());
+	}
+
+	// Test cancelling does not depend on the number of queued messages
+	@Test
+	public void testCancel_withManyMessages_thenAllCancelled() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(100000, 5, false, null);
+		for (int i=0; i<100000; i++) assertTrue(queue.queue(new DummyMail("A"+i), "A"+i));
+		for (int i=0; i<100000; i+=2) assertTrue(queue.cancel("A"+i));
+		assertEquals(50000, queue.size());
+		assertEquals("A1", queue.pollNext().referenceId);
+	}
+}
@@ -0,0 +1,139 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+
+/**
+ * Tests the {@link PriorityClass} scheduling of the {@link MailQueue}.
+ *
+ * @author ralph
+ *
+ */
+public class PriorityClassTest {
+
+	// Test the classes take turns according to their weights
+	@Test
+	public void testPollNext_withWeights_thenWeightedTurns() {
+		MailQueue<DummyMail> queue = createQueue();
+		for (int i=0; i<6; i++) {
+			assertTrue(queue.queue(new DummyMail("A"+i), "A"+i, "a"));
+			assertTrue(queue.queue(new DummyMail("B"+i), "B"+i, "b"));
+			assertTrue(queue.queue(new DummyMail("C"+i), "C"+i, "c"));
+		}
+		assertEquals("A0,A1,A2,B0,B1,C0,A3,A4,A5,B2,B3,C1,B4,B5,C2,C3,C4,C5", drain(queue));
+	}
+
+	// Test a class without messages gives up its turn
+	@Test
+	public void testPollNext_withIdleClass_thenSkipped() {
+		MailQueue<DummyMail> queue = createQueue();
+		for (int i=0; i<3; i++) assertTrue(queue.queue(new DummyMail("C"+i), "C"+i, "c"));
+		assertEquals("C0", queue.getNext().referenceId);
+		assertEquals("C0,C1,C2", drain(queue));
+		// A new busy period starts with the first class
+		assertTrue(queue.queue(new DummyMail("C3"), "C3", "c"));
+		assertTrue(queue.queue(new DummyMail("A0"), "A0", "a"));
+		assertEquals("A0", queue.getNext().referenceId);
+		assertEquals("A0,C3", drain(queue));
+	}
+
+	// Test priority messages cannot starve normal messages
+	@Test
+	public void testPollNext_withPriorityFlood_thenNormalSent() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 50, false, null);
+		assertTrue(queue.queue(new DummyMail("N0"), "N0"));
+		for (int i=0; i<20; i++) assertTrue(queue.queue(new DummyMail("P"+i), "P"+i, true));
+		String order = drain(queue);
+		assertTrue(order.startsWith("P0,P1,P2,P3,P4,P5,P6,P7,P8,P9,N0,P10"), order);
+	}
+
+	// Test the maximum weight sends priority messages before normal messages
+	@Test
+	public void testPollNext_withMaxWeight_thenStrictPrecedence() {
+		MailQueue<DummyMail> queue = new MailQueue<>(new DummyMailSender(false), List.of(
+			new PriorityClass(PriorityClass.PRIORITY, 50, Integer.MAX_VALUE),
+			new PriorityClass(PriorityClass.NORMAL,   10, 1)
+		));
+		assertTrue(queue.queue(new DummyMail("N0"), "N0"));
+		for (int i=0; i<20; i++) assertTrue(queue.queue(new DummyMail("P"+i), "P"+i, true));
+		assertTrue(drain(queue).endsWith("P18,P19,N0"));
+	}
+
+	// Test the capacity of each class and the compatibility with the boolean API
+	@Test
+	public void testQueue_withClasses_thenOwnCapacity() {
+		MailQueue<DummyMail> queue = createQueue();
+		assertEquals(3, queue.getPriorityClasses().size());
+		assertEquals(6, queue.capacity("a"));
+		assertEquals(10, queue.capacity("b"));
+		assertTrue(queue.queue(new DummyMail("A0"), "A0", true));
+		for (int i=1; i<6; i++) assertTrue(queue.queue(new DummyMail("A"+i), "A"+i, "a"));
+		assertFalse(queue.queue(new DummyMail("A6"), "A6", "a"));
+		assertTrue(queue.queue(new DummyMail("B0"), "B0"));
+		assertEquals(6, queue.size(true));
+		assertEquals(6, queue.size("a"));
+		assertEquals(1, queue.size(false));
+		assertEquals(1, queue.size("b"));
+		assertEquals(0, queue.size("c"));
+		assertEquals(6, queue.remainingCapacity("c"));
+		assertEquals(7, queue.size());
+		assertThrows(IllegalArgumentException.class, () -> queue.queue(new DummyMail("X"), "X", "x"));
+	}
+
+	// Test a message released for lack of tokens keeps the turn of its class
+	@Test
+	public void testRelease_thenTurnKept() {
+		MailQueue<DummyMail> queue = createQueue();
+		for (int i=0; i<4; i++) assertTrue(queue.queue(new DummyMail("C"+i), "C"+i, "c"));
+		assertTrue(queue.queue(new DummyMail("B0"), "B0", "b"));
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		assertEquals("B0", entry.referenceId);
+		queue.release(entry);
+		assertEquals("B0,C0,C1,C2,C3", drain(queue));
+	}
+
+	// Test invalid classes are rejected
+	@Test
+	public void testConstructor_withInvalidClasses_thenException() {
+		assertThrows(IllegalArgumentException.class, () -> new PriorityClass("a", 10, 0));
+		assertThrows(IllegalArgumentException.class, () -> new MailQueue<>(new DummyMailSender(false), List.of()));
+		assertThrows(IllegalArgumentException.class, () -> new MailQueue<>(new DummyMailSender(false), List.of(new PriorityClass("a", 1, 1), new PriorityClass("a", 1, 1))));
+	}
+
+	/**
+	 * Creates a queue with three classes of weight 3, 2 and 1.
+	 * @return the queue
+	 */
+	protected MailQueue<DummyMail> createQueue() {
+		return new MailQueue<>(new DummyMailSender(false), List.of(
+			new PriorityClass("a", 6, 3),
+			new PriorityClass("b", 10, 2),
+			new PriorityClass("c", 6, 1)
+		));
+	}
+
+	/**
+	 * Picks and removes all messages.
+	 * @param queue the queue
+	 * @return the reference IDs in order of picking
+	 */
+	protected String drain(MailQueue<DummyMail> queue) {
+		StringBuilder rc = new StringBuilder();
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		while (entry != null) {
+			if (rc.length() > 0) rc.append(',');
+			rc.append(entry.referenceId);
+			queue.remove(entry);
+			entry = queue.pollNext();
+		}
+		return rc.toString();
+	}
+}
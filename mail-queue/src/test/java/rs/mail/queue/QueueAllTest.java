@@ -0,0 +1,131 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests queuing many messages at once with the {@link MailQueue}.
+ *
+ * @author ralph
+ *
+ */
+public class QueueAllTest {
+
+	// Test messages are queued as long as there is space and listeners are informed once
+	@Test
+	public void testQueueAll_withPartialAdmission_thenRestRejected() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(3, 5, false, null);
+		queue.setMetrics(new MailQueueMetrics());
+		List<List<String>> notifications = new ArrayList<>();
+		queue.addListener(new DummyMailQueueListener() {
+			@Override
+			public void onQueued(List<String> referenceIds) {
+				notifications.add(referenceIds);
+			}
+		});
+		List<QueueItem<DummyMail>> items = createItems("A", 5, null);
+		items.add(new QueueItem<>(new DummyMail("P0"), "P0", PriorityClass.PRIORITY));
+		assertEquals(4, queue.queueAll(items));
+		assertTrue(items.get(2).isQueued());
+		assertFalse(items.get(3).isQueued());
+		assertFalse(items.get(4).isQueued());
+		assertTrue(items.get(5).isQueued());
+		assertEquals(4, queue.size());
+		assertEquals(1, notifications.size());
+		assertEquals(List.of("A0", "A1", "A2", "P0"), notifications.get(0));
+		assertEquals(4, queue.getMetrics().getQueuedCount());
+		assertEquals(2, queue.getMetrics().getRejectedCount());
+		assertEquals("P0,A0,A1,A2", new PriorityClassTest().drain(queue));
+	}
+
+	// Test an atomic bulk is rejected as a whole when a message does not fit
+	@Test
+	public void testQueueAll_withAtomic_thenAllOrNothing() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(3, 5, false, null);
+		List<QueueItem<DummyMail>> items = createItems("A", 4, null);
+		assertEquals(0, queue.queueAll(items, true));
+		for (QueueItem<DummyMail> item : items) assertFalse(item.isQueued());
+		assertEquals(0, queue.size());
+
+		items = createItems("A", 3, null);
+		assertEquals(3, queue.queueAll(items, true));
+		assertEquals(3, queue.size());
+	}
+
+	// Test the maximum size of tenants is respected
+	@Test
+	public void testQueueAll_withFullTenant_thenRejected() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(100, 5, false, null);
+		queue.setTenantPolicy("a", new TenantPolicy(null, 2, 1));
+		List<QueueItem<DummyMail>> items = createItems("A", 3, "a");
+		items.addAll(createItems("B", 3, "b"));
+		assertEquals(0, queue.queueAll(items, true));
+		assertEquals(5, queue.queueAll(items, false));
+		assertFalse(items.get(2).isQueued());
+		assertEquals(2, queue.getTenantSize("a"));
+		assertEquals(3, queue.getTenantSize("b"));
+		assertEquals("A0,B0,A1,B1,B2", new PriorityClassTest().drain(queue));
+	}
+
+	// Test duplicates are accepted without being queued again
+	@Test
+	public void testQueueAll_withDuplicates_thenMerged() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(100, 5, false, null);
+		queue.setDeduplicationIndex(new DeduplicationIndex(1000));
+		assertTrue(queue.queue(new DummyMail("A1"), "A1"));
+		List<QueueItem<DummyMail>> items = createItems("A", 3, null);
+		items.add(new QueueItem<>(new DummyMail("A0"), "A0"));
+		assertEquals(4, queue.queueAll(items));
+		assertEquals(3, queue.size());
+		assertEquals("A1,A0,A2", new PriorityClassTest().drain(queue));
+	}
+
+	// Test an ID repeated within a bulk shares the outcome of its first occurrence
+	@Test
+	public void testQueueAll_withRepeatedIds_thenFirstOutcome() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(2, 5, false, null);
+		queue.setMetrics(new MailQueueMetrics());
+		queue.setDeduplicationIndex(new DeduplicationIndex(1000));
+		List<QueueItem<DummyMail>> items = createItems("A", 3, null);
+		items.add(new QueueItem<>(new DummyMail("A2"), "A2"));
+		items.add(new QueueItem<>(new DummyMail("A0"), "A0"));
+		assertEquals(3, queue.queueAll(items));
+		assertFalse(items.get(2).isQueued());
+		assertFalse(items.get(3).isQueued());
+		assertTrue(items.get(4).isQueued());
+		assertEquals(2, queue.getMetrics().getRejectedCount());
+		assertEquals(1, queue.getMetrics().getDuplicateCount());
+		assertEquals("A0,A1", new PriorityClassTest().drain(queue));
+	}
+
+	// Test IDs repeated within an atomic bulk do not count towards the capacity
+	@Test
+	public void testQueueAll_withAtomicRepeatedIds_thenQueued() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(3, 5, false, null);
+		queue.setDeduplicationIndex(new DeduplicationIndex(1000));
+		List<QueueItem<DummyMail>> items = createItems("A", 3, null);
+		items.add(1, new QueueItem<>(new DummyMail("A0"), "A0"));
+		assertEquals(4, queue.queueAll(items, true));
+		for (QueueItem<DummyMail> item : items) assertTrue(item.isQueued());
+		assertEquals("A0,A1,A2", new PriorityClassTest().drain(queue));
+	}
+
+	/**
+	 * Creates items with the reference IDs prefix0, prefix1, ...
+	 * @param prefix the prefix of the reference IDs
+	 * @param count the number of items
+	 * @param tenant the tenant of the items
+	 * @return the items
+	 */
+	protected List<QueueItem<DummyMail>> createItems(String prefix, int count, String tenant) {
+		List<QueueItem<DummyMail>> rc = new ArrayList<>();
+		for (int i=0; i<count; i++) rc.add(new QueueItem<>(new DummyMail(prefix+i), prefix+i, null, tenant));
+		return rc;
+	}
+}
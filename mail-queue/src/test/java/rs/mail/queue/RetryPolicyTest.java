@@ -0,0 +1,119 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.mail.MessagingException;
+import rs.mail.queue.ExponentialBackoffRetryPolicy.Jitter;
+
+/**
+ * Tests the {@link RetryPolicy} implementations.
+ * 
+ * @author ralph
+ *
+ */
+public class RetryPolicyTest {
+
+	// Test the fixed policy
+	@Test
+	public void testFixed_thenPeriodUntilMaxRetries() {
+		FixedRetryPolicy policy = new FixedRetryPolicy(2, 5000L);
+		assertEquals(5000L, policy.getRetryDelay(1, 0, new Exception()));
+		assertEquals(5000L, policy.getRetryDelay(2, 5000L, new Exception()));
+		assertEquals(RetryPolicy.GIVE_UP, policy.getRetryDelay(3, 5000L, new Exception()));
+	}
+	
+	// Test the exponential growth and the cap
+	@Test
+	public void testExponential_withoutJitter_thenDoubledAndCapped() {
+		ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 1000L, 5000L, Jitter.NONE);
+		assertEquals(1000L, policy.getRetryDelay(1, 0, new Exception()));
+		assertEquals(2000L, policy.getRetryDelay(2, 1000L, new Exception()));
+		assertEquals(4000L, policy.getRetryDelay(3, 2000L, new Exception()));
+		assertEquals(5000L, policy.getRetryDelay(4, 4000L, new Exception()));
+		assertEquals(5000L, policy.getRetryDelay(10, 5000L, new Exception()));
+		assertEquals(RetryPolicy.GIVE_UP, policy.getRetryDelay(11, 5000L, new Exception()));
+	}
+	
+	// Test full jitter stays within the exponential delay
+	@Test
+	public void testExponential_withFullJitter_thenWithinBounds() {
+		ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 1000L, 5000L, Jitter.FULL);
+		for (int i=0; i<100; i++) {
+			long delay = policy.getRetryDelay(3, 0, new Exception());
+			assertTrue(delay >= 0);
+			assertTrue(delay <= 4000L);
+		}
+	}
+	
+	// Test decorrelated jitter stays between base delay and three times the last delay
+	@Test
+	public void testExponential_withDecorrelatedJitter_thenWithinBounds() {
+		ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 1000L, 5000L, Jitter.DECORRELATED);
+		for (int i=0; i<100; i++) {
+			long delay = policy.getRetryDelay(2, 1200L, new Exception());
+			assertTrue(delay >= 1000L);
+			assertTrue(delay <= 3600L);
+			assertTrue(policy.getRetryDelay(5, 4000L, new Exception()) <= 5000L);
+		}
+	}
+	
+	// Test permanent SMTP errors are not retried
+	@Test
+	public void testExponential_withPermanentFailure_thenGiveUp() {
+		ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 1000L, 5000L, Jitter.NONE);
+		MessagingException cause = new MessagingException("Send failed", new SmtpException(550));
+		assertTrue(RetryPolicy.isPermanentFailure(cause));
+		assertEquals(RetryPolicy.GIVE_UP, policy.getRetryDelay(1, 0, cause));
+		policy.setGiveUpOnPermanentFailure(false);
+		assertEquals(1000L, policy.getRetryDelay(1, 0, cause));
+	}
+	
+	// Test temporary SMTP errors are retried sooner
+	@Test
+	public void testExponential_withTemporaryFailure_thenShortDelay() {
+		ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 60000L, 600000L, Jitter.NONE);
+		SmtpException cause = new SmtpException(451);
+		assertTrue(RetryPolicy.isTemporaryFailure(cause));
+		assertFalse(RetryPolicy.isPermanentFailure(cause));
+		assertEquals(ExponentialBackoffRetryPolicy.DEFAULT_TEMPORARY_FAILURE_DELAY, policy.getRetryDelay(1, 0, cause));
+		assertEquals(2*ExponentialBackoffRetryPolicy.DEFAULT_TEMPORARY_FAILURE_DELAY, policy.getRetryDelay(2, 0, cause));
+	}
+	
+	// Test failures without reply code
+	@Test
+	public void testGetSmtpReturnCode_withoutCode_thenZero() {
+		assertEquals(0, RetryPolicy.getSmtpReturnCode(new MessagingException("Connection refused")));
+		assertEquals(0, RetryPolicy.getSmtpReturnCode(null));
+	}
+	
+	/**
+	 * Simulates the exceptions of the SMTP provider that report the reply code.
+	 */
+	public static class SmtpException extends MessagingException {
+
+		private static final long serialVersionUID = 1L;
+		
+		private int returnCode;
+		
+		/**
+		 * Constructor.
+		 * @param returnCode - the SMTP reply code
+		 */
+		public SmtpException(int returnCode) {
+			super("SMTP error "+returnCode);
+			this.returnCode = returnCode;
+		}
+		
+		/**
+		 * Returns the SMTP reply code.
+		 * @return the reply code
+		 */
+		public int getReturnCode() {
+			return returnCode;
+		}
+	}
+}
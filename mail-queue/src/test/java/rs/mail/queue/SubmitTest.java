@@ -0,0 +1,102 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+
+/**
+ * Tests submitting messages to the {@link MailQueue} and awaiting their outcome.
+ *
+ * @author ralph
+ *
+ */
+public class SubmitTest {
+
+	// Test the future completes off the sending thread when the message was sent
+	@Test
+	public void testSubmit_withSent_thenCompletedAsSent() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 5, false, null);
+		queue.setRetryPolicy((failedAttempts, lastDelay, cause) -> 60000L);
+		AtomicReference<Thread> completer = new AtomicReference<>();
+		queue.setCompletionExecutor(r -> ForkJoinPool.commonPool().execute(() -> {
+			completer.set(Thread.currentThread());
+			r.run();
+		}));
+		CompletableFuture<DeliveryResult> future = queue.submit(new DummyMail("A"), "A");
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		queue.failed(entry, new Exception("Test"));
+		assertFalse(future.isDone());
+		entry.notBeforeTimeInMillis = 0;
+		queue.send(queue.pollNext());
+		DeliveryResult result = future.get(5, TimeUnit.SECONDS);
+		assertEquals(DeliveryResult.Outcome.SENT, result.getOutcome());
+		assertTrue(result.isSent());
+		assertEquals("A", result.getReferenceId());
+		assertEquals(2, result.getAttempts());
+		assertEquals("Test", result.getLastError().getMessage());
+		assertTrue(result.getDuration() >= 0);
+		assertNotEquals(Thread.currentThread(), completer.get());
+		assertNull(entry.future);
+	}
+
+	// Test the future completes when sending was given up
+	@Test
+	public void testSubmit_withGiveUp_thenCompletedAsGaveUp() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 5, true, null);
+		queue.setRetryPolicy((failedAttempts, lastDelay, cause) -> RetryPolicy.GIVE_UP);
+		CompletableFuture<DeliveryResult> future = queue.submit(new DummyMail("A"), "A", PriorityClass.PRIORITY);
+		queue.send(queue.pollNext());
+		DeliveryResult result = future.get(5, TimeUnit.SECONDS);
+		assertEquals(DeliveryResult.Outcome.GAVE_UP, result.getOutcome());
+		assertEquals(1, result.getAttempts());
+		assertNotNull(result.getLastError());
+		assertEquals(0, queue.size());
+	}
+
+	// Test the future completes when the message was cancelled or rejected
+	@Test
+	public void testSubmit_withCancelledOrRejected_thenCompleted() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(1, 5, false, null);
+		queue.setCompletionExecutor(Runnable::run);
+		CompletableFuture<DeliveryResult> cancelled = queue.submit(new DummyMail("A"), "A");
+		CompletableFuture<DeliveryResult> rejected  = queue.submit(new DummyMail("B"), "B");
+		assertEquals(DeliveryResult.Outcome.REJECTED, rejected.getNow(null).getOutcome());
+		assertFalse(cancelled.isDone());
+		assertTrue(queue.cancel("A"));
+		assertEquals(DeliveryResult.Outcome.CANCELLED, cancelled.getNow(null).getOutcome());
+		assertEquals(0, cancelled.getNow(null).getAttempts());
+	}
+
+	// Test duplicates share the outcome of the queued message
+	@Test
+	public void testSubmit_withDuplicates_thenSameOutcome() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(10, 5, false, null);
+		queue.setDeduplicationIndex(new DeduplicationIndex(100));
+		queue.setCompletionExecutor(Runnable::run);
+		CompletableFuture<DeliveryResult> first  = queue.submit(new DummyMail("A"), "A");
+		CompletableFuture<DeliveryResult> second = queue.submit(new DummyMail("A"), "A");
+		CompletableFuture<DeliveryResult> third  = queue.submit(new DummyMail("A"), "A");
+		assertEquals(1, queue.size());
+		queue.send(queue.pollNext());
+		assertEquals(DeliveryResult.Outcome.SENT, first.getNow(null).getOutcome());
+		assertSame(first.getNow(null), second.getNow(null));
+		assertSame(first.getNow(null), third.getNow(null));
+
+		CompletableFuture<DeliveryResult> late = queue.submit(new DummyMail("A"), "A");
+		assertEquals(DeliveryResult.Outcome.DUPLICATE, late.getNow(null).getOutcome());
+		assertEquals(0, queue.size());
+	}
+}
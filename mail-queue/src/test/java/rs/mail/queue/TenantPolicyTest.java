@@ -0,0 +1,134 @@
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import rs.mail.queue.MailQueue.MessageEntry;
+
+/**
+ * Tests the tenant scheduling of the {@link MailQueue}.
+ *
+ * @author ralph
+ *
+ */
+public class TenantPolicyTest {
+
+	// Test a tenant with many messages does not hold back other tenants
+	@Test
+	public void testPollNext_withTenants_thenTurnsTaken() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(100, 5, false, null);
+		for (int i=0; i<5; i++) assertTrue(queue.queue(new DummyMail("A"+i), "A"+i, false, "a"));
+		assertTrue(queue.queue(new DummyMail("B0"), "B0", false, "b"));
+		assertTrue(queue.queue(new DummyMail("B1"), "B1", false, "b"));
+		assertTrue(queue.queue(new DummyMail("N0"), "N0"));
+		assertEquals("A0,B0,N0,A1,B1,A2,A3,A4", new PriorityClassTest().drain(queue));
+	}
+
+	// Test the weight of a tenant
+	@Test
+	public void testPollNext_withWeight_thenMoreTurns() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(100, 5, false, null);
+		queue.setTenantPolicy("a", new TenantPolicy(null, TenantPolicy.UNLIMITED, 2));
+		for (int i=0; i<4; i++) {
+			assertTrue(queue.queue(new DummyMail("A"+i), "A"+i, false, "a"));
+			assertTrue(queue.queue(new DummyMail("B"+i), "B"+i, false, "b"));
+		}
+		assertEquals("A0,A1,B0,A2,A3,B1,B2,B3", new PriorityClassTest().drain(queue));
+	}
+
+	// Test the tenant is determined by the extractor
+	@Test
+	public void testQueue_withExtractor_thenTenantsSeparated() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(100, 5, false, null);
+		queue.setTenantExtractor(m -> m.getId().substring(0, 1));
+		for (int i=0; i<3; i++) assertTrue(queue.queue(new DummyMail("A"+i), "A"+i));
+		for (int i=0; i<3; i++) assertTrue(queue.queue(new DummyMail("B"+i), "B"+i));
+		assertEquals(3, queue.getTenantSize("A"));
+		assertEquals(0, queue.getTenantSize(null));
+		assertEquals("A0,B0,A1,B1,A2,B2", new PriorityClassTest().drain(queue));
+		assertEquals(0, queue.getTenantSize("A"));
+	}
+
+	// Test the maximum size of a tenant
+	@Test
+	public void testQueue_withFullTenant_thenRejected() {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(100, 5, false, null);
+		queue.setTenantPolicy("a", new TenantPolicy(null, 2, 1));
+		assertTrue(queue.queue(new DummyMail("A0"), "A0", false, "a"));
+		assertTrue(queue.queue(new DummyMail("A1"), "A1", true, "a"));
+		assertFalse(queue.queue(new DummyMail("A2"), "A2", false, "a"));
+		assertTrue(queue.queue(new DummyMail("B0"), "B0", false, "b"));
+		assertEquals(2, queue.getTenantSize("a"));
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		assertEquals("A1", entry.referenceId);
+		queue.remove(entry);
+		assertTrue(queue.queue(new DummyMail("A2"), "A2", false, "a"));
+	}
+
+	// Test a waiting message of a full tenant is queued when another message of the tenant was sent
+	@Test
+	public void testQueue_withFullTenant_thenWaiting() throws Exception {
+		MailQueue<DummyMail> queue = new MailQueueTest().createQueue(100, 5, false, null);
+		queue.setTenantPolicy("a", new TenantPolicy(null, 1, 1));
+		assertTrue(queue.queue(new DummyMail("A0"), "A0", false, "a"));
+		Thread producer = new Thread(() -> queue.queue(new DummyMail("A1"), "A1", PriorityClass.NORMAL, "a", 5));
+		producer.start();
+		Thread.sleep(100L);
+		assertEquals(1, queue.size());
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		queue.remove(entry);
+		producer.join(5000L);
+		assertEquals(1, queue.getTenantSize("a"));
+	}
+
+	// Test the token bucket of a tenant
+	@Test
+	public void testPollNext_withTenantBucket_thenOtherTenantsSent() {
+		MailQueueTest helper = new MailQueueTest();
+		MailQueue<DummyMail> queue = helper.createQueue(100, 5, false, null);
+		queue.setTenantPolicy("a", new TenantPolicy(helper.createBucket(1, 1), TenantPolicy.UNLIMITED, 1));
+		for (int i=0; i<3; i++) assertTrue(queue.queue(new DummyMail("A"+i), "A"+i, false, "a"));
+		assertTrue(queue.queue(new DummyMail("B0"), "B0", false, "b"));
+		assertEquals("A0,B0", new PriorityClassTest().drain(queue));
+		assertEquals(2, queue.size());
+		assertNull(queue.pollNext());
+	}
+
+	// Test the token of a tenant is kept while none of its domains can be sent to
+	@Test
+	public void testPollNext_withSaturatedDomain_thenTenantTokenKept() {
+		MailQueueTest helper = new MailQueueTest();
+		MailQueue<DummyMail> queue = helper.createQueue(100, 5, false, null);
+		queue.setDomainExtractor(m -> DomainExtractor.getAddressDomain(m.getId()));
+		queue.setDomainPolicy("gmail.com", new DomainPolicy(null, 1, 0));
+		queue.setTenantPolicy("a", new TenantPolicy(helper.createBucket(1, 1), TenantPolicy.UNLIMITED, 1));
+		assertTrue(queue.queue(new DummyMail("x@gmail.com"), "x@gmail.com", false, "b"));
+		assertTrue(queue.queue(new DummyMail("a@gmail.com"), "a@gmail.com", false, "a"));
+		MessageEntry<DummyMail> entry = queue.pollNext();
+		assertEquals("x@gmail.com", entry.referenceId);
+		for (int i=0; i<10; i++) assertNull(queue.pollNext());
+		queue.remove(entry);
+		assertEquals("a@gmail.com", queue.pollNext().referenceId);
+	}
+
+	// Test a tenant without tokens is parked until its next token
+	@Test
+	public void testPollNext_withThrottledTenant_thenParked() {
+		MailQueueTest helper = new MailQueueTest();
+		MailQueue<DummyMail> queue = helper.createQueue(100, 5, false, null);
+		queue.setTenantPolicy("a", new TenantPolicy(helper.createBucket(1, 1), TenantPolicy.UNLIMITED, 1));
+		for (int i=0; i<3; i++) assertTrue(queue.queue(new DummyMail("A"+i), "A"+i, false, "a"));
+		assertEquals("A0", queue.pollNext().referenceId);
+		assertNull(queue.pollNext());
+		long nextRunTime = queue.getNextRunTime();
+		assertTrue(nextRunTime > System.currentTimeMillis());
+		assertTrue(nextRunTime < Long.MAX_VALUE);
+		assertNull(queue.getNext(false));
+		assertTrue(queue.queue(new DummyMail("B0"), "B0", false, "b"));
+		assertEquals("B0", queue.pollNext().referenceId);
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * 
+ */
+package rs.mail.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import rs.mail.queue.TransportPool.PooledTransport;
+
+/**
+ * Tests the {@link TransportPool}.
+ * 
+ * @author ralph
+ *
+ */
+public class TransportPoolTest {
+
+	// Test an idle transport is reused
+	@Test
+	public void testBorrow_withIdleTransport_thenReused() throws Exception {
+		TransportPool pool = createPool(2);
+		PooledTransport transport1 = pool.borrow();
+		pool.release(transport1, false);
+		PooledTransport transport2 = pool.borrow();
+		assertSame(transport1, transport2);
+		assertEquals(1, DummyTransport.connectCount);
+	}
+	
+	// Test a broken transport is closed
+	@Test
+	public void testRelease_withBroken_thenClosed() throws Exception {
+		TransportPool pool = createPool(2);
+		PooledTransport transport1 = pool.borrow();
+		pool.release(transport1, true);
+		assertEquals(1, DummyTransport.closeCount);
+		assertEquals(0, pool.getIdleCount());
+		PooledTransport transport2 = pool.borrow();
+		assertNotSame(transport1, transport2);
+		assertEquals(2, DummyTransport.connectCount);
+	}
+	
+	// Test a disconnected transport is not reused
+	@Test
+	public void testBorrow_withDisconnected_thenReconnected() throws Exception {
+		TransportPool pool = createPool(2);
+		PooledTransport transport1 = pool.borrow();
+		pool.release(transport1, false);
+		transport1.getTransport().close();
+		PooledTransport transport2 = pool.borrow();
+		assertNotSame(transport1, transport2);
+		assertEquals(2, DummyTransport.connectCount);
+	}
+	
+	// Test a transport is recycled after the maximum number of messages
+	@Test
+	public void testRelease_withMaxMessages_thenRecycled() throws Exception {
+		TransportPool pool = createPool(2);
+		pool.setMaxMessages(2);
+		PooledTransport transport = pool.borrow();
+		transport.messageSent();
+		pool.release(transport, false);
+		assertEquals(1, pool.getIdleCount());
+		transport = pool.borrow();
+		transport.messageSent();
+		pool.release(transport, false);
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(1, DummyTransport.closeCount);
+	}
+	
+	// Test idle transports are evicted
+	@Test
+	public void testEvictIdle_withMaxIdleTime_thenClosed() throws Exception {
+		TransportPool pool = createPool(2);
+		pool.setMaxIdleTime(10L);
+		pool.release(pool.borrow(), false);
+		assertEquals(1, pool.getIdleCount());
+		Thread.sleep(50L);
+		pool.evictIdle();
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(1, DummyTransport.closeCount);
+	}
+	
+	// Test the pool is bounded
+	@Test
+	public void testBorrow_withExhaustedPool_thenTimeout() throws Exception {
+		TransportPool pool = createPool(1);
+		pool.setBorrowTimeout(50L);
+		pool.borrow();
+		assertThrows(MessagingException.class, () -> pool.borrow());
+	}
+	
+	/**
+	 * Creates the pool for a test.
+	 * @param maxSize - maximum number of transports
+	 * @return the pool
+	 */
+	protected TransportPool createPool(int maxSize) throws Exception {
+		Session session = DummyTransport.createSession();
+		return new TransportPool(session, maxSize);
+	}
+}